@@ -0,0 +1,2 @@
+#!/bin/sh
+java -cp ../target/classes lsr.paxos.test.ClusterBenchmark $*
@@ -0,0 +1,47 @@
+package lsr.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared setup code for the JMH benchmarks.
+ */
+public final class BenchmarkHelper {
+    // Prevent construction
+    private BenchmarkHelper() {};
+
+    // Loggers are weakly referenced, keep it to preserve the level set below
+    private static final Logger lsrLogger = Logger.getLogger("lsr");
+
+    /**
+     * Initialize <code>ProcessDescriptor</code> singleton with specified number
+     * of replicas and local ID. Must be called before loading any class that
+     * caches the configuration in a static field (eg.,
+     * <code>ForwardClientBatch</code>).
+     *
+     * @param numReplicas - the number of replicas to initialize
+     * @param localId - the id of local process
+     */
+    public static void initializeProcessDescriptor(int numReplicas, int localId) {
+        List<PID> processes = new ArrayList<PID>();
+        for (int i = 0; i < numReplicas; i++) {
+            processes.add(new PID(i, "localhost", 2000 + i, 3000 + i));
+        }
+        ProcessDescriptor.initialize(new Configuration(processes), localId);
+    }
+
+    /**
+     * Raises the log level of the replica code to WARNING. Some of the hot
+     * paths log at INFO level, which would otherwise dominate the results.
+     */
+    public static void quietLogging() {
+        lsrLogger.setLevel(Level.WARNING);
+    }
+
+    /** Creates a client request with a payload of the given size */
+    public static ClientRequest newClientRequest(long clientId, int seqNo, int size) {
+        return new ClientRequest(new RequestId(clientId, seqNo), new byte[size]);
+    }
+}
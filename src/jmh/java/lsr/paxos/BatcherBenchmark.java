@@ -0,0 +1,60 @@
+package lsr.paxos;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+import lsr.common.ClientBatch;
+import lsr.paxos.replica.ClientBatchID;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link Batcher#unpack(byte[])}, executed once per decided instance.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatcherBenchmark {
+
+    /** Number of batch ids in a proposal */
+    @Param({"1", "16", "128"})
+    public int batchIds;
+
+    private byte[] value;
+
+    @Setup
+    public void setup() {
+        // Same layout as created by ActiveBatcher
+        ClientBatch[] batches = new ClientBatch[batchIds];
+        int size = 4;
+        for (int i = 0; i < batchIds; i++) {
+            batches[i] = new ClientBatch(new ClientBatchID(i % 3, i + 1));
+            size += batches[i].byteSize();
+        }
+        ByteBuffer bb = ByteBuffer.allocate(size);
+        bb.putInt(batches.length);
+        for (ClientBatch batch : batches) {
+            batch.writeTo(bb);
+        }
+        value = bb.array();
+    }
+
+    @Benchmark
+    public Deque<ClientBatch> unpack() {
+        return Batcher.unpack(value);
+    }
+}
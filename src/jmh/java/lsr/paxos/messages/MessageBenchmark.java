@@ -0,0 +1,163 @@
+package lsr.paxos.messages;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import lsr.common.BenchmarkHelper;
+import lsr.common.BufferPool;
+import lsr.common.ClientRequest;
+import lsr.common.PooledBuffer;
+import lsr.common.Range;
+import lsr.common.Reply;
+import lsr.paxos.Snapshot;
+import lsr.paxos.replica.ClientBatchID;
+import lsr.paxos.storage.ConsensusInstance;
+import lsr.paxos.storage.ConsensusInstance.LogEntryState;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization and deserialization cost of every message type that can be
+ * sent over the network. The messages are sized after what a replica sends
+ * under load: a batch of client requests in each value, 3 replicas.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    /** Only the types supported by {@link MessageFactory} */
+    @Param({"Accept", "Alive", "CatchUpQuery", "CatchUpResponse", "CatchUpSnapshot",
+            "Prepare", "PrepareOK", "Propose", "Recovery", "RecoveryAnswer",
+            "ForwardedClientRequest", "AckForwardedRequest", "ViewPrepared"})
+    public String type;
+
+    /** Size of the value carried by Propose, CatchUp* and PrepareOK */
+    @Param({"128", "1450"})
+    public int valueSize;
+
+    private static final int N = 3;
+
+    private Message message;
+    private byte[] serialized;
+    /** Same as serialized, in a direct buffer like the ones read by the networks */
+    private ByteBuffer serializedBuffer;
+    private final BufferPool pool = new BufferPool(64 * 1024, 1024 * 1024);
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkHelper.initializeProcessDescriptor(N, 0);
+        message = createMessage(MessageType.valueOf(type));
+        serialized = message.toByteArray();
+        serializedBuffer = ByteBuffer.allocateDirect(serialized.length);
+        serializedBuffer.put(serialized);
+    }
+
+    @Benchmark
+    public byte[] toByteArray() {
+        return message.toByteArray();
+    }
+
+    /** The path used by the networks: serialize into a pooled direct buffer */
+    @Benchmark
+    public int writeToPooledBuffer() {
+        PooledBuffer buffer = pool.acquire(message.byteSize());
+        message.writeTo(buffer.getBuffer());
+        int position = buffer.getBuffer().position();
+        buffer.release();
+        return position;
+    }
+
+    @Benchmark
+    public Message create() throws IOException, ClassNotFoundException {
+        return MessageFactory.create(new DataInputStream(new ByteArrayInputStream(serialized)));
+    }
+
+    /** The path used by the networks: parse in place from the receive buffer */
+    @Benchmark
+    public Message createFromBuffer() {
+        serializedBuffer.clear();
+        return MessageFactory.create(serializedBuffer);
+    }
+
+    private Message createMessage(MessageType type) {
+        int view = 7;
+        int instanceId = 123456;
+        byte[] value = new byte[valueSize];
+        switch (type) {
+            case Accept:
+                return new Accept(view, instanceId);
+            case Alive:
+                return new Alive(view, instanceId);
+            case CatchUpQuery:
+                return new CatchUpQuery(view, new int[] {instanceId, instanceId + 2},
+                        new Range[] {new Range(instanceId + 4, instanceId + 64)});
+            case CatchUpResponse: {
+                List<ConsensusInstance> decided = new ArrayList<ConsensusInstance>();
+                for (int i = 0; i < 16; i++) {
+                    decided.add(new ConsensusInstance(instanceId + i, LogEntryState.DECIDED,
+                            view, value));
+                }
+                return new CatchUpResponse(view, System.currentTimeMillis(), decided);
+            }
+            case CatchUpSnapshot: {
+                Snapshot snapshot = new Snapshot();
+                snapshot.setNextInstanceId(instanceId);
+                snapshot.setValue(value);
+                snapshot.setLastReplyForClient(new HashMap<Long, Reply>());
+                snapshot.setPartialResponseCache(new ArrayList<Reply>());
+                return new CatchUpSnapshot(view, System.currentTimeMillis(), snapshot);
+            }
+            case Prepare:
+                return new Prepare(view, instanceId);
+            case PrepareOK: {
+                ConsensusInstance[] prepared = new ConsensusInstance[16];
+                for (int i = 0; i < prepared.length; i++) {
+                    prepared[i] = new ConsensusInstance(instanceId + i, LogEntryState.KNOWN,
+                            view, value);
+                }
+                return new PrepareOK(view, prepared, new long[N]);
+            }
+            case Propose:
+                return new Propose(view, instanceId, value);
+            case Recovery:
+                return new Recovery(view, 3);
+            case RecoveryAnswer:
+                return new RecoveryAnswer(view, new long[N], instanceId);
+            case ForwardedClientRequest: {
+                ClientRequest[] requests = new ClientRequest[Math.max(1, valueSize / 128)];
+                for (int i = 0; i < requests.length; i++) {
+                    requests[i] = BenchmarkHelper.newClientRequest(i, 1, 100);
+                }
+                return new ForwardClientBatch(new ClientBatchID(0, instanceId), requests,
+                        new int[N]);
+            }
+            case AckForwardedRequest:
+                return new AckForwardClientBatch(new int[N]);
+            case ViewPrepared:
+                return new ViewPrepared(view, instanceId, new int[] {0, 1, 2});
+            default:
+                throw new IllegalArgumentException("Message type " + type +
+                                                   " cannot be serialized");
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package lsr.paxos.replica;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import lsr.common.BenchmarkHelper;
+import lsr.common.ClientBatch;
+import lsr.common.ClientRequest;
+import lsr.paxos.Paxos;
+import lsr.paxos.replica.ClientBatchStore.BatchState;
+import lsr.paxos.replica.ClientBatchStore.ClientBatchInfo;
+import lsr.paxos.storage.InMemoryStorage;
+import lsr.paxos.storage.Storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.objenesis.ObjenesisHelper;
+
+/**
+ * Cost of {@link ClientBatchStore#propose(Paxos)} and
+ * {@link ClientBatchStore#pruneLogs()} over a store holding
+ * <code>batches</code> batches from every replica. The store is rebuilt
+ * before each invocation, as both operations consume its state. Paxos is
+ * replaced by a stub that accepts every batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientBatchStoreBenchmark {
+
+    @Param({"3", "5"})
+    public int n;
+
+    /** Number of batches per replica */
+    @Param({"64", "1024"})
+    public int batches;
+
+    private static final int VIEW = 0;
+
+    private Paxos paxos;
+    private ClientBatchStore proposeStore;
+    private ClientBatchStore pruneStore;
+
+    @Setup(Level.Trial)
+    public void setupPaxos() {
+        BenchmarkHelper.initializeProcessDescriptor(n, 0);
+        BenchmarkHelper.quietLogging();
+
+        // Skips the constructor, which would start the whole protocol
+        StubPaxos stub = (StubPaxos) ObjenesisHelper.newInstance(StubPaxos.class);
+        stub.stubStorage = new InMemoryStorage();
+        paxos = stub;
+    }
+
+    @Setup(Level.Invocation)
+    public void setupStores() {
+        // Stable batches, none proposed yet
+        proposeStore = createStore(BatchState.NotProposed);
+        // Executed and acknowledged by everyone, ready to be deleted
+        pruneStore = createStore(BatchState.Executed);
+    }
+
+    @Benchmark
+    public ClientBatchStore propose() {
+        proposeStore.propose(paxos);
+        return proposeStore;
+    }
+
+    @Benchmark
+    public ClientBatchStore pruneLogs() {
+        pruneStore.pruneLogs();
+        return pruneStore;
+    }
+
+    /**
+     * Accepts every batch. Mockito stubs are not used, as they record every
+     * invocation and would dominate the measurement.
+     */
+    static class StubPaxos extends Paxos {
+        private Storage stubStorage;
+
+        // Never called, instances are created by Objenesis
+        StubPaxos() throws IOException {
+            super(null, null);
+        }
+
+        @Override
+        public Storage getStorage() {
+            return stubStorage;
+        }
+
+        @Override
+        public boolean enqueueRequest(ClientBatch request) {
+            return true;
+        }
+    }
+
+    private ClientBatchStore createStore(BatchState state) {
+        ClientBatchStore store = new ClientBatchStore();
+        store.onViewChange(VIEW, Collections.<ClientBatchID> emptySet(),
+                Collections.<ClientBatchID> emptySet());
+        int[] rcvdUB = new int[n];
+        for (int replica = 0; replica < n; replica++) {
+            for (int sn = 1; sn <= batches; sn++) {
+                ClientBatchID bid = new ClientBatchID(replica, sn);
+                ClientBatchInfo bInfo = store.newRequestInfo(bid, new ClientRequest[] {
+                        BenchmarkHelper.newClientRequest(replica, sn, 128)});
+                bInfo.state = state;
+                store.setRequestInfo(bid, bInfo);
+            }
+            rcvdUB[replica] = batches;
+        }
+        for (int replica = 0; replica < n; replica++) {
+            store.markReceived(replica, rcvdUB);
+        }
+        return store;
+    }
+}
@@ -0,0 +1,68 @@
+package lsr.paxos.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link FullSSDiscWriter#changeInstanceValue(int, int, byte[])}, the
+ * synchronous write done by the acceptor before answering a Propose. Each
+ * invocation includes the fsync, so the results depend mostly on the disc
+ * holding <code>java.io.tmpdir</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FullSSDiscWriterBenchmark {
+
+    @Param({"128", "1450", "65536"})
+    public int valueSize;
+
+    private File directory;
+    private FullSSDiscWriter writer;
+    private byte[] value;
+    private int instanceId;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = File.createTempFile("jpaxos-bench", "");
+        directory.delete();
+        writer = new FullSSDiscWriter(directory.getAbsolutePath());
+        value = new byte[valueSize];
+        instanceId = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        writer.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public int changeInstanceValue() {
+        writer.changeInstanceValue(instanceId, 0, value);
+        return instanceId++;
+    }
+}
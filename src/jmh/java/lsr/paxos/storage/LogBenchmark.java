@@ -0,0 +1,64 @@
+package lsr.paxos.storage;
+
+import java.util.concurrent.TimeUnit;
+
+import lsr.common.BenchmarkHelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the {@link Log} operations executed for every instance: looking up
+ * an instance kept in the log and appending a new instance while truncating
+ * the log so that it keeps a constant size, as it happens after each
+ * snapshot.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogBenchmark {
+
+    /** Number of instances kept in the log */
+    @Param({"256", "16384"})
+    public int logSize;
+
+    private static final byte[] VALUE = new byte[128];
+
+    private Log log;
+    private int next;
+
+    @Setup
+    public void setup() {
+        BenchmarkHelper.initializeProcessDescriptor(3, 0);
+        log = new Log();
+        for (int i = 0; i < logSize; i++) {
+            log.append(0, VALUE);
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public ConsensusInstance getInstance() {
+        int id = log.getLowestAvailableId() + (next++ % logSize);
+        return log.getInstance(id);
+    }
+
+    @Benchmark
+    public Log appendAndTruncateBelow() {
+        log.append(0, VALUE);
+        log.truncateBelow(log.getNextId() - logSize);
+        return log;
+    }
+}
@@ -0,0 +1,117 @@
+package lsr.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct <code>ByteBuffer</code>s used to serialize messages before
+ * sending them to the network.
+ * <p>
+ * Buffers are grouped in size classes, powers of two from
+ * {@link #MIN_BUFFER_SIZE} to the maximum size given to the constructor. A
+ * request is served by the smallest class large enough. Requests above the
+ * maximum size (eg., a large catch-up response) are served by a heap buffer
+ * of the exact size that is not pooled: keeping such buffers would pin a lot
+ * of native memory for rare messages.
+ * <p>
+ * Each class keeps at most <code>maxPooledBytes</code> bytes of free buffers.
+ * Buffers released when the class is full are left to the garbage collector.
+ * All methods are thread-safe and do not block.
+ */
+public final class BufferPool {
+    public static final int MIN_BUFFER_SIZE = 256;
+
+    private final int maxBufferSize;
+    private final FreeList[] freeLists;
+    /** Number of buffers allocated, pooled or not */
+    private final AtomicLong allocations = new AtomicLong();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param maxBufferSize - the size of the largest pooled buffers, rounded
+     *            up to a power of two
+     * @param maxPooledBytes - the maximum number of bytes kept by each size
+     *            class. Every class keeps at least 4 buffers.
+     */
+    public BufferPool(int maxBufferSize, int maxPooledBytes) {
+        this.maxBufferSize = roundToPowerOfTwo(Math.max(maxBufferSize, MIN_BUFFER_SIZE));
+        int classes = sizeClass(this.maxBufferSize) + 1;
+        freeLists = new FreeList[classes];
+        for (int i = 0; i < classes; i++) {
+            int bufferSize = MIN_BUFFER_SIZE << i;
+            freeLists[i] = new FreeList(bufferSize, Math.max(4, maxPooledBytes / bufferSize));
+        }
+    }
+
+    /**
+     * Returns a buffer with at least <code>size</code> bytes of capacity. The
+     * position of the buffer is 0 and its limit <code>size</code>. The caller
+     * owns the only reference and must {@link PooledBuffer#release() release}
+     * it once done.
+     *
+     * @param size - the number of bytes needed
+     */
+    public PooledBuffer acquire(int size) {
+        PooledBuffer buffer;
+        if (size > maxBufferSize) {
+            allocations.incrementAndGet();
+            buffer = new PooledBuffer(ByteBuffer.allocate(size), null, -1);
+        } else {
+            FreeList freeList = freeLists[sizeClass(size)];
+            buffer = freeList.queue.poll();
+            if (buffer == null) {
+                allocations.incrementAndGet();
+                buffer = new PooledBuffer(ByteBuffer.allocateDirect(freeList.bufferSize), this,
+                        sizeClass(size));
+            } else {
+                freeList.size.decrementAndGet();
+            }
+        }
+        buffer.acquired(size);
+        return buffer;
+    }
+
+    /** The number of buffers allocated since the pool was created */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /** Called by the buffer when its last reference is released */
+    void recycle(PooledBuffer buffer) {
+        FreeList freeList = freeLists[buffer.getSizeClass()];
+        // May go above the limit by the number of concurrent callers
+        if (freeList.size.get() < freeList.maxBuffers) {
+            freeList.size.incrementAndGet();
+            freeList.queue.offer(buffer);
+        }
+    }
+
+    /** Index of the smallest size class that fits <code>size</code> bytes */
+    private static int sizeClass(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) -
+               Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    private static int roundToPowerOfTwo(int size) {
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    private static final class FreeList {
+        final int bufferSize;
+        final int maxBuffers;
+        final ConcurrentLinkedQueue<PooledBuffer> queue = new ConcurrentLinkedQueue<PooledBuffer>();
+        /** ConcurrentLinkedQueue.size() is linear */
+        final AtomicInteger size = new AtomicInteger();
+
+        FreeList(int bufferSize, int maxBuffers) {
+            this.bufferSize = bufferSize;
+            this.maxBuffers = maxBuffers;
+        }
+    }
+}
@@ -11,12 +11,20 @@ public class ClientCommand implements Serializable {
     private static final long serialVersionUID = 1L;
     private final CommandType commandType;
     private final ClientRequest request;
+    /** All the requests of a <code>REQUEST_BATCH</code>, only the request otherwise */
+    private final ClientRequest[] requests;
 
     /**
-     * The type of command.
+     * The type of command. <code>NEW_CLIENT_ID</code> asks the replica for a
+     * new client id, returned in the value of the reply to the request; used
+     * to open logical clients over an existing connection.
+     * <code>REQUEST_BATCH</code> carries several requests, ordered as a unit
+     * and answered with a single <code>BATCH</code> reply.
+     * <code>READ_REQUEST</code> is a read-only request, executed locally by the
+     * leader holding the read lease, or ordered as a <code>REQUEST</code>.
      */
     public enum CommandType {
-        REQUEST, ALIVE, UNORDERED_REQUEST
+        REQUEST, ALIVE, UNORDERED_REQUEST, NEW_CLIENT_ID, REQUEST_BATCH, READ_REQUEST
     };
 
     /**
@@ -28,6 +36,19 @@ public class ClientCommand implements Serializable {
     public ClientCommand(CommandType commandType, ClientRequest args) {
         this.commandType = commandType;
         request = args;
+        requests = new ClientRequest[] {args};
+    }
+
+    /**
+     * Creates new <code>REQUEST_BATCH</code> command.
+     * 
+     * @param requests - the requests, at least one
+     */
+    public ClientCommand(ClientRequest[] requests) {
+        assert requests.length > 0 : "Empty batch";
+        commandType = CommandType.REQUEST_BATCH;
+        request = requests[0];
+        this.requests = requests;
     }
 
     /**
@@ -40,7 +61,16 @@ public class ClientCommand implements Serializable {
         commandType = CommandType.values()[input.getInt()];
         // Discard the next int, size of request.
         input.getInt();
-        request = ClientRequest.create(input);
+        if (commandType == CommandType.REQUEST_BATCH) {
+            requests = new ClientRequest[input.getInt()];
+            for (int i = 0; i < requests.length; i++) {
+                requests[i] = ClientRequest.create(input);
+            }
+            request = requests[0];
+        } else {
+            request = ClientRequest.create(input);
+            requests = new ClientRequest[] {request};
+        }
     }
 
     /**
@@ -52,8 +82,16 @@ public class ClientCommand implements Serializable {
      */
     public void writeTo(ByteBuffer buffer) {
         buffer.putInt(commandType.ordinal());
-        buffer.putInt(request.byteSize());
-        request.writeTo(buffer);
+        if (commandType == CommandType.REQUEST_BATCH) {
+            buffer.putInt(byteSize() - 8);
+            buffer.putInt(requests.length);
+            for (ClientRequest r : requests) {
+                r.writeTo(buffer);
+            }
+        } else {
+            buffer.putInt(request.byteSize());
+            request.writeTo(buffer);
+        }
     }
 
     /**
@@ -62,6 +100,13 @@ public class ClientCommand implements Serializable {
      * @return the size of the command in bytes
      */
     public int byteSize() {
+        if (commandType == CommandType.REQUEST_BATCH) {
+            int size = 4 + 4 + 4;
+            for (ClientRequest r : requests) {
+                size += r.byteSize();
+            }
+            return size;
+        }
         return 4 + 4 + request.byteSize();
     }
 
@@ -75,7 +120,8 @@ public class ClientCommand implements Serializable {
     }
 
     /**
-     * Returns the request (argument) for this command.
+     * Returns the request (argument) for this command. For a
+     * <code>REQUEST_BATCH</code>, returns the first request.
      * 
      * @return request (argument) object
      */
@@ -83,7 +129,20 @@ public class ClientCommand implements Serializable {
         return request;
     }
 
+    /**
+     * Returns the requests of a <code>REQUEST_BATCH</code>, or the request of
+     * the other commands.
+     * 
+     * @return the requests, in order
+     */
+    public ClientRequest[] getRequests() {
+        return requests;
+    }
+
     public String toString() {
+        if (commandType == CommandType.REQUEST_BATCH) {
+            return commandType + ": " + requests.length + " requests, first " + request;
+        }
         return commandType + ": " + request;
     }
 }
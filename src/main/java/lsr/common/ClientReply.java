@@ -5,22 +5,36 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /**
  * Represents the reply message which replica send to client after handling
- * {@link ClientCommand} request.
+ * {@link ClientCommand} request. The value of an <code>OK</code> or
+ * <code>NACK</code> reply is a serialized {@link Reply} to the request; for
+ * <code>NACK</code>, its value is the error message. The value of a
+ * <code>BATCH</code> reply, to a <code>REQUEST_BATCH</code> command, is the
+ * number of replies followed by each serialized {@link Reply} preceded by its
+ * size; see {@link #createBatch(Reply[])} and {@link #getBatchedReplies()}.
+ * <p>
+ * Every reply carries the view of the replica that sent it and the leader of
+ * that view, or -1 if unknown, so that clients know where to go on failover.
  */
 public class ClientReply implements Serializable {
     private static final long serialVersionUID = 1L;
     private final Result result;
     private final byte[] value;
+    private final int view;
+    private final int leader;
+
+    /** Size of the serialized reply without the value */
+    public static final int HEADER_SIZE = 4 + 4 + 4 + 4;
 
     /**
      * The result type of this reply message
      * 
      */
     public enum Result {
-        OK, NACK, REDIRECT, BUSY;
+        OK, NACK, REDIRECT, BUSY, BATCH;
     };
 
     /**
@@ -30,8 +44,22 @@ public class ClientReply implements Serializable {
      * @param value - value for this reply
      */
     public ClientReply(Result result, byte[] value) {
+        this(result, value, -1, -1);
+    }
+
+    /**
+     * Create new client reply with the view of the replica.
+     * 
+     * @param result - type of reply
+     * @param value - value for this reply
+     * @param view - the current view of the replica
+     * @param leader - the leader of the view
+     */
+    public ClientReply(Result result, byte[] value, int view, int leader) {
         this.result = result;
         this.value = value;
+        this.view = view;
+        this.leader = leader;
     }
 
     /**
@@ -52,12 +80,71 @@ public class ClientReply implements Serializable {
         return value;
     }
 
+    /**
+     * Returns the view of the replica when it sent this reply.
+     * 
+     * @return the view, -1 if unknown
+     */
+    public int getView() {
+        return view;
+    }
+
+    /**
+     * Returns the leader of the view of the replica when it sent this reply.
+     * 
+     * @return the id of the leader, -1 if unknown
+     */
+    public int getLeader() {
+        return leader;
+    }
+
+    /**
+     * Creates a <code>BATCH</code> reply carrying the given replies.
+     * 
+     * @param replies - the replies to the requests of a batch
+     * @return the batched reply
+     */
+    public static ClientReply createBatch(Reply[] replies) {
+        byte[][] serialized = new byte[replies.length][];
+        int size = 4;
+        for (int i = 0; i < replies.length; i++) {
+            serialized[i] = replies[i].toByteArray();
+            size += 4 + serialized[i].length;
+        }
+        ByteBuffer bb = ByteBuffer.allocate(size);
+        bb.putInt(replies.length);
+        for (byte[] reply : serialized) {
+            bb.putInt(reply.length);
+            bb.put(reply);
+        }
+        return new ClientReply(Result.BATCH, bb.array());
+    }
+
+    /**
+     * Returns the replies carried by a <code>BATCH</code> reply.
+     * 
+     * @return the replies, in the order of the requests
+     */
+    public Reply[] getBatchedReplies() {
+        assert result == Result.BATCH : "Not a batch: " + result;
+        ByteBuffer bb = ByteBuffer.wrap(value);
+        Reply[] replies = new Reply[bb.getInt()];
+        for (int i = 0; i < replies.length; i++) {
+            byte[] reply = new byte[bb.getInt()];
+            bb.get(reply);
+            replies[i] = new Reply(reply);
+        }
+        return replies;
+    }
+
     public String toString() {
         return result + " : " + (value == null ? "null" : ("Size: " + value.length));
     }
 
     public ClientReply(DataInputStream input) throws IOException {
         result = Result.values()[input.readInt()];
+        view = input.readInt();
+        leader = input.readInt();
         value = new byte[input.readInt()];
         input.readFully(value);
 
@@ -76,6 +163,8 @@ public class ClientReply implements Serializable {
 
     public void write(DataOutputStream output) throws IOException {
         output.writeInt(result.ordinal());
+        output.writeInt(view);
+        output.writeInt(leader);
         output.writeInt(value.length);
         output.write(value);
     }
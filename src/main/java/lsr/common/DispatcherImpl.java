@@ -10,7 +10,8 @@ import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import lsr.paxos.statistics.QueueMonitor;
+import lsr.paxos.statistics.Gauge;
+import lsr.paxos.statistics.MetricsRegistry;
 
 /**
  * Implementation of {@link Dispatcher} based on
@@ -148,7 +149,11 @@ public class DispatcherImpl extends Thread implements Dispatcher {
             }
         }));
         
-        QueueMonitor.getInstance().registerQueue("taskQueue", taskQueue);
+        MetricsRegistry.getInstance().registerGauge("dispatcher." + name + ".queue", new Gauge() {
+            public long getValue() {
+                return taskQueue.size();
+            }
+        });
     }
 
     public PriorityTask dispatch(Runnable task) {
@@ -0,0 +1,93 @@
+package lsr.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted <code>ByteBuffer</code> obtained from a
+ * {@link BufferPool}.
+ * <p>
+ * The buffer is acquired with one reference, owned by the caller. The owner
+ * fills it using {@link #getBuffer()}, flips it, and then can share it with
+ * other threads, each calling {@link #retain()} before taking it and
+ * {@link #release()} when done. The buffer returns to the pool when the last
+ * reference is released; it must not be used afterwards. The contents must not
+ * be modified once the buffer is shared, readers use {@link #duplicate()} to
+ * get their own position and limit.
+ * <p>
+ * A buffer that is never released is not a leak, it is simply garbage
+ * collected instead of being reused.
+ */
+public final class PooledBuffer {
+    private final ByteBuffer buffer;
+    /** null if this buffer is not pooled */
+    private final BufferPool pool;
+    /** Index of the size class in the pool */
+    private final int sizeClass;
+    private final AtomicInteger references = new AtomicInteger();
+
+    PooledBuffer(ByteBuffer buffer, BufferPool pool, int sizeClass) {
+        this.buffer = buffer;
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+    }
+
+    /**
+     * Returns the underlying buffer, to be filled by the owner. Its limit is
+     * the size requested when acquiring the buffer.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns a new view of the contents of this buffer, from 0 to its limit,
+     * with an independent position. The view is valid as long as the caller
+     * holds a reference.
+     */
+    public ByteBuffer duplicate() {
+        return buffer.duplicate();
+    }
+
+    /** The number of bytes of the message stored in this buffer */
+    public int size() {
+        return buffer.limit();
+    }
+
+    /**
+     * Adds a reference to this buffer.
+     *
+     * @return this buffer
+     */
+    public PooledBuffer retain() {
+        int refs = references.incrementAndGet();
+        assert refs > 1 : "Buffer retained after being released";
+        return this;
+    }
+
+    /**
+     * Removes a reference to this buffer. The buffer is returned to the pool
+     * when the last reference is removed.
+     */
+    public void release() {
+        int refs = references.decrementAndGet();
+        if (refs == 0) {
+            if (pool != null) {
+                pool.recycle(this);
+            }
+        } else if (refs < 0) {
+            throw new IllegalStateException("Buffer released too many times");
+        }
+    }
+
+    /** Called by the pool when handing the buffer to a new owner */
+    void acquired(int size) {
+        references.set(1);
+        buffer.clear();
+        buffer.limit(size);
+    }
+
+    int getSizeClass() {
+        return sizeClass;
+    }
+}
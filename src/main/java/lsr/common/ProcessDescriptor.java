@@ -25,6 +25,28 @@ public final class ProcessDescriptor {
     public static final String WINDOW_SIZE = "WindowSize";
     public static final int DEFAULT_WINDOW_SIZE = 2;
 
+    /**
+     * If true, the leader adapts the number of instances it proposes
+     * concurrently to the decision latency, with <code>WindowSize</code> as
+     * the upper bound.
+     */
+    public static final String ADAPTIVE_WINDOW = "AdaptiveWindow";
+    public static final boolean DEFAULT_ADAPTIVE_WINDOW = false;
+
+    /**
+     * Decision latency above which the adaptive window shrinks, in
+     * milliseconds. If 0, twice the lowest latency observed recently.
+     */
+    public static final String WINDOW_LATENCY_TARGET = "WindowLatencyTarget";
+    public static final int DEFAULT_WINDOW_LATENCY_TARGET = 0;
+
+    /**
+     * If true, every replica proposes the batches of its own clients on a
+     * share of the instances, assigned round-robin by the leader of the view.
+     */
+    public static final String MULTI_LEADER = "MultiLeader";
+    public static final boolean DEFAULT_MULTI_LEADER = false;
+
     /**
      * Maximum UDP packet size in java is 65507. Higher than that and the send
      * method throws an exception.
@@ -43,8 +65,8 @@ public final class ProcessDescriptor {
     public static final int DEFAULT_MAX_UDP_PACKET_SIZE = 8 * 1024;
 
     /**
-     * Protocol to use between replicas. TCP, UDP or Generic, which combines
-     * both
+     * Protocol to use between replicas. TCP, UDP, Generic, which combines
+     * both, or NIO, TCP handled by a single selector thread
      */
     public static final String NETWORK = "Network";
     public static final String DEFAULT_NETWORK = "TCP";
@@ -63,6 +85,15 @@ public final class ProcessDescriptor {
     public final static String FD_SEND_TO = "FDSendTimeout";
     public static final int DEFAULT_FD_SEND_TO = 500;
 
+    /**
+     * Duration of the read lease of the leader, renewed by the heartbeats. The
+     * leader holding the lease executes the read-only requests locally. At
+     * most FDSuspectTimeout. Disabled if not positive, and in multi-leader
+     * mode. In milliseconds
+     */
+    public static final String LEADER_LEASE_TIMEOUT = "LeaderLeaseTimeout";
+    public static final int DEFAULT_LEADER_LEASE_TIMEOUT = 0;
+
     /**
      * The crash model used. For valid entries see {@link CrashModel}
      */
@@ -75,6 +106,29 @@ public final class ProcessDescriptor {
     public static final String LOG_PATH = "LogPath";
     public static final String DEFAULT_LOG_PATH = "jpaxosLogs";
 
+    /**
+     * With FullStableStorage, write the log records from a separate thread and
+     * sync the records of several instances together, instead of writing and
+     * syncing each record in the Protocol thread.
+     */
+    public static final String GROUP_COMMIT = "GroupCommit";
+    public static final boolean DEFAULT_GROUP_COMMIT = true;
+
+    /**
+     * With FullStableStorage, size in bytes of the pre-allocated files of the
+     * log. The files holding only instances older than the last snapshot are
+     * deleted.
+     */
+    public static final String LOG_SEGMENT_SIZE = "LogSegmentSize";
+    public static final int DEFAULT_LOG_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Keep the values of the decided instances in direct memory, released in
+     * bulk when the log is truncated, instead of on the heap.
+     */
+    public static final String OFF_HEAP_VALUES = "OffHeapValues";
+    public static final boolean DEFAULT_OFF_HEAP_VALUES = false;
+
     /**
      * Maximum time in ms that a batch can be delayed before being proposed.
      * Used to aggregate several requests on a single proposal, for greater
@@ -83,6 +137,15 @@ public final class ProcessDescriptor {
     public static final String MAX_BATCH_DELAY = "MaxBatchDelay";
     public static final int DEFAULT_MAX_BATCH_DELAY = 10;
 
+    /**
+     * If true, the leader adapts the size and the delay of the batches to the
+     * load: a batch is proposed as soon as there is a free slot on the window,
+     * and batches grow only while the window is full. <code>BatchSize</code>
+     * and <code>MaxBatchDelay</code> are then upper bounds.
+     */
+    public static final String ADAPTIVE_BATCHING = "AdaptiveBatching";
+    public static final boolean DEFAULT_ADAPTIVE_BATCHING = false;
+
     /**
      * Indicates, if the underlying service is deterministic. A deterministic
      * one may always share logs. Other should not do this, as results of
@@ -94,6 +157,15 @@ public final class ProcessDescriptor {
     public static final String CLIENT_ID_GENERATOR = "ClientIDGenerator";
     public static final String DEFAULT_CLIENT_ID_GENERATOR = "TimeBased";
 
+    /**
+     * Number of requests a client may have outstanding at once. The replicas
+     * keep the replies to that many of the last requests of each client, so
+     * that the requests resent by a client after reconnecting are answered
+     * without being executed again.
+     */
+    public static final String CLIENT_PIPELINE_DEPTH = "ClientPipelineDepth";
+    public static final int DEFAULT_CLIENT_PIPELINE_DEPTH = 16;
+
     /** Enable or disable collecting of statistics */
     public static final String BENCHMARK_RUN_REPLICA = "BenchmarkRunReplica";
     public static final boolean DEFAULT_BENCHMARK_RUN_REPLICA = false;
@@ -132,6 +204,20 @@ public final class ProcessDescriptor {
     /** If a TCP connection fails, how much to wait for another try */
     public static final String TCP_RECONNECT_TIMEOUT = "TcpReconnectMilisecs";
     public static final long DEFAULT_TCP_RECONNECT_TIMEOUT = 1000;
+
+    /**
+     * Maximum number of bytes written to a TCP connection at once. The sender
+     * writes all the queued messages together, until this limit.
+     */
+    public static final String TCP_FLUSH_BYTES = "TcpFlushBytes";
+    public static final int DEFAULT_TCP_FLUSH_BYTES = 64 * 1024;
+
+    /**
+     * Port of the HTTP server exporting the metrics of the replica, on the
+     * loopback interface. Disabled if not positive.
+     */
+    public static final String METRICS_PORT = "MetricsPort";
+    public static final int DEFAULT_METRICS_PORT = -1;
     
         
 
@@ -144,15 +230,23 @@ public final class ProcessDescriptor {
     public final int localId;
     public final int numReplicas;
     public final int windowSize;
+    public final boolean adaptiveWindow;
+    public final int windowLatencyTarget;
+    public final boolean multiLeader;
     public final int batchingLevel;
     public final int maxUdpPacketSize;
     public final boolean mayShareSnapshots;
     public final int maxBatchDelay;
+    public final boolean adaptiveBatching;
     public final String clientIDGenerator;
+    public final int clientPipelineDepth;
     public final boolean benchmarkRunReplica;
     public final String network;
     public final Replica.CrashModel crashModel;
     public final String logPath;
+    public final boolean groupCommit;
+    public final int logSegmentSize;
+    public final boolean offHeapValues;
 
     public final int firstSnapshotSizeEstimate;
     public final int snapshotMinLogSize;
@@ -162,8 +256,11 @@ public final class ProcessDescriptor {
     public final long retransmitTimeout;
     public final long periodicCatchupTimeout;
     public final long tcpReconnectTimeout;
+    public final int tcpFlushBytes;
     public final int fdSuspectTimeout;
     public final int fdSendTimeout;
+    public final int leaderLeaseTimeout;
+    public final int metricsPort;
     
     /*
      * Singleton class with static access. This allows any class on the JVM to
@@ -187,6 +284,10 @@ public final class ProcessDescriptor {
         this.numReplicas = config.getN();
 
         this.windowSize = config.getIntProperty(WINDOW_SIZE, DEFAULT_WINDOW_SIZE);
+        this.adaptiveWindow = config.getBooleanProperty(ADAPTIVE_WINDOW, DEFAULT_ADAPTIVE_WINDOW);
+        this.windowLatencyTarget = config.getIntProperty(WINDOW_LATENCY_TARGET,
+                DEFAULT_WINDOW_LATENCY_TARGET);
+        this.multiLeader = config.getBooleanProperty(MULTI_LEADER, DEFAULT_MULTI_LEADER);
         this.batchingLevel = config.getIntProperty(BATCH_SIZE, DEFAULT_BATCH_SIZE);
         this.maxUdpPacketSize = config.getIntProperty(MAX_UDP_PACKET_SIZE,
                 DEFAULT_MAX_UDP_PACKET_SIZE);
@@ -194,13 +295,20 @@ public final class ProcessDescriptor {
                 DEFAULT_MAY_SHARE_SNAPSHOTS);
         this.maxBatchDelay = config.getIntProperty(MAX_BATCH_DELAY,
                 DEFAULT_MAX_BATCH_DELAY);
+        this.adaptiveBatching = config.getBooleanProperty(ADAPTIVE_BATCHING,
+                DEFAULT_ADAPTIVE_BATCHING);
         this.clientIDGenerator = config.getProperty(CLIENT_ID_GENERATOR,
                 DEFAULT_CLIENT_ID_GENERATOR);
+        this.clientPipelineDepth = Math.max(1, config.getIntProperty(CLIENT_PIPELINE_DEPTH,
+                DEFAULT_CLIENT_PIPELINE_DEPTH));
         this.benchmarkRunReplica = config.getBooleanProperty(BENCHMARK_RUN_REPLICA,
                 DEFAULT_BENCHMARK_RUN_REPLICA);
         this.network = config.getProperty(NETWORK, DEFAULT_NETWORK);
 
         this.logPath = config.getProperty(LOG_PATH, DEFAULT_LOG_PATH);
+        this.groupCommit = config.getBooleanProperty(GROUP_COMMIT, DEFAULT_GROUP_COMMIT);
+        this.logSegmentSize = config.getIntProperty(LOG_SEGMENT_SIZE, DEFAULT_LOG_SEGMENT_SIZE);
+        this.offHeapValues = config.getBooleanProperty(OFF_HEAP_VALUES, DEFAULT_OFF_HEAP_VALUES);
 
         String defCrash = DEFAULT_CRASH_MODEL.toString();
         String crash = config.getProperty(CRASH_MODEL, defCrash);
@@ -232,25 +340,48 @@ public final class ProcessDescriptor {
                 DEFAULT_PERIODIC_CATCHUP_TIMEOUT);
         this.tcpReconnectTimeout = config.getLongProperty(TCP_RECONNECT_TIMEOUT,
                 DEFAULT_TCP_RECONNECT_TIMEOUT);
+        this.tcpFlushBytes = config.getIntProperty(TCP_FLUSH_BYTES, DEFAULT_TCP_FLUSH_BYTES);
 
         this.fdSuspectTimeout = config.getIntProperty(FD_SUSPECT_TO,
                 DEFAULT_FD_SUSPECT_TO);
         this.fdSendTimeout = config.getIntProperty(FD_SEND_TO,
                 DEFAULT_FD_SEND_TO);
+        int leaseTimeout = config.getIntProperty(LEADER_LEASE_TIMEOUT,
+                DEFAULT_LEADER_LEASE_TIMEOUT);
+        if (leaseTimeout > 0 && multiLeader) {
+            logger.warning(LEADER_LEASE_TIMEOUT + " not supported with " + MULTI_LEADER +
+                           ". Disabling leases");
+            leaseTimeout = 0;
+        } else if (leaseTimeout > fdSuspectTimeout) {
+            logger.warning(LEADER_LEASE_TIMEOUT + " longer than " + FD_SUSPECT_TO +
+                           ". Using " + fdSuspectTimeout);
+            leaseTimeout = fdSuspectTimeout;
+        }
+        this.leaderLeaseTimeout = Math.max(0, leaseTimeout);
+        this.metricsPort = config.getIntProperty(METRICS_PORT, DEFAULT_METRICS_PORT);
         
     
         logger.warning(config.toString());
         
         logger.warning("Configuration: " + WINDOW_SIZE + "=" + windowSize + ", " +
+                       ADAPTIVE_WINDOW + "=" + adaptiveWindow + ", " +
+                       WINDOW_LATENCY_TARGET + "=" + windowLatencyTarget + ", " +
+                       MULTI_LEADER + "=" + multiLeader + ", " +
                        BATCH_SIZE + "=" + batchingLevel + ", " + MAX_BATCH_DELAY +
-                       "=" + maxBatchDelay + ", " + MAX_UDP_PACKET_SIZE + "=" +
+                       "=" + maxBatchDelay + ", " + ADAPTIVE_BATCHING + "=" +
+                       adaptiveBatching + ", " + MAX_UDP_PACKET_SIZE + "=" +
                        maxUdpPacketSize + ", " + NETWORK + "=" + network + ", " +
                        MAY_SHARE_SNAPSHOTS + "=" + mayShareSnapshots + ", " +
                        BENCHMARK_RUN_REPLICA + "=" + benchmarkRunReplica + ", " +    
-                       CLIENT_ID_GENERATOR + "=" + clientIDGenerator);
+                       CLIENT_ID_GENERATOR + "=" + clientIDGenerator + ", " +
+                       CLIENT_PIPELINE_DEPTH + "=" + clientPipelineDepth);
         logger.warning("Failure Detection: " + FD_SEND_TO + "=" + fdSendTimeout + ", " +
-                      FD_SUSPECT_TO + "=" + fdSuspectTimeout);
-        logger.warning("Crash model: " + crashModel + ", LogPath: " + logPath);
+                      FD_SUSPECT_TO + "=" + fdSuspectTimeout + ", " +
+                      LEADER_LEASE_TIMEOUT + "=" + leaderLeaseTimeout);
+        logger.warning("Crash model: " + crashModel + ", LogPath: " + logPath + ", " +
+                       GROUP_COMMIT + "=" + groupCommit + ", " + LOG_SEGMENT_SIZE + "=" +
+                       logSegmentSize + ", " + OFF_HEAP_VALUES + "=" + offHeapValues);
+        logger.warning(METRICS_PORT + "=" + metricsPort);
         logger.warning(
             FIRST_SNAPSHOT_SIZE_ESTIMATE + "=" + firstSnapshotSizeEstimate + ", " +
                     SNAPSHOT_MIN_LOG_SIZE + "=" + snapshotMinLogSize + ", " +
@@ -262,7 +393,8 @@ public final class ProcessDescriptor {
         logger.warning(
             RETRANSMIT_TIMEOUT + "=" + retransmitTimeout + ", " +
                     PERIODIC_CATCHUP_TIMEOUT + "=" + periodicCatchupTimeout + ", " +
-                    TCP_RECONNECT_TIMEOUT + "=" + tcpReconnectTimeout
+                    TCP_RECONNECT_TIMEOUT + "=" + tcpReconnectTimeout + ", " +
+                    TCP_FLUSH_BYTES + "=" + tcpFlushBytes
             );
 
     }
@@ -13,6 +13,9 @@ import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import lsr.paxos.statistics.Gauge;
+import lsr.paxos.statistics.MetricsRegistry;
+
 /**
  * Adds debugging functionality to the standard
  * {@link ScheduledThreadPoolExecutor}. The additional debugging support
@@ -56,6 +59,12 @@ public class SingleThreadDispatcher extends ScheduledThreadPoolExecutor {
                 logger.severe("Task rejected: " + r);
             }
         });
+        MetricsRegistry.getInstance().registerGauge("dispatcher." + threadName + ".queue",
+                new Gauge() {
+                    public long getValue() {
+                        return getQueue().size();
+                    }
+                });
     }
 
     /**
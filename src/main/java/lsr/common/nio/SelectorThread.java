@@ -8,6 +8,7 @@ import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,6 +30,8 @@ public final class SelectorThread extends Thread {
     private final Object taskLock = new Object();
     /** list of active tasks waiting for execution in selector thread */
     private List<Runnable> tasks = new ArrayList<Runnable>();
+    /** Tasks waiting for their time to run. Owned by the selector thread */
+    private final PriorityQueue<DelayedTask> delayedTasks = new PriorityQueue<DelayedTask>();
 
     private final int id;
     /**
@@ -37,7 +40,17 @@ public final class SelectorThread extends Thread {
      * @throws IOException if an I/O error occurs
      */
     public SelectorThread(int i) throws IOException {
-        super("ClientIO-"+i);
+        this("ClientIO-" + i, i);
+    }
+
+    /**
+     * Initializes new thread responsible for handling channels, with the given
+     * name.
+     * 
+     * @throws IOException if an I/O error occurs
+     */
+    public SelectorThread(String name, int i) throws IOException {
+        super(name);
         setDefaultUncaughtExceptionHandler(new KillOnExceptionHandler());
         selector = Selector.open();
         this.id = i;
@@ -55,6 +68,7 @@ public final class SelectorThread extends Thread {
         // run main loop until thread is interrupted
         while (!Thread.interrupted()) {
             runScheduleTasks();
+            runDelayedTasks();
 
             try {
                 // Check the scheduleTasks queue at least once every 10ms
@@ -123,6 +137,35 @@ public final class SelectorThread extends Thread {
         }
     }
 
+    /**
+     * Same as {@link #beginInvoke(Runnable)}, but wakes up the selector, so
+     * that the task runs without waiting for the select timeout. Use for
+     * latency sensitive tasks only, waking up the selector is expensive.
+     * 
+     * @param task - task to run in <code>SelectorThread</code>
+     */
+    public void beginInvokeAndWakeup(Runnable task) {
+        beginInvoke(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Invokes specified task in <code>SelectorThread</code> after the given
+     * delay. The task runs within 10ms after it is due. The method returns
+     * immediately.
+     * 
+     * @param task - task to run in <code>SelectorThread</code>
+     * @param delay - the delay in milliseconds
+     */
+    public void scheduleInvoke(final Runnable task, long delay) {
+        final long due = System.nanoTime() + delay * 1000000;
+        beginInvoke(new Runnable() {
+            public void run() {
+                delayedTasks.add(new DelayedTask(task, due));
+            }
+        });
+    }
+
     /**
      * Sets the interest set of specified channel(the old interest will be
      * erased). This method can be called from any thread.
@@ -291,6 +334,30 @@ public final class SelectorThread extends Thread {
           }                
     }
 
+    /** Runs the delayed tasks that are due. */
+    private void runDelayedTasks() {
+        long now = System.nanoTime();
+        while (!delayedTasks.isEmpty() && delayedTasks.peek().due - now <= 0) {
+            delayedTasks.poll().task.run();
+        }
+    }
+
+    private static final class DelayedTask implements Comparable<DelayedTask> {
+        final Runnable task;
+        /** In System.nanoTime() */
+        final long due;
+
+        DelayedTask(Runnable task, long due) {
+            this.task = task;
+            this.due = due;
+        }
+
+        public int compareTo(DelayedTask other) {
+            long diff = due - other.due;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
     private void closeSelectorThread() {
         try {
             selector.close();
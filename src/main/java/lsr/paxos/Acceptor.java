@@ -104,7 +104,7 @@ class Acceptor {
      * @param message - received propose message
      * @param sender - the id of replica that send the message
      */
-    public void onPropose(Propose message, int sender) {
+    public void onPropose(final Propose message, final int sender) {
         // TODO: What if received a proposal for a higher view?
         assert message.getView() == storage.getView() : 
             "Msg.view: " + message.getView() + ", view: " + storage.getView();
@@ -124,10 +124,36 @@ class Acceptor {
 
         instance.updateStateFromKnown(message.getView(), message.getValue());
 
+        // The Accept, explicit or not, may only be counted once the value is
+        // on stable storage
+        storage.whenDurable(new Runnable() {
+            public void run() {
+                accept(message, sender);
+            }
+        }, paxos.getDispatcher());
+    }
+
+    /**
+     * Sends the <code>Accept</code> for the proposal, and counts the accepts
+     * of the local process and of the leader. Called once the proposal is on
+     * stable storage.
+     */
+    private void accept(Propose message, int sender) {
+        assert paxos.getDispatcher().amIInDispatcher();
+
+        ConsensusInstance instance = storage.getLog().getInstance(message.getInstanceId());
+        // The view changed or the log was truncated while the proposal was
+        // being written
+        if (instance == null || storage.getView() != message.getView()) {
+            logger.fine("Ignoring proposal from previous view: " + message);
+            return;
+        }
+
         ProcessDescriptor descriptor = ProcessDescriptor.getInstance();
 
-        // leader will not send the accept message;
-        if (!paxos.isLeader()) {
+        // leader will not send the accept message, unless the proposal comes
+        // from another owner in multi-leader mode
+        if (!paxos.isLeader() || descriptor.multiLeader) {
             // TODO: (JK) Is this what we want? They'll catch up later, and the
             // leader can respond faster to clients
 
@@ -150,11 +176,6 @@ class Acceptor {
             //
             //            } else {
 
-            /*
-             * TODO: NS [FullSS] Save to stable storage <Accept, view,
-             * instance, value> Must not accept a different value for the
-             * same pair of view and instance.
-             */
             // Do not send ACCEPT to self
             network.sendToOthers(new Accept(message));
             //            }
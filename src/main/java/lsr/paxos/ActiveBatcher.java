@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,7 +14,10 @@ import lsr.common.ProcessDescriptor;
 import lsr.common.ClientBatch;
 import lsr.common.SingleThreadDispatcher;
 import lsr.paxos.replica.ClientBatchID;
-import lsr.paxos.statistics.QueueMonitor;
+import lsr.paxos.statistics.Gauge;
+import lsr.paxos.statistics.MetricsRegistry;
+import lsr.paxos.statistics.ReplicaStats;
+import lsr.paxos.storage.Storage;
 
 /**
  * Thread responsible to receive and queue client requests and to prepare batches
@@ -36,6 +40,11 @@ import lsr.paxos.statistics.QueueMonitor;
  *  
  *   The internal request queue is also used to throttle the clients, by blocking
  *   the selector thread whenever the request queue is full.
+ *   
+ *   With <code>AdaptiveBatching</code>, the size and the delay of each batch are 
+ *   chosen by an {@link AdaptiveBatchPolicy} from the window occupancy, the recent
+ *   decision latency and the arrival rate of the requests, instead of the fixed
+ *   <code>BatchSize</code> and <code>MaxBatchDelay</code>.
  * 
  * @author Nuno Santos (LSR)
  */
@@ -80,10 +89,17 @@ public class ActiveBatcher implements Runnable {
     private final BlockingQueue<ClientBatch> queue = new ArrayBlockingQueue<ClientBatch>(MAX_QUEUE_SIZE);
     
     private ClientBatch SENTINEL = new ClientBatch(ClientBatchID.NOP);
+    /** Put in the queue to wake the Batcher thread when a window slot is freed */
+    private final ClientBatch WAKEUP = new ClientBatch(ClientBatchID.NOP);
+    /** Set while the Batcher thread waits on the queue with a partial batch and a full window */
+    private final AtomicBoolean waitingForSlot = new AtomicBoolean(false);
 
     private final int maxBatchSize;
     private final int maxBatchDelay; 
+    /** Null if the batches have a fixed size and delay */
+    private final AdaptiveBatchPolicy adaptivePolicy;
     private final ProposerImpl proposer;
+    private final Storage storage;
     private Thread batcherThread;
 
     /* Whether the service is suspended (replica not leader) or active (replica is leader) */
@@ -93,11 +109,32 @@ public class ActiveBatcher implements Runnable {
 
     public ActiveBatcher(Paxos paxos) {
         this.proposer = (ProposerImpl) paxos.getProposer();
+        this.storage = paxos.getStorage();
         this.dispatcher = paxos.getDispatcher();
         this.maxBatchDelay = ProcessDescriptor.getInstance().maxBatchDelay;
         this.maxBatchSize = ProcessDescriptor.getInstance().batchingLevel;
         
-        QueueMonitor.getInstance().registerQueue("BatcherQueue", queue);
+        MetricsRegistry.getInstance().registerGauge("batcher.queue", new Gauge() {
+            public long getValue() {
+                return queue.size();
+            }
+        });
+
+        if (ProcessDescriptor.getInstance().adaptiveBatching) {
+            adaptivePolicy = new AdaptiveBatchPolicy(maxBatchSize, maxBatchDelay);
+            MetricsRegistry.getInstance().registerGauge("batcher.targetSize", new Gauge() {
+                public long getValue() {
+                    return adaptivePolicy.getTargetSize();
+                }
+            });
+            MetricsRegistry.getInstance().registerGauge("batcher.delayMicros", new Gauge() {
+                public long getValue() {
+                    return TimeUnit.NANOSECONDS.toMicros(adaptivePolicy.getDelay());
+                }
+            });
+        } else {
+            adaptivePolicy = null;
+        }
     }
 
     public void start() {
@@ -157,6 +194,9 @@ public class ActiveBatcher implements Runnable {
                 ClientBatch request;
                 if (overflowRequest == null) {
                     request = queue.take();
+                    if (request == WAKEUP) {
+                        continue;
+                    }
                     if (request == SENTINEL) {
                         // The epoch increased. Abort this batch
                         if (logger.isLoggable(Level.FINE)) {                            
@@ -171,20 +211,42 @@ public class ActiveBatcher implements Runnable {
 
                 batchSize += request.byteSize();
                 batchReqs.add(request);
+
+                int sizeLimit = maxBatchSize;
+                long delay = TimeUnit.MILLISECONDS.toNanos(maxBatchDelay);
+                if (adaptivePolicy != null) {
+                    adaptivePolicy.startBatch(windowUsed(), storage.getWindowSize(),
+                            ReplicaStats.getInstance().getRecentDecideLatency());
+                    sizeLimit = adaptivePolicy.getTargetSize();
+                    delay = adaptivePolicy.getDelay();
+                }
                 // Deadline for sending this batch
-                long batchDeadline = System.currentTimeMillis() + maxBatchDelay;
+                long batchDeadline = System.nanoTime() + delay;
                 if (logger.isLoggable(Level.FINE)) {
-                    logger.fine("Starting batch.");
+                    logger.fine("Starting batch. Size limit: " + sizeLimit + ", delay: " + delay);
                 }
 
 
                 // Fill the batch
-                while (true) {
-                    long maxWait = batchDeadline - System.currentTimeMillis();
+                while (batchSize < sizeLimit) {
+                    if (adaptivePolicy != null) {
+                        // Set before checking the window, so that a decision
+                        // wakes this thread if it waits on the queue below
+                        waitingForSlot.set(true);
+                        if (queue.isEmpty() && windowUsed() < storage.getWindowSize()) {
+                            // A slot was freed while waiting, do not wait any longer
+                            waitingForSlot.set(false);
+                            break;
+                        }
+                    }
+                    long maxWait = batchDeadline - System.nanoTime();
                     // wait for additional requests until either the batch timeout expires 
                     // or the batcher is suspended at least once.
-                    request = queue.poll(maxWait, TimeUnit.MILLISECONDS);
-                    if (request == null) {
+                    request = queue.poll(maxWait, TimeUnit.NANOSECONDS);
+                    waitingForSlot.set(false);
+                    if (request == WAKEUP) {
+                        continue;
+                    } else if (request == null) {
                         if (logger.isLoggable(Level.FINE)) {
                             logger.fine("Batch timeout");
                         }
@@ -217,6 +279,9 @@ public class ActiveBatcher implements Runnable {
                     req.writeTo(bb);
                 }
                 byte[] value = bb.array();
+                if (adaptivePolicy != null) {
+                    adaptivePolicy.batchCompleted(batchSize, System.nanoTime());
+                }
                 // Must also pass an array with the request so that the dispatcher thread 
                 // has enough information for logging the batch
                 ClientBatch[] requests = batchReqs.toArray(new ClientBatch[batchReqs.size()]);                
@@ -235,6 +300,27 @@ public class ActiveBatcher implements Runnable {
         logger.warning("Thread dying");
     }
 
+    /**
+     * Wakes the Batcher thread if it is waiting with a partial batch for a
+     * slot of the window. Called by the Protocol thread when an instance is
+     * decided.
+     */
+    void onInstanceDecided() {
+        if (waitingForSlot.compareAndSet(true, false)) {
+            // If the queue is full, the thread does not wait anyway
+            queue.offer(WAKEUP);
+        }
+    }
+
+    /**
+     * Number of slots of the window taken, counting the batches waiting on the
+     * proposer for a slot. Read without synchronization with the Protocol
+     * thread, so it is only an estimate.
+     */
+    private int windowUsed() {
+        return storage.getWindowUsed() + proposer.getPendingProposals();
+    }
+
     /** Stops the batcher from creating new batches. Called when the process is demoted */  
     void suspendBatcher() {
         assert dispatcher.amIInDispatcher();
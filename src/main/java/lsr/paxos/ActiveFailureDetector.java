@@ -24,6 +24,8 @@ final public class ActiveFailureDetector implements Runnable, FailureDetector {
     private final int suspectTimeout;
     /** How long the leader waits until sending heartbeats. In milliseconds */
     private final int sendTimeout;
+    /** The heartbeats renew the read lease, see {@link LeaderLease} */
+    private final boolean leaseEnabled;
 
     private final Network network;
     private final MessageHandler innerListener;
@@ -54,6 +56,7 @@ final public class ActiveFailureDetector implements Runnable, FailureDetector {
         this.pd = ProcessDescriptor.getInstance();
         this.suspectTimeout = pd.fdSuspectTimeout;
         this.sendTimeout = pd.fdSendTimeout;
+        this.leaseEnabled = pd.leaderLeaseTimeout > 0;
         this.thread = new Thread(this, "FailureDetector");
         this.innerListener = new InnerMessageHandler();
     }
@@ -112,7 +115,7 @@ final public class ActiveFailureDetector implements Runnable, FailureDetector {
                     // Leader role
                     if (pd.isLocalProcessLeader(view)) {
                         // Send
-                        Alive alive = new Alive(view, storage.getLog().getNextId());
+                        Alive alive = new Alive(view, storage.getLog().getNextId(), now);
                         network.sendToAll(alive);                    
                         lastHeartbeatSentTS = now;                    
                         long nextSend = lastHeartbeatSentTS + sendTimeout;
@@ -191,6 +194,11 @@ final public class ActiveFailureDetector implements Runnable, FailureDetector {
             if (message.getType() == MessageType.Alive) {
                 return;
             }
+            // The followers renew the read lease only on Alive messages, so
+            // these are sent periodically even if other messages are.
+            if (leaseEnabled) {
+                return;
+            }
             // If the message is not sent to all, ignore it as it is not useful as
             // an hearbeat. Use n-1 because a process does not send to self
             if (destinations.cardinality() < pd.numReplicas-1) {
@@ -5,6 +5,7 @@ import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,6 +38,8 @@ public final class ActiveRetransmitter implements Runnable {
     private final DelayQueue<InnerRetransmittedMessage> queue = 
         new DelayQueue<ActiveRetransmitter.InnerRetransmittedMessage>();
     private Thread thread;
+    /** Messages of an instance sent again after the first attempt */
+    private final AtomicLong retransmissions = new AtomicLong();
 
     private final static MovingAverage ma = new MovingAverage(0.1, ProcessDescriptor.getInstance().retransmitTimeout);
 
@@ -94,6 +97,15 @@ public final class ActiveRetransmitter implements Runnable {
         return startTransmitting(message, destinations, -1);
     }
 
+    /**
+     * Returns how many times the messages of an instance (given a
+     * <code>cid</code>) were retransmitted, not counting the first attempt.
+     * Can be called from any thread.
+     */
+    public long getRetransmissions() {
+        return retransmissions.get();
+    }
+
     /**
      * Stops retransmitting all messages.
      */
@@ -214,6 +226,9 @@ public final class ActiveRetransmitter implements Runnable {
             }
             if (cid != -1) {
                 ReplicaStats.getInstance().retransmit(cid);
+                if (sendTs != -1) {
+                    retransmissions.incrementAndGet();
+                }
             }
             // Can be called either by Dispatcher (first time message is sent) 
             // or by Retransmitter thread (retransmissions)  
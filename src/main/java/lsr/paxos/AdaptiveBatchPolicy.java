@@ -0,0 +1,96 @@
+package lsr.paxos;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the size and the delay of the batches built by {@link ActiveBatcher}
+ * when <code>AdaptiveBatching</code> is enabled.
+ * <p>
+ * While there is a free slot on the window, waiting for more requests only
+ * adds latency, so the batch is proposed right away with the requests already
+ * queued. When the window is full, the batch cannot be proposed before an
+ * instance is decided. With a window of <code>w</code> instances taking
+ * <code>l</code> to be decided, a slot frees up about every <code>l/w</code>;
+ * the batcher waits up to that long (bounded by <code>MaxBatchDelay</code>)
+ * for the bytes expected to arrive meanwhile, at the observed arrival rate
+ * (bounded by <code>BatchSize</code>). Batches therefore grow only while the
+ * window is saturated.
+ * <p>
+ * Only used by the Batcher thread, except the getters, read by the metrics.
+ */
+final class AdaptiveBatchPolicy {
+    /** Smallest size a batch waits for, in bytes */
+    static final int MIN_TARGET_SIZE = 1024;
+    /** Weight of a new sample in the moving average of the arrival rate */
+    private static final double ALPHA = 0.125;
+
+    private final int maxBatchSize;
+    private final long maxDelay;
+
+    /** Bytes taken from the queue per nanosecond, moving average */
+    private double arrivalRate = 0;
+    /** When the previous batch was completed, -1 if none */
+    private long lastBatchTime = -1;
+
+    private volatile int targetSize;
+    private volatile long delay;
+
+    /**
+     * @param maxBatchSize - the upper bound of the batch size, in bytes
+     * @param maxBatchDelay - the upper bound of the delay, in milliseconds
+     */
+    AdaptiveBatchPolicy(int maxBatchSize, int maxBatchDelay) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos(maxBatchDelay);
+        this.targetSize = maxBatchSize;
+        this.delay = 0;
+    }
+
+    /**
+     * Chooses the size and the delay of a new batch, to be read with
+     * {@link #getTargetSize()} and {@link #getDelay()}.
+     *
+     * @param windowUsed - the number of instances being proposed
+     * @param windowSize - the maximum number of instances being proposed
+     * @param decideLatency - the recent time to decide an instance, in
+     *            nanoseconds; 0 if not known yet
+     */
+    void startBatch(int windowUsed, int windowSize, long decideLatency) {
+        if (windowUsed < windowSize) {
+            // Propose the requests already queued
+            targetSize = maxBatchSize;
+            delay = 0;
+            return;
+        }
+        long slotInterval = decideLatency > 0 ? decideLatency / windowSize : maxDelay;
+        long batchDelay = Math.min(maxDelay, slotInterval);
+        long expected = (long) (arrivalRate * batchDelay);
+        targetSize = (int) Math.max(MIN_TARGET_SIZE, Math.min(maxBatchSize, expected));
+        delay = batchDelay;
+    }
+
+    /**
+     * Updates the arrival rate with the size of a batch, taken from the queue
+     * since the previous batch was completed.
+     *
+     * @param bytes - the size of the batch
+     * @param now - the current time, as given by {@link System#nanoTime()}
+     */
+    void batchCompleted(int bytes, long now) {
+        if (lastBatchTime >= 0 && now > lastBatchTime) {
+            double rate = (double) bytes / (now - lastBatchTime);
+            arrivalRate += ALPHA * (rate - arrivalRate);
+        }
+        lastBatchTime = now;
+    }
+
+    /** Size in bytes after which the batch is proposed */
+    int getTargetSize() {
+        return targetSize;
+    }
+
+    /** Longest time to wait for more requests, in nanoseconds */
+    long getDelay() {
+        return delay;
+    }
+}
@@ -187,7 +187,7 @@ public class CatchUp {
             logger.info("CheckCatchupTask running");
 
             // There may be several instances open.
-            int windowSize = ProcessDescriptor.getInstance().windowSize;
+            int windowSize = storage.getUndecidedSpan();
 
             // Still on the window?
             if (storage.getFirstUncommitted() + windowSize >= storage.getLog().getNextId()) {
@@ -228,8 +228,9 @@ public class CatchUp {
         assert dispatcher.amIInDispatcher() : "Must be running on the Protocol thread";
         // A follower may submit a catch-up task for execution and then become leader before
         // the task runs. As the leader never needs to catch-up (the view change ensures that it
-        // becomes up-to-date), we ignore the catch-up.
-        if (paxos.isLeader()) {
+        // becomes up-to-date), we ignore the catch-up. In multi-leader mode the
+        // other owners decide instances too, and the leader may miss the Accepts.
+        if (paxos.isLeader() && !ProcessDescriptor.getInstance().multiLeader) {
             logger.warning("Ignoring catchup request. Replica is in leader role");
             cancelCatchupTask();
             return;
@@ -295,10 +296,11 @@ public class CatchUp {
     private int getBestCatchUpReplica() {
         // TODO: verify code changing replica ratings
 
-        if (askLeader) {
+        if (askLeader && !paxos.isLeader()) {
             askLeader = false;
             return paxos.getLeaderId();
         }
+        askLeader = false;
 
         // BitSet candidates has all processes without his and the leader
         BitSet candidates = new BitSet(ProcessDescriptor.getInstance().numReplicas);
@@ -317,7 +319,7 @@ public class CatchUp {
         }
 
         // If a replica has negative rating, we catch-up with the leader
-        if (replicaRating[bestReplica] < 0) {
+        if (replicaRating[bestReplica] < 0 && !paxos.isLeader()) {
             bestReplica = paxos.getLeaderId();
 
             // For all but leader the value is set to zero
@@ -357,7 +359,7 @@ public class CatchUp {
 
         ConsensusInstance instance;
         for (int i = Math.max(storage.getFirstUncommitted(), log.firstKey()); i <= lastKey; ++i) {
-            instance = log.get(i);
+            instance = storage.getLog().getInstance(i);
 
             if (instance == null) {
                 continue;
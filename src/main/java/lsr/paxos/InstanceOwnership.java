@@ -0,0 +1,78 @@
+package lsr.paxos;
+
+import java.util.Arrays;
+
+/**
+ * Assignment of the consensus instances of a view to the replicas proposing
+ * them, when <code>MultiLeader</code> is enabled.
+ * <p>
+ * The leader proposes the instances lower than <code>start</code>, the ones
+ * it re-proposes after preparing the view. From <code>start</code> on,
+ * instances are owned round-robin by the owners: instance <code>i</code> by
+ * <code>owners[(i - start) % owners.length]</code>. Only the owner of an
+ * instance proposes on it in the view, so a proposal is safe without a
+ * prepare phase of its own: the leader prepared all of them.
+ */
+final class InstanceOwnership {
+    private final int leader;
+    private final int start;
+    private final int[] owners;
+    /** Position of each replica on owners, -1 if not an owner */
+    private final int[] positions;
+
+    /**
+     * @param leader - the leader of the view
+     * @param start - the first instance assigned round-robin
+     * @param owners - the ids of the owners, in increasing order
+     * @param numReplicas - the number of replicas
+     */
+    InstanceOwnership(int leader, int start, int[] owners, int numReplicas) {
+        this.leader = leader;
+        this.start = start;
+        this.owners = owners;
+        this.positions = new int[numReplicas];
+        Arrays.fill(positions, -1);
+        for (int i = 0; i < owners.length; i++) {
+            positions[owners[i]] = i;
+        }
+    }
+
+    int getStart() {
+        return start;
+    }
+
+    int[] getOwners() {
+        return owners;
+    }
+
+    boolean isOwner(int replica) {
+        return positions[replica] != -1;
+    }
+
+    /** Returns the id of the replica proposing on given instance */
+    int ownerOf(int instanceId) {
+        if (instanceId < start) {
+            return leader;
+        }
+        return owners[(instanceId - start) % owners.length];
+    }
+
+    /**
+     * Returns the lowest instance owned by given replica, among the ones
+     * greater or equal to <code>from</code>.
+     *
+     * @param replica - an owner
+     * @param from - the lowest instance to consider
+     */
+    int nextOwned(int replica, int from) {
+        assert isOwner(replica) : "Not an owner: " + replica;
+        from = Math.max(from, start);
+        int offset = (from - start) % owners.length;
+        return from + (positions[replica] - offset + owners.length) % owners.length;
+    }
+
+    public String toString() {
+        return "Ownership(leader: " + leader + ", start: " + start + ", owners: " +
+               Arrays.toString(owners) + ")";
+    }
+}
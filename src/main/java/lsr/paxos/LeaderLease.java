@@ -0,0 +1,123 @@
+package lsr.paxos;
+
+import java.util.Arrays;
+
+import lsr.common.ProcessDescriptor;
+
+/**
+ * Read lease of the leader, granted by the followers through the
+ * <code>Alive</code> messages of the failure detector.
+ * <p>
+ * On each <code>Alive</code> from the leader of its view, a follower promises
+ * not to accept a <code>Prepare</code> of a higher view, nor to prepare one,
+ * for <code>LeaderLeaseTimeout</code>, and echoes the message back to the
+ * leader. As the follower received the message after the leader sent it, the
+ * echo of a message sent at time t grants the leader the lease until t +
+ * LeaderLeaseTimeout on its own clock, less a margin for the clock drift. With
+ * the grants of a majority, counting itself, no other replica can prepare a
+ * higher view before the lease expires. So the leader knows all the requests
+ * completed so far, in the instances it started, and may execute read-only
+ * requests locally once these instances are executed.
+ * <p>
+ * The promises and grants are accessed by the Protocol thread, the lease is
+ * checked by any thread.
+ */
+final class LeaderLease {
+    private final int timeout;
+    /** Subtracted from the lease to allow for the drift of the clocks */
+    private final int driftMargin;
+    private final int localId;
+    private final int majority;
+
+    /* Follower role: the view of the leader holding the promise */
+    private int promiseView = -1;
+    private long promiseExpiry = 0;
+
+    /* Leader role: the time the last Alive echoed by each replica was sent */
+    private final long[] grants;
+    private int grantsView = -1;
+    private volatile Lease lease = new Lease(-1, 0);
+
+    LeaderLease(ProcessDescriptor pd) {
+        this.timeout = pd.leaderLeaseTimeout;
+        this.driftMargin = timeout / 10;
+        this.localId = pd.localId;
+        this.majority = pd.numReplicas / 2 + 1;
+        this.grants = new long[pd.numReplicas];
+    }
+
+    boolean isEnabled() {
+        return timeout > 0;
+    }
+
+    /**
+     * Follower role. Promises the leader of the view, which sent an Alive
+     * received at the given time, not to join a higher view for the lease
+     * timeout. Returns false, keeping the promise, if it is held by the leader
+     * of another view.
+     */
+    boolean promise(int view, long now) {
+        if (promiseView != -1 && promiseView != view && now < promiseExpiry) {
+            return false;
+        }
+        promiseView = view;
+        promiseExpiry = now + timeout;
+        return true;
+    }
+
+    /**
+     * Returns how long this replica must wait before accepting or sending a
+     * <code>Prepare</code> of the given view, 0 if it may do it now.
+     */
+    long getPromiseRemaining(int view, long now) {
+        if (promiseView == -1 || view <= promiseView) {
+            return 0;
+        }
+        return Math.max(0, promiseExpiry - now);
+    }
+
+    /**
+     * Leader role. Records that the replica echoed the Alive sent at the given
+     * time, in the given view, and extends the lease if a majority granted it
+     * for longer.
+     */
+    void grant(int view, int replica, long sentTime, long now) {
+        if (view != grantsView) {
+            Arrays.fill(grants, Long.MIN_VALUE);
+            grants[localId] = Long.MAX_VALUE;
+            grantsView = view;
+            lease = new Lease(view, Long.MIN_VALUE);
+        }
+        grants[replica] = Math.max(grants[replica], sentTime);
+
+        long[] sorted = grants.clone();
+        Arrays.sort(sorted);
+        long granted = sorted[sorted.length - majority];
+        if (granted == Long.MIN_VALUE) {
+            return;
+        }
+        long expiry = granted + timeout - driftMargin;
+        if (expiry > lease.expiry) {
+            lease = new Lease(view, expiry);
+        }
+    }
+
+    /**
+     * Returns true if this replica holds the lease as the leader of the given
+     * view, the current one. Thread-safe.
+     */
+    boolean isValid(int view, long now) {
+        Lease current = lease;
+        return current.view == view && now < current.expiry;
+    }
+
+    private static final class Lease {
+        final int view;
+        final long expiry;
+
+        Lease(int view, long expiry) {
+            this.view = view;
+            this.expiry = expiry;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import lsr.common.ProcessDescriptor;
+import lsr.paxos.Proposer.ProposerState;
 import lsr.paxos.messages.Accept;
 import lsr.paxos.storage.ConsensusInstance;
 import lsr.paxos.storage.ConsensusInstance.LogEntryState;
@@ -88,7 +89,7 @@ class Learner {
             }
         }
 
-        if (paxos.isLeader()) {
+        if (paxos.isLeader() || proposer.getState() == ProposerState.PREPARED) {
             proposer.stopPropose(instance.getId(), sender);
         }
 
@@ -3,6 +3,7 @@ package lsr.paxos;
 import java.io.IOException;
 import java.util.BitSet;
 import java.util.Deque;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,19 +18,24 @@ import lsr.paxos.messages.MessageType;
 import lsr.paxos.messages.Prepare;
 import lsr.paxos.messages.PrepareOK;
 import lsr.paxos.messages.Propose;
+import lsr.paxos.messages.ViewPrepared;
 import lsr.paxos.network.GenericNetwork;
 import lsr.paxos.network.MessageHandler;
 import lsr.paxos.network.Network;
+import lsr.paxos.network.NioNetwork;
 import lsr.paxos.network.TcpNetwork;
 import lsr.paxos.network.UdpNetwork;
 import lsr.paxos.replica.ClientRequestManager;
-import lsr.paxos.statistics.QueueMonitor;
+import lsr.paxos.statistics.Gauge;
+import lsr.paxos.statistics.Meter;
+import lsr.paxos.statistics.MetricsRegistry;
 import lsr.paxos.statistics.ReplicaStats;
 import lsr.paxos.statistics.ThreadTimes;
 import lsr.paxos.storage.ConsensusInstance;
 import lsr.paxos.storage.ConsensusInstance.LogEntryState;
 import lsr.paxos.storage.Log;
 import lsr.paxos.storage.Storage;
+import lsr.paxos.storage.ValueArena;
 import lsr.paxos.test.LeaderPromoter;
 
 /**
@@ -79,9 +85,12 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
     private final FailureDetector failureDetector;
     private final CatchUp catchUp;
     private final SnapshotMaintainer snapshotMaintainer;
+    private final LeaderLease leaderLease;
     
     /** Receives, queues and creates batches with client requests. */
     private final ActiveBatcher activeBatcher;
+
+    private final Meter decidedMeter = MetricsRegistry.getInstance().meter("paxos.decided");
     
     private final ProcessDescriptor pd;
     
@@ -119,6 +128,10 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
             snapshotMaintainer = null;
         }
 
+        if (pd.offHeapValues) {
+            storage.getLog().setValueArena(new ValueArena(ValueArena.DEFAULT_SLAB_SIZE));
+        }
+
         // UDPNetwork is always needed because of the failure detector
         this.udpNetwork = new UdpNetwork();
         if (pd.network.equals("TCP")) {
@@ -128,6 +141,8 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
         } else if (pd.network.equals("Generic")) {
             TcpNetwork tcp = new TcpNetwork();
             network = new GenericNetwork(tcp, udpNetwork);
+        } else if (pd.network.equals("NIO")) {
+            network = new NioNetwork();
         } else {
             throw new IllegalArgumentException("Unknown network type: " + pd.network +
                                                ". Check paxos.properties configuration.");
@@ -135,6 +150,7 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
         logger.info("Network: " + network.getClass().getCanonicalName());
 
         catchUp = new CatchUp(snapshotProvider, this, this.storage, network);
+        leaderLease = new LeaderLease(pd);
 //        failureDetector = new PassiveFailureDetector(this, udpNetwork, this.storage);
         failureDetector = new ActiveFailureDetector(this, udpNetwork, this.storage);
 
@@ -144,7 +160,11 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
         learner = new Learner(this, this.storage);
         activeBatcher = new ActiveBatcher(this);
 
-        QueueMonitor.getInstance().registerLog(storage);
+        MetricsRegistry.getInstance().registerGauge("paxos.windowUsed", new Gauge() {
+            public long getValue() {
+                return Paxos.this.storage.getWindowUsed();
+            }
+        });
         
         // Crash tests: Simulate crashes. The constructor registers 
         // a periodic task on the Protocol dispatcher
@@ -185,6 +205,13 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
         proposer.start();
         failureDetector.start(storage.getView());
         dispatcher.start();
+        if (pd.multiLeader) {
+            dispatcher.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    checkOwners();
+                }
+            }, pd.fdSendTimeout, pd.fdSendTimeout, TimeUnit.MILLISECONDS);
+        }
         
         suspect(0);
     }
@@ -206,6 +233,11 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
 
     public void startProposer() {
         assert dispatcher.amIInDispatcher() : "Incorrect thread: " + Thread.currentThread();
+        if (!isLeader() && proposer.getState() != ProposerState.INACTIVE) {
+            // Proposing on the instances owned, in multi-leader mode
+            activeBatcher.suspendBatcher();
+            proposer.stopProposer();
+        }
         assert proposer.getState() == ProposerState.INACTIVE : "Already in proposer role.";
         
         proposer.prepareNextView();
@@ -260,13 +292,14 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
 
         storage.updateFirstUncommitted();
 
-        if (isLeader()) {
+        if (isLeader() || proposer.getState() != ProposerState.INACTIVE) {
             proposer.stopPropose(instanceId);
-//            activeBatcher.onInstanceDecided();
+            activeBatcher.onInstanceDecided();
             proposer.ballotFinished();
-        } else {
+        }
+        if (!isLeader()) {
             // not leader. Should we start the catchup?
-            if (ci.getId() > storage.getFirstUncommitted() + pd.windowSize) {
+            if (ci.getId() > storage.getFirstUncommitted() + storage.getUndecidedSpan()) {
                 // The last uncommitted value was already decided, since
                 // the decision just reached is outside the ordering window
                 // So start catchup.
@@ -277,10 +310,12 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
         // Benchmark. If the configuration property benchmarkRun is false,
         // these are empty calls.
         ReplicaStats.getInstance().consensusEnd(instanceId);
+        decidedMeter.mark();
         ThreadTimes.getInstance().startInstance(instanceId + 1);
 
         Deque<ClientBatch> requests = Batcher.unpack(ci.getValue());
         decideCallback.onRequestOrdered(instanceId, requests);
+        storage.getLog().storeDecidedValue(ci);
     }
 
     /**
@@ -303,8 +338,9 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
                     (newView % ProcessDescriptor.getInstance().numReplicas));
 
         ReplicaStats.getInstance().advanceView(newView);
+        MetricsRegistry.getInstance().counter("paxos.viewChanges").inc();
 
-        if (isLeader()) {
+        if (isLeader() || proposer.getState() != ProposerState.INACTIVE) {
             activeBatcher.suspendBatcher();
             proposer.stopProposer();
         }
@@ -318,6 +354,32 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
         failureDetector.viewChange(newView);
     }
 
+    /**
+     * Multi-leader mode. While the first undecided instance waits for another
+     * owner, the replica catches up, as the instance may be decided already.
+     * If it stays undecided for longer than the suspect timeout, the owner is
+     * likely crashed, so the leader prepares a new view without it. Executed
+     * periodically.
+     */
+    private void checkOwners() {
+        int owner = proposer.findStalledOwner();
+        if (owner == -1) {
+            return;
+        }
+        if (!isLeader() || proposer.getStalledTime() <= pd.fdSuspectTimeout) {
+            // The instance may be decided already, with the Accepts sent to
+            // this replica lost. Only the leader excludes owners.
+            catchUp.startCatchup();
+            return;
+        }
+        logger.warning("Owner " + owner + " not proposing on instance " +
+                       storage.getFirstUncommitted() + ". Preparing a view without it");
+        activeBatcher.suspendBatcher();
+        proposer.stopProposer();
+        proposer.excludeOwner(owner);
+        proposer.prepareNextView();
+    }
+
     @Override
     public void suspect(final int view) {
         logger.warning("Suspecting " + pd.getLeaderOfView(view) + " on view " + view);
@@ -329,6 +391,15 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
                 // The view may have changed since this task was scheduled. 
                 // If so, ignore this suspicion.
                 if (view == storage.getView()) {
+                    // Wait for the promise of the read lease to expire
+                    long remaining = leaderLease.getPromiseRemaining(view + 1,
+                            ActiveFailureDetector.getTime());
+                    if (remaining > 0) {
+                        logger.warning("Lease promised to the leader. Suspecting in " +
+                                       remaining + "ms");
+                        dispatcher.schedule(this, remaining, TimeUnit.MILLISECONDS);
+                        return;
+                    }
                     startProposer();
                 } else {
                     logger.warning("Ignoring suspicion for view " + view + ". Current view: " + storage.getView());
@@ -386,6 +457,15 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
                     return;
                 }
 
+                // The Prepare is retransmitted after the promise of the read
+                // lease expires.
+                if (msg.getType() == MessageType.Prepare &&
+                    leaderLease.getPromiseRemaining(msg.getView(),
+                            ActiveFailureDetector.getTime()) > 0) {
+                    logger.info("Lease promised to the leader. Ignoring " + msg);
+                    return;
+                }
+
                 if (msg.getView() > storage.getView()) {
                     assert msg.getType() != MessageType.PrepareOK :
                         "Received " + msg + " without having sent a Prepare";
@@ -411,25 +491,33 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
                         if (!storage.isInWindow(((Propose) msg).getInstanceId())) {
                             activateCatchup();
                         }
+                        proposer.skipTo(((Propose) msg).getInstanceId());
                         break;
 
                     case Accept:
                         learner.onAccept((Accept) msg, sender);
+                        proposer.skipTo(((Accept) msg).getInstanceId());
+                        break;
+
+                    case ViewPrepared:
+                        if (pd.multiLeader && !isLeader()) {
+                            ViewPrepared prepared = (ViewPrepared) msg;
+                            proposer.startOwnerProposals(prepared.getStart(), prepared.getOwners());
+                        }
                         break;
 
                     case Alive:
+                        Alive alive = (Alive) msg;
                         // The function checkIfCatchUpNeeded also creates
                         // missing logs
-                        if (!isLeader() && checkIfCatchUpNeeded(((Alive) msg).getLogSize())) {
+                        if (!isLeader() && checkIfCatchUpNeeded(alive.getLogSize())) {
                             activateCatchup();
                         }
+                        if (leaderLease.isEnabled() && alive.getView() == storage.getView()) {
+                            onLeaseAlive(alive, sender);
+                        }
                         break;
 
-//                    case ViewPrepared:
-////                        assert forwardClientRequests : "Should not be called. Forwarding client request disabled.";
-//                        decideCallback.onViewChange(msg.getView());
-//                        break;
-                        
                     default:
                         logger.warning("Unknown message type: " + msg);
                 }
@@ -440,6 +528,23 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
             }
         }
 
+        /**
+         * The Alive of the leader renews the promise of the read lease, and is
+         * echoed back to it. The echo of a follower grants the lease to the
+         * leader, once the view is prepared.
+         */
+        private void onLeaseAlive(Alive alive, int sender) {
+            long now = ActiveFailureDetector.getTime();
+            if (!isLeader()) {
+                if (sender == getLeaderId() && leaderLease.promise(alive.getView(), now)) {
+                    udpNetwork.sendMessage(new Alive(alive.getView(),
+                            storage.getLog().getNextId(), alive.getTime()), sender);
+                }
+            } else if (proposer.getState() == ProposerState.PREPARED) {
+                leaderLease.grant(alive.getView(), sender, alive.getTime(), now);
+            }
+        }
+
         /**
          * After getting an alive message, we need to check whether we're up to
          * date.
@@ -458,7 +563,7 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
 
             // We check if all ballots outside the window finished
             int i = storage.getFirstUncommitted();
-            for (; i < log.getNextId() - ProcessDescriptor.getInstance().windowSize; i++) {
+            for (; i < log.getNextId() - storage.getUndecidedSpan(); i++) {
                 if (log.getInstance(i).getState() != LogEntryState.DECIDED) {
                     return true;
                 }
@@ -504,17 +609,41 @@ public class Paxos implements FailureDetector.FailureDetectorListener {
         return proposer;
     }
     
+    /**
+     * Returns the instance up to which this replica must execute the decided
+     * requests before executing a read-only request locally, that is the next
+     * instance it will start, if it is the leader holding the read lease.
+     * Otherwise returns -1. Thread-safe.
+     * 
+     * @return the next instance id, or -1 if the read must be ordered
+     */
+    public int getReadIndex() {
+        if (!leaderLease.isValid(storage.getView(), ActiveFailureDetector.getTime())) {
+            return -1;
+        }
+        // Read after checking the lease
+        return storage.getLog().getNextId();
+    }
+
+    /** @return true if the leader serves the reads under a read lease */
+    public boolean isLeaseEnabled() {
+        return leaderLease.isEnabled();
+    }
+
     /** @return The number of free window slots */ 
     public int getWindowSize() {
-        return storage.getFirstUncommitted() + ProcessDescriptor.getInstance().windowSize - storage.getLog().getNextId(); 
+        return storage.getFirstUncommitted() + storage.getWindowSize() - storage.getLog().getNextId(); 
     }
 
     public void onViewPrepared() {
         activeBatcher.resumeBatcher(getWindowSize());
-        
-        // Not needed.
-        // Inform the other replicas that the view is prepared 
-//        network.sendToAll(new ViewPrepared(storage.getView()));
+
+        InstanceOwnership ownership = proposer.getOwnership();
+        if (ownership != null && isLeader()) {
+            // Inform the other replicas of the instances they may propose on
+            network.sendToOthers(new ViewPrepared(storage.getView(), ownership.getStart(),
+                    ownership.getOwners()));
+        }
     }
 
     private final static Logger logger = Logger.getLogger(Paxos.class.getCanonicalName());
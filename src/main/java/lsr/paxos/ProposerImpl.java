@@ -5,7 +5,9 @@ import java.util.ArrayDeque;
 import java.util.BitSet;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,7 +21,8 @@ import lsr.paxos.network.Network;
 import lsr.paxos.replica.ClientBatchManager;
 import lsr.paxos.replica.ClientRequestManager;
 import lsr.paxos.replica.Replica.CrashModel;
-import lsr.paxos.statistics.QueueMonitor;
+import lsr.paxos.statistics.Gauge;
+import lsr.paxos.statistics.MetricsRegistry;
 import lsr.paxos.statistics.ReplicaStats;
 import lsr.paxos.storage.ConsensusInstance;
 import lsr.paxos.storage.ConsensusInstance.LogEntryState;
@@ -52,6 +55,24 @@ public class ProposerImpl implements Proposer {
 
     private ClientBatchManager cliBatchManager;
 
+    /** Null if the window has a fixed size */
+    private final WindowController windowController;
+
+    /*
+     * Multi-leader mode. The instances this process proposes on in the
+     * current view, null if not proposing or in single leader mode.
+     */
+    private InstanceOwnership ownership = null;
+    /** Lowest own instance not used yet */
+    private int nextOwnedId;
+    /** Own instances proposed with a batch and not decided yet */
+    private final Set<Integer> ownProposals = new HashSet<Integer>();
+    /** Replicas left out of the ownership by this leader */
+    private final BitSet excludedOwners = new BitSet();
+    /* First undecided instance, and since when, to detect stalled owners */
+    private int stalledInstance = -1;
+    private long stalledSince;
+
 
     
 
@@ -96,11 +117,32 @@ public class ProposerImpl implements Proposer {
             prepareRetransmitter = new PrepareRetransmitterImpl(retransmitter);
         }
         
-        QueueMonitor.getInstance().registerQueue("pendingProposals", pendingProposals);
+        ProcessDescriptor pd = ProcessDescriptor.getInstance();
+        if (pd.adaptiveWindow) {
+            windowController = new WindowController(pd.windowSize, pd.windowLatencyTarget);
+            storage.setWindowSize(windowController.getWindow());
+        } else {
+            windowController = null;
+        }
+        
+        MetricsRegistry.getInstance().registerGauge("proposer.window", new Gauge() {
+            public long getValue() {
+                return ProposerImpl.this.storage.getWindowSize();
+            }
+        });
+        MetricsRegistry.getInstance().registerGauge("proposer.pendingProposals", new Gauge() {
+            public long getValue() {
+                return getPendingProposals();
+            }
+        });
     }
     
     public void setClientRequestManager(ClientRequestManager requestManager) {
-        this.cliBatchManager = requestManager.getClientBatchManager();
+        setClientBatchManager(requestManager.getClientBatchManager());
+    }
+
+    void setClientBatchManager(ClientBatchManager cliBatchManager) {
+        this.cliBatchManager = cliBatchManager;
     }
 
     public void start() {
@@ -128,6 +170,10 @@ public class ProposerImpl implements Proposer {
         assert paxos.getDispatcher().amIInDispatcher();
         assert state == ProposerState.INACTIVE : "Proposer is ACTIVE.";
 
+        if (!paxos.isLeader()) {
+            // Exclusions are kept only across consecutive views of this leader
+            excludedOwners.clear();
+        }
         state = ProposerState.PREPARING;
         setNextViewNumber();
         failureDetector.viewChange(paxos.getLeaderId());
@@ -219,6 +265,11 @@ public class ProposerImpl implements Proposer {
                     fillWithNoOperation(instance);
             }
         }
+
+        if (ProcessDescriptor.getInstance().multiLeader) {
+            startOwnership(new InstanceOwnership(ProcessDescriptor.getInstance().localId,
+                    log.getNextId(), activeOwners(), ProcessDescriptor.getInstance().numReplicas));
+        }
         
         synchronized (pendingProposals) {
             acceptNewBatches = true;
@@ -226,7 +277,156 @@ public class ProposerImpl implements Proposer {
         }
         
         paxos.onViewPrepared();
-        cliBatchManager.startProposing(storage.getView());
+        cliBatchManager.startProposing(storage.getView(), batchSources());
+    }
+
+    /**
+     * Starts proposing on the instances owned by this process in the current
+     * view, as assigned by the leader. Multi-leader mode only, on the other
+     * replicas than the leader.
+     * 
+     * @param start - the first instance assigned round-robin
+     * @param owners - the ids of the owners, in increasing order
+     */
+    public void startOwnerProposals(int start, int[] owners) {
+        assert paxos.getDispatcher().amIInDispatcher();
+        assert !paxos.isLeader();
+        if (state != ProposerState.INACTIVE) {
+            logger.fine("Already proposing on the instances owned");
+            return;
+        }
+
+        ProcessDescriptor pd = ProcessDescriptor.getInstance();
+        InstanceOwnership assigned = new InstanceOwnership(paxos.getLeaderId(), start, owners,
+                pd.numReplicas);
+        if (!assigned.isOwner(pd.localId)) {
+            logger.warning("Not an owner on view " + storage.getView() + ": " + assigned);
+            return;
+        }
+        logger.info("Proposing on view " + storage.getView() + ": " + assigned);
+
+        state = ProposerState.PREPARED;
+        startOwnership(assigned);
+        synchronized (pendingProposals) {
+            acceptNewBatches = true;
+            pendingProposals.notify();
+        }
+        paxos.onViewPrepared();
+        cliBatchManager.startProposing(storage.getView(), batchSources());
+
+        // The other owners may have proposed already
+        skipTo(storage.getLog().getNextId());
+    }
+
+    private void startOwnership(InstanceOwnership assigned) {
+        ownership = assigned;
+        nextOwnedId = assigned.nextOwned(ProcessDescriptor.getInstance().localId,
+                assigned.getStart());
+        stalledInstance = -1;
+    }
+
+    /** The ownership of the current view, null if not proposing on it */
+    InstanceOwnership getOwnership() {
+        return ownership;
+    }
+
+    /** All the replicas, except the ones excluded by this leader */
+    private int[] activeOwners() {
+        int n = ProcessDescriptor.getInstance().numReplicas;
+        int[] owners = new int[n - excludedOwners.cardinality()];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            if (!excludedOwners.get(i)) {
+                owners[k++] = i;
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * The replicas whose client batches this process proposes. In multi-leader
+     * mode, each owner proposes its own, and the leader also the ones of the
+     * replicas that are not owners.
+     */
+    private BitSet batchSources() {
+        int n = ProcessDescriptor.getInstance().numReplicas;
+        BitSet sources = new BitSet(n);
+        if (ownership == null) {
+            sources.set(0, n);
+            return sources;
+        }
+        sources.set(ProcessDescriptor.getInstance().localId);
+        if (paxos.isLeader()) {
+            for (int i = 0; i < n; i++) {
+                if (!ownership.isOwner(i)) {
+                    sources.set(i);
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Proposes a no-op on every instance owned by this process lower than the
+     * given one and not used yet. Called when another owner proposed on the
+     * given instance: the instances below it cannot be executed before being
+     * decided, and this process had no batch for them.
+     * 
+     * @param instanceId - an instance proposed by another process
+     */
+    public void skipTo(int instanceId) {
+        assert paxos.getDispatcher().amIInDispatcher();
+        if (ownership == null || state != ProposerState.PREPARED) {
+            return;
+        }
+        while (nextOwnedId < instanceId) {
+            ConsensusInstance instance = storage.getLog().getInstance(nextOwnedId);
+            nextOwnedId = ownership.nextOwned(ProcessDescriptor.getInstance().localId,
+                    nextOwnedId + 1);
+            if (instance != null && instance.getState() != LogEntryState.DECIDED) {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Skipping instance " + instance.getId());
+                }
+                fillWithNoOperation(instance);
+            }
+        }
+    }
+
+    /** Excludes given replica from the ownership on the next views of this leader */
+    public void excludeOwner(int replica) {
+        assert replica != ProcessDescriptor.getInstance().localId;
+        excludedOwners.set(replica);
+    }
+
+    /**
+     * Returns the owner leaving the first undecided instance undecided since
+     * the previous call, or -1 if none. Multi-leader mode only.
+     * 
+     * @see #getStalledTime()
+     */
+    public int findStalledOwner() {
+        assert paxos.getDispatcher().amIInDispatcher();
+        if (ownership == null || state != ProposerState.PREPARED) {
+            return -1;
+        }
+        int first = storage.getFirstUncommitted();
+        int owner = ownership.ownerOf(first);
+        if (first >= storage.getLog().getNextId() || owner == ProcessDescriptor.getInstance().localId) {
+            // Not waiting for another owner
+            stalledInstance = -1;
+            return -1;
+        }
+        if (first != stalledInstance) {
+            stalledInstance = first;
+            stalledSince = System.currentTimeMillis();
+            return -1;
+        }
+        return owner;
+    }
+
+    /** Milliseconds the owner returned by {@link #findStalledOwner()} has been stalled */
+    public long getStalledTime() {
+        return System.currentTimeMillis() - stalledSince;
     }
 
     private void fillWithNoOperation(ConsensusInstance instance) {
@@ -363,11 +563,18 @@ public class ProposerImpl implements Proposer {
         }
     }
 
+    /** Number of batches waiting for a slot on the window. Called from any thread. */
+    int getPendingProposals() {
+        synchronized (pendingProposals) {
+            return pendingProposals.size();
+        }
+    }
+
     public void proposeNext() {
         if (logger.isLoggable(Level.FINE)) {
             logger.info("Proposing. pendingProposals.size(): " + pendingProposals.size() + ", window used: " + storage.getWindowUsed());
         }
-        while (!storage.isWindowFull()) {
+        while (!isWindowFull()) {
             Proposal proposal;
             synchronized (pendingProposals) {
                 if (pendingProposals.isEmpty()) {
@@ -383,6 +590,17 @@ public class ProposerImpl implements Proposer {
         }
     }
 
+    /**
+     * In multi-leader mode, only the batches this process proposed count on
+     * its window, since the others propose concurrently.
+     */
+    private boolean isWindowFull() {
+        if (ownership != null) {
+            return ownProposals.size() >= storage.getWindowSize();
+        }
+        return storage.isWindowFull();
+    }
+
     /**
      * Asks the proposer to propose the given value. If there are currently too
      * many active propositions, this proposal will be enqueued until there are
@@ -413,7 +631,19 @@ public class ProposerImpl implements Proposer {
             logger.info(sb.toString());
         }
 
-        ConsensusInstance instance = storage.getLog().append(storage.getView(), value);
+        ConsensusInstance instance;
+        if (ownership != null) {
+            instance = storage.getLog().getInstance(nextOwnedId);
+            nextOwnedId = ownership.nextOwned(ProcessDescriptor.getInstance().localId,
+                    nextOwnedId + 1);
+            instance.updateStateFromKnown(storage.getView(), value);
+            ownProposals.add(instance.getId());
+        } else {
+            instance = storage.getLog().append(storage.getView(), value);
+        }
+        if (windowController != null) {
+            windowController.onProposed(instance.getId());
+        }
 
         ReplicaStats.getInstance().consensusStart(
                 instance.getId(), 
@@ -433,8 +663,31 @@ public class ProposerImpl implements Proposer {
         // Do not send propose message to self.
         destinations.clear(ProcessDescriptor.getInstance().localId);
 
-        RetransmittedMessage msg = retransmitter.startTransmitting(message, destinations, instance.getId());
-        proposeRetransmitters.put(instance.getId(), msg);
+        startProposal(instance.getId(), message, destinations, instance.getId());
+    }
+
+    /**
+     * Starts sending the propose message once the value is on stable storage,
+     * as the propose is also the accept of the leader. No other replica can
+     * accept the value before, so the local accept can be counted already.
+     */
+    private void startProposal(final int instanceId, final Message message,
+                               final BitSet destinations, final int cid) {
+        final int view = storage.getView();
+        storage.whenDurable(new Runnable() {
+            public void run() {
+                // The view may have changed, or the instance be decided by
+                // catch-up, while the value was written
+                ConsensusInstance instance = storage.getLog().getInstance(instanceId);
+                if (state != ProposerState.PREPARED || storage.getView() != view ||
+                    instance == null || instance.getState() == LogEntryState.DECIDED) {
+                    return;
+                }
+                RetransmittedMessage msg = retransmitter.startTransmitting(message, destinations,
+                        cid);
+                proposeRetransmitters.put(instanceId, msg);
+            }
+        }, paxos.getDispatcher());
     }
 
     /**
@@ -480,8 +733,7 @@ public class ProposerImpl implements Proposer {
         // Mark the instance as accepted locally
         instance.getAccepts().set(ProcessDescriptor.getInstance().localId);
         
-        RetransmittedMessage msg = retransmitter.startTransmitting(m, destinations);
-        proposeRetransmitters.put(instance.getId(), msg);
+        startProposal(instance.getId(), m, destinations, -1);
     }
 
     /**
@@ -490,6 +742,11 @@ public class ProposerImpl implements Proposer {
      */
     public void stopProposer() {
         state = ProposerState.INACTIVE;
+        ownership = null;
+        ownProposals.clear();
+        if (windowController != null) {
+            windowController.reset();
+        }
         cliBatchManager.stopProposing();
         synchronized (pendingProposals) {
             acceptNewBatches = false;
@@ -514,6 +771,13 @@ public class ProposerImpl implements Proposer {
         if (r != null) {
             r.stop();
         }
+        ownProposals.remove(instanceId);
+
+        if (windowController != null) {
+            windowController.onDecided(instanceId, storage.getLog().getNextId(),
+                    retransmitter.getRetransmissions());
+            storage.setWindowSize(windowController.getWindow());
+        }
     }
 
     /**
@@ -525,10 +789,14 @@ public class ProposerImpl implements Proposer {
      * @param destination number of the process in processes PID list
      */
     public void stopPropose(int instanceId, int destination) {
-        assert proposeRetransmitters.containsKey(instanceId);
         assert paxos.getDispatcher().amIInDispatcher();
 
-        proposeRetransmitters.get(instanceId).stop(destination);
+        RetransmittedMessage r = proposeRetransmitters.get(instanceId);
+        // In multi-leader mode, the instance may be proposed by another owner
+        assert r != null || ownership != null : "Not proposing instance " + instanceId;
+        if (r != null) {
+            r.stop(destination);
+        }
     }
 
     public ClientBatchManager getClientBatchManager() {
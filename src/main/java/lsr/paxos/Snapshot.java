@@ -96,6 +96,53 @@ public class Snapshot implements Serializable {
         }
     }
 
+    /**
+     * Reads previously recorded snapshot from buffer.
+     * The position of the buffer is advanced past the serialized data.
+     * 
+     * @param bb - the buffer with serialized snapshot
+     */
+    public Snapshot(ByteBuffer bb) {
+
+        // instance id
+        nextIntanceId = bb.getInt();
+
+        // value
+        int size = bb.getInt();
+        value = new byte[size];
+        bb.get(value);
+
+        // executed requests
+        size = bb.getInt();
+        lastReplyForClient = new HashMap<Long, Reply>(size);
+        for (int i = 0; i < size; i++) {
+            long key = bb.getLong();
+
+            int replySize = bb.getInt();
+            byte[] reply = new byte[replySize];
+            bb.get(reply);
+
+            lastReplyForClient.put(key, new Reply(reply));
+        }
+
+        // request sequential number
+        nextRequestSeqNo = bb.getInt();
+
+        // first request sequential number in next instance
+        startingRequestSeqNo = bb.getInt();
+
+        // cached replies for the next instance
+        size = bb.getInt();
+        partialResponseCache = new Vector<Reply>(size);
+        for (int i = 0; i < size; i++) {
+            int replySize = bb.getInt();
+            byte[] reply = new byte[replySize];
+            bb.get(reply);
+
+            partialResponseCache.add(new Reply(reply));
+        }
+    }
+
     /**
      * @return id of next instance to be executed
      */
@@ -0,0 +1,135 @@
+package lsr.paxos;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adapts the number of instances the leader proposes concurrently, when
+ * <code>AdaptiveWindow</code> is enabled. <code>WindowSize</code> is then the
+ * upper bound of the window.
+ * <p>
+ * The window follows an AIMD rule, as TCP congestion control: it grows by one
+ * after a window of instances is decided within the latency target, and is
+ * halved when an instance takes longer than the target to be decided or a
+ * proposal is retransmitted. Widening the window only adds queueing once the
+ * acceptors or the network are saturated, which shows as a higher decision
+ * latency. After a decrease, the instances proposed before it do not cause
+ * another one.
+ * <p>
+ * The target is <code>WindowLatencyTarget</code>, or if it is 0, twice the
+ * lowest decision latency observed recently.
+ * <p>
+ * Only accessed by the Protocol thread, except {@link #getWindow()}.
+ */
+final class WindowController {
+    /** Decisions over which the lowest latency is taken, for the automatic target */
+    private static final int MIN_LATENCY_PERIOD = 1024;
+
+    private final int maxWindow;
+    /** In nanoseconds, 0 for automatic */
+    private final long latencyTarget;
+
+    private volatile int window = 1;
+    /** Decisions within the target since the window last changed */
+    private int goodDecisions = 0;
+    /** Instances lower than this one were proposed before the last decrease */
+    private int recoveryEnd = 0;
+    private long lastRetransmissions = 0;
+
+    /** Lowest latency of the previous and of the current period */
+    private long minLatency = Long.MAX_VALUE;
+    private long periodMinLatency = Long.MAX_VALUE;
+    private int periodDecisions = 0;
+
+    /* Propose times, indexed by instance id modulo the size of the arrays */
+    private final int[] proposeIds;
+    private final long[] proposeTimes;
+    private final int mask;
+
+    /**
+     * @param maxWindow - the upper bound of the window
+     * @param latencyTarget - the target decision latency in milliseconds, 0
+     *            for automatic
+     */
+    WindowController(int maxWindow, int latencyTarget) {
+        this.maxWindow = maxWindow;
+        this.latencyTarget = latencyTarget * 1000000L;
+        int slots = Integer.highestOneBit(Math.max(64, maxWindow * 2) - 1) << 1;
+        this.proposeIds = new int[slots];
+        this.proposeTimes = new long[slots];
+        this.mask = slots - 1;
+        Arrays.fill(proposeIds, -1);
+    }
+
+    /** The number of instances that may be proposed concurrently */
+    int getWindow() {
+        return window;
+    }
+
+    void onProposed(int instanceId) {
+        int slot = instanceId & mask;
+        proposeIds[slot] = instanceId;
+        proposeTimes[slot] = System.nanoTime();
+    }
+
+    /**
+     * Updates the window after an instance is decided.
+     *
+     * @param instanceId - the instance decided
+     * @param nextId - the id of the next instance to be proposed
+     * @param retransmissions - the number of proposals retransmitted so far
+     */
+    void onDecided(int instanceId, int nextId, long retransmissions) {
+        boolean retransmitted = retransmissions != lastRetransmissions;
+        lastRetransmissions = retransmissions;
+
+        int slot = instanceId & mask;
+        if (proposeIds[slot] != instanceId) {
+            // Not proposed by this leader, or in a previous view
+            return;
+        }
+        proposeIds[slot] = -1;
+        long latency = System.nanoTime() - proposeTimes[slot];
+        updateMinLatency(latency);
+
+        long target = latencyTarget > 0 ? latencyTarget : 2 * minLatency;
+        if (retransmitted || latency > target) {
+            if (instanceId >= recoveryEnd) {
+                decrease(latency, retransmitted);
+                recoveryEnd = nextId;
+            }
+        } else if (++goodDecisions >= window && window < maxWindow) {
+            window++;
+            goodDecisions = 0;
+        }
+    }
+
+    /** Called when the view changes, the instances in flight are not decided by this leader */
+    void reset() {
+        Arrays.fill(proposeIds, -1);
+        goodDecisions = 0;
+    }
+
+    private void decrease(long latency, boolean retransmitted) {
+        window = Math.max(1, window / 2);
+        goodDecisions = 0;
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Window decreased to " + window + ". Latency: " + latency +
+                        ", min: " + minLatency + ", retransmitted: " + retransmitted);
+        }
+    }
+
+    private void updateMinLatency(long latency) {
+        periodMinLatency = Math.min(periodMinLatency, latency);
+        minLatency = Math.min(minLatency, latency);
+        if (++periodDecisions == MIN_LATENCY_PERIOD) {
+            // Forget the older samples, the latency of the system may have changed
+            minLatency = periodMinLatency;
+            periodMinLatency = Long.MAX_VALUE;
+            periodDecisions = 0;
+        }
+    }
+
+    private final static Logger logger = Logger.getLogger(WindowController.class.getCanonicalName());
+}
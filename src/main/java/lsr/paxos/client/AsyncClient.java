@@ -0,0 +1,456 @@
+package lsr.paxos.client;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import lsr.common.ClientCommand;
+import lsr.common.ClientCommand.CommandType;
+import lsr.common.ClientReply;
+import lsr.common.ClientRequest;
+import lsr.common.Configuration;
+import lsr.common.PID;
+import lsr.common.PrimitivesByteArray;
+import lsr.common.ProcessDescriptor;
+import lsr.common.Reply;
+import lsr.common.RequestId;
+import lsr.paxos.ReplicationException;
+
+/**
+ * TCP connection to replica which, unlike {@link Client}, does not wait for
+ * the reply to a request before sending the next one. Up to
+ * <code>ClientPipelineDepth</code> requests are outstanding on the connection,
+ * with consecutive sequence numbers. The replies are matched to the requests
+ * by request id and read by a separate thread, which completes the future or
+ * calls the callback of the request.
+ * <p>
+ * If the oldest outstanding request is not answered within the timeout, or
+ * the connection fails, the client connects to the next replica and sends all
+ * outstanding requests again, in order. A request is still executed only
+ * once: the replicas keep the replies to the last
+ * <code>ClientPipelineDepth</code> requests of each client and answer with
+ * them.
+ * <p>
+ * Example of usage:
+ * <p>
+ * <blockquote>
+ *
+ * <pre>
+ * public static void main(String[] args) throws Exception {
+ *  AsyncClient client = new AsyncClient();
+ *  client.connect();
+ *  Future&lt;byte[]&gt; reply1 = client.execute(new byte[] { 0, 1, 2 });
+ *  Future&lt;byte[]&gt; reply2 = client.execute(new byte[] { 3, 4, 5 });
+ *  System.out.println(reply1.get().length + reply2.get().length);
+ * }
+ * </pre>
+ *
+ * </blockquote>
+ */
+public class AsyncClient {
+    /* Minimum time to wait before reconnecting after a connection failure */
+    private static final int CONNECTION_FAILURE_TIMEOUT = 500;
+    /* How long to wait for the reply to the oldest request before connecting
+     * to another replica.
+     */
+    private static final int SOCKET_TIMEOUT = Integer.getInteger("jpaxos.client.timeout", 3000);
+    private static final Random r = new Random();
+
+    // List of replicas, and information who's the leader
+    private final List<PID> replicas;
+    private final int n;
+    private int primary;
+    // The leader of the highest view seen in the replies. Reply reader thread only.
+    private int leaderView = -1;
+    private int leaderHint = -1;
+
+    // Two variables for numbering requests
+    private long clientId = -1;
+    private int sequenceId = 0;
+
+    /** Permits to send a request, released when the request completes */
+    private final Semaphore window;
+    /** Outstanding requests, by sequence number. Guarded by itself. */
+    private final SortedMap<Integer, PendingRequest> pending =
+            new TreeMap<Integer, PendingRequest>();
+
+    /*
+     * Threading: the connection and the request numbering are guarded by this,
+     * so that the requests are written in order. Only the reply reader
+     * reconnects after connect() returns.
+     */
+    private Socket socket;
+    private DataOutputStream output;
+    private DataInputStream input;
+    /* Under input, keeps the bytes of a reply cut by the timeout */
+    private BufferedInputStream buffered;
+    private Thread replyReader;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates new connection used by client to connect to replicas.
+     *
+     * @param config - the configuration with information about replicas to
+     *            connect to
+     */
+    public AsyncClient(Configuration config) {
+        this.replicas = config.getProcesses();
+        this.n = replicas.size();
+        primary = r.nextInt(n);
+        window = new Semaphore(Math.max(1, config.getIntProperty(
+                ProcessDescriptor.CLIENT_PIPELINE_DEPTH,
+                ProcessDescriptor.DEFAULT_CLIENT_PIPELINE_DEPTH)));
+    }
+
+    /**
+     * Creates new connection used by client to connect to replicas.
+     *
+     * Loads the configuration from the default configuration file, as defined
+     * in the class {@link Configuration}
+     *
+     * @throws IOException if I/O error occurs while reading configuration
+     */
+    public AsyncClient() throws IOException {
+        this(new Configuration());
+    }
+
+    /**
+     * Connects to a replica, cycling through the replicas until a connection
+     * is successfully established, and starts the thread reading the replies.
+     * Must be called once, before sending requests.
+     */
+    public synchronized void connect() {
+        assert replyReader == null : "Already connected";
+        reconnect((primary + 1) % n);
+        replyReader = new Thread(new ReplyReader(), "AsyncClient-" + clientId);
+        replyReader.setDaemon(true);
+        replyReader.start();
+    }
+
+    /**
+     * Sends request to replica, to execute service with specified object as
+     * argument. Blocks only while <code>ClientPipelineDepth</code> requests
+     * are outstanding.
+     *
+     * @param bytes - argument for service
+     * @return the reply from service. Fails with {@link ReplicationException}
+     *         if the replicas refuse the request.
+     * @throws InterruptedException if interrupted while waiting to send
+     */
+    public Future<byte[]> execute(byte[] bytes) throws InterruptedException {
+        ReplyFuture future = new ReplyFuture();
+        execute(bytes, future);
+        return future;
+    }
+
+    /**
+     * Sends request to replica, to execute service with specified object as
+     * argument. Blocks only while <code>ClientPipelineDepth</code> requests
+     * are outstanding.
+     *
+     * @param bytes - argument for service
+     * @param callback - notified with the reply
+     * @throws InterruptedException if interrupted while waiting to send
+     */
+    public void execute(byte[] bytes, ReplyCallback callback) throws InterruptedException {
+        window.acquire();
+        synchronized (this) {
+            if (closed) {
+                window.release();
+                throw new IllegalStateException("Client closed");
+            }
+            ClientRequest request = new ClientRequest(new RequestId(clientId, ++sequenceId), bytes);
+            PendingRequest pendingRequest = new PendingRequest(request, callback);
+            pendingRequest.sentTime = System.currentTimeMillis();
+            synchronized (pending) {
+                pending.put(sequenceId, pendingRequest);
+            }
+            try {
+                send(request);
+            } catch (IOException e) {
+                // Sent again by the reply reader once reconnected
+                logger.warning("Error sending request " + request.getRequestId() + ": " +
+                               e.getMessage());
+            }
+        }
+    }
+
+    public long getClientID() {
+        return clientId;
+    }
+
+    /** Closes the connection. The outstanding requests fail. */
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            cleanClose();
+        }
+        List<PendingRequest> failed;
+        synchronized (pending) {
+            failed = new ArrayList<PendingRequest>(pending.values());
+            pending.clear();
+        }
+        for (PendingRequest request : failed) {
+            window.release();
+            request.callback.onFailure(new ReplicationException("Client closed"));
+        }
+    }
+
+    private class ReplyReader implements Runnable {
+        public void run() {
+            while (!closed) {
+                try {
+                    ClientReply reply = readReply(buffered, input);
+                    if (reply != null) {
+                        handleReply(reply);
+                    }
+                    checkTimeout();
+                } catch (IOException e) {
+                    if (closed) {
+                        break;
+                    }
+                    logger.warning("Error reading socket: " + e.toString() + ", node: " + primary);
+                    waitForReconnect(CONNECTION_FAILURE_TIMEOUT);
+                    reconnect(failoverTarget());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the next reply, or returns null if the read timed out. A reply cut
+     * by the timeout is kept in the buffered stream, and read again in full by
+     * the next call.
+     *
+     * @param buffered - the stream under input
+     * @param input - the stream the replies are read from
+     */
+    static ClientReply readReply(BufferedInputStream buffered, DataInputStream input)
+            throws IOException {
+        buffered.mark(Integer.MAX_VALUE);
+        try {
+            return new ClientReply(input);
+        } catch (SocketTimeoutException e) {
+            buffered.reset();
+            return null;
+        }
+    }
+
+    private void handleReply(ClientReply clientReply) {
+        if (clientReply.getView() > leaderView) {
+            leaderView = clientReply.getView();
+            leaderHint = clientReply.getLeader();
+        }
+        switch (clientReply.getResult()) {
+            case OK:
+                Reply reply = new Reply(clientReply.getValue());
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Reply OK " + reply.getRequestId());
+                }
+                PendingRequest request;
+                synchronized (pending) {
+                    request = pending.remove(reply.getRequestId().getSeqNumber());
+                }
+                // Null for the replies to requests sent several times
+                if (request != null) {
+                    window.release();
+                    request.callback.onReply(reply.getValue());
+                }
+                break;
+
+            case REDIRECT:
+                int currentPrimary = PrimitivesByteArray.toInt(clientReply.getValue());
+                if (currentPrimary < 0 || currentPrimary >= n) {
+                    // Invalid ID. Ignore redirect and try next replica.
+                    logger.warning("Reply: Invalid redirect received: " + currentPrimary +
+                                   ". Proceeding with next replica.");
+                    currentPrimary = (primary + 1) % n;
+                } else {
+                    logger.info("Reply REDIRECT to " + currentPrimary);
+                }
+                // No need to wait, the replica knows the leader
+                reconnect(currentPrimary);
+                break;
+
+            case NACK:
+                Reply nack = new Reply(clientReply.getValue());
+                synchronized (pending) {
+                    request = pending.remove(nack.getRequestId().getSeqNumber());
+                }
+                if (request != null) {
+                    window.release();
+                    request.callback.onFailure(new ReplicationException("Nack received: " +
+                            new String(nack.getValue())));
+                }
+                break;
+
+            case BUSY:
+                // Not tied to a request, the oldest one fails
+                synchronized (pending) {
+                    request = pending.isEmpty() ? null : pending.remove(pending.firstKey());
+                }
+                if (request != null) {
+                    window.release();
+                    request.callback.onFailure(new ReplicationException(
+                            new String(clientReply.getValue())));
+                }
+                break;
+
+            default:
+                throw new RuntimeException("Unknown reply type");
+        }
+    }
+
+    /** The hinted leader, unless it is the current replica, otherwise the next one */
+    private int failoverTarget() {
+        if (leaderHint != -1 && leaderHint != primary) {
+            return leaderHint;
+        }
+        return (primary + 1) % n;
+    }
+
+    /** Fails over if the oldest request is not answered in time */
+    private void checkTimeout() {
+        PendingRequest oldest;
+        synchronized (pending) {
+            oldest = pending.isEmpty() ? null : pending.get(pending.firstKey());
+        }
+        if (oldest != null && System.currentTimeMillis() - oldest.sentTime > SOCKET_TIMEOUT) {
+            logger.warning("Error waiting for answer. Request: " +
+                           oldest.request.getRequestId() + ", node: " + primary);
+            reconnect(failoverTarget());
+        }
+    }
+
+    /**
+     * Tries to reconnect to a replica, cycling through the replicas until a
+     * connection is successfully established. Then sends all outstanding
+     * requests again.
+     *
+     * @param replicaId try to connect to this replica
+     */
+    private synchronized void reconnect(int replicaId) {
+        int nextNode = replicaId;
+        while (!closed) {
+            try {
+                connectTo(nextNode);
+                primary = nextNode;
+                resendPending();
+                // Success
+                return;
+            } catch (IOException e) {
+                cleanClose();
+                logger.warning("Connect to " + nextNode + " failed: " + e.getMessage());
+                nextNode = (nextNode + 1) % n;
+                waitForReconnect(CONNECTION_FAILURE_TIMEOUT);
+            }
+        }
+    }
+
+    private void resendPending() throws IOException {
+        List<PendingRequest> requests;
+        synchronized (pending) {
+            requests = new ArrayList<PendingRequest>(pending.values());
+        }
+        if (!requests.isEmpty()) {
+            logger.info("Sending again " + requests.size() + " requests");
+        }
+        long now = System.currentTimeMillis();
+        for (PendingRequest request : requests) {
+            request.sentTime = now;
+            send(request.request);
+        }
+    }
+
+    private void send(ClientRequest request) throws IOException {
+        ClientCommand command = new ClientCommand(CommandType.REQUEST, request);
+        ByteBuffer bb = ByteBuffer.allocate(command.byteSize());
+        command.writeTo(bb);
+        output.write(bb.array());
+        output.flush();
+    }
+
+    private void waitForReconnect(int timeout) {
+        try {
+            // random backoff
+            timeout += r.nextInt(500);
+            logger.warning("Reconnecting in " + timeout + "ms.");
+            Thread.sleep(timeout);
+        } catch (InterruptedException e) {
+            logger.warning("Interrupted while sleeping: " + e.getMessage());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void cleanClose() {
+        try {
+            if (socket != null) {
+                socket.shutdownOutput();
+                socket.close();
+                socket = null;
+                logger.info("Closing socket");
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Not clean socket closing.", e);
+        }
+    }
+
+    private void connectTo(int replicaId) throws IOException {
+        // close previous connection if any
+        cleanClose();
+
+        PID replica = replicas.get(replicaId);
+        String host = replica.getHostname();
+        int port = replica.getClientPort();
+        logger.info("Connecting to " + host + ":" + port);
+        socket = new Socket(host, port);
+
+        // Only bounds the wait between timeout checks
+        socket.setSoTimeout(SOCKET_TIMEOUT);
+        socket.setReuseAddress(true);
+        socket.setTcpNoDelay(true);
+        output = new DataOutputStream(socket.getOutputStream());
+        buffered = new BufferedInputStream(socket.getInputStream());
+        input = new DataInputStream(buffered);
+
+        if (clientId == -1) {
+            output.write('T'); // True
+            output.flush();
+            clientId = input.readLong();
+            logger.fine("New client id: " + clientId);
+        } else {
+            output.write('F'); // False
+            output.writeLong(clientId);
+            output.flush();
+        }
+
+        logger.info("Connected [p" + replicaId + "]");
+    }
+
+    private static final class PendingRequest {
+        final ClientRequest request;
+        final ReplyCallback callback;
+        /** Last time the request was sent */
+        long sentTime;
+
+        PendingRequest(ClientRequest request, ReplyCallback callback) {
+            this.request = request;
+            this.callback = callback;
+        }
+    }
+
+    private final static Logger logger = Logger.getLogger(AsyncClient.class.getCanonicalName());
+}
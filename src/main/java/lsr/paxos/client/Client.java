@@ -2,6 +2,7 @@ package lsr.paxos.client;
 
 import lsr.common.*;
 import lsr.common.ClientCommand.CommandType;
+import lsr.common.ClientReply.Result;
 import lsr.paxos.ReplicationException;
 import lsr.paxos.statistics.ClientStats;
 
@@ -20,6 +21,11 @@ import java.util.logging.Logger;
  * Class represents TCP connection to replica. It should be used by clients, to
  * communicates with service on replicas. Only one request can be sent by client
  * at the same time. After receiving reply, next request can be sent.
+ * <p>
+ * The client keeps connections open to all replicas, and learns the leader
+ * from the view piggybacked on the replies. When the replica it uses fails or
+ * does not answer in time, it continues on the leader (or on the next replica,
+ * if the leader is the one that failed) without waiting or connecting again.
  * 
  * <p>
  * Example of usage:
@@ -47,7 +53,7 @@ public class Client {
     private static final int CONNECTION_FAILURE_TIMEOUT = 500;
 
     /* Minimum time to wait before reconnecting to a new replica after 
-     * receiving a redirect 
+     * receiving a redirect, if not connected to it already
      */ 
     private static final int REDIRECT_TIMEOUT = 100;
 
@@ -78,13 +84,17 @@ public class Client {
     private final int n;
     
     private int primary = -1;
+    // The leader of the highest view seen in the replies
+    private int leaderView = -1;
+    private int leaderHint = -1;
     // Two variables for numbering requests
     private long clientId = -1;
     private int sequenceId = 0;
     
-    private Socket socket;
-    private DataOutputStream output;
-    private DataInputStream input;
+    // Connections to the replicas, null if closed
+    private final Socket[] sockets;
+    private final DataOutputStream[] outputs;
+    private final DataInputStream[] inputs;
     private ClientStats stats;
 
     /**
@@ -98,6 +108,9 @@ public class Client {
         n = replicas.size();
         primary = r.nextInt(n);
         benchmarkRun = false;
+        sockets = new Socket[n];
+        outputs = new DataOutputStream[n];
+        inputs = new DataInputStream[n];
     }
 
     /**
@@ -117,6 +130,9 @@ public class Client {
         primary = r.nextInt(n);
         this.benchmarkRun = config.getBooleanProperty(BENCHMARK_RUN_CLIENT,
                 DEFAULT_BENCHMARK_RUN_CLIENT);
+        sockets = new Socket[n];
+        outputs = new DataOutputStream[n];
+        inputs = new DataInputStream[n];
     }
 
     /**
@@ -142,80 +158,7 @@ public class Client {
      */
     public synchronized byte[] execute(byte[] bytes) throws ReplicationException {
         ClientRequest request = new ClientRequest(nextRequestId(), bytes);
-        ClientCommand command = new ClientCommand(CommandType.REQUEST, request);
-
-        long start = System.currentTimeMillis();
-        
-        while (true) {
-            try {
-                if (logger.isLoggable(Level.FINE)) {
-                    logger.fine("Sending " + request.getRequestId());
-                }
-
-                ByteBuffer bb = ByteBuffer.allocate(command.byteSize());
-                command.writeTo(bb);
-                bb.flip();
-                output.write(bb.array());
-                output.flush();
-
-                // Blocks only for Socket.SO_TIMEOUT
-                stats.requestSent(request.getRequestId());
-
-                ClientReply clientReply = new ClientReply(input);
-
-
-                switch (clientReply.getResult()) {
-                    case OK:
-                        Reply reply = new Reply(clientReply.getValue());
-                        logger.fine("Reply OK");
-                        assert reply.getRequestId().equals(request.getRequestId()) : 
-                            "Bad reply. Expected: " + request.getRequestId() +
-                            ", got: " + reply.getRequestId();
-
-                        long time = System.currentTimeMillis() - start;
-                        stats.replyOk(reply.getRequestId());
-                        average.add(time);
-                        return reply.getValue();
-
-                    case REDIRECT:
-                        int currentPrimary = PrimitivesByteArray.toInt(clientReply.getValue());
-                        if (currentPrimary < 0 || currentPrimary >= n) {
-                            // Invalid ID. Ignore redirect and try next replica.
-                            logger.warning("Reply: Invalid redirect received: " + currentPrimary +
-                                    ". Proceeding with next replica.");
-                            currentPrimary = (primary + 1) % n;
-                        } else {
-                            stats.replyRedirect();
-                            logger.info("Reply REDIRECT to " + currentPrimary);
-                        }
-                        waitForReconnect(REDIRECT_TIMEOUT);
-                        reconnect(currentPrimary);
-                        break;
-
-                    case NACK:
-                        throw new ReplicationException("Nack received: " +
-                                new String(clientReply.getValue()));
-
-                    case BUSY:
-                        stats.replyBusy();
-                        throw new ReplicationException(new String(clientReply.getValue()));
-
-                    default:
-                        throw new RuntimeException("Unknown reply type");
-                }
-
-            } catch (SocketTimeoutException e) {
-                logger.warning("Error waiting for answer: " + e.getMessage() + ", Request: " + request.getRequestId() + ", node: " + primary);
-                stats.replyTimeout();
-                cleanClose();
-                increaseTimeout();
-                connect();
-            } catch (IOException e) {
-                logger.warning("Error reading socket: " + e.toString() + ". Request: " + request.getRequestId() + ", node: " + primary);
-                waitForReconnect(CONNECTION_FAILURE_TIMEOUT);
-                connect();
-            }
-        }
+        return execute(new ClientCommand(CommandType.REQUEST, request));
     }
 
     /**
@@ -230,10 +173,30 @@ public class Client {
      */
     public synchronized byte[] executeUnordered(byte[] bytes) throws ReplicationException {
         ClientRequest request = new ClientRequest(nextRequestId(), bytes);
-        ClientCommand command = new ClientCommand(CommandType.UNORDERED_REQUEST, request);
+        return execute(new ClientCommand(CommandType.UNORDERED_REQUEST, request));
+    }
+
+    /**
+     * Sends a read-only request to replica, which must not change the state of
+     * the service. The reply is linearizable, as for {@link #execute(byte[])}:
+     * the leader holding the read lease executes the request locally, without
+     * ordering it; otherwise the request is ordered.
+     * This method will block until response from replica is received.
+     *
+     * @param bytes - argument for service
+     * @return reply from service
+     * @throws ReplicationException if error occurs while sending request
+     */
+    public synchronized byte[] executeRead(byte[] bytes) throws ReplicationException {
+        ClientRequest request = new ClientRequest(nextRequestId(), bytes);
+        return execute(new ClientCommand(CommandType.READ_REQUEST, request));
+    }
 
-        long start = System.currentTimeMillis();
+    private byte[] execute(ClientCommand command) throws ReplicationException {
+        ClientRequest request = command.getRequest();
 
+        long start = System.currentTimeMillis();
+        
         while (true) {
             try {
                 if (logger.isLoggable(Level.FINE)) {
@@ -243,22 +206,22 @@ public class Client {
                 ByteBuffer bb = ByteBuffer.allocate(command.byteSize());
                 command.writeTo(bb);
                 bb.flip();
-                output.write(bb.array());
-                output.flush();
+                outputs[primary].write(bb.array());
+                outputs[primary].flush();
 
                 // Blocks only for Socket.SO_TIMEOUT
                 stats.requestSent(request.getRequestId());
 
-                ClientReply clientReply = new ClientReply(input);
+                ClientReply clientReply = readReply(request.getRequestId());
 
 
                 switch (clientReply.getResult()) {
                     case OK:
                         Reply reply = new Reply(clientReply.getValue());
                         logger.fine("Reply OK");
-                        assert reply.getRequestId().equals(request.getRequestId()) :
-                                "Bad reply. Expected: " + request.getRequestId() +
-                                        ", got: " + reply.getRequestId();
+                        assert reply.getRequestId().equals(request.getRequestId()) : 
+                            "Bad reply. Expected: " + request.getRequestId() +
+                            ", got: " + reply.getRequestId();
 
                         long time = System.currentTimeMillis() - start;
                         stats.replyOk(reply.getRequestId());
@@ -276,13 +239,12 @@ public class Client {
                             stats.replyRedirect();
                             logger.info("Reply REDIRECT to " + currentPrimary);
                         }
-                        waitForReconnect(REDIRECT_TIMEOUT);
-                        reconnect(currentPrimary);
+                        switchTo(currentPrimary, REDIRECT_TIMEOUT);
                         break;
 
                     case NACK:
                         throw new ReplicationException("Nack received: " +
-                                new String(clientReply.getValue()));
+                                new String(new Reply(clientReply.getValue()).getValue()));
 
                     case BUSY:
                         stats.replyBusy();
@@ -295,17 +257,43 @@ public class Client {
             } catch (SocketTimeoutException e) {
                 logger.warning("Error waiting for answer: " + e.getMessage() + ", Request: " + request.getRequestId() + ", node: " + primary);
                 stats.replyTimeout();
-                cleanClose();
                 increaseTimeout();
-                connect();
+                // The timeout may have cut a reply, the rest of the stream
+                // cannot be read. The other connections are still warm.
+                int target = failoverTarget();
+                cleanClose(primary);
+                switchTo(target, 0);
             } catch (IOException e) {
                 logger.warning("Error reading socket: " + e.toString() + ". Request: " + request.getRequestId() + ", node: " + primary);
-                waitForReconnect(CONNECTION_FAILURE_TIMEOUT);
-                connect();
+                cleanClose(primary);
+                switchTo(failoverTarget(), CONNECTION_FAILURE_TIMEOUT);
             }
         }
     }
 
+    /**
+     * Reads the reply to the given request from the current replica, skipping
+     * the replies to previous requests. These are left on a connection when the
+     * client fails over to another replica before they arrive.
+     */
+    private ClientReply readReply(RequestId requestId) throws IOException {
+        while (true) {
+            ClientReply clientReply = new ClientReply(inputs[primary]);
+            if (clientReply.getView() > leaderView) {
+                leaderView = clientReply.getView();
+                leaderHint = clientReply.getLeader();
+            }
+            if (clientReply.getResult() == Result.OK || clientReply.getResult() == Result.NACK) {
+                RequestId replyId = new Reply(clientReply.getValue()).getRequestId();
+                if (replyId.getSeqNumber() < requestId.getSeqNumber()) {
+                    logger.fine("Discarding late reply " + replyId);
+                    continue;
+                }
+            }
+            return clientReply;
+        }
+    }
+
     public long getClientID() {
         return clientId;
     }
@@ -313,10 +301,21 @@ public class Client {
     /**
      * Tries to connect to a replica, cycling through the replicas until a
      * connection is successfully established. After successful connection, new
-     * client id is granted which will be used for sending all messages.
+     * client id is granted which will be used for sending all messages. Then
+     * connects to the other replicas, to fail over to them.
      */
     public synchronized void connect() {
         reconnect((primary + 1) % n);
+        for (int i = 0; i < n; i++) {
+            if (sockets[i] == null) {
+                try {
+                    connectTo(i);
+                } catch (IOException e) {
+                    cleanClose(i);
+                    logger.warning("Connect to " + i + " failed: " + e.getMessage());
+                }
+            }
+        }
     }
 
     private RequestId nextRequestId() {
@@ -327,6 +326,31 @@ public class Client {
         average.add(Math.min(timeout * TO_MULTIPLIER, MAX_TIMEOUT));
     }
 
+    /** The hinted leader, unless it is the current replica, otherwise the next one */
+    private int failoverTarget() {
+        if (leaderHint != -1 && leaderHint != primary) {
+            return leaderHint;
+        }
+        return (primary + 1) % n;
+    }
+
+    /**
+     * Continues on the given replica: immediately if connected to it,
+     * otherwise connects to it after the given time (plus a random backoff),
+     * cycling through the replicas until a connection is established.
+     */
+    private void switchTo(int replicaId, int timeout) {
+        if (sockets[replicaId] != null) {
+            logger.info("Switching to [p" + replicaId + "]");
+            primary = replicaId;
+            return;
+        }
+        if (timeout > 0) {
+            waitForReconnect(timeout);
+        }
+        reconnect(replicaId);
+    }
+
     /**
      * Tries to reconnect to a replica, cycling through the replicas until a
      * connection is successfully established.
@@ -337,15 +361,19 @@ public class Client {
         int nextNode = replicaId;
         while (true) {
             try {
-                connectTo(nextNode);
+                if (sockets[nextNode] == null) {
+                    connectTo(nextNode);
+                }
                 // Success
                 primary = nextNode;
                 return;
             } catch (IOException e) {
-                cleanClose();
+                cleanClose(nextNode);
                 logger.warning("Connect to " + nextNode + " failed: " + e.getMessage());
                 nextNode = (nextNode + 1) % n;
-                waitForReconnect(CONNECTION_FAILURE_TIMEOUT);
+                if (sockets[nextNode] == null) {
+                    waitForReconnect(CONNECTION_FAILURE_TIMEOUT);
+                }
             }
         }
     }
@@ -365,12 +393,15 @@ public class Client {
         }
     }
 
-    private void cleanClose() {
+    private void cleanClose(int replicaId) {
+        Socket socket = sockets[replicaId];
+        sockets[replicaId] = null;
+        outputs[replicaId] = null;
+        inputs[replicaId] = null;
         try {
             if (socket != null) {
                 socket.shutdownOutput();
                 socket.close();
-                socket = null;
                 logger.info("Closing socket");
             }
         } catch (IOException e) {
@@ -381,7 +412,7 @@ public class Client {
 
     private void connectTo(int replicaId) throws IOException {
         // close previous connection if any
-        cleanClose();
+        cleanClose(replicaId);
 
         PID replica = replicas.get(replicaId);
         
@@ -389,22 +420,24 @@ public class Client {
         String host = replica.getHostname();
         int port = replica.getClientPort();        
         logger.info("Connecting to " + host + ":" + port);
-        socket = new Socket(host, port);        
+        Socket socket = new Socket(host, port);        
+        sockets[replicaId] = socket;
 
         timeout = (int) average.get() * TO_MULTIPLIER;
 //        socket.setSoTimeout(Math.min(timeout, MAX_TIMEOUT));
         socket.setSoTimeout(SOCKET_TIMEOUT);
         socket.setReuseAddress(true);
         socket.setTcpNoDelay(true);
-        output = new DataOutputStream(socket.getOutputStream());
-        input = new DataInputStream(socket.getInputStream());
+        outputs[replicaId] = new DataOutputStream(socket.getOutputStream());
+        inputs[replicaId] = new DataInputStream(socket.getInputStream());
 
-        initConnection();
+        initConnection(outputs[replicaId], inputs[replicaId]);
 
         logger.info("Connected [p" + replicaId + "]. Timeout: " + socket.getSoTimeout());
     }
 
-    private void initConnection() throws IOException {
+    private void initConnection(DataOutputStream output, DataInputStream input)
+            throws IOException {
         if (clientId == -1) {
             output.write('T'); // True
             output.flush();
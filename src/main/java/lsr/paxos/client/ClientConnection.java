@@ -0,0 +1,419 @@
+package lsr.paxos.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import lsr.common.ClientCommand;
+import lsr.common.ClientCommand.CommandType;
+import lsr.common.ClientReply;
+import lsr.common.ClientReply.Result;
+import lsr.common.ClientRequest;
+import lsr.common.PID;
+import lsr.common.PrimitivesByteArray;
+import lsr.common.Reply;
+import lsr.common.RequestId;
+import lsr.common.nio.ConnectHandler;
+import lsr.common.nio.PacketHandler;
+import lsr.common.nio.ReaderAndWriter;
+import lsr.common.nio.SelectorThread;
+
+/**
+ * A connection of a {@link ClientRuntime} to a replica, carrying the requests
+ * of many {@link ClientSession}s. The replies are dispatched to the sessions
+ * by the client id of their request id, the replies to a
+ * <code>REQUEST_BATCH</code> together.
+ * <p>
+ * The connection itself gets a client id from the replica, which it uses only
+ * to number its requests for the ids of the sessions. If a request is not
+ * answered within the timeout, or the connection fails, the connection is
+ * established to the leader of the highest view seen in the replies, or to the
+ * next replica if that is the one that failed, and the sessions send all their
+ * outstanding requests again.
+ * <p>
+ * The connection and its sessions are only accessed by the selector thread.
+ */
+final class ClientConnection implements ConnectHandler {
+    /* Minimum time to wait before reconnecting after a connection failure */
+    private static final int CONNECTION_FAILURE_TIMEOUT = 500;
+    /* How long to wait for the reply to a request before connecting to
+     * another replica.
+     */
+    private static final int SOCKET_TIMEOUT = Integer.getInteger("jpaxos.client.timeout", 3000);
+    /* How often the timeouts are checked */
+    private static final int CHECK_PERIOD = 200;
+    private static final Random r = new Random();
+
+    private final SelectorThread selectorThread;
+    private final List<PID> replicas;
+    private int replica;
+
+    private SocketChannel channel;
+    private ReaderAndWriter readerAndWriter;
+    /** Connected and initialized */
+    private boolean ready = false;
+    /** Connecting, or waiting to */
+    private boolean connecting = false;
+    /** Closed for good, see {@link #close()} */
+    private boolean closed = false;
+    private long connectionId = -1;
+    /** The leader of the highest view seen in the replies */
+    private int leaderView = -1;
+    private int leaderHint = -1;
+    private int controlSequence = 0;
+
+    private final List<ClientSession> sessions = new ArrayList<ClientSession>();
+    private final Map<Long, ClientSession> sessionsById = new HashMap<Long, ClientSession>();
+    /** Sessions waiting for a client id, by the sequence number of the request */
+    private final Map<Integer, ClientSession> idRequests = new HashMap<Integer, ClientSession>();
+
+    /**
+     * @param selectorThread - the thread handling the connection
+     * @param replicas - the replicas to connect to
+     * @param replica - the replica to connect to first
+     */
+    ClientConnection(SelectorThread selectorThread, List<PID> replicas, int replica) {
+        this.selectorThread = selectorThread;
+        this.replicas = replicas;
+        this.replica = replica;
+    }
+
+    SelectorThread getSelectorThread() {
+        return selectorThread;
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    /** Connects and starts checking the timeouts */
+    void start() {
+        assert selectorThread.amIInSelector();
+        connect();
+        selectorThread.scheduleInvoke(new Runnable() {
+            public void run() {
+                if (closed) {
+                    return;
+                }
+                checkTimeouts();
+                selectorThread.scheduleInvoke(this, CHECK_PERIOD);
+            }
+        }, CHECK_PERIOD);
+    }
+
+    /**
+     * Closes the connection for good. The sessions are closed, so their
+     * requests fail.
+     */
+    void close() {
+        assert selectorThread.amIInSelector();
+        closed = true;
+        ready = false;
+        if (readerAndWriter != null) {
+            readerAndWriter.close();
+            readerAndWriter = null;
+        } else if (channel != null) {
+            // Connecting
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Not clean socket closing.", e);
+            }
+        }
+        for (ClientSession session : new ArrayList<ClientSession>(sessions)) {
+            session.close();
+        }
+        logger.info("Connection closed");
+    }
+
+    void addSession(ClientSession session) {
+        assert selectorThread.amIInSelector();
+        if (closed) {
+            session.close();
+            return;
+        }
+        sessions.add(session);
+    }
+
+    /** Forgets a closed session, its replies are ignored */
+    void removeSession(ClientSession session) {
+        assert selectorThread.amIInSelector();
+        sessions.remove(session);
+        if (session.getClientID() != -1) {
+            sessionsById.remove(session.getClientID());
+        }
+        idRequests.values().removeAll(Collections.singleton(session));
+    }
+
+    void send(ClientCommand command) {
+        if (readerAndWriter == null) {
+            // Sent again once reconnected
+            return;
+        }
+        ByteBuffer bb = ByteBuffer.allocate(command.byteSize());
+        command.writeTo(bb);
+        readerAndWriter.send(bb.array());
+    }
+
+    void requestClientId(ClientSession session) {
+        idRequests.put(++controlSequence, session);
+        send(new ClientCommand(CommandType.NEW_CLIENT_ID, new ClientRequest(
+                new RequestId(connectionId, controlSequence), new byte[0])));
+    }
+
+    private void connect() {
+        connecting = false;
+        if (closed) {
+            return;
+        }
+        PID pid = replicas.get(replica);
+        logger.info("Connecting to " + pid.getHostname() + ":" + pid.getClientPort());
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress(pid.getHostname(), pid.getClientPort()))) {
+                onConnected();
+            } else {
+                selectorThread.registerChannel(channel, SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException e) {
+            connectionFailed(e);
+        }
+    }
+
+    public void handleConnect() {
+        try {
+            channel.finishConnect();
+            onConnected();
+        } catch (IOException e) {
+            connectionFailed(e);
+        }
+    }
+
+    private void connectionFailed(IOException e) {
+        logger.warning("Connect to " + replica + " failed: " + e.getMessage());
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e1) {
+            logger.log(Level.WARNING, "Not clean socket closing.", e1);
+        }
+        reconnect(failoverTarget(), CONNECTION_FAILURE_TIMEOUT);
+    }
+
+    /** The hinted leader, unless it is the current replica, otherwise the next one */
+    private int failoverTarget() {
+        if (leaderHint != -1 && leaderHint != replica) {
+            return leaderHint;
+        }
+        return (replica + 1) % replicas.size();
+    }
+
+    private void onConnected() throws IOException {
+        readerAndWriter = new ReaderAndWriter(channel, selectorThread);
+        if (connectionId == -1) {
+            readerAndWriter.send(new byte[] {'T'});
+            readerAndWriter.setPacketHandler(new ConnectionIdPacketHandler());
+        } else {
+            ByteBuffer bb = ByteBuffer.allocate(9);
+            bb.put((byte) 'F');
+            bb.putLong(connectionId);
+            readerAndWriter.send(bb.array());
+            onReady();
+        }
+    }
+
+    private void onReady() {
+        logger.info("Connected [p" + replica + "]");
+        ready = true;
+        readerAndWriter.setPacketHandler(new ReplyPacketHandler());
+        for (ClientSession session : sessions) {
+            session.resend();
+        }
+    }
+
+    /**
+     * Closes the connection and connects to the given replica after the
+     * timeout (plus a random backoff), if not 0.
+     */
+    private void reconnect(int nextReplica, int timeout) {
+        if (connecting || closed) {
+            return;
+        }
+        connecting = true;
+        ready = false;
+        idRequests.clear();
+        if (readerAndWriter != null) {
+            readerAndWriter.close();
+            readerAndWriter = null;
+        }
+        replica = nextReplica;
+        if (timeout == 0) {
+            connect();
+        } else {
+            timeout += r.nextInt(500);
+            logger.warning("Reconnecting in " + timeout + "ms.");
+            selectorThread.scheduleInvoke(new Runnable() {
+                public void run() {
+                    connect();
+                }
+            }, timeout);
+        }
+    }
+
+    private void checkTimeouts() {
+        if (!ready) {
+            return;
+        }
+        if (!channel.isOpen()) {
+            logger.warning("Connection to [p" + replica + "] closed");
+            reconnect(failoverTarget(), CONNECTION_FAILURE_TIMEOUT);
+            return;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (ClientSession session : sessions) {
+            oldest = Math.min(oldest, session.getOldestSendTime());
+        }
+        if (System.currentTimeMillis() - oldest > SOCKET_TIMEOUT) {
+            logger.warning("Error waiting for answer, node: " + replica);
+            reconnect(failoverTarget(), 0);
+        }
+    }
+
+    private void handleReply(Result result, byte[] value) {
+        switch (result) {
+            case OK:
+                Reply reply = new Reply(value);
+                RequestId id = reply.getRequestId();
+                if (id.getClientId() == connectionId) {
+                    ClientSession session = idRequests.remove(id.getSeqNumber());
+                    if (session != null) {
+                        long clientId = ByteBuffer.wrap(reply.getValue()).getLong();
+                        sessionsById.put(clientId, session);
+                        session.onClientId(clientId);
+                    }
+                } else {
+                    ClientSession session = sessionsById.get(id.getClientId());
+                    if (session != null) {
+                        session.onReply(id.getSeqNumber(), reply.getValue());
+                    }
+                }
+                break;
+
+            case BATCH:
+                // The requests of a batch are sent by a single session
+                Reply[] replies = new ClientReply(result, value).getBatchedReplies();
+                if (replies.length > 0) {
+                    ClientSession session = sessionsById.get(
+                            replies[0].getRequestId().getClientId());
+                    if (session != null) {
+                        session.onReplies(replies);
+                    }
+                }
+                break;
+
+            case NACK:
+                Reply nack = new Reply(value);
+                ClientSession session = sessionsById.get(nack.getRequestId().getClientId());
+                if (session != null) {
+                    session.onFailure(nack.getRequestId().getSeqNumber(),
+                            "Nack received: " + new String(nack.getValue()));
+                }
+                break;
+
+            case REDIRECT:
+                int currentPrimary = PrimitivesByteArray.toInt(value);
+                if (currentPrimary < 0 || currentPrimary >= replicas.size()) {
+                    // Invalid ID. Ignore redirect and try next replica.
+                    logger.warning("Reply: Invalid redirect received: " + currentPrimary +
+                                   ". Proceeding with next replica.");
+                    currentPrimary = (replica + 1) % replicas.size();
+                } else {
+                    logger.info("Reply REDIRECT to " + currentPrimary);
+                }
+                // No need to wait, the replica knows the leader
+                reconnect(currentPrimary, 0);
+                break;
+
+            case BUSY:
+                // The requests are sent again after the timeout
+                logger.warning("Replica busy: " + new String(value));
+                break;
+
+            default:
+                throw new RuntimeException("Unknown reply type");
+        }
+    }
+
+    /** Reads the id granted to the connection by the replica */
+    private class ConnectionIdPacketHandler implements PacketHandler {
+        private final ByteBuffer buffer = ByteBuffer.allocate(8);
+
+        public void finished() {
+            buffer.flip();
+            connectionId = buffer.getLong();
+            logger.fine("New connection id: " + connectionId);
+            onReady();
+        }
+
+        public ByteBuffer getByteBuffer() {
+            return buffer;
+        }
+    }
+
+    /**
+     * Waits for the header and then for the value of a reply.
+     */
+    private class ReplyPacketHandler implements PacketHandler {
+        private final ReaderAndWriter owner = readerAndWriter;
+        private final ByteBuffer header = ByteBuffer.allocate(ClientReply.HEADER_SIZE);
+        private ByteBuffer buffer = header;
+        private Result result;
+
+        public void finished() {
+            if (owner != readerAndWriter) {
+                // Closed in the meantime
+                return;
+            }
+            if (buffer == header) {
+                header.flip();
+                result = Result.values()[header.getInt()];
+                int view = header.getInt();
+                int leader = header.getInt();
+                if (view > leaderView) {
+                    leaderView = view;
+                    leaderHint = leader;
+                }
+                buffer = ByteBuffer.allocate(header.getInt());
+                header.clear();
+                if (buffer.capacity() == 0) {
+                    handleReply(result, buffer.array());
+                    buffer = header;
+                }
+            } else {
+                handleReply(result, buffer.array());
+                buffer = header;
+            }
+            if (owner == readerAndWriter) {
+                readerAndWriter.setPacketHandler(this);
+            }
+        }
+
+        public ByteBuffer getByteBuffer() {
+            return buffer;
+        }
+    }
+
+    private final static Logger logger = Logger.getLogger(ClientConnection.class.getCanonicalName());
+}
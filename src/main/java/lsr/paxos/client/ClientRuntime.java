@@ -0,0 +1,138 @@
+package lsr.paxos.client;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lsr.common.Configuration;
+import lsr.common.PID;
+import lsr.common.ProcessDescriptor;
+import lsr.common.nio.SelectorThread;
+import lsr.paxos.ReplicationException;
+
+/**
+ * Hosts many logical clients, {@link ClientSession}s, over a few connections
+ * to the replicas and a few threads. Meant for front-ends serving many users,
+ * where a {@link Client} with its socket and thread per user does not scale.
+ * <p>
+ * The connections are handled by {@link SelectorThread}s, as the client
+ * connections on the replicas, and start on different replicas. The sessions
+ * are assigned to the connections round-robin. Each session has its own
+ * client id, so the exactly-once semantics of the replicas hold per session.
+ * <p>
+ * Example of usage:
+ * <p>
+ * <blockquote>
+ *
+ * <pre>
+ * ClientRuntime runtime = new ClientRuntime(new Configuration(), 2, 4);
+ * runtime.start();
+ * ClientSession session = runtime.newSession();
+ * byte[] reply = session.execute(new byte[] { 0, 1, 2 }).get();
+ * </pre>
+ *
+ * </blockquote>
+ */
+public class ClientRuntime {
+    private final SelectorThread[] selectorThreads;
+    private final ClientConnection[] connections;
+    private final int pipelineDepth;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private volatile boolean stopped = false;
+
+    /**
+     * @param config - the configuration with information about replicas to
+     *            connect to
+     * @param threads - the number of selector threads
+     * @param connections - the number of connections to the replicas
+     * @throws IOException if a selector cannot be opened
+     */
+    public ClientRuntime(Configuration config, int threads, int connections) throws IOException {
+        List<PID> replicas = config.getProcesses();
+        int first = new Random().nextInt(replicas.size());
+        selectorThreads = new SelectorThread[threads];
+        for (int i = 0; i < threads; i++) {
+            selectorThreads[i] = new SelectorThread("ClientRuntime-" + i, i);
+            selectorThreads[i].setDaemon(true);
+        }
+        this.connections = new ClientConnection[connections];
+        for (int i = 0; i < connections; i++) {
+            this.connections[i] = new ClientConnection(selectorThreads[i % threads], replicas,
+                    (first + i) % replicas.size());
+        }
+        pipelineDepth = Math.max(1, config.getIntProperty(ProcessDescriptor.CLIENT_PIPELINE_DEPTH,
+                ProcessDescriptor.DEFAULT_CLIENT_PIPELINE_DEPTH));
+    }
+
+    /** Starts the threads and connects to the replicas */
+    public void start() {
+        for (SelectorThread thread : selectorThreads) {
+            thread.start();
+        }
+        for (final ClientConnection connection : connections) {
+            connection.getSelectorThread().beginInvokeAndWakeup(new Runnable() {
+                public void run() {
+                    connection.start();
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates a new logical client. Can be called from any thread.
+     *
+     * @throws IllegalStateException if the runtime is stopped
+     */
+    public ClientSession newSession() {
+        if (stopped) {
+            throw new IllegalStateException("Runtime stopped");
+        }
+        final ClientConnection connection = connections[
+                (nextConnection.getAndIncrement() & Integer.MAX_VALUE) % connections.length];
+        final ClientSession session = new ClientSession(connection, pipelineDepth);
+        connection.getSelectorThread().beginInvoke(new Runnable() {
+            public void run() {
+                connection.addSession(session);
+            }
+        });
+        if (stopped) {
+            // The connection may have been closed before the session was added
+            throw new IllegalStateException("Runtime stopped");
+        }
+        return session;
+    }
+
+    /**
+     * Closes the connections and stops the threads. The requests not answered
+     * yet fail with {@link ReplicationException}, as the requests of the
+     * sessions executed afterwards. Waits for the connections to be closed.
+     */
+    public void stop() {
+        stopped = true;
+        final CountDownLatch closed = new CountDownLatch(connections.length);
+        for (final ClientConnection connection : connections) {
+            if (connection.getSelectorThread().amIInSelector()) {
+                // From a callback
+                connection.close();
+                closed.countDown();
+            } else {
+                connection.getSelectorThread().beginInvokeAndWakeup(new Runnable() {
+                    public void run() {
+                        connection.close();
+                        closed.countDown();
+                    }
+                });
+            }
+        }
+        try {
+            closed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectorThread thread : selectorThreads) {
+            thread.interrupt();
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package lsr.paxos.client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import lsr.common.ClientCommand;
+import lsr.common.ClientCommand.CommandType;
+import lsr.common.ClientRequest;
+import lsr.common.Reply;
+import lsr.common.RequestId;
+import lsr.paxos.ReplicationException;
+
+/**
+ * A logical client hosted by a {@link ClientRuntime}. It has its own client id
+ * and sequence numbers, as a {@link Client}, but shares the connection and
+ * the selector thread of the runtime with many other sessions.
+ * <p>
+ * The requests are sent without waiting for the previous replies, with up to
+ * <code>ClientPipelineDepth</code> of them outstanding; the next ones wait in
+ * the session. The client id is granted by the replica when the first request
+ * is sent. The callbacks are called by the selector thread, so they should not
+ * block.
+ * <p>
+ * The requests that can be sent together, because several were submitted
+ * before the selector thread handled them or were submitted by the callbacks
+ * of a batched reply, are sent in a single <code>REQUEST_BATCH</code> command.
+ */
+public final class ClientSession {
+    private final ClientConnection connection;
+    private final int pipelineDepth;
+
+    /** Set once by {@link #close()}, read by any thread */
+    private volatile boolean closed = false;
+    /** Requests submitted by other threads, moved to waiting by the selector thread */
+    private final ConcurrentLinkedQueue<PendingRequest> submitted =
+            new ConcurrentLinkedQueue<PendingRequest>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final Runnable drainTask = new Runnable() {
+        public void run() {
+            drainScheduled.set(false);
+            PendingRequest request;
+            while ((request = submitted.poll()) != null) {
+                waiting.add(request);
+            }
+            if (closed) {
+                failAll();
+                return;
+            }
+            sendWaiting();
+        }
+    };
+
+    /* Owned by the selector thread of the connection */
+    private volatile long clientId = -1;
+    private int sequenceId = 0;
+    private boolean idRequested = false;
+    private long idRequestTime;
+    /** Delivering the replies of a batch, the requests are sent afterwards */
+    private boolean delivering = false;
+    /** Requests not sent yet */
+    private final Deque<PendingRequest> waiting = new ArrayDeque<PendingRequest>();
+    /** Requests sent, by sequence number */
+    private final SortedMap<Integer, PendingRequest> outstanding =
+            new TreeMap<Integer, PendingRequest>();
+
+    ClientSession(ClientConnection connection, int pipelineDepth) {
+        this.connection = connection;
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * Sends request to replica, to execute service with specified object as
+     * argument. Returns immediately.
+     *
+     * @param bytes - argument for service
+     * @param callback - notified with the reply, by the selector thread
+     * @throws IllegalStateException if the session is closed
+     */
+    public void execute(byte[] bytes, ReplyCallback callback) {
+        if (closed) {
+            throw new IllegalStateException("Client closed");
+        }
+        if (connection.getSelectorThread().amIInSelector()) {
+            // From a callback
+            waiting.add(new PendingRequest(bytes, callback));
+            if (!delivering) {
+                sendWaiting();
+            }
+        } else {
+            submitted.add(new PendingRequest(bytes, callback));
+            if (closed) {
+                // Closed meanwhile, the selector thread may have stopped
+                failSubmitted();
+                return;
+            }
+            // A single task moves all the requests submitted meanwhile
+            if (drainScheduled.compareAndSet(false, true)) {
+                connection.getSelectorThread().beginInvokeAndWakeup(drainTask);
+            }
+        }
+    }
+
+    /**
+     * Sends request to replica, to execute service with specified object as
+     * argument. Returns immediately.
+     *
+     * @param bytes - argument for service
+     * @return the reply from service. Fails with {@link ReplicationException}
+     *         if the replicas refuse the request or the session is closed.
+     * @throws IllegalStateException if the session is closed
+     */
+    public Future<byte[]> execute(byte[] bytes) {
+        ReplyFuture future = new ReplyFuture();
+        execute(bytes, future);
+        return future;
+    }
+
+    /** The id of this client, -1 until granted */
+    public long getClientID() {
+        return clientId;
+    }
+
+    /**
+     * Closes the session. The requests not answered yet fail with
+     * {@link ReplicationException}. Can be called from any thread.
+     */
+    public void close() {
+        closed = true;
+        if (connection.getSelectorThread().amIInSelector()) {
+            connection.removeSession(this);
+            failAll();
+        } else {
+            connection.getSelectorThread().beginInvokeAndWakeup(new Runnable() {
+                public void run() {
+                    connection.removeSession(ClientSession.this);
+                    failAll();
+                }
+            });
+        }
+    }
+
+    /** Sends the waiting requests the window allows, or asks for a client id */
+    void sendWaiting() {
+        if (!connection.isReady() || waiting.isEmpty()) {
+            return;
+        }
+        if (clientId == -1) {
+            if (!idRequested) {
+                idRequested = true;
+                idRequestTime = System.currentTimeMillis();
+                connection.requestClientId(this);
+            }
+            return;
+        }
+        List<PendingRequest> toSend = new ArrayList<PendingRequest>();
+        while (outstanding.size() < pipelineDepth && !waiting.isEmpty()) {
+            PendingRequest request = waiting.poll();
+            request.request = new ClientRequest(new RequestId(clientId, ++sequenceId),
+                    request.bytes);
+            outstanding.put(sequenceId, request);
+            toSend.add(request);
+        }
+        send(toSend);
+    }
+
+    /** Called after the connection is established again */
+    void resend() {
+        idRequested = false;
+        send(new ArrayList<PendingRequest>(outstanding.values()));
+        sendWaiting();
+    }
+
+    void onClientId(long clientId) {
+        this.clientId = clientId;
+        idRequested = false;
+        sendWaiting();
+    }
+
+    void onReply(int sequenceId, byte[] reply) {
+        // Null for the replies to requests sent several times
+        PendingRequest request = outstanding.remove(sequenceId);
+        if (request != null) {
+            try {
+                request.callback.onReply(reply);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Reply callback failed", e);
+            }
+            if (!delivering) {
+                sendWaiting();
+            }
+        }
+    }
+
+    /** Called with the replies of a REQUEST_BATCH */
+    void onReplies(Reply[] replies) {
+        delivering = true;
+        try {
+            for (Reply reply : replies) {
+                onReply(reply.getRequestId().getSeqNumber(), reply.getValue());
+            }
+        } finally {
+            delivering = false;
+        }
+        sendWaiting();
+    }
+
+    void onFailure(int sequenceId, String message) {
+        PendingRequest request = outstanding.remove(sequenceId);
+        if (request != null) {
+            try {
+                request.callback.onFailure(new ReplicationException(message));
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Reply callback failed", e);
+            }
+            if (!delivering) {
+                sendWaiting();
+            }
+        }
+    }
+
+    /**
+     * Returns when the oldest request waiting for an answer was sent, or
+     * Long.MAX_VALUE if none.
+     */
+    long getOldestSendTime() {
+        if (!outstanding.isEmpty()) {
+            return outstanding.get(outstanding.firstKey()).sentTime;
+        }
+        return idRequested ? idRequestTime : Long.MAX_VALUE;
+    }
+
+    /** Fails the requests sent, waiting and submitted */
+    private void failAll() {
+        List<PendingRequest> failed = new ArrayList<PendingRequest>(outstanding.values());
+        outstanding.clear();
+        failed.addAll(waiting);
+        waiting.clear();
+        for (PendingRequest request : failed) {
+            fail(request);
+        }
+        failSubmitted();
+    }
+
+    private void failSubmitted() {
+        PendingRequest request;
+        while ((request = submitted.poll()) != null) {
+            fail(request);
+        }
+    }
+
+    private void fail(PendingRequest request) {
+        try {
+            request.callback.onFailure(new ReplicationException("Client closed"));
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Reply callback failed", e);
+        }
+    }
+
+    private void send(List<PendingRequest> requests) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (PendingRequest request : requests) {
+            request.sentTime = now;
+        }
+        if (requests.size() == 1) {
+            connection.send(new ClientCommand(CommandType.REQUEST, requests.get(0).request));
+            return;
+        }
+        ClientRequest[] batch = new ClientRequest[requests.size()];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = requests.get(i).request;
+        }
+        connection.send(new ClientCommand(batch));
+    }
+
+    private static final class PendingRequest {
+        final byte[] bytes;
+        final ReplyCallback callback;
+        /** Assigned when first sent */
+        ClientRequest request;
+        /** Last time the request was sent */
+        long sentTime;
+
+        PendingRequest(byte[] bytes, ReplyCallback callback) {
+            this.bytes = bytes;
+            this.callback = callback;
+        }
+    }
+
+    private final static Logger logger = Logger.getLogger(ClientSession.class.getCanonicalName());
+}
@@ -0,0 +1,24 @@
+package lsr.paxos.client;
+
+import lsr.paxos.ReplicationException;
+
+/**
+ * Notified when the request sent with {@link AsyncClient#execute(byte[], ReplyCallback)}
+ * or {@link ClientSession#execute(byte[], ReplyCallback)} completes. Called by
+ * the thread reading the replies, so it should not block.
+ */
+public interface ReplyCallback {
+    /**
+     * Called with the reply from the service.
+     *
+     * @param reply - reply from service
+     */
+    void onReply(byte[] reply);
+
+    /**
+     * Called if the replicas refused the request.
+     *
+     * @param e - the cause
+     */
+    void onFailure(ReplicationException e);
+}
@@ -0,0 +1,62 @@
+package lsr.paxos.client;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import lsr.paxos.ReplicationException;
+
+/**
+ * The reply to a request sent without waiting for it. Fails with
+ * {@link ReplicationException} if the replicas refuse the request. Requests
+ * cannot be cancelled once sent.
+ */
+final class ReplyFuture implements Future<byte[]>, ReplyCallback {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile byte[] reply;
+    private volatile ReplicationException failure;
+
+    public void onReply(byte[] reply) {
+        this.reply = reply;
+        done.countDown();
+    }
+
+    public void onFailure(ReplicationException e) {
+        this.failure = e;
+        done.countDown();
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public byte[] get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    public byte[] get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private byte[] result() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return reply;
+    }
+}
@@ -48,6 +48,19 @@ public class Accept extends Message {
         instanceId = input.readInt();
     }
 
+    /**
+     * Creates new <code>Accept</code> message from buffer with serialized
+     * message.
+     * The position of the buffer is advanced past the serialized data.
+     * 
+     * @param bb - buffer with serialized <code>Accept</code> message
+     *            inside.
+     */
+    public Accept(ByteBuffer bb) {
+        super(bb);
+        instanceId = bb.getInt();
+    }
+
     /**
      * Returns the instance id.
      * 
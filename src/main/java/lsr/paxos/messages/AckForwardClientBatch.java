@@ -25,6 +25,13 @@ final public class AckForwardClientBatch extends Message {
             rcvdUB[i] = input.readInt();
         }
     }
+
+    public AckForwardClientBatch(ByteBuffer bb) {
+        super(bb);
+        for (int i = 0; i < N; i++) {
+            rcvdUB[i] = bb.getInt();
+        }
+    }
         
     public AckForwardClientBatch(int[] rcvdUB) {
         super(-1);
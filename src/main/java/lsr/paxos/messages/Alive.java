@@ -15,6 +15,11 @@ public class Alive extends Message {
      * leader.
      */
     private final int logSize;
+    /**
+     * The time the leader sent the heartbeat, on its own clock, in
+     * milliseconds. Echoed back by the followers granting the read lease.
+     */
+    private final long time;
 
     /**
      * Creates new <code>Alive</code> message with specified view number and log
@@ -24,8 +29,21 @@ public class Alive extends Message {
      * @param logSize - the size of the log
      */
     public Alive(int view, int logSize) {
+        this(view, logSize, 0);
+    }
+
+    /**
+     * Creates new <code>Alive</code> message with specified view number, log
+     * size and the time the leader sent it.
+     * 
+     * @param view - the view number
+     * @param logSize - the size of the log
+     * @param time - the time the leader sent the heartbeat
+     */
+    public Alive(int view, int logSize, long time) {
         super(view);
         this.logSize = logSize;
+        this.time = time;
     }
 
     /**
@@ -38,6 +56,20 @@ public class Alive extends Message {
     public Alive(DataInputStream input) throws IOException {
         super(input);
         logSize = input.readInt();
+        time = input.readLong();
+    }
+
+    /**
+     * Creates new <code>Alive</code> message from buffer with serialized
+     * message inside.
+     * The position of the buffer is advanced past the serialized data.
+     * 
+     * @param bb - the buffer with serialized message
+     */
+    public Alive(ByteBuffer bb) {
+        super(bb);
+        logSize = bb.getInt();
+        time = bb.getLong();
     }
 
     /**
@@ -49,19 +81,29 @@ public class Alive extends Message {
         return logSize;
     }
 
+    /**
+     * Returns the time the leader sent the heartbeat.
+     * 
+     * @return the time on the clock of the leader, in milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
     public MessageType getType() {
         return MessageType.Alive;
     }
 
     public int byteSize() {
-        return super.byteSize() + 4;
+        return super.byteSize() + 4 + 8;
     }
 
     public String toString() {
-        return "ALIVE (" + super.toString() + ", logsize: " + logSize + ")";
+        return "ALIVE (" + super.toString() + ", logsize: " + logSize + ", time: " + time + ")";
     }
 
     protected void write(ByteBuffer bb) {
         bb.putInt(logSize);
+        bb.putLong(time);
     }
 }
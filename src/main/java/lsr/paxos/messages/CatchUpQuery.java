@@ -78,6 +78,31 @@ public class CatchUpQuery extends Message {
         }
     }
 
+    /**
+     * Creates new <code>CatchUpQuery</code> message from buffer with
+     * serialized message.
+     * The position of the buffer is advanced past the serialized data.
+     * 
+     * @param bb - the buffer with serialized message
+     */
+    public CatchUpQuery(ByteBuffer bb) {
+        super(bb);
+        byte flags = bb.get();
+        periodicQuery = (flags & 1) == 0 ? false : true;
+        snapshotRequest = (flags & 2) == 0 ? false : true;
+
+        instanceIdRanges = new Range[bb.getInt()];
+        for (int i = 0; i < instanceIdRanges.length; ++i) {
+            instanceIdRanges[i] = new Range(bb.getInt(), 0);
+            instanceIdRanges[i].setValue(bb.getInt());
+        }
+
+        instanceIdArray = new int[bb.getInt()];
+        for (int i = 0; i < instanceIdArray.length; ++i) {
+            instanceIdArray[i] = bb.getInt();
+        }
+    }
+
     /**
      * Sets requested instances IDs from array.
      * 
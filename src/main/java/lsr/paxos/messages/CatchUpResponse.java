@@ -47,6 +47,20 @@ public class CatchUpResponse extends Message {
         }
     }
 
+    public CatchUpResponse(ByteBuffer bb) {
+        super(bb);
+        byte flags = bb.get();
+        periodicQuery = (flags & 1) == 0 ? false : true;
+        haveSnapshotOnly = (flags & 2) == 0 ? false : true;
+        isLastPart = (flags & 4) == 0 ? false : true;
+        requestTime = bb.getLong();
+
+        decided = new Vector<ConsensusInstance>();
+        for (int i = bb.getInt(); i > 0; --i) {
+            decided.add(new ConsensusInstance(bb));
+        }
+    }
+
     public void setDecided(List<ConsensusInstance> decided) {
         this.decided = decided;
     }
@@ -16,6 +16,13 @@ import lsr.paxos.replica.ClientBatchID;
  * Additionally, it piggybacks a vector <code>rcvdUB</code>, where <code>rcvdUB[q]</code> 
  * is the highest sequence number of a batch of requests received from <code>q</code> by 
  * the sender of this message.
+ * <p>
+ * When read from a buffer, the requests are not deserialized: the message
+ * keeps a copy of their serialized form, and the <code>ClientRequest</code>
+ * objects are created on the first call to {@link #getRequests()}. This keeps
+ * the network threads from allocating one request object, id and value per
+ * client request; a message that is only forwarded is written back without
+ * being deserialized. Instances are not thread-safe.
  * 
  * @author Nuno Santos (LSR)
  */
@@ -24,13 +31,18 @@ public final class ForwardClientBatch extends Message {
     private static final int N = ProcessDescriptor.getInstance().numReplicas;
     
     public final ClientBatchID rid;
-    public final ClientRequest[] requests;
+    /** null until the serialized requests are decoded */
+    private ClientRequest[] requests;
+    /** The serialized requests, null if <code>requests</code> is set */
+    private byte[] serializedRequests;
+    private final int requestCount;
     public final int[] rcvdUB;
 
     protected ForwardClientBatch(DataInputStream input) throws IOException {
         super(input);
         rid = new ClientBatchID(input);
         int size = input.readInt();
+        requestCount = size;
         requests = new ClientRequest[size];
         for (int i = 0; i < requests.length; i++) {
             requests[i] = ClientRequest.create(input);
@@ -40,7 +52,33 @@ public final class ForwardClientBatch extends Message {
             rcvdUB[i] = input.readInt();
         }
     }
-    
+
+    /**
+     * Reads the message from a buffer, keeping the requests serialized. The
+     * position of the buffer is advanced past the message.
+     * 
+     * @param bb - the buffer with serialized message
+     */
+    protected ForwardClientBatch(ByteBuffer bb) {
+        super(bb);
+        rid = new ClientBatchID(bb);
+        requestCount = bb.getInt();
+        // Skip over the requests to find their size. The buffer may be
+        // reused by the caller, so they are copied in a single array.
+        int start = bb.position();
+        int end = start;
+        for (int i = 0; i < requestCount; i++) {
+            // clientId, sequence number, value length, value
+            end += 8 + 4 + 4 + bb.getInt(end + 8 + 4);
+        }
+        serializedRequests = new byte[end - start];
+        bb.get(serializedRequests);
+        rcvdUB = new int[N];
+        for (int i = 0; i < N; i++) {
+            rcvdUB[i] = bb.getInt();
+        }
+    }
+
     /** 
      * Warning: this constructor keeps a reference to the array <code>rcvdUB</code>.
      * Make sure that this array is not changed after calling this constructor.
@@ -52,9 +90,31 @@ public final class ForwardClientBatch extends Message {
         super(-1);
         this.rid = id;
         this.requests = requests;
+        this.requestCount = requests.length;
         this.rcvdUB = rcvdUB;
     }
-    
+
+    /**
+     * Returns the requests of the batch, deserializing them on the first call.
+     */
+    public ClientRequest[] getRequests() {
+        if (requests == null) {
+            ByteBuffer bb = ByteBuffer.wrap(serializedRequests);
+            ClientRequest[] decoded = new ClientRequest[requestCount];
+            for (int i = 0; i < decoded.length; i++) {
+                decoded[i] = ClientRequest.create(bb);
+            }
+            requests = decoded;
+            serializedRequests = null;
+        }
+        return requests;
+    }
+
+    /** The number of requests in the batch */
+    public int getRequestCount() {
+        return requestCount;
+    }
+
     @Override
     public MessageType getType() {
         return MessageType.ForwardedClientRequest;
@@ -63,9 +123,13 @@ public final class ForwardClientBatch extends Message {
     @Override
     protected void write(ByteBuffer bb) {
         rid.writeTo(bb);
-        bb.putInt(requests.length);
-        for (int i = 0; i < requests.length; i++) {
-            requests[i].writeTo(bb);
+        bb.putInt(requestCount);
+        if (requests == null) {
+            bb.put(serializedRequests);
+        } else {
+            for (int i = 0; i < requests.length; i++) {
+                requests[i].writeTo(bb);
+            }
         }
         for (int i = 0; i < rcvdUB.length; i++) {
             bb.putInt(rcvdUB[i]);
@@ -74,13 +138,18 @@ public final class ForwardClientBatch extends Message {
     
     public int byteSize() {
         int reqSize = 0;
-        for (int i = 0; i < requests.length; i++) {
-            reqSize+=requests[i].byteSize();
+        if (requests == null) {
+            reqSize = serializedRequests.length;
+        } else {
+            for (int i = 0; i < requests.length; i++) {
+                reqSize+=requests[i].byteSize();
+            }
         }
         return super.byteSize() + rid.byteSize() + 4 + reqSize + 4*rcvdUB.length;
     }
     
     public String toString() {
-        return ForwardClientBatch.class.getSimpleName() + "(rid:" + rid + ", " + Arrays.toString(requests) + ", " + Arrays.toString(rcvdUB) + ")";
+        String reqs = requests == null ? requestCount + " serialized requests" : Arrays.toString(requests);
+        return ForwardClientBatch.class.getSimpleName() + "(rid:" + rid + ", " + reqs + ", " + Arrays.toString(rcvdUB) + ")";
     }
 }
@@ -49,6 +49,17 @@ public abstract class Message implements Serializable {
         sentTime = input.readLong();
     }
 
+    /**
+     * Creates new message from buffer with serialized message inside.
+     * The position of the buffer is advanced past the serialized data.
+     * 
+     * @param bb - the buffer with serialized message
+     */
+    protected Message(ByteBuffer bb) {
+        view = bb.getInt();
+        sentTime = bb.getLong();
+    }
+
     /**
      * Sets the time when the message was sent.
      * 
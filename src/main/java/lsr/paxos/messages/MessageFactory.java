@@ -1,8 +1,8 @@
 package lsr.paxos.messages;
 
-import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * This class is responsible for serializing and deserializing messages to /
@@ -20,8 +20,71 @@ public final class MessageFactory {
      * @throws IOException 
      */
     public static Message readByteArray(byte[] message) throws IOException, ClassNotFoundException {
-        DataInputStream input = new DataInputStream(new ByteArrayInputStream(message));
-        return create(input);
+        return create(ByteBuffer.wrap(message));
+    }
+
+    /**
+     * Creates a <code>Message</code> from a buffer, without copying the whole
+     * message. The position of the buffer is advanced past the message. The
+     * message does not keep a reference to the buffer, so the buffer can be
+     * reused once this method returns.
+     * 
+     * @param bb - the buffer with the serialized message, as written by
+     *            <code>Message.writeTo()</code>
+     * @return correct object from one of message subclasses
+     * @throws IllegalArgumentException if the message type is unknown
+     * @throws java.nio.BufferUnderflowException if the message is truncated
+     */
+    public static Message create(ByteBuffer bb) {
+        MessageType type = MessageType.values()[bb.get() & 0xFF];
+        assert type != MessageType.ANY && type != MessageType.SENT : "Message type " + type +
+                " cannot be serialized";
+
+        Message message;
+        switch (type) {
+            case Accept:
+                message = new Accept(bb);
+                break;
+            case Alive:
+                message = new Alive(bb);
+                break;
+            case CatchUpQuery:
+                message = new CatchUpQuery(bb);
+                break;
+            case CatchUpResponse:
+                message = new CatchUpResponse(bb);
+                break;
+            case CatchUpSnapshot:
+                message = new CatchUpSnapshot(bb);
+                break;
+            case Prepare:
+                message = new Prepare(bb);
+                break;
+            case PrepareOK:
+                message = new PrepareOK(bb);
+                break;
+            case Propose:
+                message = new Propose(bb);
+                break;
+            case Recovery:
+                message = new Recovery(bb);
+                break;
+            case RecoveryAnswer:
+                message = new RecoveryAnswer(bb);
+                break;
+            case ForwardedClientRequest:
+                message = new ForwardClientBatch(bb);
+                break;
+            case ViewPrepared:
+                message = new ViewPrepared(bb);
+                break;
+            case AckForwardedRequest:
+                message = new AckForwardClientBatch(bb);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown message type: " + type);
+        }
+        return message;
     }
 
     /**
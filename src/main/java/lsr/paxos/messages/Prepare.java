@@ -40,6 +40,17 @@ public final class Prepare extends Message {
         firstUncommitted = input.readInt();
     }
 
+    /**
+     * Creates new <code>Prepare</code> message from serialized buffer.
+     * The position of the buffer is advanced past the serialized data.
+     * 
+     * @param bb - the buffer with serialized message inside
+     */
+    public Prepare(ByteBuffer bb) {
+        super(bb);
+        firstUncommitted = bb.getInt();
+    }
+
     /**
      * Returns id of first consensus instance sender does not know the decision
      * for.
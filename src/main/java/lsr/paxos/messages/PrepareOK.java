@@ -61,6 +61,26 @@ public class PrepareOK extends Message {
         }
     }
 
+    /**
+     * Creates new <cod>PrepareOK</code> message from serialized buffer.
+     * The position of the buffer is advanced past the serialized data.
+     * 
+     * @param bb - the buffer with serialized message
+     */
+    public PrepareOK(ByteBuffer bb) {
+        super(bb);
+        prepared = new ConsensusInstance[bb.getInt()];
+        for (int i = 0; i < prepared.length; ++i) {
+            prepared[i] = new ConsensusInstance(bb);
+        }
+
+        int epochSize = bb.getInt();
+        epoch = new long[epochSize];
+        for (int i = 0; i < epoch.length; ++i) {
+            epoch[i] = bb.getLong();
+        }
+    }
+
     /**
      * Returns prepared list of consensus instances.
      * 
@@ -58,6 +58,20 @@ public class Propose extends Message {
         input.readFully(value);
     }
 
+    /**
+     * Creates new <code>Propose</code> message from serialized buffer.
+     * The position of the buffer is advanced past the serialized data.
+     * 
+     * @param bb - the buffer with serialized message
+     */
+    public Propose(ByteBuffer bb) {
+        super(bb);
+
+        instanceId = bb.getInt();
+        value = new byte[bb.getInt()];
+        bb.get(value);
+    }
+
     /**
      * Returns the ID of proposed instance.
      * 
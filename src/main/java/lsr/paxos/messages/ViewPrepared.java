@@ -3,17 +3,58 @@ package lsr.paxos.messages;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
-
+/**
+ * Sent by the leader once its view is prepared, in multi-leader mode. Gives
+ * the assignment of the instances of the view to the replicas proposing them:
+ * instances from <code>start</code> on are owned round-robin by
+ * <code>owners</code>, the lower ones by the leader.
+ *
+ * @see lsr.paxos.InstanceOwnership
+ */
 public class ViewPrepared extends Message {
     private static final long serialVersionUID = 1L;
-    
+    private final int start;
+    private final int[] owners;
+
     public ViewPrepared(DataInputStream input) throws IOException {
         super(input);
+        start = input.readInt();
+        owners = new int[input.readInt()];
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = input.readInt();
+        }
+    }
+
+    public ViewPrepared(ByteBuffer bb) {
+        super(bb);
+        start = bb.getInt();
+        owners = new int[bb.getInt()];
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = bb.getInt();
+        }
     }
-    
-    public ViewPrepared(int view) {
+
+    /**
+     * @param view - the view prepared
+     * @param start - the first instance assigned round-robin to the owners
+     * @param owners - the ids of the replicas proposing, in increasing order
+     */
+    public ViewPrepared(int view, int start, int[] owners) {
         super(view);
+        this.start = start;
+        this.owners = owners;
+    }
+
+    /** The first instance assigned round-robin to the owners */
+    public int getStart() {
+        return start;
+    }
+
+    /** The ids of the replicas proposing in the view, in increasing order */
+    public int[] getOwners() {
+        return owners;
     }
 
     @Override
@@ -21,9 +62,22 @@ public class ViewPrepared extends Message {
         return MessageType.ViewPrepared;
     }
 
+    public int byteSize() {
+        return super.byteSize() + 4 + 4 + 4 * owners.length;
+    }
+
+    public String toString() {
+        return "ViewPrepared(" + super.toString() + ", start: " + start + ", owners: " +
+               Arrays.toString(owners) + ")";
+    }
+
     @Override
     protected void write(ByteBuffer bb) {
-        // Empty, nothing to write
+        bb.putInt(start);
+        bb.putInt(owners.length);
+        for (int owner : owners) {
+            bb.putInt(owner);
+        }
     }
 
 }
@@ -4,6 +4,7 @@ import java.util.BitSet;
 import java.util.logging.Logger;
 
 import lsr.common.PID;
+import lsr.common.PooledBuffer;
 import lsr.common.ProcessDescriptor;
 import lsr.paxos.messages.Message;
 import lsr.paxos.messages.MessageFactory;
@@ -38,18 +39,20 @@ public class GenericNetwork extends Network {
             dests.clear(pDesc.localId);
         }
 
-        // serialize message to discover its size
-        byte[] data = message.toByteArray();
-
-        // send message using UDP or TCP
-        if (data.length < pDesc.maxUdpPacketSize) {
+        // send message using UDP or TCP, each network adds its own header
+        if (message.byteSize() < pDesc.maxUdpPacketSize) {
             // packet small enough to send using UDP
+            PooledBuffer data = udpNetwork.encode(message);
             udpNetwork.send(data, dests);
+            data.release();
         } else {
             // big packet so send using TCP
+            PooledBuffer data = tcpNetwork.encode(message);
+            SendQueue.Lane lane = SendQueue.Lane.of(message.getType());
             for (int i = dests.nextSetBit(0); i >= 0; i = dests.nextSetBit(i + 1)) {
-                tcpNetwork.send(data, i);
+                tcpNetwork.send(data, i, lane);
             }
+            data.release();
         }
 
         fireSentMessage(message, destinations);
@@ -71,7 +74,7 @@ public class GenericNetwork extends Network {
     private final static Logger _logger = Logger.getLogger(GenericNetwork.class.getCanonicalName());
 
     @Override
-    public boolean send(byte[] message, int destination) {
+    protected boolean send(PooledBuffer message, int destination) {
         throw new UnsupportedOperationException();
     }
 }
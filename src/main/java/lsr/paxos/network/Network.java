@@ -1,5 +1,6 @@
 package lsr.paxos.network;
 
+import java.nio.ByteBuffer;
 import java.util.BitSet;
 import java.util.Collections;
 import java.util.EnumMap;
@@ -8,6 +9,8 @@ import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
+import lsr.common.BufferPool;
+import lsr.common.PooledBuffer;
 import lsr.common.ProcessDescriptor;
 import lsr.paxos.messages.Message;
 import lsr.paxos.messages.MessageType;
@@ -19,6 +22,12 @@ import lsr.paxos.messages.MessageType;
  * 
  */
 public abstract class Network {
+    /**
+     * Largest message accepted from the stream networks. A larger or negative
+     * size means the stream is corrupt, and the connection is closed.
+     */
+    static final int MAX_MESSAGE_SIZE = Integer.getInteger("jpaxos.network.maxMessageSize",
+            256 * 1024 * 1024);
 
     // // // Public interface - send, send to all and add / remove listeners //
     // // //
@@ -40,9 +49,18 @@ public abstract class Network {
         ALL.set(0, N, true);
     }
     
-    
-    public abstract boolean send(byte[] message, int destination); 
-    
+
+    /**
+     * Sends a serialized message to the process with specified id. The caller
+     * keeps its reference to the buffer, implementations that queue the buffer
+     * must retain it.
+     *
+     * @param message - the message, serialized by {@link #encode(Message)}
+     * @param destination - the id of replica to send message to
+     * @return true if message was sent or queued
+     */
+    protected abstract boolean send(PooledBuffer message, int destination);
+
     /**
      * Sends the message to process with specified id.
      * 
@@ -61,7 +79,9 @@ public abstract class Network {
         if (destination == localId) {
             fireReceiveMessage(message, localId);
         } else {
-            send(message.toByteArray(), destination);
+            PooledBuffer buffer = encode(message);
+            send(buffer, destination);
+            buffer.release();
         }
     }
     
@@ -114,6 +134,43 @@ public abstract class Network {
 
     // // // Protected part - for implementing the subclasses // // //
 
+    /**
+     * Buffers for the serialized messages, shared by all networks. The largest
+     * pooled buffers fit a full batch.
+     */
+    protected static final BufferPool bufferPool = new BufferPool(
+            ProcessDescriptor.DEFAULT_BATCH_SIZE + 1024, 1024 * 1024);
+
+    /**
+     * Serializes the message into a buffer from the pool, in the format read
+     * by <code>MessageFactory</code>. The buffer is ready to be read and the
+     * caller owns one reference to it.
+     *
+     * Subclasses may override it to add a header to the message.
+     */
+    protected PooledBuffer encode(Message message) {
+        PooledBuffer buffer = bufferPool.acquire(message.byteSize());
+        ByteBuffer bb = buffer.getBuffer();
+        message.writeTo(bb);
+        assert !bb.hasRemaining() : "Wrong message size: " + message;
+        bb.flip();
+        return buffer;
+    }
+
+    /**
+     * Same as {@link #encode(Message)}, with a 4-byte header before the
+     * message.
+     */
+    protected final PooledBuffer encodeWithHeader(Message message, int header) {
+        PooledBuffer buffer = bufferPool.acquire(4 + message.byteSize());
+        ByteBuffer bb = buffer.getBuffer();
+        bb.putInt(header);
+        message.writeTo(bb);
+        assert !bb.hasRemaining() : "Wrong message size: " + message;
+        bb.flip();
+        return buffer;
+    }
+
     /**
      * For each message type, keeps a list of it's listeners.
      * 
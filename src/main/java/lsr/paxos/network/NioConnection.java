@@ -0,0 +1,369 @@
+package lsr.paxos.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import lsr.common.PID;
+import lsr.common.PooledBuffer;
+import lsr.common.ProcessDescriptor;
+import lsr.common.nio.ConnectHandler;
+import lsr.common.nio.ReadWriteHandler;
+import lsr.common.nio.SelectorThread;
+import lsr.paxos.messages.Message;
+import lsr.paxos.messages.MessageFactory;
+import lsr.paxos.statistics.Gauge;
+import lsr.paxos.statistics.MetricsRegistry;
+
+/**
+ * Connection to other replica handled by the selector thread of
+ * {@link NioNetwork}. As in {@link TcpConnection}, the replica with the lower
+ * id waits for the connection and the other one connects, sending its id
+ * first. Messages are framed the same way, preceded by their size.
+ * <p>
+ * Any thread may call {@link #send(PooledBuffer)}, which only queues the
+ * buffer. The selector thread then writes all the queued messages with a
+ * single gathering write, so a burst of small messages (eg., accepts of
+ * several instances) costs one system call instead of one per message. The
+ * selector is woken up at most once per burst.
+ * <p>
+ * All the other methods are called only by the selector thread.
+ */
+final class NioConnection implements ReadWriteHandler, ConnectHandler {
+    /** Maximum number of messages written by a single gathering write */
+    private static final int MAX_GATHER = 64;
+    /** Initial size of the receive buffer, grows to fit the largest message */
+    private static final int RECEIVE_BUFFER_SIZE = 128 * 1024;
+
+    private final NioNetwork network;
+    private final PID replica;
+    /** true if connection should be started by this replica */
+    private final boolean active;
+    private final SelectorThread selectorThread;
+
+    private SocketChannel channel;
+    private volatile boolean connected = false;
+
+    private final ConcurrentLinkedQueue<PooledBuffer> sendQueue = new ConcurrentLinkedQueue<PooledBuffer>();
+    /** ConcurrentLinkedQueue.size() is linear */
+    private final AtomicInteger sendQueueSize = new AtomicInteger();
+    /** true if a flush task is waiting to run in the selector thread */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flushScheduled.set(false);
+            flush();
+        }
+    };
+
+    /**
+     * Messages being written, taken from the send queue. The first
+     * <code>writeCount</code> entries are used, the first one may be
+     * partially written.
+     */
+    private final PooledBuffer[] writeBuffers = new PooledBuffer[MAX_GATHER];
+    private final ByteBuffer[] writeViews = new ByteBuffer[MAX_GATHER];
+    private int writeCount = 0;
+
+    /** Kept in write mode between reads */
+    private ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+
+    private int dropped = 0;
+
+    NioConnection(NioNetwork network, PID replica, boolean active, SelectorThread selectorThread) {
+        this.network = network;
+        this.replica = replica;
+        this.active = active;
+        this.selectorThread = selectorThread;
+
+        logger.info("Creating connection: " + replica + " - " + active);
+
+        MetricsRegistry.getInstance().registerGauge(
+                "network.sendQueue." + replica.getId(), new Gauge() {
+                    public long getValue() {
+                        return sendQueueSize.get();
+                    }
+                });
+    }
+
+    /** Starts connecting to the replica if this is an active connection */
+    void start() {
+        if (active) {
+            selectorThread.beginInvoke(new Runnable() {
+                public void run() {
+                    connect();
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues the message to be sent. The buffer is retained until it is
+     * written to the socket, the caller keeps its own reference. The message
+     * is dropped if the connection is not established.
+     *
+     * @param message - serialized message to send
+     * @return true if the message was queued
+     */
+    boolean send(PooledBuffer message) {
+        if (!connected) {
+            if (dropped % 1024 == 0) {
+                logger.warning("Dropping message, not connected. To: " + replica.getId() + ". " +
+                               dropped);
+            }
+            dropped++;
+            return false;
+        }
+        sendQueue.offer(message.retain());
+        sendQueueSize.incrementAndGet();
+        if (flushScheduled.compareAndSet(false, true)) {
+            selectorThread.beginInvokeAndWakeup(flushTask);
+        }
+        return true;
+    }
+
+    /**
+     * Uses the channel accepted by {@link NioNetwork} for this passive
+     * connection. The replica id was already read from it.
+     */
+    void setChannel(SocketChannel channel) {
+        assert !active : "Accepted connection from " + replica.getId() + " which is passive";
+        close();
+        this.channel = channel;
+        try {
+            selectorThread.registerChannel(channel, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error registering connection from " + replica.getId(), e);
+            close();
+            return;
+        }
+        connected = true;
+        logger.info("Tcp connected " + replica.getId());
+    }
+
+    /** Starts a non-blocking connect to the replica */
+    private void connect() {
+        try {
+            channel = SocketChannel.open();
+            NioNetwork.configureSocket(channel.socket());
+            channel.configureBlocking(false);
+            logger.info("Connecting to: " + replica);
+            boolean finished = channel.connect(new InetSocketAddress(replica.getHostname(),
+                    replica.getReplicaPort()));
+            selectorThread.registerChannel(channel, finished ? 0 : SelectionKey.OP_CONNECT, this);
+            if (finished) {
+                handleConnect();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error connecting to " + replica, e);
+            close();
+        }
+    }
+
+    public void handleConnect() {
+        try {
+            channel.finishConnect();
+
+            ByteBuffer localId = ByteBuffer.allocate(4);
+            localId.putInt(ProcessDescriptor.getInstance().localId);
+            localId.flip();
+            // The send buffer of a new socket is empty
+            channel.write(localId);
+            if (localId.hasRemaining()) {
+                throw new IOException("Could not write the replica id");
+            }
+        } catch (IOException e) {
+            logger.warning("TCP connection with replica " + replica.getId() + " failed: " +
+                           e.getMessage());
+            close();
+            return;
+        }
+        selectorThread.addChannelInterest(channel, SelectionKey.OP_READ);
+        connected = true;
+        logger.info("Tcp connected " + replica.getId());
+    }
+
+    public void handleWrite() {
+        flush();
+    }
+
+    /**
+     * Writes the queued messages until the queue is empty or the socket buffer
+     * is full. In the later case, the rest is written once the channel is
+     * writable again.
+     */
+    private void flush() {
+        if (!connected) {
+            discardQueued();
+            return;
+        }
+        try {
+            while (true) {
+                while (writeCount < MAX_GATHER) {
+                    PooledBuffer buffer = sendQueue.poll();
+                    if (buffer == null) {
+                        break;
+                    }
+                    sendQueueSize.decrementAndGet();
+                    writeBuffers[writeCount] = buffer;
+                    writeViews[writeCount] = buffer.duplicate();
+                    writeCount++;
+                }
+                if (writeCount == 0) {
+                    return;
+                }
+
+                channel.write(writeViews, 0, writeCount);
+
+                int written = 0;
+                while (written < writeCount && !writeViews[written].hasRemaining()) {
+                    writeBuffers[written].release();
+                    written++;
+                }
+                shiftWritten(written);
+                if (writeCount > 0) {
+                    // Socket buffer full, wait until the channel is writable
+                    selectorThread.addChannelInterest(channel, SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error sending message to " + replica.getId(), e);
+            close();
+        }
+    }
+
+    /** Removes the first <code>written</code> messages from the write arrays */
+    private void shiftWritten(int written) {
+        if (written == 0) {
+            return;
+        }
+        int left = writeCount - written;
+        System.arraycopy(writeBuffers, written, writeBuffers, 0, left);
+        System.arraycopy(writeViews, written, writeViews, 0, left);
+        for (int i = left; i < writeCount; i++) {
+            writeBuffers[i] = null;
+            writeViews[i] = null;
+        }
+        writeCount = left;
+    }
+
+    /**
+     * Reads everything available from the socket, and delivers all the
+     * complete messages.
+     */
+    public void handleRead() {
+        try {
+            int read = channel.read(receiveBuffer);
+            if (read < 0) {
+                throw new EOFException("Connection closed by " + replica.getId());
+            }
+            receiveBuffer.flip();
+            int required = parseMessages();
+            receiveBuffer.compact();
+            if (required > receiveBuffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(Integer.highestOneBit(required) << 1);
+                receiveBuffer.flip();
+                larger.put(receiveBuffer);
+                receiveBuffer = larger;
+            }
+        } catch (Exception e) {
+            // end of stream or problem with socket occurred so close
+            // connection and try to establish it again
+            logger.log(Level.SEVERE, "Error reading message", e);
+            close();
+            return;
+        }
+        selectorThread.addChannelInterest(channel, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Parses and delivers the complete messages in the receive buffer, which
+     * must be in read mode.
+     *
+     * @return the number of bytes needed to parse the next message
+     */
+    private int parseMessages() throws IOException {
+        while (receiveBuffer.remaining() >= 4) {
+            int start = receiveBuffer.position();
+            int size = receiveBuffer.getInt(start);
+            if (size < 0 || size > Network.MAX_MESSAGE_SIZE) {
+                throw new IOException("Invalid message size: " + size);
+            }
+            if (receiveBuffer.remaining() < 4 + size) {
+                return 4 + size;
+            }
+
+            // Parse from the receive buffer, restricted to the message
+            int limit = receiveBuffer.limit();
+            int end = start + 4 + size;
+            receiveBuffer.position(start + 4);
+            receiveBuffer.limit(end);
+            Message message = MessageFactory.create(receiveBuffer);
+            if (receiveBuffer.position() != end) {
+                throw new IOException("Message size mismatch. Expected: " + size + ", read: " +
+                                      (size - (end - receiveBuffer.position())));
+            }
+            receiveBuffer.limit(limit);
+
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Received [" + replica.getId() + "] " + message + " size: " +
+                            message.byteSize());
+            }
+            network.fireReceiveMessage(message, replica.getId());
+        }
+        return 4;
+    }
+
+    /**
+     * Closes the connection and discards the messages not sent yet. An active
+     * connection reconnects after <code>tcpReconnectTimeout</code>.
+     */
+    private void close() {
+        connected = false;
+        if (channel != null) {
+            logger.info("Closing connection to " + replica.getId());
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warning("Error closing socket: " + e.getMessage());
+            }
+            channel = null;
+            receiveBuffer.clear();
+            for (int i = 0; i < writeCount; i++) {
+                writeBuffers[i].release();
+                writeBuffers[i] = null;
+                writeViews[i] = null;
+            }
+            writeCount = 0;
+            discardQueued();
+
+            if (active) {
+                long timeout = ProcessDescriptor.getInstance().tcpReconnectTimeout;
+                selectorThread.scheduleInvoke(new Runnable() {
+                    public void run() {
+                        connect();
+                    }
+                }, timeout);
+            }
+        }
+    }
+
+    private void discardQueued() {
+        PooledBuffer buffer;
+        while ((buffer = sendQueue.poll()) != null) {
+            sendQueueSize.decrementAndGet();
+            buffer.release();
+        }
+    }
+
+    private final static Logger logger = Logger.getLogger(NioConnection.class.getCanonicalName());
+}
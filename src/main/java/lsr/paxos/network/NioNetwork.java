@@ -0,0 +1,208 @@
+package lsr.paxos.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.BitSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import lsr.common.PooledBuffer;
+import lsr.common.nio.AcceptHandler;
+import lsr.common.nio.ReadWriteHandler;
+import lsr.common.nio.SelectorThread;
+import lsr.paxos.messages.Message;
+
+/**
+ * TCP network handling all the connections to the other replicas with a single
+ * selector thread, instead of the two threads per connection used by
+ * {@link TcpNetwork}. The wire format is the same as <code>TcpNetwork</code>.
+ *
+ * @see NioConnection
+ */
+public class NioNetwork extends Network implements AcceptHandler {
+    private final NioConnection[] connections;
+    private final ServerSocketChannel serverChannel;
+    private final SelectorThread selectorThread;
+    private boolean started = false;
+
+    /**
+     * Creates new network for handling connections with other replicas.
+     *
+     * @throws IOException if opening server socket fails
+     */
+    public NioNetwork() throws IOException {
+        this.selectorThread = new SelectorThread("ReplicaIO", p.localId);
+        this.connections = new NioConnection[p.numReplicas];
+        for (int i = 0; i < connections.length; i++) {
+            if (i != p.localId) {
+                connections[i] = new NioConnection(this, p.config.getProcess(i), i > p.localId,
+                        selectorThread);
+            }
+        }
+
+        logger.info("Opening port: " + p.getLocalProcess().getReplicaPort());
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReceiveBufferSize(256 * 1024);
+        serverChannel.socket().bind(
+                new InetSocketAddress((InetAddress) null, p.getLocalProcess().getReplicaPort()));
+    }
+
+    @Override
+    public void start() {
+        if (!started) {
+            selectorThread.scheduleRegisterChannel(serverChannel, SelectionKey.OP_ACCEPT, this);
+            for (NioConnection connection : connections) {
+                if (connection != null) {
+                    connection.start();
+                }
+            }
+            selectorThread.start();
+            started = true;
+        }
+    }
+
+    /**
+     * Queues binary data to be sent to specified destination.
+     *
+     * @param message - binary data to send
+     * @param destination - id of replica to send data to
+     * @return true if message was queued; false if not connected
+     */
+    protected boolean send(PooledBuffer message, int destination) {
+        assert destination != p.localId;
+        return connections[destination].send(message);
+    }
+
+    /**
+     * Serializes the message preceded by its size, so that the receiver can
+     * read the whole message before parsing it.
+     */
+    @Override
+    protected PooledBuffer encode(Message message) {
+        return encodeWithHeader(message, message.byteSize());
+    }
+
+    @Override
+    public void sendMessage(Message message, BitSet destinations) {
+        assert !destinations.isEmpty() : "Sending a message to no one";
+
+        // Serialized once, the buffer is shared by all the connections
+        PooledBuffer buffer = encode(message);
+        for (int i = destinations.nextSetBit(0); i >= 0; i = destinations.nextSetBit(i + 1)) {
+            if (i == p.localId) {
+                // do not send message to self (just fire event)
+                fireReceiveMessage(message, p.localId);
+            } else {
+                send(buffer, i);
+            }
+        }
+        buffer.release();
+
+        // Not really sent, only queued for sending,
+        // but it's good enough for the notification
+        fireSentMessage(message, destinations);
+    }
+
+    /**
+     * Accepts a connection from other replica. The connection is handed to
+     * the corresponding <code>NioConnection</code> once the replica id is
+     * read.
+     */
+    public void handleAccept() {
+        SocketChannel channel;
+        try {
+            channel = serverChannel.accept();
+        } catch (IOException e) {
+            // TODO: probably too many open files exception occurred;
+            // should we open server socket again or just wait and ignore
+            // this exception?
+            throw new RuntimeException(e);
+        }
+        selectorThread.addChannelInterest(serverChannel, SelectionKey.OP_ACCEPT);
+        if (channel == null) {
+            return;
+        }
+
+        logger.info("Received connection from " + channel.socket().getRemoteSocketAddress());
+        try {
+            configureSocket(channel.socket());
+            selectorThread.registerChannel(channel, SelectionKey.OP_READ,
+                    new HandshakeHandler(channel));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Initialization of accepted connection failed.", e);
+            closeQuietly(channel);
+        }
+    }
+
+    /** Sets the options common to accepted and active sockets */
+    static void configureSocket(Socket socket) throws IOException {
+        socket.setReceiveBufferSize(TcpConnection.TCP_BUFFER_SIZE);
+        socket.setSendBufferSize(TcpConnection.TCP_BUFFER_SIZE);
+        socket.setTcpNoDelay(true);
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Reads the id of the remote replica, the first 4 bytes sent on an
+     * accepted connection.
+     */
+    private final class HandshakeHandler implements ReadWriteHandler {
+        private final SocketChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(4);
+
+        HandshakeHandler(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public void handleRead() {
+            try {
+                if (channel.read(header) < 0) {
+                    logger.warning("Connection closed before sending the replica id");
+                    closeQuietly(channel);
+                    return;
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Initialization of accepted connection failed.", e);
+                closeQuietly(channel);
+                return;
+            }
+            if (header.hasRemaining()) {
+                selectorThread.addChannelInterest(channel, SelectionKey.OP_READ);
+                return;
+            }
+
+            header.flip();
+            int replicaId = header.getInt();
+            if (replicaId < 0 || replicaId >= p.numReplicas) {
+                logger.warning("Remote host id is out of range: " + replicaId);
+                closeQuietly(channel);
+                return;
+            }
+            if (replicaId >= p.localId) {
+                logger.warning("Unexpected connection from replica " + replicaId +
+                               ", only replicas with lower id connect");
+                closeQuietly(channel);
+                return;
+            }
+            connections[replicaId].setChannel(channel);
+        }
+
+        public void handleWrite() {
+            throw new AssertionError("Not interested in writing");
+        }
+    }
+
+    private final static Logger logger = Logger.getLogger(NioNetwork.class.getCanonicalName());
+}
@@ -0,0 +1,163 @@
+package lsr.paxos.network;
+
+import java.util.ArrayDeque;
+
+import lsr.common.PooledBuffer;
+import lsr.paxos.messages.MessageType;
+
+/**
+ * Queue of the messages waiting to be sent to one replica, split in lanes by
+ * the kind of traffic. Messages are taken from the control lane first, then
+ * from the data lane, and from the bulk lane when the other two are empty.
+ * While bulk messages wait, one of them is taken after every
+ * {@link #BULK_SHARE} messages of the other lanes, so that a busy replica
+ * still makes progress with the catch-up. Within a lane the order is
+ * preserved.
+ * <p>
+ * {@link #offer} never blocks. The control and bulk lanes are bounded by a
+ * number of bytes, a message that does not fit in its lane is rejected and has
+ * to be retransmitted by the protocol, like a message lost by the network. A
+ * lane always accepts a message when empty, so a message larger than the lane
+ * can still be sent.
+ * <p>
+ * The data lane never rejects a message: a forwarded client batch is sent only
+ * once over a working connection, and losing it would stall the execution on
+ * all the replicas. Its bound is only a threshold past which the lane spills,
+ * the data producers being already limited by the window of the proposer and
+ * by the flow control of the clients.
+ * <p>
+ * This way a large catch-up response cannot delay the consensus messages
+ * queued after it, and a slow replica cannot block the thread sending to it.
+ * All methods are thread-safe.
+ */
+final class SendQueue {
+    enum Lane {
+        /** Small messages of the protocol: Prepare, Accept, Alive, ... */
+        CONTROL,
+        /** Client requests: Propose, ForwardClientBatch and its acks */
+        DATA,
+        /** Recovery traffic: CatchUpQuery, CatchUpResponse, CatchUpSnapshot */
+        BULK;
+
+        static Lane of(MessageType type) {
+            switch (type) {
+                case Propose:
+                case ForwardedClientRequest:
+                case AckForwardedRequest:
+                    return DATA;
+                case CatchUpQuery:
+                case CatchUpResponse:
+                case CatchUpSnapshot:
+                    return BULK;
+                default:
+                    return CONTROL;
+            }
+        }
+    }
+
+    /**
+     * Number of control and data messages taken in a row before a waiting bulk
+     * message is taken
+     */
+    static final int BULK_SHARE = 8;
+
+    private final LaneQueue[] lanes;
+    private int size = 0;
+    /** Control and data messages taken since the last bulk message */
+    private int sinceBulk = 0;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param maxBytes - the maximum number of bytes in each lane, in the order
+     *            of {@link Lane}
+     */
+    SendQueue(long... maxBytes) {
+        assert maxBytes.length == Lane.values().length;
+        lanes = new LaneQueue[maxBytes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new LaneQueue(maxBytes[i]);
+        }
+    }
+
+    /**
+     * Adds the message to its lane, if there is space. Messages of the data
+     * lane are always added.
+     *
+     * @return true if the message was queued
+     */
+    synchronized boolean offer(PooledBuffer message, Lane lane) {
+        LaneQueue queue = lanes[lane.ordinal()];
+        if (lane != Lane.DATA && !queue.messages.isEmpty() &&
+            queue.bytes + message.size() > queue.maxBytes) {
+            return false;
+        }
+        queue.messages.addLast(message);
+        queue.bytes += message.size();
+        size++;
+        if (size == 1) {
+            notify();
+        }
+        return true;
+    }
+
+    /**
+     * Removes the next message to send, waiting until there is one.
+     */
+    synchronized PooledBuffer take() throws InterruptedException {
+        while (size == 0) {
+            wait();
+        }
+        return poll();
+    }
+
+    /**
+     * Removes the next message to send.
+     *
+     * @return the message, or null if the queue is empty
+     */
+    synchronized PooledBuffer poll() {
+        LaneQueue bulk = lanes[Lane.BULK.ordinal()];
+        if (sinceBulk >= BULK_SHARE && !bulk.messages.isEmpty()) {
+            return pollLane(bulk);
+        }
+        for (LaneQueue queue : lanes) {
+            if (!queue.messages.isEmpty()) {
+                return pollLane(queue);
+            }
+        }
+        return null;
+    }
+
+    private PooledBuffer pollLane(LaneQueue queue) {
+        PooledBuffer message = queue.messages.pollFirst();
+        queue.bytes -= message.size();
+        size--;
+        if (queue == lanes[Lane.BULK.ordinal()] || lanes[Lane.BULK.ordinal()].messages.isEmpty()) {
+            sinceBulk = 0;
+        } else {
+            sinceBulk++;
+        }
+        return message;
+    }
+
+    /** The number of messages queued in all the lanes */
+    synchronized int size() {
+        return size;
+    }
+
+    /** The number of bytes queued in the lane */
+    synchronized long bytes(Lane lane) {
+        return lanes[lane.ordinal()].bytes;
+    }
+
+    private static final class LaneQueue {
+        final long maxBytes;
+        final ArrayDeque<PooledBuffer> messages = new ArrayDeque<PooledBuffer>();
+        long bytes = 0;
+
+        LaneQueue(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+    }
+}
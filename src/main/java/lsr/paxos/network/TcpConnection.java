@@ -1,24 +1,24 @@
 package lsr.paxos.network;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import lsr.common.KillOnExceptionHandler;
 import lsr.common.PID;
+import lsr.common.PooledBuffer;
 import lsr.common.ProcessDescriptor;
 import lsr.paxos.messages.Message;
 import lsr.paxos.messages.MessageFactory;
-import lsr.paxos.statistics.QueueMonitor;
+import lsr.paxos.statistics.Counter;
+import lsr.paxos.statistics.Gauge;
+import lsr.paxos.statistics.MetricsRegistry;
 
 /**
  * This class is responsible for handling stable TCP connection to other
@@ -30,14 +30,21 @@ import lsr.paxos.statistics.QueueMonitor;
  * Every time new message is received from this connection, it is deserialized,
  * and then all registered network listeners in related <code>TcpNetwork</code>
  * are notified about it.
+ * <p>
+ * Messages are sent from the pooled buffers they were serialized into,
+ * directly through the <code>SocketChannel</code> of the socket, so the sockets
+ * must be created from channels. Only the sender thread writes to the channel.
+ * <p>
+ * Every message is preceded by its size (see {@link TcpNetwork#encode}). The
+ * receiver thread reads the stream in large chunks into a buffer, and parses
+ * the messages in place once they are complete.
  * 
  * @see TcpNetwork
  */
 public class TcpConnection {
     public static final int TCP_BUFFER_SIZE = 4* 1024 * 1024;
     private Socket socket;
-    private DataInputStream input;
-    private OutputStream output;
+    private SocketChannel channel;
     private final PID replica;
     private volatile boolean connected = false;
     /** true if connection should be started by this replica; */
@@ -47,7 +54,22 @@ public class TcpConnection {
     private final Thread senderThread;
     private final Thread receiverThread;
 
-    private final ArrayBlockingQueue<byte[]> sendQueue = new ArrayBlockingQueue<byte[]>(64);
+    /** Initial size of the receive buffer, grows to fit the largest message */
+    private static final int RECEIVE_BUFFER_SIZE = 128 * 1024;
+    /** Only used by the receiver thread. Kept in read mode between reads */
+    private ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+
+    /** Maximum number of bytes queued in each lane, in the order of SendQueue.Lane */
+    private static final long[] LANE_SIZES = {1024 * 1024, 8 * 1024 * 1024, 16 * 1024 * 1024};
+    private final SendQueue sendQueue = new SendQueue(LANE_SIZES);
+    /** Maximum number of messages written by a single gathering write */
+    private static final int MAX_GATHER = 64;
+
+    /** Number of writes, and of messages written. Their ratio is the messages per write */
+    private final Counter flushes;
+    private final Counter flushedMessages;
+    /** Messages dropped because their lane was full */
+    private final Counter droppedMessages;
 
     /**
      * Creates a new TCP connection to specified replica.
@@ -68,6 +90,28 @@ public class TcpConnection {
         this.senderThread = new Thread(new Sender(), "ReplicaIOSnd-" + this.replica.getId());
         receiverThread.setUncaughtExceptionHandler(new KillOnExceptionHandler());
         senderThread.setUncaughtExceptionHandler(new KillOnExceptionHandler());
+
+        MetricsRegistry.getInstance().registerGauge(
+                "network.sendQueue." + this.replica.getId(), new Gauge() {
+                    public long getValue() {
+                        return sendQueue.size();
+                    }
+                });
+        this.flushes = MetricsRegistry.getInstance().counter(
+                "network.flushes." + this.replica.getId());
+        this.flushedMessages = MetricsRegistry.getInstance().counter(
+                "network.flushedMessages." + this.replica.getId());
+        this.droppedMessages = MetricsRegistry.getInstance().counter(
+                "network.droppedMessages." + this.replica.getId());
+        for (final SendQueue.Lane lane : SendQueue.Lane.values()) {
+            MetricsRegistry.getInstance().registerGauge(
+                    "network.sendQueueBytes." + this.replica.getId() + "." +
+                            lane.name().toLowerCase(), new Gauge() {
+                        public long getValue() {
+                            return sendQueue.bytes(lane);
+                        }
+                    });
+        }
     }
 
     /**
@@ -78,30 +122,55 @@ public class TcpConnection {
         senderThread.start();
     }
 
-    final class Sender implements Runnable {        
+    /**
+     * Writes the queued messages to the socket, in the order given by their
+     * lanes. All the messages waiting in the queue, up to
+     * <code>tcpFlushBytes</code>, are written together with
+     * a single gathering write. Under low load this is one message per write;
+     * under load the number of system calls drops with the number of queued
+     * messages.
+     */
+    final class Sender implements Runnable {
+        private final PooledBuffer[] messages = new PooledBuffer[MAX_GATHER];
+        private final ByteBuffer[] views = new ByteBuffer[MAX_GATHER];
+
         public void run() {
-            QueueMonitor.getInstance().registerQueue(senderThread.getName(), sendQueue);
             logger.info("Sender thread started.");
+            int flushBytes = ProcessDescriptor.getInstance().tcpFlushBytes;
             try {
                 while (true) {
-//                    if (logger.isLoggable(Level.FINE)) {
-//                    if (sendQueue.size() > 64) {
-//                        logger.warning("Queue size: " + sendQueue.size());
-//                    }
-//                    }                                            
-                    byte[] msg = sendQueue.take();
-                    // ignore message if not connected
+                    messages[0] = sendQueue.take();
+                    int count = 1;
+                    long bytes = messages[0].size();
+                    while (count < messages.length && bytes < flushBytes) {
+                        PooledBuffer msg = sendQueue.poll();
+                        if (msg == null) {
+                            break;
+                        }
+                        messages[count++] = msg;
+                        bytes += msg.size();
+                    }
+
+                    // ignore messages if not connected
                     // Works without memory barrier because connected is volatile
-                    if (!connected) {
-                        continue;
+                    if (connected) {
+                        for (int i = 0; i < count; i++) {
+                            views[i] = messages[i].duplicate();
+                        }
+                        try {
+                            writeFully(channel, views, count, bytes);
+                            flushes.inc();
+                            flushedMessages.add(count);
+                        } catch (IOException e) {
+                            logger.log(Level.WARNING, "Error sending message", e);
+                            close();
+                        }
                     }
 
-                    try {
-                        output.write(msg);
-                        output.flush();
-                    } catch (IOException e) {
-                        logger.log(Level.WARNING, "Error sending message", e);
-                        close();
+                    for (int i = 0; i < count; i++) {
+                        messages[i].release();
+                        messages[i] = null;
+                        views[i] = null;
                     }
                 }
             } catch (InterruptedException e) {
@@ -126,6 +195,9 @@ public class TcpConnection {
                     break;
                 }
                 logger.info("Tcp connected " + replica.getId());
+                // Discard what was left from the previous connection
+                receiveBuffer.clear();
+                receiveBuffer.flip();
 
                 while (true) {
                     if (Thread.interrupted()) {
@@ -135,7 +207,7 @@ public class TcpConnection {
                     }
 
                     try {
-                        Message message = MessageFactory.create(input);
+                        Message message = readMessage();
                         if (logger.isLoggable(Level.FINE)) {
                             logger.fine("Received [" + replica.getId() + "] " + message +
                                     " size: " + message.byteSize());
@@ -156,47 +228,33 @@ public class TcpConnection {
     private int dropped = 0;
     private int droppedFull = 0;
     /**
-     * Sends specified binary packet using underlying TCP connection.
+     * Queues specified binary packet to be sent using underlying TCP
+     * connection. Never blocks: the message is dropped if not connected, or if
+     * its lane is full and it is not a data message, and it is up to the
+     * protocol to retransmit it. The buffer is retained until it is written to
+     * the socket, the caller keeps its own reference.
      * 
-     * @param message - binary packet to send
-     * @return true if sending message was successful
+     * @param message - serialized message to send
+     * @param lane - the lane of the message, see {@link SendQueue}
+     * @return true if the message was queued
      */
-    public boolean send(byte[] message) {
-        try {
-            //            boolean queueFull = false;
-            //            if (sendQueue.remainingCapacity() < 2) {
-            //                logger.warning("Send queue remaining: " + sendQueue.remainingCapacity() + " to replica: " + senderThread.getName());
-            //                queueFull = true;
-            //            }
-            //            sendQueue.put(message);
-            if (connected)  {
-                //            boolean enqueued = sendQueue.offer(message);
-                long start = System.currentTimeMillis();
-                sendQueue.put(message);
-                int delta = (int) (System.currentTimeMillis() - start);
-                if (delta > 10) {
-                    logger.warning("Wait time: " + delta);
-                }
-//                boolean enqueued = sendQueue.offer(message, 10, TimeUnit.MILLISECONDS);
-//                if (!enqueued) {
-//                    if (droppedFull % 16 == 0) {
-//                        logger.warning("Dropping message, send queue full. To: " + replica.getId() + ". " + droppedFull);
-//                    }
-//                    droppedFull++;
-//                }
-            } else {            
-                if (dropped % 1024 == 0) {
-                    logger.warning("Dropping message, not connected. To: " + replica.getId() + ". " + dropped);
-                }
-                dropped++;
+    public boolean send(PooledBuffer message, SendQueue.Lane lane) {
+        if (!connected) {
+            if (dropped % 1024 == 0) {
+                logger.warning("Dropping message, not connected. To: " + replica.getId() + ". " + dropped);
+            }
+            dropped++;
+            return false;
+        }
+        if (!sendQueue.offer(message.retain(), lane)) {
+            message.release();
+            droppedMessages.inc();
+            if (droppedFull % 1024 == 0) {
+                logger.warning("Dropping message, " + lane + " lane full. To: " + replica.getId() +
+                               ". " + droppedFull);
             }
-            //            sendQueue.put((message);
-            //            if (queueFull) {
-            //                logger.warning("Enqueued");
-            //            }
-        } catch (InterruptedException e) {
-            logger.warning("Thread interrupted. Terminating.");
-            Thread.currentThread().interrupt();
+            droppedFull++;
+            return false;
         }
         return true;
     }
@@ -207,20 +265,17 @@ public class TcpConnection {
      * old connection and then set-up new one.
      * 
      * @param socket - active socket connection
-     * @param input - input stream from this socket
-     * @param output - output stream from this socket
      */
-    public synchronized void setConnection(Socket socket, DataInputStream input,
-                                           DataOutputStream output) {
+    public synchronized void setConnection(Socket socket) {
         assert socket.isConnected() : "Invalid socket state";
+        assert socket.getChannel() != null : "Socket not created from a channel";
 
         // first close old connection
         close();
 
         // initialize new connection
         this.socket = socket;
-        this.input = input;
-        this.output = output;
+        this.channel = socket.getChannel();
         connected = true;
 
         // if main thread wait for this connection notify it
@@ -257,7 +312,8 @@ public class TcpConnection {
             // this is active connection so we try to connect to host
             while (true) {
                 try {
-                    socket = new Socket();
+                    channel = SocketChannel.open();
+                    socket = channel.socket();
                     socket.setReceiveBufferSize(TCP_BUFFER_SIZE);
                     socket.setSendBufferSize(TCP_BUFFER_SIZE);
                     logger.warning("RcvdBuffer: " + socket.getReceiveBufferSize() + 
@@ -270,23 +326,15 @@ public class TcpConnection {
                                 replica.getReplicaPort()));
                     } catch (ConnectException e) {
                         logger.warning("TCP connection with replica " + replica.getId() + " failed");
+                        socket.close();
                         Thread.sleep(ProcessDescriptor.getInstance().tcpReconnectTimeout);
                         continue;
                     }
 
-                    input = new DataInputStream(
-                            new BufferedInputStream(socket.getInputStream()));
-//                    output = new DataOutputStream(
-//                            new BufferedOutputStream(socket.getOutputStream()));
-//                    output.writeInt(ProcessDescriptor.getInstance().localId);
-                    
-                    output = socket.getOutputStream();
-                    int v = ProcessDescriptor.getInstance().localId;
-                    output.write((v >>> 24) & 0xFF);
-                    output.write((v >>> 16) & 0xFF);
-                    output.write((v >>>  8) & 0xFF);
-                    output.write((v >>>  0) & 0xFF);
-                    output.flush();
+                    ByteBuffer localId = ByteBuffer.allocate(4);
+                    localId.putInt(ProcessDescriptor.getInstance().localId);
+                    localId.flip();
+                    writeFully(channel, localId);
                     // connection established
                     break;
                 } catch (IOException e) {
@@ -316,6 +364,75 @@ public class TcpConnection {
         }
     }
 
+    /**
+     * Reads the next message from the socket. Called only by the receiver
+     * thread.
+     */
+    private Message readMessage() throws IOException {
+        fill(4);
+        int size = receiveBuffer.getInt();
+        if (size < 0 || size > Network.MAX_MESSAGE_SIZE) {
+            throw new IOException("Invalid message size: " + size);
+        }
+        fill(size);
+
+        // Parse from the receive buffer, restricted to the message
+        int limit = receiveBuffer.limit();
+        int end = receiveBuffer.position() + size;
+        receiveBuffer.limit(end);
+        Message message = MessageFactory.create(receiveBuffer);
+        if (receiveBuffer.position() != end) {
+            throw new IOException("Message size mismatch. Expected: " + size + ", read: " +
+                                  (size - (end - receiveBuffer.position())));
+        }
+        receiveBuffer.limit(limit);
+        return message;
+    }
+
+    /**
+     * Reads from the socket until at least <code>size</code> bytes are
+     * available in the receive buffer. The buffer is enlarged if it is too
+     * small.
+     */
+    private void fill(int size) throws IOException {
+        if (receiveBuffer.remaining() >= size) {
+            return;
+        }
+        if (size > receiveBuffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Integer.highestOneBit(size) << 1);
+            larger.put(receiveBuffer);
+            receiveBuffer = larger;
+        } else {
+            receiveBuffer.compact();
+        }
+        while (receiveBuffer.position() < size) {
+            if (channel.read(receiveBuffer) < 0) {
+                throw new EOFException("Connection closed by " + replica.getId());
+            }
+        }
+        receiveBuffer.flip();
+    }
+
+    /**
+     * Writes the first <code>count</code> buffers, holding <code>bytes</code>
+     * bytes in total, to a blocking channel.
+     */
+    private static void writeFully(SocketChannel channel, ByteBuffer[] buffers, int count,
+                                   long bytes) throws IOException {
+        while (bytes > 0) {
+            bytes -= channel.write(buffers, 0, count);
+        }
+    }
+
+    /**
+     * Writes all the remaining bytes of the buffer to a blocking channel.
+     */
+    private static void writeFully(SocketChannel channel, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            channel.write(bb);
+        }
+    }
+
     /**
      * Closes the connection.
      */
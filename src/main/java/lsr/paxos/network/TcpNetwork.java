@@ -1,19 +1,19 @@
 package lsr.paxos.network;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.util.BitSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import lsr.common.KillOnExceptionHandler;
+import lsr.common.PooledBuffer;
 import lsr.paxos.messages.Message;
 
 public class TcpNetwork extends Network implements Runnable {
@@ -30,7 +30,8 @@ public class TcpNetwork extends Network implements Runnable {
     public TcpNetwork() throws IOException {        
         this.connections = new TcpConnection[p.numReplicas];
         logger.info("Opening port: " + p.getLocalProcess().getReplicaPort());
-        this.server = new ServerSocket();
+        // Accepted sockets must have a channel, see TcpConnection
+        this.server = ServerSocketChannel.open().socket();
         server.setReceiveBufferSize(256 * 1024);
         server.bind(new InetSocketAddress((InetAddress) null, p.getLocalProcess().getReplicaPort()));
 
@@ -60,30 +61,66 @@ public class TcpNetwork extends Network implements Runnable {
     }
 
     /**
-     * Sends binary data to specified destination.
+     * Sends binary data to specified destination, in the data lane.
      * 
      * @param message - binary data to send
      * @param destination - id of replica to send data to
-     * @return true if message was sent; false if some error occurred
+     * @return true if message was queued; false if it was dropped
      */
-    public boolean send(byte[] message, int destination) {
+    protected boolean send(PooledBuffer message, int destination) {
+        return send(message, destination, SendQueue.Lane.DATA);
+    }
+
+    /**
+     * Sends binary data to specified destination, in the lane of the message
+     * type.
+     * 
+     * @param message - binary data to send
+     * @param destination - id of replica to send data to
+     * @param lane - the lane for the message, see {@link SendQueue}
+     * @return true if message was queued; false if it was dropped
+     */
+    boolean send(PooledBuffer message, int destination, SendQueue.Lane lane) {
         assert destination != p.localId;
-        return connections[destination].send(message);
+        return connections[destination].send(message, lane);
+    }
+
+    @Override
+    public void sendMessage(Message message, int destination) {
+        if (destination == p.localId) {
+            fireReceiveMessage(message, p.localId);
+        } else {
+            PooledBuffer buffer = encode(message);
+            send(buffer, destination, SendQueue.Lane.of(message.getType()));
+            buffer.release();
+        }
+    }
+
+    /**
+     * Serializes the message preceded by its size, so that the receiver can
+     * read the whole message before parsing it.
+     */
+    @Override
+    protected PooledBuffer encode(Message message) {
+        return encodeWithHeader(message, message.byteSize());
     }
 
     @Override
     public void sendMessage(Message message, BitSet destinations) {
         assert !destinations.isEmpty() : "Sending a message to no one";
 
-        byte[] bytes = message.toByteArray();
+        // Serialized once, the buffer is shared by all the connections
+        PooledBuffer buffer = encode(message);
+        SendQueue.Lane lane = SendQueue.Lane.of(message.getType());
         for (int i = destinations.nextSetBit(0); i >= 0; i = destinations.nextSetBit(i + 1)) {
             if (i == p.localId) {
                 // do not send message to self (just fire event)
                 fireReceiveMessage(message, p.localId);
             } else {
-                send(bytes, i);
+                send(buffer, i, lane);
             }
         }
+        buffer.release();
 
         // Not really sent, only queued for sending,
         // but it's good enough for the notification
@@ -118,11 +155,16 @@ public class TcpNetwork extends Network implements Runnable {
             socket.setTcpNoDelay(true);
             logger.warning("Passive. RcvdBuffer: " + socket.getReceiveBufferSize() + 
                     ", SendBuffer: " + socket.getSendBufferSize());
-            DataInputStream input = new DataInputStream(
-                    new BufferedInputStream(socket.getInputStream()));
-            DataOutputStream output = new DataOutputStream(
-                    new BufferedOutputStream(socket.getOutputStream()));
-            int replicaId = input.readInt();
+            // Read directly from the channel, without buffering, as the
+            // following bytes are read by the connection
+            ByteBuffer header = ByteBuffer.allocate(4);
+            while (header.hasRemaining()) {
+                if (socket.getChannel().read(header) < 0) {
+                    throw new EOFException("Connection closed before sending the replica id");
+                }
+            }
+            header.flip();
+            int replicaId = header.getInt();
 
             if (replicaId < 0 || replicaId >= p.numReplicas) {
                 logger.warning("Remoce host id is out of range: " + replicaId);
@@ -135,7 +177,7 @@ public class TcpNetwork extends Network implements Runnable {
                 return;
             }
 
-            connections[replicaId].setConnection(socket, input, output);
+            connections[replicaId].setConnection(socket);
         } catch (IOException e) {
             logger.log(Level.WARNING, "Initialization of accepted connection failed.", e);
             try {
@@ -1,14 +1,10 @@
 package lsr.paxos.network;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.BitSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -16,6 +12,7 @@ import java.util.logging.Logger;
 import lsr.common.Configuration;
 import lsr.common.KillOnExceptionHandler;
 import lsr.common.PID;
+import lsr.common.PooledBuffer;
 import lsr.paxos.messages.Message;
 import lsr.paxos.messages.MessageFactory;
 
@@ -24,18 +21,21 @@ import lsr.paxos.messages.MessageFactory;
  * other replicas and receiving messages. This class didn't provide any
  * guarantee that sent message will be received by target. It is possible that
  * some messages will be lost.
- * 
+ * <p>
+ * Every packet starts with the id of the sender, followed by the serialized
+ * message. The packets are sent directly from the pooled buffers through a
+ * <code>DatagramChannel</code>.
  */
 public class UdpNetwork extends Network {
-    private final DatagramSocket datagramSocket;
+    private final DatagramChannel datagramChannel;
     private final Thread readThread;
     private final SocketAddress[] addresses;
     private boolean started = false;
 
     /**
-     * @throws SocketException
+     * @throws IOException if the socket cannot be opened
      */
-    public UdpNetwork() throws SocketException {
+    public UdpNetwork() throws IOException {
         addresses = new SocketAddress[p.numReplicas];
         for (int i = 0; i < addresses.length; i++) {
             PID pid = p.config.getProcess(i);
@@ -44,10 +44,11 @@ public class UdpNetwork extends Network {
 
         int localPort = p.getLocalProcess().getReplicaPort();
         logger.info("Opening port: " + localPort);
-        datagramSocket = new DatagramSocket(localPort);
+        datagramChannel = DatagramChannel.open();
+        datagramChannel.socket().bind(new InetSocketAddress(localPort));
 
-        datagramSocket.setReceiveBufferSize(Configuration.UDP_RECEIVE_BUFFER_SIZE);
-        datagramSocket.setSendBufferSize(Configuration.UDP_SEND_BUFFER_SIZE);
+        datagramChannel.socket().setReceiveBufferSize(Configuration.UDP_RECEIVE_BUFFER_SIZE);
+        datagramChannel.socket().setSendBufferSize(Configuration.UDP_SEND_BUFFER_SIZE);
 
         readThread = new Thread(new SocketReader(), "UdpReader");
         readThread.setUncaughtExceptionHandler(new KillOnExceptionHandler());
@@ -69,29 +70,23 @@ public class UdpNetwork extends Network {
         public void run() {
             logger.info(Thread.currentThread().getName() +
                     " thread started. Waiting for UDP messages");
+            // Reused for all packets, the messages are parsed in place
+            ByteBuffer buffer = ByteBuffer.allocateDirect(p.maxUdpPacketSize + 4);
             try {
                 while (true) {
-                    // byte[] buffer = new byte[Config.MAX_UDP_PACKET_SIZE + 4];
-                    byte[] buffer = new byte[p.maxUdpPacketSize + 4];
                     // Read message and enqueue it for processing.
-                    DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
-                    datagramSocket.receive(dp);
-
-                    ByteArrayInputStream bais = new ByteArrayInputStream(dp.getData(),
-                            dp.getOffset(), dp.getLength());
-                    DataInputStream dis = new DataInputStream(bais);
-
-                    int sender = dis.readInt();
-                    byte[] data = new byte[dp.getLength() - 4];
-                    dis.read(data);
+                    buffer.clear();
+                    datagramChannel.receive(buffer);
+                    buffer.flip();
 
+                    int sender = buffer.getInt();
                     try {
-                        Message message = MessageFactory.readByteArray(data);
+                        Message message = MessageFactory.create(buffer);
                         if (logger.isLoggable(Level.FINE)) {
                             logger.fine("Received from " + sender + ":" + message);
                         }
                         fireReceiveMessage(message, sender);
-                    } catch (ClassNotFoundException e) {
+                    } catch (RuntimeException e) {
                         logger.log(Level.WARNING,"Error deserializing message", e);
                     }
                 }
@@ -101,10 +96,18 @@ public class UdpNetwork extends Network {
         }
     }
 
+    /**
+     * Serializes the message preceded by the id of the local replica.
+     */
+    @Override
+    protected PooledBuffer encode(Message message) {
+        return encodeWithHeader(message, p.localId);
+    }
+
     /**
      * Blocks until there is space in the OS to buffer the message. Normally it
-     * should return immediately. Specified byte array should be serialized
-     * message (without any header like id of replica).
+     * should return immediately. Specified buffer should be serialized by
+     * {@link #encode(Message)}, with the id of this replica as header.
      * <p>
      * The sentMessage event in listeners is not fired after calling this
      * method.
@@ -113,42 +116,43 @@ public class UdpNetwork extends Network {
      * @param destinations - the id's of replicas to send message to
      * @throws IOException if an I/O error occurs
      */
-    void send(byte[] message, BitSet destinations) {
-        // prepare packet to send
-        byte[] data = new byte[message.length + 4];
-        ByteBuffer.wrap(data).putInt(p.localId).put(message);
-        DatagramPacket dp = new DatagramPacket(data, data.length);
-
+    void send(PooledBuffer message, BitSet destinations) {
+        ByteBuffer data = message.duplicate();
         for (int i = destinations.nextSetBit(0); i >= 0; i = destinations.nextSetBit(i + 1)) {
-            dp.setSocketAddress(addresses[i]);
+            data.rewind();
             try {
-                datagramSocket.send(dp);
+                datagramChannel.send(data, addresses[i]);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
     }
 
+    @Override
+    protected boolean send(PooledBuffer message, int destination) {
+        try {
+            datagramChannel.send(message.duplicate(), addresses[destination]);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return true;
+    }
+
     @Override
     public void sendMessage(Message message, BitSet destinations) {
         assert message != null && !destinations.isEmpty() : "Null message or no destinations";
         message.setSentTime();
-        byte[] messageBytes = message.toByteArray();
-        // if (messageBytes.length > Config.MAX_UDP_PACKET_SIZE + 4)
-        if (messageBytes.length > p.maxUdpPacketSize + 4) {
+        int size = message.byteSize();
+        if (size > p.maxUdpPacketSize + 4) {
             throw new RuntimeException("Data packet too big. Size: " +
-                    messageBytes.length + ", limit: " + p.maxUdpPacketSize +
+                    size + ", limit: " + p.maxUdpPacketSize +
                     ". Packet not sent.");
         }
-        
-        send(messageBytes, destinations);
-    }
 
+        PooledBuffer buffer = encode(message);
+        send(buffer, destinations);
+        buffer.release();
+    }
 
     private final static Logger logger = Logger.getLogger(UdpNetwork.class.getCanonicalName());
-
-    @Override
-    public boolean send(byte[] message, int destination) {
-        throw new UnsupportedOperationException();
-    }
 }
\ No newline at end of file
@@ -32,7 +32,8 @@ public class FullSSRecovery extends RecoveryAlgorithm {
         ProcessDescriptor descriptor = ProcessDescriptor.getInstance();
 
         logger.info("Reading log from: " + logPath);
-        FullSSDiscWriter writer = new FullSSDiscWriter(logPath);
+        FullSSDiscWriter writer = new FullSSDiscWriter(logPath, descriptor.groupCommit,
+                descriptor.logSegmentSize);
         Storage storage = new SynchronousStorage(writer);
         if (storage.getView() % descriptor.numReplicas == descriptor.localId) {
             storage.setView(storage.getView() + 1);
@@ -0,0 +1,102 @@
+package lsr.paxos.replica;
+
+import lsr.paxos.replica.ClientBatchStore.ClientBatchInfo;
+
+/**
+ * The batches of one replica kept by the {@link ClientBatchStore}, in a
+ * circular array indexed by sequence number. The sequence numbers of the
+ * batches of a replica are dense, so the batches held are the ones in
+ * <code>[first, end)</code>, where <code>first</code> follows the lower bound
+ * of the store. A slot is null for a batch not received yet (batches may
+ * arrive out of order, or be known from a decision before their contents).
+ * <p>
+ * Lookups by sequence number are a single array read, without boxing. The
+ * array doubles when full. Not thread-safe.
+ */
+final class BatchInfoRing {
+    private static final int INITIAL_CAPACITY = 512;
+
+    /** Capacity is a power of two, the slot of sn is sn & mask */
+    private ClientBatchInfo[] slots = new ClientBatchInfo[INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+    /** Lowest sequence number that may be held */
+    private int first;
+    /** Highest sequence number held + 1 */
+    private int end;
+    /** Number of non-null slots */
+    private int size = 0;
+
+    /**
+     * @param first - the lowest sequence number of the batches to be held
+     */
+    BatchInfoRing(int first) {
+        this.first = first;
+        this.end = first;
+    }
+
+    /** Returns the batch with given sequence number, or null if not held */
+    ClientBatchInfo get(int sn) {
+        if (sn < first || sn >= end) {
+            return null;
+        }
+        return slots[sn & mask];
+    }
+
+    /** Stores the batch; the sequence number must not be below the first one */
+    void put(int sn, ClientBatchInfo bInfo) {
+        if (sn < first) {
+            throw new IllegalArgumentException("Batch " + sn + " is below " + first);
+        }
+        while (sn - first >= slots.length) {
+            grow();
+        }
+        if (slots[sn & mask] == null) {
+            size++;
+        }
+        slots[sn & mask] = bInfo;
+        end = Math.max(end, sn + 1);
+    }
+
+    /** Removes the batch with the first sequence number, held or not */
+    void removeFirst() {
+        if (first == end) {
+            end++;
+        } else if (slots[first & mask] != null) {
+            slots[first & mask] = null;
+            size--;
+        }
+        first++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void grow() {
+        ClientBatchInfo[] larger = new ClientBatchInfo[slots.length * 2];
+        int newMask = larger.length - 1;
+        for (int sn = first; sn < end; sn++) {
+            larger[sn & newMask] = slots[sn & mask];
+        }
+        slots = larger;
+        mask = newMask;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int sn = first; sn < end; sn++) {
+            ClientBatchInfo bInfo = slots[sn & mask];
+            if (bInfo != null) {
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(bInfo);
+            }
+        }
+        return sb.append("]").toString();
+    }
+}
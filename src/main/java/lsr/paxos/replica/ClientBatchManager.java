@@ -5,6 +5,7 @@ import java.util.BitSet;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -26,7 +27,8 @@ import lsr.paxos.network.MessageHandler;
 import lsr.paxos.network.Network;
 import lsr.paxos.replica.ClientBatchStore.BatchState;
 import lsr.paxos.replica.ClientBatchStore.ClientBatchInfo;
-import lsr.paxos.statistics.QueueMonitor;
+import lsr.paxos.statistics.Gauge;
+import lsr.paxos.statistics.MetricsRegistry;
 import lsr.paxos.storage.ConsensusInstance;
 import lsr.paxos.storage.Storage;
 
@@ -43,12 +45,16 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
     /** Temporary storage for the instances that finished out of order. */
     private final Map<Integer, Deque<ClientBatch>> decidedWaitingExecution =
             new HashMap<Integer, Deque<ClientBatch>>();
+    /** Size of the map above, published for the metrics exporter */
+    private volatile int waitingExecution = 0;
     private int nextInstance;
 
     private final Network network;
     private final Paxos paxos;
     private final Replica replica;
     private final int localId;
+    /* Notified when the local batches are decided */
+    private volatile ClientRequestBatcher requestBatcher;
 
     // Ack management
     private volatile long lastAckSentTS = -1;
@@ -63,6 +69,22 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
     // and more than ackTimeout has elapsed since the last ack was sent.  
     private final AckTrigger ackTrigger;
 
+    /*
+     * Reliable dissemination of the batches. The network drops the messages
+     * sent to a replica while the connection to it is down, so a forwarded
+     * batch may be lost. The replica then acknowledges only the batches before
+     * it (see ClientBatchStore.markReceived), the local batches it did not
+     * acknowledge are forwarded again, and it acknowledges again the batches
+     * it receives twice, in case the ack was lost instead.
+     */
+    /* 
+     * Highest local batch acknowledged by each replica when the retransmission 
+     * task last ran. Accessed only by the CliBatchManager thread. 
+     */
+    private final int[] lastAckSeen;
+    /* Set when a batch is received again, the sender may have missed the ack */
+    private volatile boolean ackRequested = false;
+
     //    private final PerformanceLogger pLogger;
 
     public ClientBatchManager(Paxos paxos, Replica replica){
@@ -90,9 +112,21 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
         logger.warning(CLIENT_BATCH_ACK_TIMEOUT + " = " + ackTimeout);
         Network.addMessageListener(MessageType.ForwardedClientRequest, this);
         Network.addMessageListener(MessageType.AckForwardedRequest, this);
-        QueueMonitor.getInstance().registerQueue("ReqManExec", decidedWaitingExecution.entrySet());
+        MetricsRegistry.getInstance().registerGauge("clientBatchManager.waitingExecution",
+                new Gauge() {
+                    public long getValue() {
+                        return waitingExecution;
+                    }
+                });
+        this.lastAckSeen = new int[pDesc.numReplicas];
         cliBManagerDispatcher.start();
         ackTrigger.start();
+        cliBManagerDispatcher.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                resendUnacknowledged();
+            }
+        }, pDesc.retransmitTimeout, pDesc.retransmitTimeout, TimeUnit.MILLISECONDS);
     }
 
     /* Handler for forwarded requests */
@@ -124,10 +158,33 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
         // Ignore
     }
 
+    /**
+     * Returns the next instance to execute. Starts at the end of the log
+     * found on recovery.
+     */
+    int getNextInstance() {
+        return nextInstance;
+    }
+
     public ClientBatchStore getBatchStore() {
         return batchStore;
     }
 
+    void setRequestBatcher(ClientRequestBatcher requestBatcher) {
+        this.requestBatcher = requestBatcher;
+    }
+
+    /**
+     * Stops the adaptive batching from waiting for the local batches in flight.
+     * Called on a view change and when a snapshot is installed.
+     */
+    void resetLocalBatchesInFlight() {
+        ClientRequestBatcher batcher = requestBatcher;
+        if (batcher != null) {
+            batcher.resetInFlight();
+        }
+    }
+
     /** 
      * Received a forwarded request.
      *  
@@ -140,10 +197,19 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
         assert cliBManagerDispatcher.amIInDispatcher() :
             "Not in ClientBatchManager dispatcher. " + Thread.currentThread().getName();
 
-        ClientRequest[] requests = fReq.requests;
+        ClientRequest[] requests = fReq.getRequests();
         ClientBatchID rid = fReq.rid;
 
         ClientBatchInfo bInfo = batchStore.getRequestInfo(rid);
+        if (rid.sn < batchStore.getLowerBound(rid.replicaID) || (bInfo != null && bInfo.batch != null)) {
+            // Retransmission of a batch already received, the ack was lost
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Ignoring batch already received: " + rid);
+            }
+            batchStore.markReceived(sender, fReq.rcvdUB);
+            ackRequested = true;
+            return;
+        }
         // Create a new entry if none exists
         if (bInfo == null) {
             bInfo = batchStore.newRequestInfo(rid, requests);
@@ -221,6 +287,34 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
     }
 
 
+    /**
+     * Forwards again the local batches that a replica stopped acknowledging
+     * since the previous run. A forwarded batch is lost if the connection to
+     * the replica is down, and the replica cannot acknowledge the batches
+     * after it until receiving it.
+     */
+    private void resendUnacknowledged() {
+        int next = batchStore.upper[localId];
+        for (int i = 0; i < lastAckSeen.length; i++) {
+            if (i == localId) {
+                continue;
+            }
+            int acked = batchStore.rcvdUB[i][localId];
+            if (acked + 1 < next && acked == lastAckSeen[i]) {
+                logger.warning("Replica " + i + " did not acknowledge batches " + (acked + 1) +
+                               " to " + (next - 1) + ". Forwarding them again");
+                for (int sn = acked + 1; sn < next; sn++) {
+                    ClientBatchInfo bInfo = batchStore.getRequestInfo(new ClientBatchID(localId, sn));
+                    if (bInfo != null && bInfo.batch != null) {
+                        network.sendMessage(new ForwardClientBatch(bInfo.bid, bInfo.batch,
+                                batchStore.rcvdUB[localId].clone()), i);
+                    }
+                }
+            }
+            lastAckSeen[i] = acked;
+        }
+    }
+
     private void executeRequests() {
         assert cliBManagerDispatcher.amIInDispatcher() : "Not in replica dispatcher. " + Thread.currentThread().getName();
 
@@ -256,7 +350,7 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
                             logger.info("Request missing, suspending execution. rid: " + bInfo.bid);
                         }
                         for (int i = 0; i < batchStore.requests.length; i++) {
-                            HashMap<Integer, ClientBatchInfo> m = batchStore.requests[i];
+                            BatchInfoRing m = batchStore.requests[i];
                             if (m.size() > 1024) {
                                 logger.warning(i + ": " + m.get(batchStore.lower[i]));
                             }
@@ -278,6 +372,7 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
             // Done with all the client batches in this instance  
             replica.instanceExecuted(nextInstance);
             decidedWaitingExecution.remove(nextInstance);
+            waitingExecution = decidedWaitingExecution.size();
             nextInstance++;
         }
     }
@@ -305,7 +400,10 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
         }
 
         // Update the batch store, mark all client batches inside this Paxos batch as decided.
-        for (ClientBatch cBatch : batch) {
+        // Batches ordered before are removed, so that they are not executed twice.
+        Iterator<ClientBatch> it = batch.iterator();
+        while (it.hasNext()) {
+            ClientBatch cBatch = it.next();
             ClientBatchID bid = cBatch.getBatchId();
 
             // NOP client batches should always be the only ClientBatch in a Paxos batch.
@@ -320,6 +418,7 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
             if (bid.sn < batchStore.getLowerBound(bid.replicaID)) {
                 if (logger.isLoggable(Level.INFO)) 
                     logger.info("Batch already decided (bInfo not found): " + bid);
+                it.remove();
                 continue;
             }
 
@@ -333,6 +432,7 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
                 // Already in the execution queue.
                 if (logger.isLoggable(Level.INFO))
                     logger.info("Batch already decided. Ignoring. " + bInfo);
+                it.remove();
                 continue;
             }
 
@@ -340,6 +440,9 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
             if (logger.isLoggable(Level.INFO)) {
                 logger.info("Decided: " + bInfo.toString());
             }
+            if (bid.replicaID == localId && requestBatcher != null) {
+                requestBatcher.onLocalBatchDecided();
+            }
 
             //            pLogger.logln(rid + "\t" + (System.currentTimeMillis()-rInfo.timeStamp));
 
@@ -352,11 +455,13 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
         }
         // Add the Paxos batch to the list of batches that have to be executed. Reorder buffer
         decidedWaitingExecution.put(instance, batch);
+        waitingExecution = decidedWaitingExecution.size();
         executeRequests();
         batchStore.pruneLogs();
     }
 
     public void stopProposing() {
+        resetLocalBatchesInFlight();
         cliBManagerDispatcher.submit(new Runnable() {
             @Override
             public void run() {
@@ -376,9 +481,15 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
      * This prepares the ClientBatchManager to start issuing proposals of 
      * batches ids to the Paxos layer.
      * 
+     * In multi-leader mode, a replica other than the leader cannot tell from
+     * its log which values the leader re-proposes, so it proposes again all
+     * its batches not decided. A batch decided twice is executed once.
+     * 
      * @param view
+     * @param sources the replicas whose batches are proposed by this process
      */
-    public void startProposing(final int view) {
+    public void startProposing(final int view, final BitSet sources) {
+        resetLocalBatchesInFlight();
         // Executed in the Protocol thread. Accesses the paxos log.
         final Set<ClientBatchID> decided = new HashSet<ClientBatchID>();
         final Set<ClientBatchID> known = new HashSet<ClientBatchID>();
@@ -388,7 +499,8 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
             logger.fine("FirstNotCommitted: " + storage.getFirstUncommitted() + ", max: " + storage.getLog().getNextId());
         }
 
-        for (int i = storage.getFirstUncommitted(); i < storage.getLog().getNextId(); i++) {            
+        boolean logKnown = !ProcessDescriptor.getInstance().multiLeader || paxos.isLeader();
+        for (int i = storage.getFirstUncommitted(); logKnown && i < storage.getLog().getNextId(); i++) {            
             ConsensusInstance ci = storage.getLog().getInstance(i);
             if (ci.getValue() != null) {
                 Deque<ClientBatch> reqs = Batcher.unpack(ci.getValue());
@@ -415,7 +527,7 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
         cliBManagerDispatcher.submit(new Runnable() {
             @Override
             public void run() {
-                batchStore.onViewChange(view, known, decided);                
+                batchStore.onViewChange(view, known, decided, sources);                
             }
         });
     }
@@ -487,7 +599,7 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
             allAcked &= (rcvdUpperBound[i] == lastAckedVector[i]);  
         }
 
-        if (allAcked) {
+        if (allAcked && !ackRequested) {
             // There is no need to send acks.
             return ackTimeout;
         }        
@@ -525,6 +637,7 @@ final public class ClientBatchManager implements MessageHandler, DecideCallback
      * @param ackVector
      */
     private void markAcknowledged(int[] ackVector) {
+        ackRequested = false;
         lastAckedVector  = ackVector;
         lastAckSentTS = System.currentTimeMillis();
     }
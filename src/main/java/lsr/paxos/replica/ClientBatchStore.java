@@ -1,8 +1,9 @@
 package lsr.paxos.replica;
 
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -10,19 +11,20 @@ import lsr.common.ClientBatch;
 import lsr.common.ClientRequest;
 import lsr.common.ProcessDescriptor;
 import lsr.paxos.Paxos;
-import lsr.paxos.statistics.QueueMonitor;
+import lsr.paxos.statistics.Gauge;
+import lsr.paxos.statistics.MetricsRegistry;
 
 public final class ClientBatchStore {
 
-    /** For each replica, keep a map with the request batches originating from that
-     * replica. The requests are kept in the map until they are executed and every 
-     * other replica has acknowledged it.
+    /** For each replica, keep a ring with the request batches originating from that
+     * replica, indexed by sequence number. The requests are kept in the ring until 
+     * they are executed and every other replica has acknowledged it.
      */ 
-    // TODO: if a replica fails or becomes unresponsive, the map can grow forever. 
+    // TODO: if a replica fails or becomes unresponsive, the ring can grow forever. 
     // Must prune log even in this case. The unresponsive replica has to recover from 
     // a snapshot of the service state instead of replaying the log.
-    public final HashMap<Integer,ClientBatchInfo>[] requests;
-    // For replica i, the map above stores batches with ids  between lower[i] and upper[i]. 
+    final BatchInfoRing[] requests;
+    // For replica i, the ring above stores batches with ids  between lower[i] and upper[i]. 
     // There may be gaps when batches are received out of order.  
     public final int[] lower;
     public final int[] upper;
@@ -32,6 +34,9 @@ public final class ClientBatchStore {
      */
     public final int[] firstNotProposed;
 
+    /** Size of the rings in requests, published for the metrics exporter */
+    private final AtomicIntegerArray sizes;
+
 
 
 
@@ -69,14 +74,26 @@ public final class ClientBatchStore {
      */
     private int viewPrepared = -1;
 
+    /** Replicas whose batches are proposed by this process while viewPrepared is set */
+    private BitSet batchSources;
+
     public ClientBatchStore() {
         this.n = ProcessDescriptor.getInstance().numReplicas;
         this.f = (n-1)/2;
         this.localId =  ProcessDescriptor.getInstance().localId;
-        this.requests = (HashMap<Integer, ClientBatchInfo>[]) new HashMap[n];
+        this.requests = new BatchInfoRing[n];
+        this.batchSources = new BitSet(n);
+        batchSources.set(0, n);
+        this.sizes = new AtomicIntegerArray(n);
         for (int i = 0; i < n; i++) {
-            requests[i] = new HashMap<Integer, ClientBatchInfo>(512);
-            QueueMonitor.getInstance().registerQueue("Replica-"+i+"-Forward", requests[i].values());
+            requests[i] = new BatchInfoRing(1);
+            final int replica = i;
+            MetricsRegistry.getInstance().registerGauge("clientBatchStore." + i + ".size",
+                    new Gauge() {
+                        public long getValue() {
+                            return sizes.get(replica);
+                        }
+                    });
         }
 
         this.lower = new int[n];
@@ -97,10 +114,24 @@ public final class ClientBatchStore {
         // lower than rcvdUB[r][p]. Therefore, the requests must be acknowledged sequentially.
         // However, it can receive an ack multiple times for the same request: by receiving the message
         // with the batch directly from the sender or by receiving an ack from another process. 
-        assert  rid.sn <= rcvdUB[r][rid.replicaID] + 1 : 
-            "FIFO order not preserved. Replica: " + r + ", HighestKnown: " + Arrays.toString(rcvdUB[rid.replicaID]) + ", next: " + rid.sn;
         int previous = rcvdUB[r][rid.replicaID];
-        rcvdUB[r][rid.replicaID] = Math.max(rcvdUB[r][rid.replicaID], rid.sn) ;
+        if (r == localId) {
+            // A batch may be lost if it was forwarded while the connection was down, the sender
+            // forwards it again. Acknowledge only up to the first batch missing, so that the
+            // ones after it are not taken as received by the other replicas.
+            int received = previous;
+            ClientBatchInfo next = requests[rid.replicaID].get(received + 1);
+            while (next != null && next.batch != null) {
+                received++;
+                next = requests[rid.replicaID].get(received + 1);
+            }
+            rcvdUB[r][rid.replicaID] = received;
+        } else {
+            assert  rid.sn <= rcvdUB[r][rid.replicaID] + 1 : 
+                "FIFO order not preserved. Replica: " + r + ", HighestKnown: " + Arrays.toString(rcvdUB[rid.replicaID]) + ", next: " + rid.sn;
+            rcvdUB[r][rid.replicaID] = Math.max(rcvdUB[r][rid.replicaID], rid.sn) ;
+        }
+        addAcks(rid.replicaID, previous, rcvdUB[r][rid.replicaID]);
         if (logger.isLoggable(Level.FINE)) {
             logger.fine("New SN. Replica " + r + ", previous:" + previous + ", new: " + rid.sn + ", All: " + Arrays.toString(rcvdUB[localId]));
         }
@@ -118,7 +149,27 @@ public final class ClientBatchStore {
             //            }
             // The leader receives both direct ACKs and the piggybacked updates, so it may 
             // increase
-            v[i] = Math.max(v[i], snUB[i]);
+            if (snUB[i] > v[i]) {
+                addAcks(i, v[i], snUB[i]);
+                v[i] = snUB[i];
+            }
+        }
+    }
+
+    /**
+     * Updates the ack count of the batches of replica <code>owner</code> that
+     * some replica acknowledged, ie, batches with sn in (previous, current].
+     * Batches not in the store get their count when they are added. 
+     */
+    private void addAcks(int owner, int previous, int current) {
+        BatchInfoRing m = requests[owner];
+        int from = Math.max(previous + 1, lower[owner]);
+        int to = Math.min(current, upper[owner] - 1);
+        for (int sn = from; sn <= to; sn++) {
+            ClientBatchInfo bInfo = m.get(sn);
+            if (bInfo != null) {
+                bInfo.acks++;
+            }
         }
     }
 
@@ -141,7 +192,11 @@ public final class ClientBatchStore {
         // For each replica, propose all batches of requests that are stable but 
         // were not yet proposed
         for (int i = 0; i < requests.length; i++) {
-            HashMap<Integer, ClientBatchInfo> m = requests[i];
+            if (!batchSources.get(i)) {
+                // Proposed by another replica, in multi-leader mode
+                continue;
+            }
+            BatchInfoRing m = requests[i];
             int sn = firstNotProposed[i];
             while (sn < upper[i]) {
                 ClientBatchInfo bInfo = m.get(sn);
@@ -211,15 +266,17 @@ public final class ClientBatchStore {
 //        StringBuilder sb = new StringBuilder("Log size: ");
 
         for (int i = 0; i < requests.length; i++) {
-            HashMap<Integer, ClientBatchInfo> m = requests[i];
+            BatchInfoRing m = requests[i];
 
             while (lower[i] < upper[i]) {
                 int sn = lower[i];
                 ClientBatchInfo rInfo = m.get(sn);
+                assert rInfo == null || rInfo.acks == rInfo.countAcks() : 
+                    "Ack count: " + rInfo.acks + ", " + rInfo;
                 // For tests with crashes only, limit size of log. Ugly hack.            
                 // if (rInfo != null && rInfo.state == BatchState.Executed) 
                 if (rInfo != null && rInfo.state == BatchState.Executed && rInfo.allAcked()) {
-                    m.remove(sn);
+                    m.removeFirst();
                 } else {
                     if (logger.isLoggable(Level.FINE)) {
                         logger.fine("Stopped prunning at " + sn + ":" + rInfo + ", batches waiting: " + m.size());
@@ -228,6 +285,7 @@ public final class ClientBatchStore {
                 }
                 lower[i]++;
             }
+            sizes.set(i, m.size());
             
             if (m.size() > 1000) {
                 logger.warning(i + ": BatchStoreSize: " + m.size() + ", Limits: " + limitsToString());
@@ -253,6 +311,20 @@ public final class ClientBatchStore {
      * @param decided The batch ids that were received during view change and are on the Decided state.
      */
     public void onViewChange(int view, Set<ClientBatchID> known, Set<ClientBatchID> decided) {
+        BitSet all = new BitSet(n);
+        all.set(0, n);
+        onViewChange(view, known, decided, all);
+    }
+
+    /**
+     * 
+     * @param view The new view.
+     * @param known The batch ids that will be proposed again by Paxos.
+     * @param decided The batch ids that were received during view change and are on the Decided state.
+     * @param sources The replicas whose batches are proposed by this process.
+     */
+    public void onViewChange(int view, Set<ClientBatchID> known, Set<ClientBatchID> decided,
+                             BitSet sources) {
         // Executed by the CliBatchManager thread
         if (logger.isLoggable(Level.INFO)) {
             logger.info("From Paxos log. Decided: " + decided + ", Known: " + known);
@@ -260,9 +332,13 @@ public final class ClientBatchStore {
         }
 
         for (int i = 0; i < requests.length; i++) {
-            HashMap<Integer, ClientBatchInfo> m = requests[i];
+            BatchInfoRing m = requests[i];
             //            StringBuffer sb = new StringBuffer(i+ " ");                        
-            for (ClientBatchInfo bInfo : m.values()) {
+            for (int sn = lower[i]; sn < upper[i]; sn++) {
+                ClientBatchInfo bInfo = m.get(sn);
+                if (bInfo == null) {
+                    continue;
+                }
                 //                sb.append(", " + bInfo);
                 if (logger.isLoggable(Level.FINEST))
                     logger.finest("Before: " + bInfo);
@@ -298,7 +374,7 @@ public final class ClientBatchStore {
 
         // Reset firstNotProposed
         for (int i = 0; i < requests.length; i++) {
-            HashMap<Integer, ClientBatchInfo> m = requests[i];
+            BatchInfoRing m = requests[i];
             int id = lower[i];
             while (id < upper[i]) {
                 ClientBatchInfo bInfo = m.get(id);
@@ -316,6 +392,7 @@ public final class ClientBatchStore {
         if (logger.isLoggable(Level.INFO))
             logger.info("After updating: " + limitsToString());
 
+        batchSources = sources;
         viewPrepared = view;
     }
 
@@ -325,15 +402,22 @@ public final class ClientBatchStore {
     }
 
     public void setRequestInfo(ClientBatchID rid, ClientBatchInfo rInfo) {
-        HashMap<Integer, ClientBatchInfo> m = requests[rid.replicaID];
-        assert !m.containsKey(rid.sn) : 
+        BatchInfoRing m = requests[rid.replicaID];
+        assert m.get(rid.sn) == null : 
             "Already contains request. Old: " + m.get(rid.sn) + ", Rcvd: " + rInfo;
         assert lower[rid.replicaID] <= rid.sn : 
             "Request was already deleted. Current lower: " + lower[rid.replicaID] + ", request: " + rid;
+        if (rid.sn < lower[rid.replicaID]) {
+            logger.warning("Request was already deleted. Current lower: " + lower[rid.replicaID] + ", request: " + rid);
+            return;
+        }
         if (logger.isLoggable(Level.FINE)) {
             logger.fine("Initializing: " + rInfo.bid);
         }
+        // From now on, kept up to date by markReceived 
+        rInfo.acks = rInfo.countAcks();
         m.put(rid.sn, rInfo);
+        sizes.set(rid.replicaID, m.size());
         // Since replicas use TCP to communicate among each other, the batches must be received in order.
         // NOTE: This may be violated in the case of failures, if the connection between replicas is interrupted.
         // In that case, a replica should have other indirect means of obtaining the missing batches,
@@ -349,7 +433,7 @@ public final class ClientBatchStore {
     }
 
     public boolean contains(ClientBatchID rid) {
-        return requests[rid.replicaID].containsKey(rid.sn);
+        return requests[rid.replicaID].get(rid.sn) != null;
     }
 
     public String limitsToString() {
@@ -364,7 +448,6 @@ public final class ClientBatchStore {
         for (int i = 0; i < requests.length; i++) {
             sb.append("[" + i + "] Size: " + requests[i].size());
             if (!requests[i].isEmpty()) {
-                //                sb.append(", Max: " + requests[i].lastKey() + " : " + requests[i]);
                 sb.append(": " + requests[i]);
             }
             sb.append("\n");
@@ -394,6 +477,11 @@ public final class ClientBatchStore {
         // As the replica thread only uses this variable for debugging, I'm not setting it to volatile 
         public BatchState state;
 
+        /** Number of replicas that have this batch, as countAcks(). Maintained 
+         * by the store while the batch is in it, so that checking if the batch is 
+         * stable does not scan rcvdUB. */
+        private int acks;
+
         ClientBatchInfo(ClientBatchID id, ClientRequest[] batch) {
             this.batch = batch;
             this.bid = id;
@@ -405,7 +493,7 @@ public final class ClientBatchStore {
         }
 
         public boolean allAcked() {
-            return countAcks() == n;
+            return acks == n;
         }
 
         public boolean hasRequest(int replica) {
@@ -431,7 +519,7 @@ public final class ClientBatchStore {
                 return true;
             }
 
-            return countAcks() > f;
+            return acks > f;
         }
 
         @Override
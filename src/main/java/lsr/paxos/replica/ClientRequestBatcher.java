@@ -8,7 +8,10 @@ import java.util.logging.Logger;
 
 import lsr.common.ClientRequest;
 import lsr.common.ProcessDescriptor;
-import lsr.paxos.statistics.QueueMonitor;
+import lsr.common.RequestId;
+import lsr.paxos.statistics.Gauge;
+import lsr.paxos.statistics.Meter;
+import lsr.paxos.statistics.MetricsRegistry;
 
 /**
  * This thread builds the batches with the requests received from the client and forwards
@@ -23,6 +26,15 @@ import lsr.paxos.statistics.QueueMonitor;
  * Selector-X (67388 3365) (194668  11240) 
  * ForwardingBatcher (95081 3810) (1210222  96749) 
  *  </pre> 
+ *  
+ *  With <code>replica.ForwardAdaptiveBatching</code>, batches are sent as in Nagle's
+ *  algorithm: a batch is sent as soon as it is started if no other local batch is 
+ *  waiting to be decided, and is otherwise filled until the previous batches are 
+ *  decided, it is full, or <code>replica.ForwardMaxBatchDelay</code> expires. So 
+ *  requests are not delayed under light load, and batches grow with the load.
+ *  
+ *  The requests of a <code>REQUEST_BATCH</code> from a client are enqueued as a unit 
+ *  and forwarded in the same batch, unless they exceed the maximum size by themselves.
  * 
  * @author Nuno Santos (LSR)
  */
@@ -39,12 +51,31 @@ public class ClientRequestBatcher implements Runnable {
     public final static String FORWARD_MAX_BATCH_DELAY = "replica.ForwardMaxBatchDelay";
     public final static int DEFAULT_FORWARD_MAX_BATCH_DELAY = 20;
     public final int forwardMaxBatchDelay;
+    private final long forwardMaxBatchDelayNanos;
+
+    public final static String FORWARD_ADAPTIVE_BATCHING = "replica.ForwardAdaptiveBatching";
+    public final static boolean DEFAULT_FORWARD_ADAPTIVE_BATCHING = false;
+    public final boolean forwardAdaptiveBatching;
+
+    /* Marker put in the queue to wake up the batcher when the last local batch in 
+     * flight is decided. Never forwarded. */
+    private final static ClientRequest[] FLUSH = new ClientRequest[] {
+            new ClientRequest(RequestId.NOP, new byte[0])};
+
+    /* Local batches sent and not yet decided. Only used with adaptive batching */
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+
+    /* Moving averages of the batches sent, exported as metrics. Weight of 1/16 */
+    private volatile double averageFillPercent = 0;
+    private volatile double averageDelayMicros = 0;
+    private final Meter batchesMeter = MetricsRegistry.getInstance().meter(
+            "clientRequestBatcher.batches");
 
 //    private final PerformanceLogger pLogger;
     /* Selector threads enqueue requests in this queue. The Batcher thread takes requests
      * from here to prepare batches.
      */
-    private final ArrayBlockingQueue<ClientRequest> cBatcherQueue = new ArrayBlockingQueue<ClientRequest>(128);
+    private final ArrayBlockingQueue<ClientRequest[]> cBatcherQueue = new ArrayBlockingQueue<ClientRequest[]>(128);
 
     /* Stores the requests that will make the next batch. We use two queues to minimize 
      * contention between the Selector threads and the Batcher thread, since they only
@@ -66,10 +97,34 @@ public class ClientRequestBatcher implements Runnable {
         this.batchManager = batchManager;
         this.forwardMaxBatchDelay = pd.config.getIntProperty(FORWARD_MAX_BATCH_DELAY, DEFAULT_FORWARD_MAX_BATCH_DELAY);
         this.forwardMaxBatchSize = pd.config.getIntProperty(FORWARD_MAX_BATCH_SIZE, DEFAULT_FORWARD_MAX_BATCH_SIZE);
+        this.forwardAdaptiveBatching = pd.config.getBooleanProperty(FORWARD_ADAPTIVE_BATCHING, 
+                DEFAULT_FORWARD_ADAPTIVE_BATCHING);
+        this.forwardMaxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(forwardMaxBatchDelay);
         logger.warning(FORWARD_MAX_BATCH_DELAY + "=" + forwardMaxBatchDelay);
         logger.warning(FORWARD_MAX_BATCH_SIZE + "=" + forwardMaxBatchSize);
+        logger.warning(FORWARD_ADAPTIVE_BATCHING + "=" + forwardAdaptiveBatching);
         this.batcherThread = new Thread(this, "CliReqBatcher");        
-        QueueMonitor.getInstance().registerQueue("CReqBatcher", cBatcherQueue);
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        registry.registerGauge("clientRequestBatcher.queue", new Gauge() {
+            public long getValue() {
+                return cBatcherQueue.size();
+            }
+        });
+        registry.registerGauge("clientRequestBatcher.fillPercent", new Gauge() {
+            public long getValue() {
+                return Math.round(averageFillPercent);
+            }
+        });
+        registry.registerGauge("clientRequestBatcher.delayMicros", new Gauge() {
+            public long getValue() {
+                return Math.round(averageDelayMicros);
+            }
+        });
+        registry.registerGauge("clientRequestBatcher.inFlight", new Gauge() {
+            public long getValue() {
+                return inFlight.get();
+            }
+        });
 //        pLogger = PerformanceLogger.getLogger("replica-"+ localId +"ClientBatches");
     }
 
@@ -79,7 +134,52 @@ public class ClientRequestBatcher implements Runnable {
 
     public void enqueueRequest(ClientRequest fReqMsg) throws InterruptedException {
         //            logger.fine("Enqueuing request: " + req);
-        cBatcherQueue.put(fReqMsg);
+        cBatcherQueue.put(new ClientRequest[] {fReqMsg});
+    }
+
+    /**
+     * Enqueues the requests received in a single command. They are forwarded
+     * in the same batch.
+     */
+    public void enqueueRequests(ClientRequest[] requests) throws InterruptedException {
+        cBatcherQueue.put(requests);
+    }
+
+    /**
+     * Called by the ClientBatchManager thread when a batch sent by this replica 
+     * is decided. 
+     */
+    void onLocalBatchDecided() {
+        if (!forwardAdaptiveBatching) {
+            return;
+        }
+        // Batches sent before a restart are not counted
+        int n;
+        do {
+            n = inFlight.get();
+            if (n == 0) {
+                return;
+            }
+        } while (!inFlight.compareAndSet(n, n - 1));
+        if (n == 1) {
+            // A partial batch may be waiting for the previous ones to be decided.
+            // If the queue is full, the batcher is not waiting anyway.
+            cBatcherQueue.offer(FLUSH);
+        }
+    }
+
+    /**
+     * Called when the local batches in flight may not all be reported as decided:
+     * those covered by an installed snapshot are not, and they may be ordered 
+     * late after a view change. The batcher then stops waiting for them.
+     */
+    void resetInFlight() {
+        if (!forwardAdaptiveBatching) {
+            return;
+        }
+        if (inFlight.getAndSet(0) > 0) {
+            cBatcherQueue.offer(FLUSH);
+        }
     }
 
     @Override
@@ -87,60 +187,78 @@ public class ClientRequestBatcher implements Runnable {
         long batchStart = -1;
 
         while (true) {
-            ClientRequest request;
+            ClientRequest[] requests;
             try {
                 // If there are no requests waiting to be batched, wait forever for the next request.
                 // Otherwise, wait for the remaining of the timeout
-                int timeToExpire = (sizeInBytes == 0) ? 
-                        Integer.MAX_VALUE :
-                            (int) (batchStart+forwardMaxBatchDelay - System.currentTimeMillis());
+                long timeToExpire = (sizeInBytes == 0) ? 
+                        Long.MAX_VALUE :
+                            batchStart + forwardMaxBatchDelayNanos - System.nanoTime();
                 //                    if (logger.isLoggable(Level.FINE)) {
                 //                        logger.fine("Waiting for " + timeToExpire);
                 //                    }
-                request = cBatcherQueue.poll(timeToExpire, TimeUnit.MILLISECONDS);
+                requests = cBatcherQueue.poll(timeToExpire, TimeUnit.NANOSECONDS);
             } catch (InterruptedException e) {
                 logger.warning("Thread interrupted. Quitting.");
                 return;
             }
 
-            if (request == null) {
+            if (requests == null) {
                 // Timeout expired
                 logger.fine("Timeout expired.");                    
-                sendBatch();
+                sendBatch(batchStart);
+            } else if (requests == FLUSH) {
+                // The previous local batches were decided
+                if (sizeInBytes > 0 && inFlight.get() == 0) {
+                    sendBatch(batchStart);
+                }
             } else {
-                // There is a new request to forward                    
-                if (sizeInBytes == 0){
-                    // Batch is empty. Add the new request unconditionally
+                // There are new requests to forward
+                int size = 0;
+                for (ClientRequest request : requests) {
+                    size += request.byteSize();
+                }
+                if (sizeInBytes > 0 && sizeInBytes + size > forwardMaxBatchSize) {
+                    logger.fine("Maximum client batch size exceeded.");
+                    // Adding these requests would exceed the maximum size. 
+                    // Send the batch and start a new batch with the current requests. 
+                    sendBatch(batchStart);
+                }
+                if (sizeInBytes == 0) {
                     // logger.fine("New batch.");
+                    batchStart = System.nanoTime();
+                }
+                for (ClientRequest request : requests) {
                     batch.add(request);
-                    sizeInBytes += request.byteSize();
-                    batchStart = System.currentTimeMillis();
-                    // A single request might exceed the maximum size.
-                    // If so, send the batch
-                    if (sizeInBytes > forwardMaxBatchSize) {
-                        logger.fine("Maximum client batch size exceeded.");
-                        sendBatch();
-                    }
-                } else {
-                    // Batch is not empty. 
-                    // logger.fine("Current batch size: " + sizeInBytes);
-                    if (sizeInBytes + request.byteSize() > forwardMaxBatchSize) {
-                        logger.fine("Maximum client batch size exceeded.");
-                        // Adding this request would exceed the maximum size. 
-                        // Send the batch and start a new batch with the current request. 
-                        sendBatch();
-                        batchStart = System.currentTimeMillis();
-                    }
-                    batch.add(request);
-                    sizeInBytes += request.byteSize();
+                }
+                sizeInBytes += size;
+                // The requests alone might exceed the maximum size.
+                // If so, send the batch
+                if (sizeInBytes > forwardMaxBatchSize) {
+                    logger.fine("Maximum client batch size exceeded.");
+                    sendBatch(batchStart);
+                }
+                // Nagle: send right away if nothing is in flight, once the queue is drained
+                if (forwardAdaptiveBatching && sizeInBytes > 0 && inFlight.get() == 0 && 
+                        cBatcherQueue.isEmpty()) {
+                    sendBatch(batchStart);
                 }
             }
         }
     }
 
-    private void sendBatch() {
+    private void sendBatch(long batchStart) {
         assert sizeInBytes > 0 : "Trying to send an empty batch.";
 
+        double fillPercent = Math.min(100, 100.0 * sizeInBytes / forwardMaxBatchSize);
+        double delayMicros = (System.nanoTime() - batchStart) / 1000.0;
+        averageFillPercent += (fillPercent - averageFillPercent) / 16;
+        averageDelayMicros += (delayMicros - averageDelayMicros) / 16;
+        batchesMeter.mark();
+        if (forwardAdaptiveBatching) {
+            inFlight.incrementAndGet();
+        }
+
         // The batch id is composed of (replicaId, localSeqNumber)
         final ClientBatchID bid = new ClientBatchID(localId, sequencer.getAndIncrement());
         // Transform the ArrayList into an array with the exact size.
@@ -1,12 +1,17 @@
 package lsr.paxos.replica;
 
 import lsr.common.*;
+import lsr.common.ClientCommand.CommandType;
 import lsr.common.ClientReply.Result;
 import lsr.common.nio.SelectorThread;
 import lsr.paxos.Paxos;
-import lsr.paxos.statistics.QueueMonitor;
+import lsr.paxos.statistics.Gauge;
+import lsr.paxos.statistics.Meter;
+import lsr.paxos.statistics.MetricsRegistry;
+import lsr.paxos.statistics.ReplicaStats;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
@@ -36,6 +41,8 @@ final public class ClientRequestManager {
      * block on pendingRequestSem.
      */    
     private static final int MAX_PENDING_REQUESTS = 1*1024;
+    private final Meter receivedMeter = MetricsRegistry.getInstance().meter("clientRequests.received");
+    private final Meter leaseReadsMeter = MetricsRegistry.getInstance().meter("clientRequests.leaseReads");
     private final Semaphore pendingRequestsSem = new Semaphore(MAX_PENDING_REQUESTS);
 
     /**
@@ -44,12 +51,21 @@ final public class ClientRequestManager {
      */
     private final Map<RequestId, NioClientProxy> pendingClientProxies =
             new ConcurrentHashMap<RequestId, NioClientProxy>((int)(MAX_PENDING_REQUESTS*1.5), (float) 0.75, 8);
+
+    /**
+     * Requests received in a REQUEST_BATCH but waiting ordering. request id ->
+     * the batch collecting the replies. Accessed by Replica and Selector threads.
+     */
+    private final Map<RequestId, PendingBatch> pendingBatches =
+            new ConcurrentHashMap<RequestId, PendingBatch>(256, (float) 0.75, 8);
     
     /**
      * Keeps the last reply for each client. Necessary for retransmissions.
      * Must be threadsafe
      */    
     private final Map<Long, Reply> lastReplies;
+    /** The replies to the last requests of each client, for pipelining clients */
+    private final ReplyHistory replyHistory;
 
     /* Thread responsible to create and forward batches to leader */
     private final ClientRequestBatcher cBatcher;
@@ -58,17 +74,30 @@ final public class ClientRequestManager {
     private final ClientBatchManager batchManager;
 
 
-    public ClientRequestManager(Replica replica, Paxos paxos, Map<Long, Reply> lastReplies) {
+    ClientRequestManager(Replica replica, Paxos paxos, Map<Long, Reply> lastReplies,
+                         ReplyHistory replyHistory) {
         this.paxos = paxos;
         this.replica = replica;
         this.replicaDispatcher = replica.getReplicaDispatcher();
         this.lastReplies = lastReplies;
+        this.replyHistory = replyHistory;
         this.batchManager = new ClientBatchManager(paxos, replica);
         cBatcher = new ClientRequestBatcher(batchManager);
+        batchManager.setRequestBatcher(cBatcher);
         cBatcher.start();
         
         
-        QueueMonitor.getInstance().registerQueue("pendingCReqs", pendingClientProxies.values());       
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        registry.registerGauge("clientRequests.pending", new Gauge() {
+            public long getValue() {
+                return MAX_PENDING_REQUESTS - pendingRequestsSem.availablePermits();
+            }
+        });
+        registry.registerGauge("clientRequests.proxies", new Gauge() {
+            public long getValue() {
+                return pendingClientProxies.size();
+            }
+        });
     }
 
     /**
@@ -108,23 +137,27 @@ final public class ClientRequestManager {
                         // Flow control. Wait for a permit. May block the selector thread.
                         pendingRequestsSem.acquire();                        
                         pendingClientProxies.put(reqId, client);
+                        receivedMeter.mark();
 
                         cBatcher.enqueueRequest(request);
                         
                     } else {
                         
-                        // Since the replica only keeps the reply to the last request executed from each client,
-                        // it checks if the cached reply is for the given request. If not, there's something
-                        // wrong, because the client already received the reply (otherwise it wouldn't send an
-                        // a more recent request). I've seen this message on view change. Probably some requests
-                        // are not properly discarded.
-                        if (lastReply.getRequestId().equals(reqId)) {
-                            client.send(new ClientReply(Result.OK, lastReply.toByteArray()));
+                        // The replica keeps the replies to the last requests executed from each client,
+                        // as many as a client may have outstanding. If the reply is not kept, there's
+                        // something wrong, because the client already received the reply (otherwise it
+                        // wouldn't send a more recent request). I've seen this message on view change.
+                        // Probably some requests are not properly discarded.
+                        Reply cachedReply = lastReply.getRequestId().equals(reqId) ? lastReply :
+                                replyHistory.get(reqId);
+                        if (cachedReply != null) {
+                            client.send(new ClientReply(Result.OK, cachedReply.toByteArray()));
                         } else {
                             String errorMsg = "Request too old: " + request.getRequestId() +
                                     ", Last reply: " + lastReply.getRequestId();
                             logger.warning(errorMsg);
-                            client.send(new ClientReply(Result.NACK, errorMsg.getBytes()));
+                            client.send(new ClientReply(Result.NACK,
+                                    new Reply(reqId, errorMsg.getBytes()).toByteArray()));
                         }
                         
                     }
@@ -157,26 +190,36 @@ final public class ClientRequestManager {
 
                     } else {
 
-                        // Since the replica only keeps the reply to the last request executed from each client,
-                        // it checks if the cached reply is for the given request. If not, there's something
-                        // wrong, because the client already received the reply (otherwise it wouldn't send an
-                        // a more recent request). I've seen this message on view change. Probably some requests
-                        // are not properly discarded.
-                        if (lastReply.getRequestId().equals(reqId)) {
-                            client.send(new ClientReply(Result.OK, lastReply.toByteArray()));
+                        // The replica keeps the replies to the last requests executed from each client,
+                        // as many as a client may have outstanding. If the reply is not kept, there's
+                        // something wrong, because the client already received the reply (otherwise it
+                        // wouldn't send a more recent request). I've seen this message on view change.
+                        // Probably some requests are not properly discarded.
+                        Reply cachedReply = lastReply.getRequestId().equals(reqId) ? lastReply :
+                                replyHistory.get(reqId);
+                        if (cachedReply != null) {
+                            client.send(new ClientReply(Result.OK, cachedReply.toByteArray()));
                         } else {
                             String errorMsg = "Request too old: " + request.getRequestId() +
                                     ", Last reply: " + lastReply.getRequestId();
                             logger.warning(errorMsg);
-                            client.send(new ClientReply(Result.NACK, errorMsg.getBytes()));
+                            client.send(new ClientReply(Result.NACK,
+                                    new Reply(reqId, errorMsg.getBytes()).toByteArray()));
                         }
 
                     }
 
+                    break;
+                case REQUEST_BATCH:
+                    onRequestBatch(command.getRequests(), client);
+                    break;
+                case READ_REQUEST:
+                    onReadRequest(command.getRequest(), client);
                     break;
                 default:
                     logger.warning("Received invalid command " + command + " from " + client);
-                    client.send(new ClientReply(Result.NACK, "Unknown command.".getBytes()));
+                    client.send(new ClientReply(Result.NACK, new Reply(
+                            command.getRequest().getRequestId(), "Unknown command.".getBytes()).toByteArray()));
                     break;
             }
         } catch (IOException e) {
@@ -187,6 +230,108 @@ final public class ClientRequestManager {
         }
     }
 
+    /**
+     * Handles a read-only request. The leader holding the read lease executes
+     * it locally once all the instances it started are executed, without
+     * ordering it nor keeping its reply. The other replicas redirect the
+     * client to the leader, and the reads are ordered as any other request if
+     * the lease is not held or not enabled.
+     */
+    private void onReadRequest(ClientRequest request, NioClientProxy client)
+            throws IOException, InterruptedException {
+        RequestId reqId = request.getRequestId();
+        Reply lastReply = lastReplies.get(reqId.getClientId());
+        if (lastReply != null && reqId.getSeqNumber() <= lastReply.getRequestId().getSeqNumber()) {
+            // Ordered already, and possibly executed before the client knew
+            onClientRequest(new ClientCommand(CommandType.REQUEST, request), client);
+            return;
+        }
+
+        int readIndex = replica.isParallelExecution() ? -1 : paxos.getReadIndex();
+        if (readIndex != -1) {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Executing read " + reqId + " after instance " + readIndex);
+            }
+            leaseReadsMeter.mark();
+            replica.executeRead(request, readIndex, client);
+        } else if (paxos.isLeaseEnabled() && !paxos.isLeader()) {
+            int leader = paxos.getLeaderId();
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Redirecting read " + reqId + " to the leader " + leader);
+            }
+            client.send(new ClientReply(Result.REDIRECT, PrimitivesByteArray.fromInt(leader)));
+        } else {
+            onClientRequest(new ClientCommand(CommandType.REQUEST, request), client);
+        }
+    }
+
+    /**
+     * Handles the requests received in a single REQUEST_BATCH command. The new
+     * requests take the permits at once and are enqueued as a unit in the
+     * batcher. Their replies, and the cached replies of the requests already
+     * executed, are sent back in a single BATCH reply.
+     */
+    private void onRequestBatch(ClientRequest[] requests, NioClientProxy client)
+            throws IOException, InterruptedException {
+        if (requests.length > MAX_PENDING_REQUESTS) {
+            String errorMsg = "Batch too large: " + requests.length + " requests";
+            logger.warning(errorMsg);
+            for (ClientRequest request : requests) {
+                client.send(new ClientReply(Result.NACK,
+                        new Reply(request.getRequestId(), errorMsg.getBytes()).toByteArray()));
+            }
+            return;
+        }
+
+        ClientRequest[] newRequests = new ClientRequest[requests.length];
+        int newCount = 0;
+        Reply[] cachedReplies = new Reply[requests.length];
+        int cachedCount = 0;
+        for (ClientRequest request : requests) {
+            RequestId reqId = request.getRequestId();
+            Reply lastReply = lastReplies.get(reqId.getClientId());
+            if (lastReply == null || reqId.getSeqNumber() > lastReply.getRequestId().getSeqNumber()) {
+                newRequests[newCount++] = request;
+                continue;
+            }
+            Reply cachedReply = lastReply.getRequestId().equals(reqId) ? lastReply :
+                    replyHistory.get(reqId);
+            if (cachedReply != null) {
+                cachedReplies[cachedCount++] = cachedReply;
+            } else {
+                String errorMsg = "Request too old: " + reqId + ", Last reply: " +
+                        lastReply.getRequestId();
+                logger.warning(errorMsg);
+                client.send(new ClientReply(Result.NACK,
+                        new Reply(reqId, errorMsg.getBytes()).toByteArray()));
+            }
+        }
+
+        if (newCount == 0) {
+            if (cachedCount > 0) {
+                client.send(ClientReply.createBatch(Arrays.copyOf(cachedReplies, cachedCount)));
+            }
+            return;
+        }
+
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Received batch: " + newCount + " new requests, first " + newRequests[0]);
+        }
+        PendingBatch batch = new PendingBatch(client, newCount + cachedCount);
+        for (int i = 0; i < cachedCount; i++) {
+            batch.add(cachedReplies[i]);
+        }
+        // Flow control, as for single requests. Stored before proposed.
+        pendingRequestsSem.acquire(newCount);
+        for (int i = 0; i < newCount; i++) {
+            pendingBatches.put(newRequests[i].getRequestId(), batch);
+        }
+        receivedMeter.mark(newCount);
+
+        cBatcher.enqueueRequests(newCount == requests.length ? newRequests :
+                Arrays.copyOf(newRequests, newCount));
+    }
+
     /**
      * Caches the reply from the client. If the connection with the client is
      * still active, then reply is sent.
@@ -199,6 +344,23 @@ final public class ClientRequestManager {
 
         final NioClientProxy client = pendingClientProxies.remove(reply.getRequestId());        
         if (client == null) {
+            final PendingBatch batch = pendingBatches.remove(reply.getRequestId());
+            if (batch != null) {
+                pendingRequestsSem.release();
+                if (batch.add(reply)) {
+                    batch.client.getSelectorThread().beginInvoke(new Runnable() {
+                        public void run() {
+                            try {
+                                batch.client.send(ClientReply.createBatch(batch.replies));
+                            } catch (IOException e) {
+                                // The client sends the requests again
+                                logger.log(Level.WARNING, "Could not send batched reply to client. " +
+                                        "Discarding reply: " + reply.getRequestId(), e);
+                            }
+                        }
+                    });
+                }
+            }
             // Only the replica that received the request has the ClientProxy.
             // The other replicas discard the reply.
             //            if (logger.isLoggable(Level.FINE)) {
@@ -214,6 +376,7 @@ final public class ClientRequestManager {
             // execute this task. 
             SelectorThread sThread = client.getSelectorThread();
             pendingRequestsSem.release();
+            final long executedTime = System.nanoTime();
             sThread.beginInvoke(new Runnable() {
                 @Override
                 public void run() {
@@ -222,6 +385,7 @@ final public class ClientRequestManager {
                     }
                     try {
                         client.send(new ClientReply(Result.OK, reply.toByteArray()));
+                        ReplicaStats.getInstance().replySent(executedTime);
                     } catch (IOException e) {
                         // cannot send message to the client;
                         // Client should send request again
@@ -232,6 +396,27 @@ final public class ClientRequestManager {
         }
     }
 
+    /**
+     * Sends the reply to a read executed under the read lease. Called by the
+     * Replica thread.
+     * 
+     * @param client - the client that sent the read
+     * @param reply - reply to send to client
+     */
+    public void onReadExecuted(final NioClientProxy client, final Reply reply) {
+        client.getSelectorThread().beginInvoke(new Runnable() {
+            public void run() {
+                try {
+                    client.send(new ClientReply(Result.OK, reply.toByteArray()));
+                } catch (IOException e) {
+                    // The client sends the read again
+                    logger.log(Level.WARNING, "Could not send reply to client. Discarding reply: " +
+                            reply.getRequestId(), e);
+                }
+            }
+        });
+    }
+
 //    /** 
 //     * Replica class calls this method when it orders a batch with ReplicaRequestIds. 
 //     * This method puts enqueues the ids for execution and tries to advance the execution
@@ -245,6 +430,29 @@ final public class ClientRequestManager {
 //        batchManager.onBatchReadyForExecution(instance, batch);
 //    }
 
+    /**
+     * Collects the replies to the requests of a REQUEST_BATCH. Filled by the
+     * Selector thread with the cached replies before it is published, then by
+     * the Replica thread, or concurrently by the workers executing the requests
+     * in parallel.
+     */
+    private static final class PendingBatch {
+        final NioClientProxy client;
+        final Reply[] replies;
+        int received = 0;
+
+        PendingBatch(NioClientProxy client, int size) {
+            this.client = client;
+            this.replies = new Reply[size];
+        }
+
+        /** Returns true if all the replies were received */
+        synchronized boolean add(Reply reply) {
+            replies[received++] = reply;
+            return received == replies.length;
+        }
+    }
+
     private boolean isInSelectorThread() {
         return Thread.currentThread() instanceof SelectorThread;
     }
@@ -6,7 +6,12 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import lsr.common.ClientCommand;
+import lsr.common.ClientCommand.CommandType;
 import lsr.common.ClientReply;
+import lsr.common.ClientReply.Result;
+import lsr.common.ProcessDescriptor;
+import lsr.common.Reply;
+import lsr.common.RequestId;
 import lsr.common.nio.PacketHandler;
 import lsr.common.nio.ReaderAndWriter;
 import lsr.common.nio.SelectorThread;
@@ -57,16 +62,41 @@ public class NioClientProxy {
         if (!initialized) {
             throw new IllegalStateException("Connection not initialized yet");
         }
-        readerAndWriter.send(clientReply.toByteArray());
+        readerAndWriter.send(withView(clientReply).toByteArray());
+    }
+
+    /**
+     * Piggybacks the current view and its leader on the reply, so that the
+     * client can fail over directly to the leader.
+     */
+    private ClientReply withView(ClientReply clientReply) {
+        int view = requestManager.paxos.getStorage().getView();
+        return new ClientReply(clientReply.getResult(), clientReply.getValue(), view,
+                ProcessDescriptor.getInstance().getLeaderOfView(view));
     }
 
     /** executes command from byte buffer 
      * @throws InterruptedException */
     private void execute(ByteBuffer buffer) throws InterruptedException {
         ClientCommand command = new ClientCommand(buffer);
+        if (command.getCommandType() == CommandType.NEW_CLIENT_ID) {
+            grantClientId(command.getRequest().getRequestId());
+            return;
+        }
         requestManager.onClientRequest(command, this);
     }
 
+    /**
+     * Grants a new id for a logical client multiplexed over this connection.
+     * The reply is matched by the client to the given request.
+     */
+    private void grantClientId(RequestId requestId) {
+        byte[] bytesClientId = new byte[8];
+        ByteBuffer.wrap(bytesClientId).putLong(idGenerator.next());
+        readerAndWriter.send(withView(new ClientReply(Result.OK,
+                new Reply(requestId, bytesClientId).toByteArray())).toByteArray());
+    }
+
     /**
      * Waits for first byte, 'T' or 'F' which specifies whether we should grant
      * new id for this client, or it has one already.
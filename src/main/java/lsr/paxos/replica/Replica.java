@@ -7,6 +7,9 @@ import lsr.paxos.Snapshot;
 import lsr.paxos.SnapshotProvider;
 import lsr.paxos.recovery.*;
 import lsr.paxos.replica.ClientBatchStore.ClientBatchInfo;
+import lsr.paxos.statistics.Meter;
+import lsr.paxos.statistics.MetricsRegistry;
+import lsr.paxos.statistics.MetricsServer;
 import lsr.paxos.statistics.PerformanceLogger;
 import lsr.paxos.statistics.ReplicaStats;
 import lsr.paxos.storage.ConsensusInstance;
@@ -66,9 +69,14 @@ public class Replica {
     /** Used to log all decisions. */
     private final PerformanceLogger decisionsLog;
 
+    private final Meter executedMeter = MetricsRegistry.getInstance().meter("replica.executedRequests");
+
     /** Next request to be executed. */
     private int executeUB = 0;
 
+    /** Reads waiting for the instances before their read index to be executed */
+    private final Deque<PendingRead> pendingReads = new ArrayDeque<PendingRead>();
+
     private ClientRequestManager requestManager;
 
     // TODO: JK check if this map is cleared where possible
@@ -99,6 +107,9 @@ public class Replica {
 
 
 
+    /** The replies to the last requests of each client, for pipelining clients */
+    private final ReplyHistory replyHistory;
+
     private final HashMap<Long, Reply> previousSnapshotExecutedRequests = new HashMap<Long, Reply>();
 
     private final SingleThreadDispatcher dispatcher;
@@ -154,6 +165,7 @@ public class Replica {
 
         cache = new ArrayList<Reply>(2048);
         executedDifference.put(executeUB, cache);
+        replyHistory = new ReplyHistory(descriptor.clientPipelineDepth);
 
         parallelExecution = config.getBooleanProperty("parallel.batch", false);
         if (parallelExecution) {
@@ -174,6 +186,9 @@ public class Replica {
         logger.info("Recovery phase started.");
 
         dispatcher.start();
+        if (descriptor.metricsPort > 0) {
+            new MetricsServer(descriptor.metricsPort).start();
+        }
         RecoveryAlgorithm recovery = createRecoveryAlgorithm(descriptor.crashModel);
         paxos = recovery.getPaxos();
 
@@ -262,6 +277,53 @@ public class Replica {
         });
     }
 
+    /**
+     * Executes a read-only request under the read lease of the leader, once
+     * the instances before readIndex are executed. The reply is sent back to
+     * the client but not kept, as the read does not change the state.
+     * 
+     * @param cRequest - the read
+     * @param readIndex - the next instance started by the leader
+     * @param client - the client waiting for the reply
+     */
+    public void executeRead(final ClientRequest cRequest, final int readIndex,
+                            final NioClientProxy client) {
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                pendingReads.add(new PendingRead(cRequest, readIndex, client));
+                executeReads();
+            }
+        });
+    }
+
+    /**
+     * Executes the reads whose instances are executed. The read indexes are
+     * taken by several threads, so a read may wait for the one before it.
+     */
+    private void executeReads() {
+        while (!pendingReads.isEmpty() && pendingReads.peek().readIndex <= executeUB) {
+            PendingRead read = pendingReads.poll();
+            byte[] result = serviceProxy.executeRead(read.request);
+            requestManager.onReadExecuted(read.client,
+                    new Reply(read.request.getRequestId(), result));
+        }
+    }
+
+    /**
+     * Moves the execution to the given instance, the first one executed after
+     * the recovery or a snapshot, and executes the reads waiting for it.
+     */
+    private void startExecutionAt(int instance) {
+        assert dispatcher.amIInDispatcher();
+        executeUB = Math.max(executeUB, instance);
+        executeReads();
+    }
+
+    boolean isParallelExecution() {
+        return parallelExecution;
+    }
+
     /** 
      * Called by the RequestManager when it has the ClientRequest that should be
      * executed next. 
@@ -308,8 +370,10 @@ public class Replica {
                 logger.warning("Request ordered multiple times. " +
                         instance + ", batch: " + bInfo.bid + ", " + cRequest + ", lastSequenceNumberFromClient: " + lastSequenceNumberFromClient);
                 // Send the cached reply back to the client
-                if (rID.getSeqNumber() == lastSequenceNumberFromClient) {
-                    requestManager.onRequestExecuted(cRequest, lastReply);
+                Reply cachedReply = rID.getSeqNumber() == lastSequenceNumberFromClient ?
+                        lastReply : replyHistory.get(rID);
+                if (cachedReply != null) {
+                    requestManager.onRequestExecuted(cRequest, cachedReply);
                 }
                 return false;
             }
@@ -326,6 +390,7 @@ public class Replica {
         byte[] result = serviceProxy.execute(cRequest);
         // Statistics. Count how many requests are in this instance
         requestsInInstance++;
+        executedMeter.mark();
 
         Reply reply = new Reply(cRequest.getRequestId(), result);
 
@@ -338,6 +403,7 @@ public class Replica {
         cache.add(reply);
 
         executedRequests.put(rID.getClientId(), reply);
+        replyHistory.add(reply);
 
         if (parallelExecution) {
             try {
@@ -368,8 +434,10 @@ public class Replica {
                         cRequest + ", lastSequenceNumberFromClient: " + lastSequenceNumberFromClient);
 
                 // Send the cached reply back to the client
-                if (rID.getSeqNumber() == lastSequenceNumberFromClient) {
-                    requestManager.onRequestExecuted(cRequest, lastReply);
+                Reply cachedReply = rID.getSeqNumber() == lastSequenceNumberFromClient ?
+                        lastReply : replyHistory.get(rID);
+                if (cachedReply != null) {
+                    requestManager.onRequestExecuted(cRequest, cachedReply);
                 }
                 return;
             }
@@ -384,6 +452,7 @@ public class Replica {
         cache.add(reply);
 
         executedRequests.put(rID.getClientId(), reply);
+        replyHistory.add(reply);
 
         // Can this ever be null?
         assert requestManager != null : "Request manager should not be null";
@@ -421,12 +490,15 @@ public class Replica {
         executedDifference.put(instance+1, cache);
         
         executeUB=instance+1;
+        executeReads();
 
         // The ReplicaStats must be updated only from the Protocol thread
         final int fReqCount = requestsInInstance;
+        final long executedTime = System.nanoTime();
         paxos.getDispatcher().submit(new Runnable() {
             @Override
             public void run() {
+                ReplicaStats.getInstance().instanceExecuted(instance, executedTime);
                 ReplicaStats.getInstance().setRequestsInInstance(instance, fReqCount);
             }}  );
         requestsInInstance = 0;
@@ -448,9 +520,17 @@ public class Replica {
 
             IdGenerator idGenerator = createIdGenerator();
             int clientPort = descriptor.getLocalProcess().getClientPort();
-            requestManager = new ClientRequestManager(Replica.this, paxos, executedRequests);
+            requestManager = new ClientRequestManager(Replica.this, paxos, executedRequests,
+                    replyHistory);
             paxos.setClientRequestManager(requestManager);
             paxos.setDecideCallback(requestManager.getClientBatchManager());
+            // The instances before it are not executed again
+            final int executionStart = requestManager.getClientBatchManager().getNextInstance();
+            dispatcher.execute(new Runnable() {
+                public void run() {
+                    startExecutionAt(executionStart);
+                }
+            });
 
             try {
                 clientManager = new NioClientManager(clientPort, requestManager, idGenerator);
@@ -466,10 +546,7 @@ public class Replica {
         private void recoverReplica() {
             Storage storage = paxos.getStorage();
 
-            // we need a read-write copy of the map
-            SortedMap<Integer, ConsensusInstance> instances =
-                    new TreeMap<Integer, ConsensusInstance>();
-            instances.putAll(storage.getLog().getInstanceMap());
+            SortedMap<Integer, ConsensusInstance> instances = storage.getLog().getInstanceMap();
 
             // We take the snapshot
             Snapshot snapshot = storage.getLastSnapshot();
@@ -478,7 +555,8 @@ public class Replica {
                 instances = instances.tailMap(snapshot.getNextInstanceId());
             }
 
-            for (ConsensusInstance instance : instances.values()) {
+            // Only the instances after the snapshot are copied
+            for (ConsensusInstance instance : new ArrayList<ConsensusInstance>(instances.values())) {
                 if (instance.getState() == LogEntryState.DECIDED) {
                     Deque<ClientBatch> requests = Batcher.unpack(instance.getValue());
                     requestManager.getClientBatchManager().onRequestOrdered(instance.getId(), requests);
@@ -578,6 +656,14 @@ public class Replica {
         private void handleSnapshotInternal(Snapshot snapshot) {
             assert dispatcher.amIInDispatcher();
             assert snapshot != null : "Snapshot is null";
+
+            // The instances before the snapshot are not executed by this replica
+            startExecutionAt(snapshot.getNextInstanceId());
+
+            // The local batches before the snapshot are never reported as decided
+            if (requestManager != null) {
+                requestManager.getClientBatchManager().resetLocalBatchesInFlight();
+            }
             
             // TODO: Obsolete code
 
@@ -626,6 +712,18 @@ public class Replica {
         }
     }
 
+    private static final class PendingRead {
+        final ClientRequest request;
+        final int readIndex;
+        final NioClientProxy client;
+
+        PendingRead(ClientRequest request, int readIndex, NioClientProxy client) {
+            this.request = request;
+            this.readIndex = readIndex;
+            this.client = client;
+        }
+    }
+
     public SingleThreadDispatcher getReplicaDispatcher() {
         return dispatcher;
     }
@@ -0,0 +1,62 @@
+package lsr.paxos.replica;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import lsr.common.Reply;
+import lsr.common.RequestId;
+
+/**
+ * The replies to the last requests executed from each client, so that a
+ * client pipelining requests gets the replies to the ones it resends after
+ * reconnecting, and not only to the last one executed.
+ * <p>
+ * The replies of a client are kept in a circular array indexed by sequence
+ * number, of the size of the pipeline of the clients
+ * (<code>ClientPipelineDepth</code>). Written by the threads executing the
+ * requests, read by the Selector threads.
+ */
+final class ReplyHistory {
+    private final int depth;
+    private final ConcurrentHashMap<Long, AtomicReferenceArray<Reply>> replies =
+            new ConcurrentHashMap<Long, AtomicReferenceArray<Reply>>(8192, (float) 0.75, 8);
+
+    /**
+     * @param depth - the number of replies kept for each client
+     */
+    ReplyHistory(int depth) {
+        this.depth = depth;
+    }
+
+    /** Called after executing a request */
+    void add(Reply reply) {
+        RequestId id = reply.getRequestId();
+        AtomicReferenceArray<Reply> clientReplies = replies.get(id.getClientId());
+        if (clientReplies == null) {
+            clientReplies = new AtomicReferenceArray<Reply>(depth);
+            AtomicReferenceArray<Reply> previous = replies.putIfAbsent(id.getClientId(),
+                    clientReplies);
+            if (previous != null) {
+                clientReplies = previous;
+            }
+        }
+        clientReplies.set(slot(id), reply);
+    }
+
+    /**
+     * Returns the reply to given request, or null if it was not executed or
+     * its reply is not kept anymore.
+     */
+    Reply get(RequestId id) {
+        AtomicReferenceArray<Reply> clientReplies = replies.get(id.getClientId());
+        if (clientReplies == null) {
+            return null;
+        }
+        Reply reply = clientReplies.get(slot(id));
+        return reply != null && reply.getRequestId().equals(id) ? reply : null;
+    }
+
+    private int slot(RequestId id) {
+        return (id.getSeqNumber() & Integer.MAX_VALUE) % depth;
+    }
+}
@@ -5,6 +5,7 @@ import lsr.common.Pair;
 import lsr.common.Reply;
 import lsr.common.SingleThreadDispatcher;
 import lsr.paxos.Snapshot;
+import lsr.service.ReadOnlyService;
 import lsr.service.Service;
 
 import java.util.*;
@@ -182,6 +183,21 @@ public class ServiceProxy implements SnapshotListener {
         }
     }
 
+    /**
+     * Executes a read-only request on the current state of the service. The
+     * read has no sequence number of its own, so a service not implementing
+     * {@link ReadOnlyService} is given the one of the last request executed.
+     * 
+     * @param request - the read-only request
+     * @return the reply of the service
+     */
+    public byte[] executeRead(ClientRequest request) {
+        if (service instanceof ReadOnlyService) {
+            return ((ReadOnlyService) service).executeReadOnly(request.getValue());
+        }
+        return service.execute(request.getValue(), nextSeqNo - 1);
+    }
+
     /** Update the internal state to reflect the execution of a nop request */
     public void executeNop() {
         // TODO: Update snapshotting and recovery to support no-op requests
@@ -0,0 +1,26 @@
+package lsr.paxos.statistics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A value that can be incremented or decremented from any thread.
+ */
+public final class Counter {
+    private final AtomicLong count = new AtomicLong();
+
+    public void inc() {
+        count.incrementAndGet();
+    }
+
+    public void dec() {
+        count.decrementAndGet();
+    }
+
+    public void add(long n) {
+        count.addAndGet(n);
+    }
+
+    public long get() {
+        return count.get();
+    }
+}
@@ -0,0 +1,9 @@
+package lsr.paxos.statistics;
+
+/**
+ * A value read when the metrics are exported. Implementations are called from
+ * the exporter thread, so they must only read thread-safe state.
+ */
+public interface Gauge {
+    long getValue();
+}
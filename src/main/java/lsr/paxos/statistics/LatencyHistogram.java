@@ -0,0 +1,172 @@
+package lsr.paxos.statistics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with a fixed set of log-linear buckets, in the style
+ * of HdrHistogram.
+ *
+ * Every power of two is divided in {@link #SUB_BUCKETS} linear buckets, so
+ * the value reported for a bucket is at most 1/{@link #SUB_BUCKETS} (~3%)
+ * above the recorded value. Values up to {@link #MAX_VALUE} (about 18 minutes,
+ * in nanoseconds) are tracked, larger values are counted in the last bucket.
+ *
+ * Recording does not allocate nor lock, and can be done concurrently from
+ * several threads. {@link #snapshot()} and {@link #reset()} can be called at
+ * any time from any thread. The snapshot is not atomic with respect to
+ * concurrent recordings, which may be partially included.
+ */
+public final class LatencyHistogram {
+    /** log2 of the number of linear buckets per power of two */
+    private static final int SUB_BUCKET_BITS = 5;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Largest value tracked with the precision of the histogram */
+    public static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int BUCKETS = bucketIndex(MAX_VALUE) + 1;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Adds a value to the histogram. Negative values are ignored.
+     *
+     * @param value - the latency, usually in nanoseconds
+     */
+    public void record(long value) {
+        if (value < 0) {
+            return;
+        }
+        counts.incrementAndGet(bucketIndex(Math.min(value, MAX_VALUE)));
+        sum.addAndGet(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /** Returns a copy of the current state of the histogram. */
+    public Snapshot snapshot() {
+        return snapshot(false);
+    }
+
+    /** Returns a copy of the current state of the histogram and clears it. */
+    public Snapshot snapshotAndReset() {
+        return snapshot(true);
+    }
+
+    /** Removes all recorded values. */
+    public void reset() {
+        snapshot(true);
+    }
+
+    private Snapshot snapshot(boolean reset) {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+            count += copy[i];
+        }
+        long s = reset ? sum.getAndSet(0) : sum.get();
+        long m = reset ? max.getAndSet(0) : max.get();
+        return new Snapshot(name, copy, count, s, m);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int top = (int) (value >>> shift);
+        return ((shift + 1) << SUB_BUCKET_BITS) + top - SUB_BUCKETS;
+    }
+
+    /** The largest value that is counted in the given bucket */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        long top = SUB_BUCKETS + (index & (SUB_BUCKETS - 1));
+        return ((top + 1) << shift) - 1;
+    }
+
+    /** Immutable copy of a histogram. */
+    public static final class Snapshot {
+        private final String name;
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(String name, long[] counts, long count, long sum, long max) {
+            this.name = name;
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Returns the smallest value such that at least the fraction
+         * <code>p</code> of the recorded values are lower or equal to it, up
+         * to the precision of the histogram.
+         *
+         * @param p - the percentile, between 0 and 1
+         * @return the value at the given percentile, 0 if the histogram is
+         *         empty
+         */
+        public long getPercentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(p * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        /** Summary in microseconds, assuming the values are in nanoseconds */
+        @Override
+        public String toString() {
+            return String.format("%s: count=%d, mean=%.1f, p50=%d, p99=%d, p999=%d, max=%d",
+                    name, count, getMean() / 1000, getPercentile(0.5) / 1000,
+                    getPercentile(0.99) / 1000, getPercentile(0.999) / 1000, max / 1000);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package lsr.paxos.statistics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events and estimates their rate, as an exponentially weighted moving
+ * average over the last minute, updated every {@link #TICK_INTERVAL} ns.
+ * 
+ * {@link #mark()} can be called from any thread; it only increments a counter,
+ * the average is updated lazily by the next call to {@link #mark()} or
+ * {@link #getOneMinuteRate()} after a tick interval has passed.
+ */
+public final class Meter {
+    static final long TICK_INTERVAL = 5000000000L;
+    private static final double ALPHA = 1 - Math.exp(-5.0 / 60.0);
+
+    private final AtomicLong count = new AtomicLong();
+    /** Events since the last tick */
+    private final AtomicLong uncounted = new AtomicLong();
+    private final AtomicLong lastTick;
+    private final long startTime;
+    /** Events per nanosecond. Only written by the thread that wins the tick */
+    private volatile double rate = 0;
+    private volatile boolean initialized = false;
+
+    public Meter() {
+        startTime = System.nanoTime();
+        lastTick = new AtomicLong(startTime);
+    }
+
+    public void mark() {
+        mark(1);
+    }
+
+    public void mark(long n) {
+        tickIfNecessary();
+        count.addAndGet(n);
+        uncounted.addAndGet(n);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /** Events per second since the meter was created */
+    public double getMeanRate() {
+        long elapsed = System.nanoTime() - startTime;
+        return elapsed == 0 ? 0 : count.get() * 1e9 / elapsed;
+    }
+
+    /** Events per second, averaged over the last minute */
+    public double getOneMinuteRate() {
+        tickIfNecessary();
+        return rate * 1e9;
+    }
+
+    private void tickIfNecessary() {
+        long oldTick = lastTick.get();
+        long now = System.nanoTime();
+        long age = now - oldTick;
+        if (age < TICK_INTERVAL) {
+            return;
+        }
+        long newTick = now - age % TICK_INTERVAL;
+        if (!lastTick.compareAndSet(oldTick, newTick)) {
+            // Another thread is ticking
+            return;
+        }
+        long ticks = age / TICK_INTERVAL;
+        for (long i = 0; i < ticks; i++) {
+            double instantRate = (double) uncounted.getAndSet(0) / TICK_INTERVAL;
+            if (initialized) {
+                rate += ALPHA * (instantRate - rate);
+            } else {
+                rate = instantRate;
+                initialized = true;
+            }
+        }
+    }
+}
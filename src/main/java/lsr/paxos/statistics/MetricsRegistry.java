@@ -0,0 +1,122 @@
+package lsr.paxos.statistics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Registry of the metrics of the replica. Components register gauges for the
+ * size of their queues and create counters and meters for the events they
+ * want to expose. The metrics are read by {@link MetricsServer}.
+ * 
+ * All methods are thread-safe. Registering a gauge with the name of an
+ * existing one replaces it, which is used by components that are recreated
+ * (eg., TCP connections).
+ */
+public final class MetricsRegistry {
+    /** Singleton */
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+    private final Map<String, Object> metrics = new ConcurrentSkipListMap<String, Object>();
+
+    private MetricsRegistry() {
+    }
+
+    public void registerGauge(String name, Gauge gauge) {
+        metrics.put(name, gauge);
+    }
+
+    /** Returns the counter with the given name, creating it if needed */
+    public Counter counter(String name) {
+        return getOrCreate(name, Counter.class);
+    }
+
+    /** Returns the meter with the given name, creating it if needed */
+    public Meter meter(String name) {
+        return getOrCreate(name, Meter.class);
+    }
+
+    public void remove(String name) {
+        metrics.remove(name);
+    }
+
+    private synchronized <T> T getOrCreate(String name, Class<T> type) {
+        Object metric = metrics.get(name);
+        if (metric == null) {
+            try {
+                metric = type.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException("Cannot create metric " + name, e);
+            }
+            metrics.put(name, metric);
+        } else if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException("Metric " + name + " is not a " +
+                                               type.getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    /**
+     * Writes all the metrics, and the latency histograms of
+     * {@link ReplicaStats}, in the Prometheus text format. Names are prefixed
+     * with <code>jpaxos_</code>, and any character other than letters and
+     * digits is replaced by an underscore.
+     * 
+     * @param resetLatencies - clear the latency histograms after reading
+     */
+    public String export(boolean resetLatencies) {
+        StringBuilder sb = new StringBuilder(2048);
+        for (Entry<String, Object> entry : metrics.entrySet()) {
+            String name = "jpaxos_" + entry.getKey().replaceAll("[^A-Za-z0-9]", "_");
+            Object metric = entry.getValue();
+            if (metric instanceof Gauge) {
+                line(sb, name, "", ((Gauge) metric).getValue());
+            } else if (metric instanceof Counter) {
+                line(sb, name, "", ((Counter) metric).get());
+            } else if (metric instanceof Meter) {
+                Meter meter = (Meter) metric;
+                line(sb, name + "_total", "", meter.getCount());
+                line(sb, name + "_rate1m", "", meter.getOneMinuteRate());
+            }
+        }
+
+        ReplicaStats stats = ReplicaStats.getInstance();
+        if (stats != null) {
+            for (ReplicaStats.Stage stage : ReplicaStats.Stage.values()) {
+                LatencyHistogram histogram = stats.getHistogram(stage);
+                LatencyHistogram.Snapshot s = resetLatencies ? histogram.snapshotAndReset()
+                        : histogram.snapshot();
+                String label = "stage=\"" + stage.name() + "\"";
+                for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+                    line(sb, "jpaxos_latency_seconds", label + ",quantile=\"" + q + "\"",
+                            s.getPercentile(q) / 1e9);
+                }
+                line(sb, "jpaxos_latency_seconds_count", label, s.getCount());
+                line(sb, "jpaxos_latency_seconds_sum", label, s.getSum() / 1e9);
+                line(sb, "jpaxos_latency_seconds_max", label, s.getMax() / 1e9);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, String labels, long value) {
+        sb.append(name);
+        if (labels.length() > 0) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static void line(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (labels.length() > 0) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(String.format(Locale.US, "%.9g", value)).append('\n');
+    }
+}
@@ -0,0 +1,61 @@
+package lsr.paxos.statistics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal HTTP server exporting the {@link MetricsRegistry} on
+ * <code>http://localhost:&lt;port&gt;/metrics</code>, in the Prometheus text
+ * format. Requesting <code>/metrics?reset</code> clears the latency histograms
+ * after reading them.
+ * 
+ * Only listens on the loopback interface. Runs on its own thread, so it does
+ * not interfere with the protocol threads.
+ */
+public final class MetricsServer {
+    private final HttpServer server;
+
+    public MetricsServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    String query = exchange.getRequestURI().getQuery();
+                    boolean reset = query != null && query.contains("reset");
+                    byte[] body = MetricsRegistry.getInstance().export(reset).getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type",
+                            "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(body);
+                    os.close();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Error exporting metrics", e);
+                    exchange.sendResponseHeaders(500, -1);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor());
+    }
+
+    public void start() {
+        server.start();
+        logger.info("Metrics available on " + server.getAddress() + "/metrics");
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private final static Logger logger = Logger.getLogger(MetricsServer.class.getCanonicalName());
+}
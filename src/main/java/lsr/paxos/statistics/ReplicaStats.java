@@ -3,6 +3,7 @@ package lsr.paxos.statistics;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.text.FieldPosition;
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.logging.Level;
@@ -10,10 +11,54 @@ import java.util.logging.Logger;
 
 import lsr.common.ProcessDescriptor;
 
+/**
+ * Records the latency of the stages of an instance in
+ * {@link LatencyHistogram}s:
+ * <ul>
+ * <li>{@link Stage#ProposeToDecide} - from the propose until a majority of
+ * accepts is received (leader only),
+ * <li>{@link Stage#DecideToExecute} - from the decision until the last request
+ * of the instance is executed,
+ * <li>{@link Stage#ExecuteToReply} - from the execution of a request until its
+ * reply is handed to the client connection.
+ * </ul>
+ * Recording does not allocate, so it is always enabled. The histograms can be
+ * read and reset at any time with {@link #snapshot()} and {@link #reset()}.
+ * 
+ * If <code>BenchmarkRunReplica</code> is set, every instance is also written
+ * to a text file by {@link ReplicaStatsFull}.
+ */
 public class ReplicaStats {
     /** Singleton */
     private static ReplicaStats instance;
 
+    public enum Stage {
+        ProposeToDecide, DecideToExecute, ExecuteToReply
+    }
+
+    /*
+     * Start times of the instances, indexed by cid modulo the size of the
+     * array. The instance ids are stored next to the times, to detect slots
+     * that were reused. Only accessed by the Protocol thread. There are never
+     * more than a window of instances being proposed, and the decided
+     * instances are executed in order, so the arrays only need to be larger
+     * than the number of instances waiting for execution.
+     */
+    private static final int SLOTS = 1024;
+    private final int[] proposeIds = new int[SLOTS];
+    private final long[] proposeTimes = new long[SLOTS];
+    private final int[] decideIds = new int[SLOTS];
+    private final long[] decideTimes = new long[SLOTS];
+
+    private final LatencyHistogram[] histograms;
+
+    /**
+     * Moving average of the ProposeToDecide latency, in nanoseconds, weighting
+     * each new sample by 1/8. Written by the Protocol thread, read by the
+     * batcher. Zero until this process decides an instance it proposed.
+     */
+    private volatile long recentDecideLatency = 0;
+
     public static ReplicaStats initialize(int n, int localID) throws IOException {
         // assert instance == null : "Already initialized";
         if (ProcessDescriptor.getInstance().benchmarkRunReplica) {
@@ -28,17 +73,102 @@ public class ReplicaStats {
         return instance;
     }
 
-    /* Stub implementation. For non-benchmark runs */
+    protected ReplicaStats() {
+        histograms = new LatencyHistogram[Stage.values().length];
+        for (Stage stage : Stage.values()) {
+            histograms[stage.ordinal()] = new LatencyHistogram(stage.name());
+        }
+        // No instance has id -1
+        Arrays.fill(proposeIds, -1);
+        Arrays.fill(decideIds, -1);
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /** Returns a copy of the histograms, indexed by the ordinal of the stage */
+    public LatencyHistogram.Snapshot[] snapshot() {
+        LatencyHistogram.Snapshot[] snapshots = new LatencyHistogram.Snapshot[histograms.length];
+        for (int i = 0; i < histograms.length; i++) {
+            snapshots[i] = histograms[i].snapshot();
+        }
+        return snapshots;
+    }
+
+    /** Clears all the histograms */
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    /** Called by the Protocol thread when the leader proposes an instance */
     public void consensusStart(int cid, int size, int k, int alpha) {
+        int slot = cid & (SLOTS - 1);
+        proposeIds[slot] = cid;
+        proposeTimes[slot] = System.nanoTime();
+    }
+
+    /**
+     * Returns the recent ProposeToDecide latency of the instances proposed by
+     * this process, in nanoseconds, or 0 if none was decided yet. Can be
+     * called from any thread.
+     */
+    public long getRecentDecideLatency() {
+        return recentDecideLatency;
     }
 
     public void retransmit(int cid) {
     }
 
+    /** Called by the Protocol thread when an instance is decided */
     public void consensusEnd(int cid) {
+        long now = System.nanoTime();
+        int slot = cid & (SLOTS - 1);
+        if (proposeIds[slot] == cid) {
+            // Only if this process proposed the instance
+            long latency = now - proposeTimes[slot];
+            histograms[Stage.ProposeToDecide.ordinal()].record(latency);
+            proposeIds[slot] = -1;
+            long average = recentDecideLatency;
+            recentDecideLatency = average == 0 ? latency : average + (latency - average) / 8;
+        }
+        decideIds[slot] = cid;
+        decideTimes[slot] = now;
+    }
+
+    /**
+     * Called by the Protocol thread after the replica executed all requests of
+     * an instance.
+     * 
+     * @param cid - the instance
+     * @param executedTime - when the last request was executed, as given by
+     *            {@link System#nanoTime()}
+     */
+    public void instanceExecuted(int cid, long executedTime) {
+        int slot = cid & (SLOTS - 1);
+        if (decideIds[slot] == cid) {
+            histograms[Stage.DecideToExecute.ordinal()].record(executedTime - decideTimes[slot]);
+            decideIds[slot] = -1;
+        }
+    }
+
+    /**
+     * Called when the reply for a request is handed to the client connection.
+     * Can be called from any thread.
+     * 
+     * @param executedTime - when the request was executed, as given by
+     *            {@link System#nanoTime()}
+     */
+    public void replySent(long executedTime) {
+        histograms[Stage.ExecuteToReply.ordinal()].record(System.nanoTime() - executedTime);
     }
 
     public void advanceView(int newView) {
+        // Instances proposed in the previous view are not going to be decided
+        // by this process as a leader of that view.
+        Arrays.fill(proposeIds, -1);
     }
 
     public void setRequestsInInstance(int cid, int requestsInInstance) {
@@ -46,7 +176,8 @@ public class ReplicaStats {
 }
 
 /*
- * Full implementation.
+ * Writes every instance to a text file. Kept as an optional exporter for the
+ * benchmark scripts; adds allocation and formatting work on the Protocol thread.
  */
 final class ReplicaStatsFull extends ReplicaStats {
 
@@ -138,6 +269,7 @@ final class ReplicaStatsFull extends ReplicaStats {
     }
 
     public void consensusStart(int cid, int size, int k, int alpha) {
+        super.consensusStart(cid, size, k, alpha);
         assert !instances.containsKey(cid) : "Instance not null: " + instances.get(cid);
         Instance cInstance = new Instance(cid, System.nanoTime(), size, k, alpha);
         instances.put(cid, cInstance);
@@ -151,6 +283,7 @@ final class ReplicaStatsFull extends ReplicaStats {
     }
 
     public void consensusEnd(int cid) {
+        super.consensusEnd(cid);
         Instance cInstance = instances.get(cid);
         if (cInstance == null) {
             // Can occur in view change if this process is the leader that
@@ -187,6 +320,7 @@ final class ReplicaStatsFull extends ReplicaStats {
     }
     
     public void advanceView(int newView) {
+        super.advanceView(newView);
         this.view = newView;
         for (Integer cid : instances.keySet()) {
             Instance cInstance = instances.get(cid);
@@ -18,6 +18,8 @@ public class ConsensusInstance implements Serializable {
     protected byte[] value;
     protected LogEntryState state;
     private transient BitSet accepts = new BitSet();
+    /** The value once moved off-heap, <code>value</code> is then null */
+    private transient ValueArena.Ref offHeapValue = null;
 
     /**
      * Represents possible states of consensus instance.
@@ -101,11 +103,37 @@ public class ConsensusInstance implements Serializable {
         assertInvariant();        
     }
 
+    /**
+     * Initializes new instance of consensus from buffer. The buffer
+     * should contain serialized instance created by <code>toByteArray()</code>
+     * or <code>write(ByteBuffer)</code> method.
+     * The position of the buffer is advanced past the serialized data.
+     * 
+     * @param bb - the buffer containing serialized consensus instance
+     * @see #toByteArray()
+     * @see #write(ByteBuffer)
+     */
+    public ConsensusInstance(ByteBuffer bb) {
+        this.id = bb.getInt();
+        this.view = bb.getInt();
+        this.state = LogEntryState.values()[bb.getInt()];
+
+        int size = bb.getInt();
+        if (size == -1) {
+            value = null;
+        } else {
+            value = new byte[size];
+            bb.get(value);
+        }
+        
+        assertInvariant();        
+    }
+
     private void assertInvariant() {
         // If value is non null, the state must be either Decided or Known.
         // If value is null, it must be unknown
-        assert (value != null && state != LogEntryState.UNKNOWN) ||
-                (value == null && state == LogEntryState.UNKNOWN) : 
+        assert (hasValue() && state != LogEntryState.UNKNOWN) ||
+                (!hasValue() && state == LogEntryState.UNKNOWN) : 
                     "Invalid state. Value=" + value + ": " + toString();
     }
 
@@ -183,20 +211,54 @@ public class ConsensusInstance implements Serializable {
 //        }
         
         setView(view);
-        this.value = value;
+        assignValue(value);
 //        assertInvariant();
     }
 
+    /**
+     * Replaces the value, dropping the copy moved off-heap if any. Does not
+     * change the view nor the state.
+     */
+    protected void assignValue(byte[] value) {
+        this.value = value;
+        this.offHeapValue = null;
+    }
+
     /**
      * Returns the value holding by this consensus. It represents last value
      * which was accepted by <code>Acceptor</code>.
      * 
+     * If the value was moved off-heap, it is copied to a new array on every
+     * call.
+     * 
      * @return the current value of this instance
      */
     public byte[] getValue() {
+        if (offHeapValue != null) {
+            return offHeapValue.get();
+        }
         return value;
     }
 
+    private boolean hasValue() {
+        return value != null || offHeapValue != null;
+    }
+
+    /**
+     * Moves the value of this decided instance to the arena, releasing the
+     * array holding it.
+     * 
+     * @param arena - the off-heap storage for values
+     */
+    void moveValueTo(ValueArena arena) {
+        assert state == LogEntryState.DECIDED : "Moving value of undecided instance " + this;
+        if (value == null) {
+            return;
+        }
+        offHeapValue = arena.store(id, value);
+        value = null;
+    }
+
     /**
      * Gets the current state of this instance. When the state is set to
      * <code>DECIDED</code> no values should be changed.
@@ -260,7 +322,10 @@ public class ConsensusInstance implements Serializable {
         byteBuffer.putInt(id);
         byteBuffer.putInt(view);
         byteBuffer.putInt(state.ordinal());
-        if (value == null) {
+        if (offHeapValue != null) {
+            byteBuffer.putInt(offHeapValue.length());
+            offHeapValue.writeTo(byteBuffer);
+        } else if (value == null) {
             byteBuffer.putInt(-1);
         } else {
             byteBuffer.putInt(value.length);
@@ -277,17 +342,24 @@ public class ConsensusInstance implements Serializable {
      * @return size of serialized instance
      */
     public int byteSize() {
-        int size = (value == null ? 0 : value.length) + 4 /* length of array */;
+        int size = valueLength() + 4 /* length of array */;
         size += 3 * 4 /* ID, view and state */;
         return size;
     }
 
+    private int valueLength() {
+        if (offHeapValue != null) {
+            return offHeapValue.length();
+        }
+        return value == null ? 0 : value.length;
+    }
+
     public int hashCode() {
         final int prime = 31;
         int result = 1;
         result = prime * result + id;
         result = prime * result + ((state == null) ? 0 : state.hashCode());
-        result = prime * result + Arrays.hashCode(value);
+        result = prime * result + Arrays.hashCode(getValue());
         result = prime * result + view;
         return result;
     }
@@ -313,7 +385,7 @@ public class ConsensusInstance implements Serializable {
         } else if (!state.equals(other.state)) {
             return false;
         }
-        if (!Arrays.equals(value, other.value)) {
+        if (!Arrays.equals(getValue(), other.getValue())) {
             return false;
         }
         if (view != other.view) {
@@ -331,6 +403,7 @@ public class ConsensusInstance implements Serializable {
         accepts.clear();
         state = LogEntryState.UNKNOWN;
         value = null;
+        offHeapValue = null;
         assertInvariant();
     }
 
@@ -351,7 +424,7 @@ public class ConsensusInstance implements Serializable {
                 // on a previous view. Ignore the new value.
 //                logger.warning("Updating a decided instance: " + this);
                 // The value must be the same as the local value. No change.
-                assert Arrays.equals(newValue, value) : "Values don't match. New view: " + newView + ", local: " + this + ", newValue: " + Arrays.toString(newValue) + ", old: " + Arrays.toString(value);
+                assert Arrays.equals(newValue, getValue()) : "Values don't match. New view: " + newView + ", local: " + this + ", newValue: " + Arrays.toString(newValue) + ", old: " + Arrays.toString(getValue());
                 break;
                 
             case KNOWN:
@@ -386,7 +459,7 @@ public class ConsensusInstance implements Serializable {
         if (state == LogEntryState.DECIDED) {
             logger.warning("Updating a decided instance from a catchup message: " + this);
             // The value must be the same as the local value. No change.
-            assert Arrays.equals(newValue, value) : "Values don't match. New view: " + newView + ", local: " + this;
+            assert Arrays.equals(newValue, getValue()) : "Values don't match. New view: " + newView + ", local: " + this;
             
         } else {
             this.view = newView;
@@ -2,6 +2,7 @@ package lsr.paxos.storage;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.concurrent.Executor;
 
 import lsr.paxos.Snapshot;
 
@@ -25,8 +26,22 @@ public interface DiscWriter {
 
     Snapshot getSnapshot();
 
+    /**
+     * Allows to remove the records of the instances below given one, which
+     * are covered by the last snapshot.
+     */
+    void truncateBelow(int instanceId);
+
     /* Asynchronous (but must be written before/with next synchronous) */
 
     void decideInstance(int instanceId);
 
+    /**
+     * Executes the task once all the records written so far are on stable
+     * storage. If the records are already durable, the task is executed
+     * immediately by the calling thread; otherwise it is passed to the
+     * executor.
+     */
+    void whenDurable(Runnable task, Executor executor);
+
 }
\ No newline at end of file
@@ -2,25 +2,47 @@ package lsr.paxos.storage;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import lsr.common.KillOnExceptionHandler;
+import lsr.common.ProcessDescriptor;
+import lsr.paxos.NamedThreadFactory;
 import lsr.paxos.Snapshot;
+import lsr.paxos.statistics.Counter;
+import lsr.paxos.statistics.Gauge;
+import lsr.paxos.statistics.MetricsRegistry;
 
 /**
  * Implementation of an incremental log - each event is recorded as a byte
@@ -31,12 +53,47 @@ import lsr.paxos.Snapshot;
  * 
  * The writer always start a new file in provided directory.
  * 
+ * The records are appended to a write-ahead log made of fixed-size,
+ * pre-allocated and memory-mapped segments (see {@link LogSegment}), each
+ * record protected by a checksum, so that a record torn by a crash is detected
+ * when reading the log. When a snapshot is made, the segments holding only
+ * instances below it are deleted (see {@link #truncateBelow}), so the log
+ * replayed on recovery holds only the instances after the last snapshot.
+ * Logs written by the older versions (<code>sync.N.log</code>, without
+ * checksums) are still read.
+ * 
+ * In group commit mode, the records are only serialized by the calling thread
+ * (the Protocol thread) and passed to a writer thread through a lock-free
+ * queue. The writer thread writes them in groups, and syncs the log for all the
+ * records written so far whenever some task waits for them (see
+ * {@link #whenDurable}). So the records of all the instances in the window are
+ * made durable by a single sync, and disk latency does not delay the protocol.
+ * The methods writing records must be called by a single thread. Otherwise
+ * every record is written, and synced if needed, before the method returns.
+ * 
  * @author Tomasz Żurkowski
  * @author Jan Kończak
  */
 
 public class FullSSDiscWriter implements DiscWriter {
-    private FileOutputStream logStream;
+    /** Default size of the log segments, in bytes */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** Interval between the reports of the progress of the log replay, in ms */
+    private static final int PROGRESS_INTERVAL = 1000;
+    private static final int PROGRESS_BYTES = 1024 * 1024;
+
+    private static final Pattern LOG_FILE = Pattern.compile("sync\\.(\\d+)\\.(log|view)");
+    private static final Pattern LEGACY_LOG_FILE = Pattern.compile("sync\\.(\\d+)\\.log");
+    private static final Pattern SEGMENT_FILE = Pattern.compile("wal\\.(\\d+)\\.seg");
+
+    /** Runs the tasks of {@link #whenDurable} in the thread completing them */
+    private static final Executor SAME_THREAD = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
     private final String directoryPath;
     private File directory;
     private DataOutputStream viewStream;
@@ -44,6 +101,37 @@ public class FullSSDiscWriter implements DiscWriter {
     private Snapshot snapshot;
     private FileDescriptor viewStreamFD;
 
+    private final int segmentSize;
+    private int nextSegmentNumber;
+    /** The segment being written, only used by the thread writing records */
+    private LogSegment segment = null;
+    /**
+     * All the segments of the log, oldest first. The last one is being
+     * written. Guarded by itself.
+     */
+    private final List<LogSegment> segments = new ArrayList<LogSegment>();
+
+    private final boolean groupCommit;
+    /**
+     * Number of records that must be synced written so far. Only changed by
+     * the thread writing the records.
+     */
+    private long writtenRecords = 0;
+    /** Number of records known to be on disk */
+    private volatile long syncedRecords = 0;
+
+    /** Records and tasks waiting for the writer thread, in order */
+    private final ConcurrentLinkedQueue<Object> writeQueue = new ConcurrentLinkedQueue<Object>();
+    /** ConcurrentLinkedQueue.size() is linear */
+    private final AtomicInteger writeQueueSize = new AtomicInteger();
+    /** Set by the writer thread before parking, when the queue is empty */
+    private volatile boolean writerWaiting = false;
+    private volatile boolean closing = false;
+    private final Thread writerThread;
+    private final Counter syncs = MetricsRegistry.getInstance().counter("storage.syncs");
+    private final Counter syncedRecordsCounter = MetricsRegistry.getInstance().counter(
+            "storage.syncedRecords");
+
     /* * Record types * */
     /* Sync */
     private static final byte CHANGE_VIEW = 0x01;
@@ -53,6 +141,24 @@ public class FullSSDiscWriter implements DiscWriter {
     private static final byte DECIDED = 0x21;
 
     public FullSSDiscWriter(String directoryPath) throws FileNotFoundException {
+        this(directoryPath, false);
+    }
+
+    public FullSSDiscWriter(String directoryPath, boolean groupCommit)
+            throws FileNotFoundException {
+        this(directoryPath, groupCommit, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a writer starting a new log in the directory.
+     * 
+     * @param directoryPath - the directory for the logs
+     * @param groupCommit - if true, syncs the records in groups, as
+     *            described above
+     * @param segmentSize - the size of the log segments, in bytes
+     */
+    public FullSSDiscWriter(String directoryPath, boolean groupCommit, int segmentSize)
+            throws FileNotFoundException {
         if (directoryPath.endsWith("/")) {
             throw new RuntimeException("Directory path cannot ends with /");
         }
@@ -60,7 +166,9 @@ public class FullSSDiscWriter implements DiscWriter {
         directory = new File(directoryPath);
         directory.mkdirs();
         int nextLogNumber = getLastLogNumber(directory.list()) + 1;
-        logStream = new FileOutputStream(this.directoryPath + "/sync." + nextLogNumber + ".log");
+        this.segmentSize = segmentSize;
+        // The first segment is created with the first record
+        nextSegmentNumber = getLastNumber(directory.list(), SEGMENT_FILE) + 1;
 
         FileOutputStream fos = new FileOutputStream(this.directoryPath + "/sync." + nextLogNumber +
                                                     ".view");
@@ -73,14 +181,32 @@ public class FullSSDiscWriter implements DiscWriter {
             // Should include better reaction for i-don't-know-what
             throw new RuntimeException("Eeeee... When this happens?");
         }
+
+        this.groupCommit = groupCommit;
+        if (groupCommit) {
+            writerThread = new Thread(new WriterThread(), "StorageWriter");
+            writerThread.setDaemon(true);
+            writerThread.setUncaughtExceptionHandler(new KillOnExceptionHandler());
+            writerThread.start();
+            MetricsRegistry.getInstance().registerGauge("storage.writeQueue", new Gauge() {
+                public long getValue() {
+                    return writeQueueSize.get();
+                }
+            });
+        } else {
+            writerThread = null;
+        }
     }
 
     protected int getLastLogNumber(String[] files) {
-        Pattern pattern = Pattern.compile("sync\\.(\\d+)\\.log");
+        return getLastNumber(files, LOG_FILE);
+    }
+
+    private static int getLastNumber(String[] files, Pattern pattern) {
         int last = -1;
         for (String fileName : files) {
             Matcher matcher = pattern.matcher(fileName);
-            if (matcher.find()) {
+            if (matcher.matches()) {
                 int x = Integer.parseInt(matcher.group(1));
                 last = Math.max(x, last);
             }
@@ -88,16 +214,30 @@ public class FullSSDiscWriter implements DiscWriter {
         return last;
     }
 
+    private static List<Integer> getNumbers(String[] files, Pattern pattern) {
+        List<Integer> numbers = new ArrayList<Integer>();
+        for (String fileName : files) {
+            Matcher matcher = pattern.matcher(fileName);
+            if (matcher.matches()) {
+                numbers.add(Integer.parseInt(matcher.group(1)));
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private String segmentFileName(int number) {
+        return directoryPath + "/wal." + number + ".seg";
+    }
+
     public void changeInstanceView(int instanceId, int view) {
         try {
             ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 4);
             buffer.put(CHANGE_VIEW);
             buffer.putInt(instanceId);
             buffer.putInt(view);
-            logStream.write(buffer.array());
-            logStream.flush();
-            logStream.getFD().sync();
-            logger.fine("Log stream sync'd (change instance view)");
+            appendRecord(buffer, true);
+            logger.fine("Log stream written (change instance view)");
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -121,23 +261,201 @@ public class FullSSDiscWriter implements DiscWriter {
                 buffer.putInt(value.length);
                 buffer.put(value);
             }
-            logStream.write(buffer.array());
-            logStream.flush();
-            logStream.getFD().sync();
-            logger.fine("Log stream sync'd (change instance value)");
+            appendRecord(buffer, true);
+            logger.fine("Log stream written (change instance value)");
 
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Appends the record to the log. In group commit mode, the record is
+     * passed to the writer thread; otherwise it is written, and synced if
+     * required, before returning.
+     * 
+     * @param buffer - the record, the buffer is flipped by this method
+     * @param sync - if the record must be synced before depending on it
+     */
+    private void appendRecord(ByteBuffer buffer, boolean sync) throws IOException {
+        buffer.flip();
+        if (sync) {
+            writtenRecords++;
+        }
+        if (groupCommit) {
+            enqueue(buffer);
+        } else {
+            writeRecord(buffer);
+            if (sync) {
+                segment.force();
+                syncedRecords = writtenRecords;
+            }
+        }
+    }
+
+    /**
+     * Copies the record to the current segment, starting a new one if it does
+     * not fit. Called only by the thread writing the records.
+     */
+    private void writeRecord(ByteBuffer record) throws IOException {
+        if (segment == null || !segment.append(record)) {
+            rollSegment(record.remaining());
+            if (!segment.append(record)) {
+                throw new AssertionError("Record does not fit in a new segment");
+            }
+        }
+        recordAdded(segment, record);
+    }
+
+    private static void recordAdded(LogSegment segment, ByteBuffer record) {
+        int start = record.position();
+        segment.recordAdded(record.getInt(start + 1), record.get(start) == SNAPSHOT);
+    }
+
+    /**
+     * Starts a new segment, large enough for a record of given size. The
+     * previous segment is synced first, so a record is never durable before
+     * the records preceding it.
+     */
+    private void rollSegment(int recordSize) throws IOException {
+        if (segment != null) {
+            segment.force();
+            segment.close();
+        }
+        int size = Math.max(segmentSize, LogSegment.HEADER_SIZE + recordSize);
+        LogSegment next = LogSegment.create(new File(segmentFileName(nextSegmentNumber)),
+                nextSegmentNumber, size);
+        nextSegmentNumber++;
+        synchronized (segments) {
+            segments.add(next);
+        }
+        segment = next;
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Started log segment " + next);
+        }
+    }
+
+    public void whenDurable(Runnable task, Executor executor) {
+        if (syncedRecords >= writtenRecords) {
+            task.run();
+            return;
+        }
+        enqueue(new PendingTask(writtenRecords, task, executor));
+    }
+
+    private void enqueue(Object entry) {
+        writeQueue.offer(entry);
+        writeQueueSize.incrementAndGet();
+        if (writerWaiting) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private static final class PendingTask {
+        /** The task may run once this number of records is synced */
+        final long records;
+        final Runnable task;
+        final Executor executor;
+
+        PendingTask(long records, Runnable task, Executor executor) {
+            this.records = records;
+            this.task = task;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * Takes the records and tasks from the write queue, in order. Everything
+     * available is written with a single write; if tasks are waiting, the log
+     * is synced once for all of them and the tasks are passed to their
+     * executors. Meanwhile the protocol keeps adding records for other
+     * instances, which go to the next group.
+     */
+    private final class WriterThread implements Runnable {
+        private static final int MAX_GROUP = 1024;
+        private final ByteBuffer[] records = new ByteBuffer[MAX_GROUP];
+        private int recordCount = 0;
+        private final List<PendingTask> tasks = new ArrayList<PendingTask>();
+
+        public void run() {
+            try {
+                while (true) {
+                    Object entry = writeQueue.poll();
+                    if (entry == null) {
+                        if (recordCount > 0 || !tasks.isEmpty()) {
+                            commit();
+                        } else if (closing) {
+                            return;
+                        } else {
+                            waitForEntries();
+                        }
+                        continue;
+                    }
+
+                    writeQueueSize.decrementAndGet();
+                    if (entry instanceof ByteBuffer) {
+                        records[recordCount++] = (ByteBuffer) entry;
+                        if (recordCount == MAX_GROUP) {
+                            commit();
+                        }
+                    } else {
+                        tasks.add((PendingTask) entry);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void waitForEntries() {
+            writerWaiting = true;
+            // Checked again after setting the flag, see enqueue()
+            if (writeQueue.isEmpty() && !closing) {
+                LockSupport.park(this);
+            }
+            writerWaiting = false;
+        }
+
+        /** Writes the records taken so far, and syncs them if needed */
+        private void commit() throws IOException {
+            for (int i = 0; i < recordCount; i++) {
+                writeRecord(records[i]);
+            }
+            Arrays.fill(records, 0, recordCount, null);
+            recordCount = 0;
+
+            if (tasks.isEmpty()) {
+                return;
+            }
+            // The records of all the tasks were added before the tasks
+            long synced = syncedRecords;
+            for (PendingTask task : tasks) {
+                synced = Math.max(synced, task.records);
+            }
+            if (segment != null) {
+                segment.force();
+            }
+            syncs.inc();
+            syncedRecordsCounter.add(synced - syncedRecords);
+            syncedRecords = synced;
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Log stream sync'd. Records: " + synced + ", tasks: " + tasks.size());
+            }
+
+            for (PendingTask task : tasks) {
+                task.executor.execute(task.task);
+            }
+            tasks.clear();
+        }
+    }
+
     public void decideInstance(int instanceId) {
         try {
             ByteBuffer buffer = ByteBuffer.allocate(1 + /* byte type */
             4/* int instance ID */);
             buffer.put(DECIDED);
             buffer.putInt(instanceId);
-            logStream.write(buffer.array());
+            appendRecord(buffer, false);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -160,26 +478,34 @@ public class FullSSDiscWriter implements DiscWriter {
 
     public void newSnapshot(Snapshot snapshot) {
         try {
-            String oldSnapshotFileName = snapshotFileName();
+            final String oldSnapshotFileName = snapshotFileName();
             snapshotFileNumber++;
             String newSnapshotFileName = snapshotFileName();
 
-            DataOutputStream snapshotStream = new DataOutputStream(
-                    new FileOutputStream(newSnapshotFileName, false));
+            FileOutputStream snapshotFile = new FileOutputStream(newSnapshotFileName, false);
+            DataOutputStream snapshotStream = new DataOutputStream(snapshotFile);
             snapshot.writeTo(snapshotStream);
+            snapshotStream.flush();
+            // Log segments are deleted once the snapshot record is durable,
+            // the snapshot itself must be durable before
+            snapshotFile.getFD().sync();
             snapshotStream.close();
 
             // byte type(1) + int instance id(4)
             ByteBuffer buffer = ByteBuffer.allocate(1 + 4);
             buffer.put(SNAPSHOT);
             buffer.putInt(snapshotFileNumber);
-            logStream.write(buffer.array());
-
-            if (new File(oldSnapshotFileName).exists()) {
-                if (!new File(oldSnapshotFileName).delete()) {
-                    throw new RuntimeException("File removal failed!");
+            appendRecord(buffer, true);
+
+            // The old snapshot is needed until the log points to the new one
+            whenDurable(new Runnable() {
+                public void run() {
+                    File oldSnapshot = new File(oldSnapshotFileName);
+                    if (oldSnapshot.exists() && !oldSnapshot.delete()) {
+                        logger.warning("Could not remove old snapshot " + oldSnapshotFileName);
+                    }
                 }
-            }
+            }, SAME_THREAD);
 
             this.snapshot = snapshot;
         } catch (IOException e) {
@@ -191,104 +517,306 @@ public class FullSSDiscWriter implements DiscWriter {
         return snapshot;
     };
 
+    /**
+     * Deletes the log segments holding only records of instances below given
+     * one, once the records written so far (including the record of the last
+     * snapshot) are durable. The segment being written and the segment with
+     * the record of the last snapshot are never deleted.
+     */
+    public void truncateBelow(final int instanceId) {
+        whenDurable(new Runnable() {
+            public void run() {
+                deleteSegmentsBelow(instanceId);
+            }
+        }, SAME_THREAD);
+    }
+
+    private void deleteSegmentsBelow(int instanceId) {
+        synchronized (segments) {
+            int lastSnapshot = segments.size() - 1;
+            while (lastSnapshot >= 0 && !segments.get(lastSnapshot).hasSnapshot()) {
+                lastSnapshot--;
+            }
+            int deletable = Math.min(lastSnapshot, segments.size() - 1);
+
+            Iterator<LogSegment> it = segments.iterator();
+            for (int i = 0; i < deletable; i++) {
+                LogSegment old = it.next();
+                if (old.getMaxInstanceId() >= instanceId) {
+                    continue;
+                }
+                try {
+                    if (!old.delete()) {
+                        logger.warning("Could not remove log segment " + old);
+                        continue;
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Could not remove log segment " + old, e);
+                    continue;
+                }
+                it.remove();
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Removed log segment " + old + " below instance " + instanceId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the remaining records and stops the writer thread before closing
+     * the files.
+     */
     public void close() throws IOException {
-        logStream.close();
+        if (writerThread != null) {
+            closing = true;
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (segment != null) {
+            segment.force();
+            segment.close();
+        }
         viewStream.close();
     }
 
+    /**
+     * Reads the log. The segments are mapped and their records validated in
+     * parallel, by one thread per processor, which is most of the work. Then
+     * the records are applied in order, skipping the instances below the last
+     * snapshot unless the snapshots may not be shared with other replicas (the
+     * log is then the only way for them to catch up). The progress is logged
+     * every second.
+     */
     public Collection<ConsensusInstance> load() throws IOException {
-        Pattern pattern = Pattern.compile("sync\\.(\\d+)\\.log");
-        List<Integer> numbers = new ArrayList<Integer>();
-        for (String fileName : directory.list()) {
-            Matcher matcher = pattern.matcher(fileName);
-            if (matcher.find()) {
-                int x = Integer.parseInt(matcher.group(1));
-                numbers.add(x);
-            }
+        long start = System.currentTimeMillis();
+        TreeMap<Integer, ConsensusInstance> instances = new TreeMap<Integer, ConsensusInstance>();
+
+        // Logs written before the segments were introduced
+        for (Integer number : getNumbers(directory.list(), LEGACY_LOG_FILE)) {
+            loadLegacyLog(new File(directoryPath + "/sync." + number + ".log"), instances);
         }
-        Collections.sort(numbers);
 
-        Map<Integer, ConsensusInstance> instances = new TreeMap<Integer, ConsensusInstance>();
-        for (Integer number : numbers) {
-            String fileName = "sync." + number + ".log";
-            loadInstances(new File(directoryPath + "/" + fileName), instances);
+        List<SegmentScan> scans = scanSegments(getNumbers(directory.list(), SEGMENT_FILE));
+        for (SegmentScan scan : scans) {
+            if (scan.snapshotNumber != -1) {
+                snapshotFileNumber = scan.snapshotNumber;
+            }
         }
 
-        if (snapshotFileNumber == -1) {
-            return instances.values();
+        int first = 0;
+        if (snapshotFileNumber != -1) {
+            DataInputStream snapshotStream = new DataInputStream(
+                    new FileInputStream(snapshotFileName()));
+
+            snapshot = new Snapshot(snapshotStream);
+            snapshotStream.close();
+
+            if (ProcessDescriptor.getInstance().mayShareSnapshots) {
+                first = snapshot.getNextInstanceId();
+                instances.headMap(first).clear();
+            }
         }
 
-        DataInputStream snapshotStream = new DataInputStream(
-                new FileInputStream(snapshotFileName()));
+        long records = 0;
+        long bytes = 0;
+        List<LogSegment> loaded = new ArrayList<LogSegment>();
+        for (SegmentScan scan : scans) {
+            LogSegment old = scan.segment;
+            for (int i = 0; i < scan.count; i++) {
+                ByteBuffer record = old.recordAt(scan.offsets[i]);
+                int type = record.get(record.position());
+                int id = record.getInt(record.position() + 1);
+                if (type != SNAPSHOT && id < first) {
+                    continue;
+                }
+                loadRecord(record, instances);
+            }
+            if (old.isTorn()) {
+                // it is possible that last record is corrupted
+                logger.warning("The log segment " + old + " is broken at byte " +
+                               old.getPosition() + ", ignoring the rest of it");
+            }
+            records += scan.count;
+            bytes += old.getPosition();
+            old.close();
+            loaded.add(old);
+        }
+        synchronized (segments) {
+            segments.addAll(0, loaded);
+        }
 
-        snapshot = new Snapshot(snapshotStream);
-        snapshotStream.close();
+        long duration = Math.max(1, System.currentTimeMillis() - start);
+        logger.info("Log replayed: " + records + " records in " + scans.size() +
+                    " segments, " + (bytes >> 20) + " MB in " + duration + " ms (" +
+                    (bytes >> 20) * 1000 / duration + " MB/s), " + instances.size() +
+                    " instances from " + first);
 
         return instances.values();
     }
 
-    private void loadInstances(File file, Map<Integer, ConsensusInstance> instances)
-            throws IOException {
-        DataInputStream stream = new DataInputStream(new FileInputStream(file));
+    /**
+     * Opens and validates the segments in parallel.
+     *
+     * @return the scans of the segments, in the order of the numbers
+     */
+    private List<SegmentScan> scanSegments(List<Integer> numbers) throws IOException {
+        List<SegmentScan> scans = new ArrayList<SegmentScan>();
+        if (numbers.isEmpty()) {
+            return scans;
+        }
 
-        while (true) {
-            try {
-                int type = stream.read();
-                if (type == -1) {
-                    break;
-                }
-                int id = stream.readInt();
+        long total = 0;
+        for (Integer number : numbers) {
+            total += new File(segmentFileName(number)).length();
+        }
+        AtomicLong scanned = new AtomicLong();
 
-                switch (type) {
-                    case CHANGE_VIEW: {
-                        int view = stream.readInt();
-                        if (instances.get(id) == null) {
-                            instances.put(id, new ConsensusInstance(id));
-                        }
-                        ConsensusInstance instance = instances.get(id);
-                        instance.setView(view);
-                        break;
-                    }
-                    case CHANGE_VALUE: {
-                        int view = stream.readInt();
-                        int length = stream.readInt();
-                        byte[] value;
-                        if (length == -1) {
-                            value = null;
-                        } else {
-                            value = new byte[length];
-                            stream.readFully(value);
-                        }
-                        if (instances.get(id) == null) {
-                            instances.put(id, new ConsensusInstance(id));
-                        }
-                        ConsensusInstance instance = instances.get(id);
-                        instance.updateStateFromKnown(view, value);
-                        break;
-                    }
-                    case DECIDED: {
-                        ConsensusInstance instance = instances.get(id);
-                        assert instance != null : "Decide for non-existing instance";
-                        instance.setDecided();
-                        break;
-                    }
-                    case SNAPSHOT: {
-                        snapshotFileNumber = id;
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), numbers.size());
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new NamedThreadFactory("LogReplay"));
+        try {
+            List<Future<SegmentScan>> futures = new ArrayList<Future<SegmentScan>>();
+            for (Integer number : numbers) {
+                futures.add(executor.submit(new SegmentScan(number, scanned)));
+            }
+
+            long start = System.currentTimeMillis();
+            for (Future<SegmentScan> future : futures) {
+                while (true) {
+                    try {
+                        scans.add(future.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS));
                         break;
+                    } catch (TimeoutException e) {
+                        long done = scanned.get();
+                        long duration = Math.max(1, System.currentTimeMillis() - start);
+                        logger.info("Replaying log: " + (done >> 20) + " of " + (total >> 20) +
+                                    " MB (" + (done >> 20) * 1000 / duration + " MB/s)");
+                    } catch (ExecutionException e) {
+                        throw new IOException("Could not read the log", e.getCause());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while reading the log");
                     }
-                    default:
-                        assert false : "Unrecognized log record type";
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return scans;
+    }
+
+    /** Validates the records of a segment and remembers their offsets */
+    private final class SegmentScan implements Callable<SegmentScan> {
+        private final int number;
+        private final AtomicLong scanned;
+        LogSegment segment;
+        int[] offsets = new int[1024];
+        int count = 0;
+        /** The snapshot file number from the last snapshot record, or -1 */
+        int snapshotNumber = -1;
+
+        SegmentScan(int number, AtomicLong scanned) {
+            this.number = number;
+            this.scanned = scanned;
+        }
 
+        public SegmentScan call() throws IOException {
+            segment = LogSegment.open(new File(segmentFileName(number)), number);
+            int reported = 0;
+            int offset;
+            while ((offset = segment.nextRecord()) != -1) {
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, 2 * count);
                 }
+                offsets[count++] = offset;
 
-            } catch (EOFException e) {
+                ByteBuffer record = segment.recordAt(offset);
+                recordAdded(segment, record);
+                if (record.get(record.position()) == SNAPSHOT) {
+                    snapshotNumber = record.getInt(record.position() + 1);
+                }
+                if (segment.getPosition() - reported > PROGRESS_BYTES) {
+                    scanned.addAndGet(segment.getPosition() - reported);
+                    reported = segment.getPosition();
+                }
+            }
+            // The rest of the file is empty
+            scanned.addAndGet(segment.getSize() - reported);
+            return this;
+        }
+    }
+
+    private void loadLegacyLog(File file, Map<Integer, ConsensusInstance> instances)
+            throws IOException {
+        DataInputStream stream = new DataInputStream(new FileInputStream(file));
+        byte[] data = new byte[(int) file.length()];
+        stream.readFully(data);
+        stream.close();
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            try {
+                loadRecord(buffer, instances);
+            } catch (BufferUnderflowException e) {
                 // it is possible that last chunk of data is corrupted
-                logger.warning("The log file with consensus instaces is incomplete or broken. " +
-                               e.getMessage());
+                logger.warning("The log file with consensus instaces is incomplete or broken.");
                 break;
             }
         }
-        stream.close();
+    }
+
+    /** Applies the log record read from the buffer to the instances */
+    private void loadRecord(ByteBuffer buffer, Map<Integer, ConsensusInstance> instances) {
+        int type = buffer.get();
+        int id = buffer.getInt();
+
+        switch (type) {
+            case CHANGE_VIEW: {
+                int view = buffer.getInt();
+                if (instances.get(id) == null) {
+                    instances.put(id, new ConsensusInstance(id));
+                }
+                ConsensusInstance instance = instances.get(id);
+                instance.setView(view);
+                break;
+            }
+            case CHANGE_VALUE: {
+                int view = buffer.getInt();
+                int length = buffer.getInt();
+                byte[] value;
+                if (length == -1) {
+                    value = null;
+                } else {
+                    value = new byte[length];
+                    buffer.get(value);
+                }
+                if (instances.get(id) == null) {
+                    instances.put(id, new ConsensusInstance(id));
+                }
+                ConsensusInstance instance = instances.get(id);
+                instance.updateStateFromKnown(view, value);
+                break;
+            }
+            case DECIDED: {
+                ConsensusInstance instance = instances.get(id);
+                // The value may be in a segment removed after a snapshot
+                if (instance != null) {
+                    instance.setDecided();
+                }
+                break;
+            }
+            case SNAPSHOT: {
+                snapshotFileNumber = id;
+                break;
+            }
+            default:
+                assert false : "Unrecognized log record type";
+
+        }
     }
 
     public int loadViewNumber() throws IOException {
@@ -2,6 +2,7 @@ package lsr.paxos.storage;
 
 import java.util.BitSet;
 import java.util.SortedMap;
+import java.util.concurrent.Executor;
 
 import lsr.common.ProcessDescriptor;
 import lsr.paxos.Snapshot;
@@ -15,6 +16,8 @@ public class InMemoryStorage implements Storage {
     protected Log log;
     private Snapshot lastSnapshot;
     private long[] epoch = new long[0];
+    /* Set by the adaptive window of the leader, 0 for WindowSize */
+    private volatile int windowSize = 0;
     
     private final BitSet allProcesses = new BitSet(); 
 
@@ -77,6 +80,11 @@ public class InMemoryStorage implements Storage {
         }
     }
 
+    public void whenDurable(Runnable task, Executor executor) {
+        // Nothing is written to disk
+        task.run();
+    }
+
     public BitSet getAcceptors() {        
         return (BitSet) allProcesses.clone();
     }
@@ -108,7 +116,12 @@ public class InMemoryStorage implements Storage {
     }
 
     public boolean isInWindow(int instanceId) {
-        return instanceId < firstUncommitted + ProcessDescriptor.getInstance().windowSize;
+        return instanceId < firstUncommitted + getUndecidedSpan();
+    }
+
+    public int getUndecidedSpan() {
+        ProcessDescriptor pd = ProcessDescriptor.getInstance();
+        return pd.multiLeader ? pd.windowSize * pd.numReplicas : pd.windowSize;
     }
     
     public int getWindowUsed() {
@@ -116,7 +129,19 @@ public class InMemoryStorage implements Storage {
     }
     
     public boolean isWindowFull() {    
-        return getWindowUsed() == ProcessDescriptor.getInstance().windowSize;
+        // The window may have shrunk below the instances already proposed
+        return getWindowUsed() >= getWindowSize();
+    }
+
+    public int getWindowSize() {
+        int size = windowSize;
+        return size > 0 ? size : ProcessDescriptor.getInstance().windowSize;
+    }
+
+    public void setWindowSize(int windowSize) {
+        assert windowSize > 0 && windowSize <= ProcessDescriptor.getInstance().windowSize : 
+            "Invalid window size: " + windowSize;
+        this.windowSize = windowSize;
     }
 
     public boolean isIdle() {
@@ -0,0 +1,293 @@
+package lsr.paxos.storage;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * Consensus instances of the {@link Log}, kept in a circular array indexed by
+ * the instance id. Instance ids are dense and increasing, so the instances
+ * held are the ids in <code>[first, end)</code>; a slot is null for an
+ * instance removed from the middle of the log (see
+ * {@link Log#clearUndecidedBelow(int)}).
+ * <p>
+ * Access by id is a single array read, and truncating the log only moves the
+ * first id and clears the slots with {@link Arrays#fill}. The array doubles
+ * when full.
+ * <p>
+ * {@link #asSortedMap()} gives a read-only <code>SortedMap</code> view for
+ * the code iterating over the log. Not thread-safe.
+ */
+final class InstanceRing {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Capacity is a power of two, the slot of id i is i & mask */
+    private ConsensusInstance[] slots = new ConsensusInstance[INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+    /** Lowest id held */
+    private int first = 0;
+    /** Highest id held + 1 */
+    private int end = 0;
+    /** Number of non-null slots */
+    private int size = 0;
+
+    private final SortedMap<Integer, ConsensusInstance> mapView = new MapView(
+            Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+    /** Returns the instance with given id, or null if it is not held */
+    ConsensusInstance get(int id) {
+        if (id < first || id >= end) {
+            return null;
+        }
+        return slots[id & mask];
+    }
+
+    /**
+     * Adds an instance after the last one; the ids skipped, if any, are holes.
+     * If the ring is empty, the instance becomes the first one.
+     */
+    void add(ConsensusInstance instance) {
+        int id = instance.getId();
+        if (first == end) {
+            first = end = id;
+        }
+        if (id < end) {
+            throw new IllegalArgumentException("Instance " + id + " added after " + (end - 1));
+        }
+        while (id - first >= slots.length) {
+            grow();
+        }
+        slots[id & mask] = instance;
+        end = id + 1;
+        size++;
+    }
+
+    /** Removes a single instance, leaving a hole */
+    void remove(int id) {
+        if (id < first || id >= end || slots[id & mask] == null) {
+            return;
+        }
+        slots[id & mask] = null;
+        size--;
+        if (id == first) {
+            // Keeps the first slot non-null
+            truncateBelow(id + 1);
+        }
+    }
+
+    /** Removes all the instances with id lower than given one */
+    void truncateBelow(int id) {
+        if (id <= first) {
+            return;
+        }
+        if (id >= end) {
+            clear();
+            first = end = id;
+            return;
+        }
+        int from = first & mask;
+        int to = id & mask;
+        size -= count(first, id);
+        if (from < to) {
+            Arrays.fill(slots, from, to, null);
+        } else {
+            Arrays.fill(slots, from, slots.length, null);
+            Arrays.fill(slots, 0, to, null);
+        }
+        first = id;
+        while (first < end && slots[first & mask] == null) {
+            first++;
+        }
+    }
+
+    /** Removes all the instances, keeping the ids */
+    void clear() {
+        Arrays.fill(slots, null);
+        first = end;
+        size = 0;
+    }
+
+    /** Number of instances held with ids in <code>[from, to)</code> */
+    private int count(int from, int to) {
+        if (from <= first && to >= end) {
+            return size;
+        }
+        int count = 0;
+        for (int id = from; id < to; id++) {
+            if (slots[id & mask] != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** The lowest id held; the ring must not be empty */
+    int firstId() {
+        return first;
+    }
+
+    /** The highest id held; the ring must not be empty */
+    int lastId() {
+        int last = end - 1;
+        while (slots[last & mask] == null) {
+            last--;
+        }
+        return last;
+    }
+
+    /**
+     * Returns a read-only view of the instances, sorted by id. The view
+     * reflects the later changes.
+     */
+    SortedMap<Integer, ConsensusInstance> asSortedMap() {
+        return mapView;
+    }
+
+    private void grow() {
+        ConsensusInstance[] larger = new ConsensusInstance[slots.length * 2];
+        int newMask = larger.length - 1;
+        for (int id = first; id < end; id++) {
+            larger[id & newMask] = slots[id & mask];
+        }
+        slots = larger;
+        mask = newMask;
+    }
+
+    /**
+     * Read-only <code>SortedMap</code> over the ids in <code>[from, to)</code>
+     * of the ring.
+     */
+    private final class MapView extends AbstractMap<Integer, ConsensusInstance> implements
+            SortedMap<Integer, ConsensusInstance> {
+        private final int from;
+        private final int to;
+
+        MapView(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        private int low() {
+            return Math.max(from, first);
+        }
+
+        private int high() {
+            return Math.min(to, end);
+        }
+
+        public ConsensusInstance get(Object key) {
+            if (!(key instanceof Integer)) {
+                return null;
+            }
+            int id = (Integer) key;
+            if (id < from || id >= to) {
+                return null;
+            }
+            return InstanceRing.this.get(id);
+        }
+
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        public int size() {
+            return count(low(), high());
+        }
+
+        public boolean isEmpty() {
+            return nextId(low()) >= high();
+        }
+
+        /** The first held id not lower than given one, or high() if none */
+        private int nextId(int id) {
+            int high = high();
+            while (id < high && slots[id & mask] == null) {
+                id++;
+            }
+            return id;
+        }
+
+        public Integer firstKey() {
+            int id = nextId(low());
+            if (id >= high()) {
+                throw new NoSuchElementException();
+            }
+            return id;
+        }
+
+        public Integer lastKey() {
+            int low = low();
+            for (int id = high() - 1; id >= low; id--) {
+                if (slots[id & mask] != null) {
+                    return id;
+                }
+            }
+            throw new NoSuchElementException();
+        }
+
+        public Comparator<? super Integer> comparator() {
+            return null;
+        }
+
+        public SortedMap<Integer, ConsensusInstance> subMap(Integer fromKey, Integer toKey) {
+            if (fromKey > toKey) {
+                throw new IllegalArgumentException("fromKey > toKey");
+            }
+            return new MapView(Math.max(from, fromKey), Math.min(to, toKey));
+        }
+
+        public SortedMap<Integer, ConsensusInstance> headMap(Integer toKey) {
+            return new MapView(from, Math.min(to, toKey));
+        }
+
+        public SortedMap<Integer, ConsensusInstance> tailMap(Integer fromKey) {
+            return new MapView(Math.max(from, fromKey), to);
+        }
+
+        public Set<Entry<Integer, ConsensusInstance>> entrySet() {
+            return new AbstractSet<Entry<Integer, ConsensusInstance>>() {
+                public Iterator<Entry<Integer, ConsensusInstance>> iterator() {
+                    return new Iterator<Entry<Integer, ConsensusInstance>>() {
+                        private int next = nextId(low());
+
+                        public boolean hasNext() {
+                            return next < high();
+                        }
+
+                        public Entry<Integer, ConsensusInstance> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<Integer, ConsensusInstance> entry =
+                                    new SimpleImmutableEntry<Integer, ConsensusInstance>(next,
+                                            slots[next & mask]);
+                            next = nextId(next + 1);
+                            return entry;
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                public int size() {
+                    return MapView.this.size();
+                }
+            };
+        }
+    }
+}
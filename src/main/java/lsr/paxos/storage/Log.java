@@ -1,9 +1,7 @@
 package lsr.paxos.storage;
 
-import java.util.Collections;
 import java.util.List;
 import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.Vector;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -18,8 +16,8 @@ import lsr.paxos.storage.ConsensusInstance.LogEntryState;
  */
 public class Log {
 
-    /** Structure containing all kept instances */
-    protected TreeMap<Integer, ConsensusInstance> instances;
+    /** Structure containing all kept instances, indexed by id */
+    protected InstanceRing instances;
 
     // This field is read from other threads (eg., ActiveFailureDetector), 
     // therefore must be made volatile to ensure visibility of changes
@@ -32,23 +30,55 @@ public class Log {
     /** List of objects to be informed about log changes */
     private List<LogListener> listeners = new Vector<LogListener>();
 
+    /** Off-heap storage for decided values, null if disabled */
+    private ValueArena valueArena = null;
+
     /**
      * Creates new instance of empty <code>Log</code>.
      */
     public Log() {
-        instances = new TreeMap<Integer, ConsensusInstance>();
+        instances = new InstanceRing();
     }
 
-    /** Returns read-only access to the log */
+    /**
+     * Returns read-only access to the log. Prefer {@link #getInstance(int)}
+     * for lookups by id.
+     */
     public SortedMap<Integer, ConsensusInstance> getInstanceMap() {
-        return Collections.unmodifiableSortedMap(instances);
+        return instances.asSortedMap();
+    }
+
+    /**
+     * Keeps the values of the decided instances off-heap, in given arena. The
+     * values of the instances already decided are moved immediately.
+     * 
+     * @param arena - the off-heap storage for values
+     */
+    public void setValueArena(ValueArena arena) {
+        this.valueArena = arena;
+        for (ConsensusInstance instance : instances.asSortedMap().values()) {
+            storeDecidedValue(instance);
+        }
+    }
+
+    /**
+     * Moves the value of a decided instance off-heap, if a value arena is set.
+     * Called once the value was delivered, since it will be read again only to
+     * answer catch-up queries.
+     * 
+     * @param instance - the decided instance
+     */
+    public void storeDecidedValue(ConsensusInstance instance) {
+        if (valueArena != null && instance.getState() == LogEntryState.DECIDED) {
+            instance.moveValueTo(valueArena);
+        }
     }
 
     /** Returns, creating if needed, instance with provided ID */
     public ConsensusInstance getInstance(int instanceId) {
         int oldNextId = nextId;
         while (nextId <= instanceId) {
-            instances.put(nextId, createInstance());
+            instances.add(createInstance());
             nextId++;
         }
         if (oldNextId != nextId) {
@@ -66,7 +96,7 @@ public class Log {
      */
     public ConsensusInstance append(int view, byte[] value) {
         ConsensusInstance instance = createInstance(view, value);
-        instances.put(nextId, instance);
+        instances.add(instance);
         nextId++;
         sizeChanged();
         return instance;
@@ -111,17 +141,9 @@ public class Log {
         lowestAvailable = instanceId;
         nextId = Math.max(nextId, lowestAvailable);
 
-        if (instances.size() == 0) {
-            return;
-        }
-
-        if (instanceId >= nextId) {
-            instances.clear();
-            return;
-        }
-
-        while (instances.firstKey() < instanceId) {
-            instances.pollFirstEntry();
+        instances.truncateBelow(instanceId);
+        if (valueArena != null) {
+            valueArena.releaseBelow(instanceId);
         }
 
         if (logger.isLoggable(Level.FINE)) {
@@ -149,7 +171,7 @@ public class Log {
         lowestAvailable = instanceId;
         nextId = Math.max(nextId, lowestAvailable);
 
-        int first = instances.firstKey();
+        int first = instances.firstId();
         for (int i = first; i < instanceId; i++) {
             ConsensusInstance instance = instances.get(i);
             if (instance != null && instance.getState() != LogEntryState.DECIDED) {
@@ -198,7 +220,10 @@ public class Log {
      * @return size of log in bytes
      */
     public long byteSizeBetween(int startId, int endId) {
-        int start = Math.max(startId, instances.firstKey());
+        if (instances.isEmpty()) {
+            return 0;
+        }
+        int start = Math.max(startId, instances.firstId());
         int stop = Math.min(endId, nextId);
         long size = 0;
         ConsensusInstance current;
@@ -0,0 +1,211 @@
+package lsr.paxos.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.zip.CRC32;
+
+/**
+ * One file of the write-ahead log of {@link FullSSDiscWriter}. The file is
+ * allocated with a fixed size when created and memory-mapped, so appending a
+ * record is a copy to memory, and syncing is a single <code>msync</code> of
+ * the dirty pages.
+ * <p>
+ * Each record is framed as <code>[int length][int crc][payload]</code>, with a
+ * CRC32 of the payload. The file is zero-filled when allocated, so a zero
+ * length marks the end of the data. When reading, a record with a length out
+ * of the file or a wrong checksum is a torn write (the replica crashed while
+ * writing it), and reading stops there.
+ * <p>
+ * Reading is done in two steps: {@link #nextRecord()} validates the records
+ * and returns their offsets, which are later passed to {@link #recordAt(int)}
+ * to get the records, without copying them from the mapped file.
+ * <p>
+ * Not thread-safe, except {@link #recordAt(int)}.
+ */
+final class LogSegment {
+    /** Size of the length and the checksum preceding each record */
+    static final int HEADER_SIZE = 4 + 4;
+
+    private final int number;
+    private final File file;
+    private final FileChannel channel;
+    /** Released when the segment is closed, only the summary is kept */
+    private MappedByteBuffer buffer;
+    private final CRC32 crc = new CRC32();
+    /** The records are copied here to compute their checksums when reading */
+    private byte[] scratch = null;
+    private boolean torn = false;
+
+    /** The highest instance id in the records of this segment, -1 if none */
+    private int maxInstanceId = -1;
+    /** Whether a snapshot record was written to this segment */
+    private boolean hasSnapshot = false;
+
+    private LogSegment(int number, File file, FileChannel channel, MappedByteBuffer buffer) {
+        this.number = number;
+        this.file = file;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates a new segment file of given size, ready for appending.
+     */
+    static LogSegment create(File file, int number, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(size);
+        FileChannel channel = raf.getChannel();
+        return new LogSegment(number, file, channel, channel.map(MapMode.READ_WRITE, 0, size));
+    }
+
+    /**
+     * Maps an existing segment file for reading its records with
+     * {@link #nextRecord()}.
+     */
+    static LogSegment open(File file, int number) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel();
+        return new LogSegment(number, file, channel, channel.map(MapMode.READ_ONLY, 0,
+                channel.size()));
+    }
+
+    /**
+     * Appends the record to the segment. The record is not durable until
+     * {@link #force()} is called.
+     *
+     * @param record - the record, from a heap buffer; its position is not
+     *            changed
+     * @return false if there is not enough space left for the record
+     */
+    boolean append(ByteBuffer record) {
+        int length = record.remaining();
+        assert length > 0 : "Empty records mark the end of the segment";
+        if (buffer.remaining() < HEADER_SIZE + length) {
+            return false;
+        }
+        crc.reset();
+        crc.update(record.array(), record.arrayOffset() + record.position(), length);
+
+        // The length last: until it is written, the record is not visible
+        int start = buffer.position();
+        buffer.position(start + HEADER_SIZE);
+        buffer.put(record.duplicate());
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.putInt(start, length);
+        return true;
+    }
+
+    /**
+     * Validates the next record and moves after it.
+     *
+     * @return the offset of the record, to be passed to {@link #recordAt};
+     *         -1 if there are no more records or the next one is broken (see
+     *         {@link #isTorn()})
+     */
+    int nextRecord() {
+        if (torn || buffer.remaining() < HEADER_SIZE) {
+            return -1;
+        }
+        int start = buffer.position();
+        int length = buffer.getInt(start);
+        if (length == 0) {
+            return -1;
+        }
+        if (length < 0 || length > buffer.remaining() - HEADER_SIZE) {
+            torn = true;
+            return -1;
+        }
+
+        if (scratch == null || scratch.length < length) {
+            scratch = new byte[Math.max(length, 4096)];
+        }
+        buffer.position(start + HEADER_SIZE);
+        buffer.get(scratch, 0, length);
+        crc.reset();
+        crc.update(scratch, 0, length);
+        if ((int) crc.getValue() != buffer.getInt(start + 4)) {
+            buffer.position(start);
+            torn = true;
+            return -1;
+        }
+        return start;
+    }
+
+    /**
+     * Returns the record at given offset, as a view of the mapped file. May be
+     * called by any thread once the offset is known.
+     */
+    ByteBuffer recordAt(int offset) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + HEADER_SIZE);
+        record.limit(offset + HEADER_SIZE + buffer.getInt(offset));
+        return record;
+    }
+
+    /**
+     * Returns true if {@link #nextRecord()} stopped on a record with a wrong
+     * length or checksum.
+     */
+    boolean isTorn() {
+        return torn;
+    }
+
+    /** Writes the records appended so far to the disc */
+    void force() {
+        buffer.force();
+    }
+
+    void close() throws IOException {
+        channel.close();
+        buffer = null;
+        scratch = null;
+    }
+
+    /**
+     * Closes and removes the segment file.
+     */
+    boolean delete() throws IOException {
+        close();
+        return file.delete();
+    }
+
+    int getNumber() {
+        return number;
+    }
+
+    /** Number of bytes written or read so far */
+    int getPosition() {
+        return buffer.position();
+    }
+
+    /** Size of the segment file */
+    int getSize() {
+        return buffer.capacity();
+    }
+
+    int getMaxInstanceId() {
+        return maxInstanceId;
+    }
+
+    boolean hasSnapshot() {
+        return hasSnapshot;
+    }
+
+    /** Updates the summary of the records held by this segment */
+    void recordAdded(int instanceId, boolean snapshot) {
+        if (snapshot) {
+            hasSnapshot = true;
+        } else {
+            maxInstanceId = Math.max(maxInstanceId, instanceId);
+        }
+    }
+
+    public String toString() {
+        return file.getName();
+    }
+}
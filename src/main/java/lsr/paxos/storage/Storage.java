@@ -1,6 +1,7 @@
 package lsr.paxos.storage;
 
 import java.util.BitSet;
+import java.util.concurrent.Executor;
 
 import lsr.paxos.Snapshot;
 
@@ -24,6 +25,18 @@ public interface Storage {
      */
     int getFirstUncommitted();
 
+    /**
+     * Executes the task once all the changes made so far to this storage are
+     * durable. Storages that are not persistent or that write synchronously
+     * execute the task immediately in the calling thread. Otherwise the task
+     * is passed to the executor when the changes are durable.
+     * 
+     * @param task - the task to execute, usually sending a message that
+     *            depends on the changes
+     * @param executor - executes the task if it cannot run immediately
+     */
+    void whenDurable(Runnable task, Executor executor);
+
     /**
      * Returns set of acceptors.
      * 
@@ -40,12 +53,22 @@ public interface Storage {
     Log getLog();
 
     /**
-     * Returns true if the instance is inside a window.
+     * Returns true if the instance is inside a window, that is less than
+     * {@link #getUndecidedSpan()} above the first uncommitted instance.
      * 
      * @param instanceId - the id of consensus instance
      * @return true if the consensus instance id is inside a window
      */
     boolean isInWindow(int instanceId);
+
+    /**
+     * Returns the number of instances above the first uncommitted one that may
+     * be undecided without catch-up being needed. Uses the maximum window
+     * size, as the window of the leader is not known by the other replicas. In
+     * multi-leader mode each owner has its own window, and their instances are
+     * interleaved.
+     */
+    int getUndecidedSpan();
     
     int getWindowUsed();
     
@@ -54,6 +77,21 @@ public interface Storage {
      */
     boolean isWindowFull();
 
+    /**
+     * Returns the number of instances the leader may propose concurrently. Is
+     * <code>WindowSize</code> unless changed by {@link #setWindowSize(int)}.
+     * Can be called from any thread.
+     */
+    int getWindowSize();
+
+    /**
+     * Changes the number of instances the leader may propose concurrently. The
+     * instances already proposed are not affected if the window shrinks.
+     * 
+     * @param windowSize - the new window size, at most <code>WindowSize</code>
+     */
+    void setWindowSize(int windowSize);
+
     /**
      * Returns true if there are no undecided consensus instances.
      * 
@@ -4,6 +4,11 @@ import java.util.Arrays;
 
 public class SynchronousConsensusInstace extends ConsensusInstance {
     private final DiscWriter writer;
+    /**
+     * True while the state is updated by the superclass, so that the change
+     * is written as a single record once the update completes
+     */
+    private boolean updating = false;
 
     public SynchronousConsensusInstace(Integer nextId, LogEntryState known, int view, byte[] value,
                                        DiscWriter writer) {
@@ -26,26 +31,29 @@ public class SynchronousConsensusInstace extends ConsensusInstance {
             throw new RuntimeException("Tried to set old value!");
         }
 
+        byte[] current = getValue();
         if (view == this.view) {
-            assert this.value == null || Arrays.equals(value, this.value);
+            assert current == null || Arrays.equals(value, current);
 
-            if (this.value == null && value != null) {
+            if (current == null && value != null) {
                 writer.changeInstanceValue(id, view, value);
-                this.value = value;
+                assignValue(value);
+                current = value;
             }
         } else { // view > this.view
-            if (Arrays.equals(this.value, value)) {
+            if (Arrays.equals(current, value)) {
                 setView(view);
                 this.view = view;
             } else {
                 writer.changeInstanceValue(id, view, value);
-                this.value = value;
+                assignValue(value);
+                current = value;
                 this.view = view;
             }
         }
 
         if (state != LogEntryState.DECIDED) {
-            if (this.value != null) {
+            if (current != null) {
                 state = LogEntryState.KNOWN;
             } else {
                 state = LogEntryState.UNKNOWN;
@@ -56,8 +64,38 @@ public class SynchronousConsensusInstace extends ConsensusInstance {
     public void setView(int view) {
         assert this.view <= view : "Cannot set smaller view.";
         if (this.view != view) {
+            if (!updating) {
+                writer.changeInstanceView(id, view);
+            }
+            super.setView(view);
+        }
+    }
+
+    public void updateStateFromKnown(int newView, byte[] newValue) {
+        int oldView = view;
+        byte[] oldValue = value;
+        updating = true;
+        try {
+            super.updateStateFromKnown(newView, newValue);
+        } finally {
+            updating = false;
+        }
+        writeChange(oldView, oldValue);
+    }
+
+    public void updateStateFromDecision(int newView, byte[] newValue) {
+        int oldView = view;
+        byte[] oldValue = value;
+        super.updateStateFromDecision(newView, newValue);
+        writeChange(oldView, oldValue);
+    }
+
+    /** Writes the record for the changes done since the given state */
+    private void writeChange(int oldView, byte[] oldValue) {
+        if (value != oldValue && !Arrays.equals(value, oldValue)) {
+            writer.changeInstanceValue(id, view, value);
+        } else if (view != oldView) {
             writer.changeInstanceView(id, view);
-            this.view = view;
         }
     }
 
@@ -1,8 +1,13 @@
 package lsr.paxos.storage;
 
 import java.io.IOException;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
+import lsr.common.ProcessDescriptor;
+import lsr.paxos.Snapshot;
 import lsr.paxos.storage.ConsensusInstance.LogEntryState;
 
 public class SynchronousLog extends Log {
@@ -10,17 +15,33 @@ public class SynchronousLog extends Log {
 
     public SynchronousLog(DiscWriter writer) throws IOException {
         this.writer = writer;
-        Collection<ConsensusInstance> instances = writer.load();
+        List<ConsensusInstance> instances = new ArrayList<ConsensusInstance>(writer.load());
+        // Added to the log in order of ids
+        Collections.sort(instances, new Comparator<ConsensusInstance>() {
+            public int compare(ConsensusInstance o1, ConsensusInstance o2) {
+                return o1.getId() < o2.getId() ? -1 : (o1.getId() == o2.getId() ? 0 : 1);
+            }
+        });
+
+        // The records below the snapshot may have been removed
+        Snapshot snapshot = writer.getSnapshot();
+        if (snapshot != null) {
+            int first = snapshot.getNextInstanceId();
+            for (ConsensusInstance instance : instances) {
+                first = Math.min(first, instance.getId());
+            }
+            nextId = lowestAvailable = first;
+        }
 
         for (ConsensusInstance instance : instances) {
             while (nextId < instance.getId()) {
-                this.instances.put(nextId, createInstance());
+                this.instances.add(createInstance());
                 nextId++;
             }
             nextId++;
 
             ConsensusInstance i = new SynchronousConsensusInstace(instance, this.writer);
-            this.instances.put(instance.getId(), i);
+            this.instances.add(i);
         }
     }
 
@@ -33,6 +54,12 @@ public class SynchronousLog extends Log {
         return new SynchronousConsensusInstace(nextId, LogEntryState.KNOWN, view, value, writer);
     }
 
-    // TODO TZ truncateBelow
+    public void truncateBelow(int instanceId) {
+        super.truncateBelow(instanceId);
+        if (ProcessDescriptor.getInstance().mayShareSnapshots) {
+            writer.truncateBelow(instanceId);
+        }
+    }
+
     // TODO TZ clearUndecidedBelow
 }
@@ -1,6 +1,7 @@
 package lsr.paxos.storage;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
 
 import lsr.paxos.Snapshot;
 
@@ -39,6 +40,10 @@ public class SynchronousStorage extends InMemoryStorage {
         super.setView(view);
     }
 
+    public void whenDurable(Runnable task, Executor executor) {
+        writer.whenDurable(task, executor);
+    }
+
     public void setLastSnapshot(Snapshot snapshot) {
         writer.newSnapshot(snapshot);
         super.setLastSnapshot(snapshot);
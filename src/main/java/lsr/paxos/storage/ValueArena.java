@@ -0,0 +1,205 @@
+package lsr.paxos.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import lsr.paxos.statistics.Gauge;
+import lsr.paxos.statistics.MetricsRegistry;
+
+/**
+ * Off-heap storage for the values of decided instances. Once decided, the
+ * value of an instance is only read to answer catch-up queries, so it is
+ * copied to direct memory and the <code>byte[]</code> is dropped; the heap
+ * used by the log then does not depend on the number of instances kept
+ * between snapshots.
+ * <p>
+ * The values are appended to slabs of direct memory, in the order they are
+ * decided. Values are never freed one by one: a slab is released when the log
+ * is truncated above all the instances stored in it (see
+ * {@link #releaseBelow(int)}). Released slabs are kept for reuse, up to
+ * {@link #MAX_FREE_SLABS}. A value larger than a slab gets a slab of its own.
+ * <p>
+ * A value read after its slab was released is an error; each slab has a
+ * generation, checked by {@link Ref#get()}. All methods are thread-safe.
+ */
+public final class ValueArena {
+    /** Default size of the slabs, in bytes */
+    public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_FREE_SLABS = 4;
+
+    private final int slabSize;
+    /** Slabs holding values, in the order they were filled */
+    private final ArrayDeque<Slab> slabs = new ArrayDeque<Slab>();
+    private final ArrayDeque<Slab> freeSlabs = new ArrayDeque<Slab>();
+    private Slab current = null;
+
+    /** Direct memory allocated for the slabs, in use or free */
+    private long allocatedBytes = 0;
+    /** Bytes taken by the values stored */
+    private long usedBytes = 0;
+
+    public ValueArena(int slabSize) {
+        this.slabSize = slabSize;
+
+        MetricsRegistry.getInstance().registerGauge("storage.offHeapBytes", new Gauge() {
+            public long getValue() {
+                synchronized (ValueArena.this) {
+                    return allocatedBytes;
+                }
+            }
+        });
+        MetricsRegistry.getInstance().registerGauge("storage.offHeapUsedBytes", new Gauge() {
+            public long getValue() {
+                synchronized (ValueArena.this) {
+                    return usedBytes;
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the value of an instance to the arena.
+     *
+     * @param instanceId - the id of the instance holding the value
+     * @param value - the value to store
+     * @return the reference used to read the value back
+     */
+    synchronized Ref store(int instanceId, byte[] value) {
+        if (current == null || current.remaining() < value.length) {
+            current = takeSlab(value.length);
+            slabs.addLast(current);
+        }
+        Ref ref = current.put(instanceId, value);
+        usedBytes += value.length;
+        return ref;
+    }
+
+    /**
+     * Releases the slabs holding only values of instances with id lower than
+     * given one. The values in these slabs must not be read anymore.
+     */
+    synchronized void releaseBelow(int instanceId) {
+        Iterator<Slab> it = slabs.iterator();
+        while (it.hasNext()) {
+            Slab slab = it.next();
+            if (slab == current || slab.maxInstanceId >= instanceId) {
+                continue;
+            }
+            it.remove();
+            usedBytes -= slab.position;
+            slab.reset();
+            if (slab.buffer.capacity() == slabSize && freeSlabs.size() < MAX_FREE_SLABS) {
+                freeSlabs.addLast(slab);
+            } else {
+                // Freed by the garbage collector
+                allocatedBytes -= slab.buffer.capacity();
+            }
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Released values below " + instanceId + ". Slabs: " + slabs.size() +
+                        ", used: " + usedBytes);
+        }
+    }
+
+    private Slab takeSlab(int minSize) {
+        if (minSize <= slabSize && !freeSlabs.isEmpty()) {
+            return freeSlabs.pollFirst();
+        }
+        int size = Math.max(slabSize, minSize);
+        allocatedBytes += size;
+        return new Slab(ByteBuffer.allocateDirect(size));
+    }
+
+    private synchronized byte[] read(Ref ref) {
+        if (ref.generation != ref.slab.generation) {
+            throw new IllegalStateException("Value of instance " + ref.instanceId +
+                                            " read after the log was truncated");
+        }
+        byte[] value = new byte[ref.length];
+        ByteBuffer view = ref.slab.buffer.duplicate();
+        view.position(ref.offset);
+        view.get(value);
+        return value;
+    }
+
+    private synchronized void read(Ref ref, ByteBuffer target) {
+        if (ref.generation != ref.slab.generation) {
+            throw new IllegalStateException("Value of instance " + ref.instanceId +
+                                            " read after the log was truncated");
+        }
+        ByteBuffer view = ref.slab.buffer.duplicate();
+        view.position(ref.offset);
+        view.limit(ref.offset + ref.length);
+        target.put(view);
+    }
+
+    private final class Slab {
+        final ByteBuffer buffer;
+        /** Incremented when released, invalidating the references to it */
+        int generation = 0;
+        int position = 0;
+        int maxInstanceId = -1;
+
+        Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        int remaining() {
+            return buffer.capacity() - position;
+        }
+
+        Ref put(int instanceId, byte[] value) {
+            // The buffer itself is never moved, so that duplicates can be
+            // positioned freely
+            ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            view.put(value);
+            Ref ref = new Ref(this, instanceId, position, value.length);
+            position += value.length;
+            maxInstanceId = Math.max(maxInstanceId, instanceId);
+            return ref;
+        }
+
+        void reset() {
+            generation++;
+            position = 0;
+            maxInstanceId = -1;
+        }
+    }
+
+    /** Location of a value in the arena */
+    final class Ref {
+        private final Slab slab;
+        private final int generation;
+        private final int instanceId;
+        private final int offset;
+        private final int length;
+
+        private Ref(Slab slab, int instanceId, int offset, int length) {
+            this.slab = slab;
+            this.generation = slab.generation;
+            this.instanceId = instanceId;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /** Copies the value to a new array */
+        byte[] get() {
+            return read(this);
+        }
+
+        /** Copies the value to the buffer */
+        void writeTo(ByteBuffer target) {
+            read(this, target);
+        }
+
+        int length() {
+            return length;
+        }
+    }
+
+    private final static Logger logger = Logger.getLogger(ValueArena.class.getCanonicalName());
+}
@@ -0,0 +1,474 @@
+package lsr.paxos.test;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import lsr.common.Configuration;
+import lsr.paxos.ReplicationException;
+import lsr.paxos.client.AsyncClient;
+import lsr.paxos.client.Client;
+import lsr.paxos.client.ClientRuntime;
+import lsr.paxos.client.ClientSession;
+import lsr.paxos.client.ReplyCallback;
+
+/**
+ * Measures the throughput and latency of a cluster of replicas started inside
+ * this JVM by {@link LocalCluster}. The clients run in the same JVM and the
+ * results are printed as a JSON object, so that runs can be compared by
+ * scripts.
+ *
+ * The arguments are <code>key=value</code> pairs. The keys below are used by
+ * the benchmark, all others are passed to the replicas as configuration
+ * properties (eg., <code>WindowSize=4</code>):
+ * <ul>
+ * <li><code>replicas</code> - number of replicas. Default: 3
+ * <li><code>clients</code> - number of clients. Default: 10
+ * <li><code>service</code> - echo or map. Default: echo
+ * <li><code>requestSize</code> - request size for the echo service. Default: 128
+ * <li><code>rate</code> - total request rate, in requests per second. If 0, each
+ * client sends a new request as soon as it receives the previous reply
+ * (closed loop). Otherwise the requests are sent at fixed intervals (open loop)
+ * and the latency is measured from the time the request should have been sent.
+ * Default: 0
+ * <li><code>pipelined</code> - if true, the clients are {@link AsyncClient}s and
+ * send requests without waiting for the previous replies, with up to
+ * <code>ClientPipelineDepth</code> outstanding. Default: false
+ * <li><code>multiplexed</code> - if true, the clients are {@link ClientSession}s
+ * of a single {@link ClientRuntime}, with one connection per replica, driven by
+ * a single thread. Allows thousands of clients. Default: false
+ * <li><code>outstanding</code> - with <code>multiplexed</code> in closed loop,
+ * the number of requests each client keeps outstanding. The requests sent
+ * together are batched in one command. Default: 1
+ * <li><code>reads</code> - fraction of the requests of the blocking clients
+ * sent with {@link Client#executeRead(byte[])}. Served locally by the leader
+ * if <code>LeaderLeaseTimeout</code> is set. Default: 0
+ * <li><code>warmup</code> - seconds of load before starting measurements. Default: 5
+ * <li><code>duration</code> - seconds of measurement. Default: 10
+ * <li><code>output</code> - file for the results. Default: standard output
+ * </ul>
+ * Example:
+ *
+ * <pre>
+ * java -cp jpaxos.jar lsr.paxos.test.ClusterBenchmark replicas=3 clients=50 rate=5000
+ * </pre>
+ */
+public class ClusterBenchmark {
+    private final int replicas;
+    private final int clients;
+    private final String service;
+    private final int requestSize;
+    private final int rate;
+    private final boolean pipelined;
+    private final boolean multiplexed;
+    private final int outstanding;
+    private final double reads;
+    private final int warmup;
+    private final int duration;
+    private final String output;
+    /** Passed to the replicas */
+    private final Properties replicaProperties = new Properties();
+
+    private volatile long measureStart;
+    private volatile long measureEnd;
+
+    // Keep a reference, otherwise the logger and its level can be garbage collected
+    private static final Logger lsrLogger = Logger.getLogger("lsr");
+
+    public ClusterBenchmark(Properties args) {
+        replicas = Integer.parseInt(args.getProperty("replicas", "3"));
+        clients = Integer.parseInt(args.getProperty("clients", "10"));
+        service = args.getProperty("service", "echo");
+        requestSize = Integer.parseInt(args.getProperty("requestSize", "128"));
+        rate = Integer.parseInt(args.getProperty("rate", "0"));
+        pipelined = Boolean.parseBoolean(args.getProperty("pipelined", "false"));
+        multiplexed = Boolean.parseBoolean(args.getProperty("multiplexed", "false"));
+        outstanding = Integer.parseInt(args.getProperty("outstanding", "1"));
+        reads = Double.parseDouble(args.getProperty("reads", "0"));
+        warmup = Integer.parseInt(args.getProperty("warmup", "5"));
+        duration = Integer.parseInt(args.getProperty("duration", "10"));
+        output = args.getProperty("output");
+
+        List<String> ownKeys = Arrays.asList("replicas", "clients", "service", "requestSize",
+                "rate", "pipelined", "multiplexed", "outstanding", "reads",
+                "warmup", "duration", "output");
+        for (String key : args.stringPropertyNames()) {
+            if (!ownKeys.contains(key)) {
+                replicaProperties.setProperty(key, args.getProperty(key));
+            }
+        }
+    }
+
+    public String run() throws Exception {
+        LocalCluster cluster = new LocalCluster(replicas, service, replicaProperties);
+        cluster.start();
+
+        Configuration config = new Configuration(cluster.getConfigFile());
+        long now = System.nanoTime();
+        measureStart = now + warmup * 1000000000L;
+        measureEnd = measureStart + duration * 1000000000L;
+
+        List<ClientThread> threads = new ArrayList<ClientThread>();
+        if (multiplexed) {
+            ClientRuntime runtime = new ClientRuntime(config, 2, replicas);
+            runtime.start();
+            ClientSession[] sessions = new ClientSession[clients];
+            for (int i = 0; i < clients; i++) {
+                sessions[i] = runtime.newSession();
+            }
+            CountDownLatch finished = new CountDownLatch(1);
+            ClientThread thread = new ClientThread(sessions, rate == 0 ? 0 : 1000000000L / rate,
+                    now, finished);
+            threads.add(thread);
+            thread.start();
+            finished.await();
+            runtime.stop();
+            cluster.stop();
+            return toJson(threads);
+        }
+
+        CountDownLatch finished = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            // In open loop, the clients share the total rate and start at
+            // different offsets to spread the requests evenly.
+            long interval = rate == 0 ? 0 : 1000000000L * clients / rate;
+            ClientThread thread = pipelined ?
+                    new ClientThread(new AsyncClient(config), i, interval,
+                            now + interval * i / clients, finished) :
+                    new ClientThread(new Client(config), i, interval,
+                            now + interval * i / clients, finished);
+            threads.add(thread);
+            thread.start();
+        }
+        finished.await();
+        cluster.stop();
+
+        return toJson(threads);
+    }
+
+    class ClientThread extends Thread {
+        private final Client client;
+        private final AsyncClient asyncClient;
+        private final ClientSession[] sessions;
+        private final Random random;
+        /** Interval between requests in open loop, 0 in closed loop */
+        private final long interval;
+        private long nextSend;
+        private final CountDownLatch finished;
+
+        /** Latencies of requests completed during the measurement, in ns */
+        long[] latencies = new long[1024];
+        int completed = 0;
+        int errors = 0;
+
+        public ClientThread(Client client, int id, long interval, long firstSend,
+                            CountDownLatch finished) {
+            this(client, null, null, id, interval, firstSend, finished);
+        }
+
+        public ClientThread(AsyncClient asyncClient, int id, long interval, long firstSend,
+                            CountDownLatch finished) {
+            this(null, asyncClient, null, id, interval, firstSend, finished);
+        }
+
+        public ClientThread(ClientSession[] sessions, long interval, long firstSend,
+                            CountDownLatch finished) {
+            this(null, null, sessions, 0, interval, firstSend, finished);
+        }
+
+        private ClientThread(Client client, AsyncClient asyncClient, ClientSession[] sessions,
+                             int id, long interval, long firstSend, CountDownLatch finished) {
+            super("BenchmarkClient-" + id);
+            this.client = client;
+            this.asyncClient = asyncClient;
+            this.sessions = sessions;
+            this.random = new Random(id);
+            this.interval = interval;
+            this.nextSend = firstSend;
+            this.finished = finished;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (asyncClient != null) {
+                    runPipelined();
+                    return;
+                }
+                if (sessions != null) {
+                    runMultiplexed();
+                    return;
+                }
+                client.connect();
+                while (true) {
+                    long start = nextStart();
+                    if (start >= measureEnd) {
+                        break;
+                    }
+
+                    try {
+                        if (reads > 0 && random.nextDouble() < reads) {
+                            client.executeRead(nextRequest());
+                        } else {
+                            client.execute(nextRequest());
+                        }
+                    } catch (ReplicationException e) {
+                        if (start >= measureStart) {
+                            errors++;
+                        }
+                        continue;
+                    }
+
+                    if (start >= measureStart) {
+                        record(System.nanoTime() - start);
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.warning("Client interrupted");
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Sends the requests without waiting for the replies, the latency is
+         * recorded by the callbacks.
+         */
+        private void runPipelined() throws InterruptedException {
+            asyncClient.connect();
+            while (true) {
+                final long start = nextStart();
+                if (start >= measureEnd) {
+                    break;
+                }
+                asyncClient.execute(nextRequest(), new ReplyCallback() {
+                    public void onReply(byte[] reply) {
+                        if (start >= measureStart) {
+                            record(System.nanoTime() - start);
+                        }
+                    }
+
+                    public void onFailure(ReplicationException e) {
+                        if (start >= measureStart) {
+                            synchronized (ClientThread.this) {
+                                errors++;
+                            }
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * In closed loop, each session sends its next request from the
+         * callback of the previous one. In open loop, the requests are sent
+         * by this thread, by the sessions in turn.
+         */
+        private void runMultiplexed() throws InterruptedException {
+            if (interval == 0) {
+                CountDownLatch done = new CountDownLatch(sessions.length * outstanding);
+                for (ClientSession session : sessions) {
+                    for (int i = 0; i < outstanding; i++) {
+                        new SessionLoop(session, done).sendNext();
+                    }
+                }
+                // Do not wait forever for a lost reply
+                done.await((measureEnd - System.nanoTime()) / 1000000 + 10000,
+                        TimeUnit.MILLISECONDS);
+                return;
+            }
+            int next = 0;
+            while (true) {
+                final long start = nextStart();
+                if (start >= measureEnd) {
+                    break;
+                }
+                sessions[next].execute(nextRequest(), new ReplyCallback() {
+                    public void onReply(byte[] reply) {
+                        if (start >= measureStart) {
+                            record(System.nanoTime() - start);
+                        }
+                    }
+
+                    public void onFailure(ReplicationException e) {
+                        if (start >= measureStart) {
+                            synchronized (ClientThread.this) {
+                                errors++;
+                            }
+                        }
+                    }
+                });
+                next = (next + 1) % sessions.length;
+            }
+        }
+
+        /** Sends the requests of a session in closed loop, one at a time */
+        private class SessionLoop implements ReplyCallback {
+            private final ClientSession session;
+            private final CountDownLatch done;
+            private long start;
+
+            SessionLoop(ClientSession session, CountDownLatch done) {
+                this.session = session;
+                this.done = done;
+            }
+
+            void sendNext() {
+                start = System.nanoTime();
+                if (start >= measureEnd) {
+                    done.countDown();
+                    return;
+                }
+                session.execute(nextRequest(), this);
+            }
+
+            public void onReply(byte[] reply) {
+                if (start >= measureStart) {
+                    record(System.nanoTime() - start);
+                }
+                sendNext();
+            }
+
+            public void onFailure(ReplicationException e) {
+                if (start >= measureStart) {
+                    synchronized (ClientThread.this) {
+                        errors++;
+                    }
+                }
+                sendNext();
+            }
+        }
+
+        /** Returns the time the next request is sent, in ns */
+        private long nextStart() throws InterruptedException {
+            if (interval == 0) {
+                return System.nanoTime();
+            }
+            // Sleep until the scheduled time. If late, send
+            // immediately; the delay is counted in the latency.
+            long start = nextSend;
+            nextSend += interval;
+            long sleep = start - System.nanoTime();
+            if (sleep > 0) {
+                Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+            }
+            return start;
+        }
+
+        private synchronized void record(long latency) {
+            if (completed == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            }
+            latencies[completed++] = latency;
+        }
+
+        private byte[] nextRequest() {
+            if (service.equals("map")) {
+                return new MapServiceCommand((long) random.nextInt(1024),
+                        random.nextLong()).toByteArray();
+            }
+            byte[] request = new byte[requestSize];
+            random.nextBytes(request);
+            return request;
+        }
+    }
+
+    private String toJson(List<ClientThread> threads) {
+        int total = 0;
+        int errors = 0;
+        long[] all = new long[0];
+        for (ClientThread thread : threads) {
+            // The replies to pipelined requests may still be arriving
+            synchronized (thread) {
+                all = Arrays.copyOf(all, total + thread.completed);
+                System.arraycopy(thread.latencies, 0, all, total, thread.completed);
+                total += thread.completed;
+                errors += thread.errors;
+            }
+        }
+        long sum = 0;
+        Arrays.sort(all);
+        for (long latency : all) {
+            sum += latency;
+        }
+
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("{\n");
+        sb.append("  \"replicas\": ").append(replicas).append(",\n");
+        sb.append("  \"clients\": ").append(clients).append(",\n");
+        sb.append("  \"service\": \"").append(service).append("\",\n");
+        sb.append("  \"mode\": \"").append(rate == 0 ? "closed" : "open").append("\",\n");
+        sb.append("  \"pipelined\": ").append(pipelined).append(",\n");
+        sb.append("  \"multiplexed\": ").append(multiplexed).append(",\n");
+        sb.append("  \"outstanding\": ").append(outstanding).append(",\n");
+        sb.append("  \"targetRate\": ").append(rate).append(",\n");
+        sb.append("  \"requestSize\": ").append(requestSize).append(",\n");
+        sb.append("  \"durationSec\": ").append(duration).append(",\n");
+        sb.append("  \"requests\": ").append(total).append(",\n");
+        sb.append("  \"errors\": ").append(errors).append(",\n");
+        sb.append("  \"throughput\": ").append(
+                String.format("%.1f", (double) total / duration)).append(",\n");
+        sb.append("  \"latencyUs\": {");
+        sb.append("\"mean\": ").append(total == 0 ? 0 : sum / total / 1000);
+        sb.append(", \"p50\": ").append(percentile(all, 0.5) / 1000);
+        sb.append(", \"p99\": ").append(percentile(all, 0.99) / 1000);
+        sb.append(", \"p999\": ").append(percentile(all, 0.999) / 1000);
+        sb.append(", \"max\": ").append(total == 0 ? 0 : all[total - 1] / 1000);
+        sb.append("}\n");
+        sb.append("}");
+        return sb.toString();
+    }
+
+    /** Nearest-rank percentile of a sorted array */
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties properties = new Properties();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                showUsage();
+                System.exit(1);
+            }
+            properties.setProperty(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        // The replicas log every request at INFO level
+        lsrLogger.setLevel(Level.WARNING);
+
+        ClusterBenchmark benchmark = new ClusterBenchmark(properties);
+        String result = benchmark.run();
+        if (benchmark.output == null) {
+            System.out.println(result);
+        } else {
+            PrintStream ps = new PrintStream(new FileOutputStream(benchmark.output));
+            ps.println(result);
+            ps.close();
+        }
+        // Some replica threads cannot be stopped
+        System.exit(0);
+    }
+
+    private static void showUsage() {
+        System.out.println("Invalid arguments. Usage:\n" +
+                           "   java lsr.paxos.test.ClusterBenchmark [key=value]...\n" +
+                           "Keys: replicas, clients, service (echo|map), requestSize, rate, pipelined,\n" +
+                           "      multiplexed, outstanding, warmup, duration, output, <replica property>");
+    }
+
+    private final static Logger logger = Logger.getLogger(ClusterBenchmark.class.getCanonicalName());
+}
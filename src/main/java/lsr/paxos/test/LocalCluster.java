@@ -0,0 +1,162 @@
+package lsr.paxos.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.logging.Logger;
+
+import lsr.common.Configuration;
+import lsr.paxos.replica.Replica;
+import lsr.service.Service;
+
+/**
+ * Runs a group of replicas inside the current JVM, listening on loopback
+ * ports.
+ *
+ * The replicas keep part of their state in static fields (eg.,
+ * <code>ProcessDescriptor</code>, the network listeners), so each replica is
+ * loaded by its own class loader, created from the class path of this JVM.
+ * The replicas only share the JVM and the <code>java.util.logging</code>
+ * configuration. Clients should use the configuration file returned by
+ * {@link #getConfigFile()}.
+ *
+ * Supported services are <code>echo</code> ({@link EchoService}) and
+ * <code>map</code> ({@link SimplifiedMapService}).
+ */
+public class LocalCluster {
+    private final int n;
+    private final String service;
+    private final File directory;
+    private final File configFile;
+    private final List<Object> replicas = new ArrayList<Object>();
+
+    /**
+     * Creates the configuration of a new cluster. The replicas are started by
+     * {@link #start()}.
+     *
+     * @param n - the number of replicas
+     * @param service - the service executed by the replicas, echo or map
+     * @param properties - additional properties for the replicas, overriding
+     *            the defaults
+     * @throws IOException if the configuration file cannot be written
+     */
+    public LocalCluster(int n, String service, Properties properties) throws IOException {
+        if (!service.equals("echo") && !service.equals("map")) {
+            throw new IllegalArgumentException("Unknown service: " + service);
+        }
+        this.n = n;
+        this.service = service;
+
+        directory = File.createTempFile("jpaxos-cluster", "");
+        directory.delete();
+        directory.mkdirs();
+
+        Properties config = new Properties();
+        config.setProperty("CrashModel", "CrashStop");
+        config.setProperty("LogPath", new File(directory, "logs").getPath());
+        for (Entry<Object, Object> entry : properties.entrySet()) {
+            config.setProperty((String) entry.getKey(), (String) entry.getValue());
+        }
+        for (int i = 0; i < n; i++) {
+            // host:replicaPort:clientPort
+            config.setProperty("process." + i, "localhost:" + freePort() + ":" + freePort());
+        }
+
+        configFile = new File(directory, "paxos.properties");
+        OutputStream os = new FileOutputStream(configFile);
+        try {
+            config.store(os, "Generated by LocalCluster");
+        } finally {
+            os.close();
+        }
+    }
+
+    /** Starts all the replicas, each in its own class loader. */
+    public void start() throws Exception {
+        URL[] classPath = classPath();
+        for (int i = 0; i < n; i++) {
+            // Parent is the loader of the JDK classes, so that none of the
+            // JPaxos classes is shared with other replicas or with the clients
+            ClassLoader loader = new URLClassLoader(classPath,
+                    ClassLoader.getSystemClassLoader().getParent());
+            Class<?> bootstrap = loader.loadClass(LocalCluster.class.getName());
+            Method startReplica = bootstrap.getMethod("startReplica", String.class,
+                    int.class, String.class);
+
+            // Threads started by the replica inherit the context class loader
+            Thread current = Thread.currentThread();
+            ClassLoader previous = current.getContextClassLoader();
+            current.setContextClassLoader(loader);
+            try {
+                replicas.add(startReplica.invoke(null, configFile.getPath(), i, service));
+            } finally {
+                current.setContextClassLoader(previous);
+            }
+            logger.info("Started replica " + i);
+        }
+    }
+
+    /**
+     * Stops the replica threads that can be stopped. Some threads (network,
+     * failure detector) run until the JVM exits.
+     */
+    public void stop() throws Exception {
+        for (Object replica : replicas) {
+            replica.getClass().getMethod("forceExit").invoke(replica);
+        }
+        replicas.clear();
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    /** The configuration file used by the replicas. Clients must use it too. */
+    public String getConfigFile() {
+        return configFile.getPath();
+    }
+
+    /**
+     * Creates and starts a replica. Invoked by reflection on the class loaded
+     * by the replica class loader.
+     */
+    public static Object startReplica(String configFile, int localId, String service)
+            throws IOException {
+        Service s = service.equals("map") ? new SimplifiedMapService() : new EchoService();
+        Replica replica = new Replica(new Configuration(configFile), localId, s);
+        replica.start();
+        return replica;
+    }
+
+    private static URL[] classPath() throws IOException {
+        List<URL> urls = new ArrayList<URL>();
+        StringTokenizer st = new StringTokenizer(System.getProperty("java.class.path"),
+                File.pathSeparator);
+        while (st.hasMoreTokens()) {
+            urls.add(new File(st.nextToken()).toURI().toURL());
+        }
+        return urls.toArray(new URL[urls.size()]);
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName("localhost"));
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private final static Logger logger = Logger.getLogger(LocalCluster.class.getCanonicalName());
+}
@@ -0,0 +1,27 @@
+package lsr.service;
+
+import lsr.paxos.replica.Replica;
+
+/**
+ * A {@link Service} executing the read-only requests apart from the ordered
+ * ones. The leader executes a read-only request locally, under its read lease,
+ * without ordering it. Such a request has no sequence number of its own, and
+ * must not change the state of the service.
+ * <p>
+ * A service not implementing this interface gets the read-only requests on
+ * {@link Service#execute(byte[], int)}, with the sequence number of the last
+ * request executed.
+ * 
+ * @see Replica
+ */
+public interface ReadOnlyService extends Service {
+
+    /**
+     * Executes a read-only command from a client on the current state of this
+     * state machine. Called from the same thread as the other methods.
+     * 
+     * @param value - the read-only command
+     * @return generated reply which will be sent to client
+     */
+    byte[] executeReadOnly(byte[] value);
+}
@@ -44,7 +44,11 @@ public interface Service {
      * Executes one command from client on this state machine. This method will
      * be called by {@link Replica} in proper order. The number of request is
      * needed only for snapshot mechanism.
-     * 
+     * <p>
+     * The read-only requests executed locally by the leader have no number of
+     * their own. Unless the service implements {@link ReadOnlyService}, they
+     * are passed to this method with the number of the last request executed,
+     * so the same number may be seen several times.
      *
      * @param value - value of instance to execute on this service
      * @param seqNo - ordinal number of this requests
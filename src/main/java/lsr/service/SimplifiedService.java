@@ -20,7 +20,7 @@ import lsr.paxos.replica.Replica;
  * synchronize them.
  * 
  */
-public abstract class SimplifiedService extends AbstractService {
+public abstract class SimplifiedService extends AbstractService implements ReadOnlyService {
     private int lastExecutedSeq;
 
     /**
@@ -56,6 +56,11 @@ public abstract class SimplifiedService extends AbstractService {
         return execute(value);
     }
 
+    /** Read-only commands are executed like the others, without a number */
+    public byte[] executeReadOnly(byte[] value) {
+        return execute(value);
+    }
+
     public final void askForSnapshot(int lastNextSeq) {
         forceSnapshot(lastNextSeq);
     }
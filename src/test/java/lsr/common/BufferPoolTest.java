@@ -0,0 +1,85 @@
+package lsr.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+    private final BufferPool pool = new BufferPool(4096, 64 * 1024);
+
+    @Test
+    public void shouldAcquireDirectBufferOfRequestedSize() {
+        PooledBuffer buffer = pool.acquire(100);
+        ByteBuffer bb = buffer.getBuffer();
+        assertTrue(bb.isDirect());
+        assertEquals(0, bb.position());
+        assertEquals(100, bb.limit());
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, bb.capacity());
+    }
+
+    @Test
+    public void shouldUseSmallestSizeClass() {
+        assertEquals(256, pool.acquire(256).getBuffer().capacity());
+        assertEquals(512, pool.acquire(257).getBuffer().capacity());
+        assertEquals(4096, pool.acquire(4000).getBuffer().capacity());
+    }
+
+    @Test
+    public void shouldReuseReleasedBuffer() {
+        PooledBuffer buffer = pool.acquire(1000);
+        buffer.getBuffer().putInt(5);
+        buffer.release();
+
+        PooledBuffer reused = pool.acquire(600);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.getBuffer().position());
+        assertEquals(600, reused.getBuffer().limit());
+        assertEquals(1, pool.getAllocations());
+    }
+
+    @Test
+    public void shouldNotReuseBufferUntilAllReferencesAreReleased() {
+        PooledBuffer buffer = pool.acquire(100);
+        buffer.retain();
+        buffer.release();
+        assertNotSame(buffer, pool.acquire(100));
+
+        buffer.release();
+        assertSame(buffer, pool.acquire(100));
+    }
+
+    @Test
+    public void shouldNotPoolLargeBuffers() {
+        PooledBuffer buffer = pool.acquire(5000);
+        assertFalse(buffer.getBuffer().isDirect());
+        assertEquals(5000, buffer.getBuffer().capacity());
+        buffer.release();
+        assertNotSame(buffer, pool.acquire(5000));
+    }
+
+    @Test
+    public void duplicatesShouldHaveIndependentPositions() {
+        PooledBuffer buffer = pool.acquire(8);
+        buffer.getBuffer().putLong(42);
+        buffer.getBuffer().flip();
+
+        ByteBuffer first = buffer.duplicate();
+        ByteBuffer second = buffer.duplicate();
+        assertEquals(42, first.getLong());
+        assertEquals(42, second.getLong());
+        assertEquals(8, buffer.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotReleaseTwice() {
+        PooledBuffer buffer = pool.acquire(100);
+        buffer.release();
+        buffer.release();
+    }
+}
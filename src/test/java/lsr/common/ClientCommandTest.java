@@ -1,5 +1,6 @@
 package lsr.common;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 
@@ -13,7 +14,7 @@ public class ClientCommandTest {
     @Test
     public void shouldInitialize() {
         RequestId requestId = new RequestId(1, 1);
-        Request request = new Request(requestId, new byte[] {1, 2, 3});
+        ClientRequest request = new ClientRequest(requestId, new byte[] {1, 2, 3});
         ClientCommand command = new ClientCommand(CommandType.REQUEST, request);
 
         assertEquals(CommandType.REQUEST, command.getCommandType());
@@ -23,7 +24,7 @@ public class ClientCommandTest {
     @Test
     public void shouldSerializeAndDeserialize() {
         RequestId requestId = new RequestId(1, 1);
-        Request request = new Request(requestId, new byte[] {1, 2, 3});
+        ClientRequest request = new ClientRequest(requestId, new byte[] {1, 2, 3});
         ClientCommand command = new ClientCommand(CommandType.REQUEST, request);
 
         ByteBuffer byteBuffer = ByteBuffer.allocate(command.byteSize());
@@ -37,4 +38,30 @@ public class ClientCommandTest {
         assertEquals(command.getCommandType(), actual.getCommandType());
         assertEquals(command.getRequest(), actual.getRequest());
     }
+
+    @Test
+    public void shouldSerializeAndDeserializeBatch() {
+        ClientRequest[] requests = new ClientRequest[] {
+                new ClientRequest(new RequestId(1, 1), new byte[] {1, 2, 3}),
+                new ClientRequest(new RequestId(1, 2), new byte[] {4}),
+                new ClientRequest(new RequestId(1, 3), new byte[0])};
+        ClientCommand command = new ClientCommand(requests);
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(command.byteSize());
+        command.writeTo(byteBuffer);
+
+        assertFalse(byteBuffer.hasRemaining());
+
+        // The size in the header is the size of the rest of the command
+        byteBuffer.rewind();
+        byteBuffer.getInt();
+        assertEquals(command.byteSize() - 8, byteBuffer.getInt());
+
+        byteBuffer.rewind();
+
+        ClientCommand actual = new ClientCommand(byteBuffer);
+        assertEquals(CommandType.REQUEST_BATCH, actual.getCommandType());
+        assertArrayEquals(requests, actual.getRequests());
+        assertEquals(requests[0], actual.getRequest());
+    }
 }
@@ -0,0 +1,55 @@
+package lsr.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import lsr.common.ClientReply.Result;
+
+import org.junit.Test;
+
+public class ClientReplyTest {
+    @Test
+    public void shouldSerializeAndDeserialize() throws IOException {
+        ClientReply reply = new ClientReply(Result.OK, new byte[] {1, 2, 3}, 7, 1);
+
+        byte[] serialized = reply.toByteArray();
+        assertEquals(ClientReply.HEADER_SIZE + 3, serialized.length);
+
+        ClientReply actual = new ClientReply(new DataInputStream(
+                new ByteArrayInputStream(serialized)));
+        assertEquals(Result.OK, actual.getResult());
+        assertEquals(7, actual.getView());
+        assertEquals(1, actual.getLeader());
+        assertArrayEquals(new byte[] {1, 2, 3}, actual.getValue());
+    }
+
+    @Test
+    public void shouldNotKnowViewByDefault() {
+        ClientReply reply = new ClientReply(Result.NACK, new byte[0]);
+        assertEquals(-1, reply.getView());
+        assertEquals(-1, reply.getLeader());
+    }
+
+    @Test
+    public void shouldSerializeAndDeserializeBatch() throws IOException {
+        Reply[] replies = new Reply[] {
+                new Reply(new RequestId(1, 1), new byte[] {1, 2, 3}),
+                new Reply(new RequestId(1, 2), new byte[0])};
+        ClientReply reply = ClientReply.createBatch(replies);
+        assertEquals(Result.BATCH, reply.getResult());
+
+        ClientReply actual = new ClientReply(new DataInputStream(
+                new ByteArrayInputStream(reply.toByteArray())));
+        Reply[] actualReplies = actual.getBatchedReplies();
+
+        assertEquals(replies.length, actualReplies.length);
+        for (int i = 0; i < replies.length; i++) {
+            assertEquals(replies[i].getRequestId(), actualReplies[i].getRequestId());
+            assertArrayEquals(replies[i].getValue(), actualReplies[i].getValue());
+        }
+    }
+}
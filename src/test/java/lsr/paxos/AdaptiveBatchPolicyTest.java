@@ -0,0 +1,62 @@
+package lsr.paxos;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdaptiveBatchPolicyTest {
+    private static final int MAX_SIZE = 64 * 1024;
+    private static final long MAX_DELAY = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private AdaptiveBatchPolicy policy;
+
+    @Before
+    public void setUp() {
+        policy = new AdaptiveBatchPolicy(MAX_SIZE, 10);
+    }
+
+    @Test
+    public void shouldNotWaitWithFreeSlots() {
+        policy.startBatch(1, 2, TimeUnit.MILLISECONDS.toNanos(4));
+        assertEquals(0, policy.getDelay());
+        assertEquals(MAX_SIZE, policy.getTargetSize());
+    }
+
+    @Test
+    public void shouldWaitForNextSlotWithFullWindow() {
+        // A slot frees every 4ms / 2
+        policy.startBatch(2, 2, TimeUnit.MILLISECONDS.toNanos(4));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2), policy.getDelay());
+        // Arrival rate not known yet
+        assertEquals(AdaptiveBatchPolicy.MIN_TARGET_SIZE, policy.getTargetSize());
+
+        // Decision latency not known yet
+        policy.startBatch(2, 2, 0);
+        assertEquals(MAX_DELAY, policy.getDelay());
+
+        policy.startBatch(2, 2, TimeUnit.SECONDS.toNanos(1));
+        assertEquals(MAX_DELAY, policy.getDelay());
+    }
+
+    @Test
+    public void shouldGrowBatchesWithArrivalRate() {
+        // 10 bytes per microsecond
+        long now = 0;
+        policy.batchCompleted(0, now);
+        for (int i = 0; i < 100; i++) {
+            now += TimeUnit.MILLISECONDS.toNanos(1);
+            policy.batchCompleted(10 * 1000, now);
+        }
+
+        policy.startBatch(2, 2, TimeUnit.MILLISECONDS.toNanos(4));
+        // 2ms until the next slot frees
+        assertEquals(20 * 1000, policy.getTargetSize(), 100);
+
+        // Bounded by the maximum size
+        policy.startBatch(2, 2, TimeUnit.MILLISECONDS.toNanos(40));
+        assertEquals(MAX_SIZE, policy.getTargetSize());
+    }
+}
@@ -0,0 +1,44 @@
+package lsr.paxos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class InstanceOwnershipTest {
+    // Replica 1 excluded
+    private final InstanceOwnership ownership = new InstanceOwnership(2, 10, new int[] {0, 2, 3}, 4);
+
+    @Test
+    public void shouldAssignInstancesBeforeStartToLeader() {
+        assertEquals(2, ownership.ownerOf(0));
+        assertEquals(2, ownership.ownerOf(9));
+    }
+
+    @Test
+    public void shouldAssignInstancesRoundRobin() {
+        assertEquals(0, ownership.ownerOf(10));
+        assertEquals(2, ownership.ownerOf(11));
+        assertEquals(3, ownership.ownerOf(12));
+        assertEquals(0, ownership.ownerOf(13));
+        assertEquals(3, ownership.ownerOf(15));
+    }
+
+    @Test
+    public void shouldFindNextOwnedInstance() {
+        assertEquals(10, ownership.nextOwned(0, 0));
+        assertEquals(10, ownership.nextOwned(0, 10));
+        assertEquals(13, ownership.nextOwned(0, 11));
+        assertEquals(12, ownership.nextOwned(3, 12));
+        assertEquals(15, ownership.nextOwned(3, 13));
+        assertEquals(14, ownership.nextOwned(2, 12));
+    }
+
+    @Test
+    public void shouldKnowOwners() {
+        assertTrue(ownership.isOwner(0));
+        assertFalse(ownership.isOwner(1));
+        assertTrue(ownership.isOwner(3));
+    }
+}
@@ -0,0 +1,99 @@
+package lsr.paxos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import lsr.common.Configuration;
+import lsr.common.ProcessDescriptor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LeaderLeaseTest {
+    private static final int TIMEOUT = 1000;
+    private LeaderLease lease;
+
+    @Before
+    public void setUp() throws IOException {
+        Properties properties = new Properties();
+        for (int i = 0; i < 5; i++) {
+            properties.setProperty("process." + i, "localhost:" + (2000 + i) + ":" + (3000 + i));
+        }
+        properties.setProperty(ProcessDescriptor.LEADER_LEASE_TIMEOUT, Integer.toString(TIMEOUT));
+        File file = File.createTempFile("paxos", ".properties");
+        file.deleteOnExit();
+        FileOutputStream output = new FileOutputStream(file);
+        properties.store(output, null);
+        output.close();
+
+        ProcessDescriptor.initialize(new Configuration(file.getAbsolutePath()), 0);
+        lease = new LeaderLease(ProcessDescriptor.getInstance());
+    }
+
+    @Test
+    public void shouldNotBeValidWithoutGrants() {
+        assertTrue(lease.isEnabled());
+        assertFalse(lease.isValid(0, 0));
+    }
+
+    @Test
+    public void shouldRequireMajority() {
+        lease.grant(5, 1, 100, 110);
+        assertFalse(lease.isValid(5, 110));
+
+        lease.grant(5, 2, 200, 210);
+        // The second most recent grant of the followers, less the drift margin
+        assertTrue(lease.isValid(5, 210));
+        assertTrue(lease.isValid(5, 100 + TIMEOUT - TIMEOUT / 10 - 1));
+        assertFalse(lease.isValid(5, 100 + TIMEOUT - TIMEOUT / 10));
+    }
+
+    @Test
+    public void shouldBeRenewedByNewGrants() {
+        lease.grant(5, 1, 100, 110);
+        lease.grant(5, 2, 100, 110);
+        lease.grant(5, 1, 600, 610);
+        lease.grant(5, 3, 500, 510);
+        assertTrue(lease.isValid(5, 500 + TIMEOUT - TIMEOUT / 10 - 1));
+        assertFalse(lease.isValid(5, 500 + TIMEOUT - TIMEOUT / 10));
+    }
+
+    @Test
+    public void shouldNotBeValidInOtherView() {
+        lease.grant(5, 1, 100, 110);
+        lease.grant(5, 2, 100, 110);
+        assertFalse(lease.isValid(10, 110));
+
+        // The grants of the previous view are discarded
+        lease.grant(10, 1, 200, 210);
+        assertFalse(lease.isValid(10, 210));
+        assertFalse(lease.isValid(5, 210));
+    }
+
+    @Test
+    public void shouldBlockHigherViewsWhilePromised() {
+        assertEquals(0, lease.getPromiseRemaining(6, 0));
+
+        lease.promise(5, 100);
+        assertEquals(0, lease.getPromiseRemaining(5, 200));
+        assertEquals(TIMEOUT - 100, lease.getPromiseRemaining(6, 200));
+        assertEquals(0, lease.getPromiseRemaining(6, 100 + TIMEOUT));
+    }
+
+    @Test
+    public void shouldKeepPromiseToPreviousLeader() {
+        assertTrue(lease.promise(5, 100));
+        // The leader of view 6 may send Alive messages before preparing it
+        assertFalse(lease.promise(6, 200));
+        assertEquals(TIMEOUT - 100, lease.getPromiseRemaining(6, 200));
+
+        assertTrue(lease.promise(6, 100 + TIMEOUT));
+        assertEquals(0, lease.getPromiseRemaining(6, 100 + TIMEOUT));
+    }
+}
@@ -0,0 +1,247 @@
+package lsr.paxos;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Properties;
+
+import lsr.common.ClientBatch;
+import lsr.common.Configuration;
+import lsr.common.ProcessDescriptor;
+import lsr.common.SingleThreadDispatcher;
+import lsr.paxos.Proposer.ProposerState;
+import lsr.paxos.messages.Message;
+import lsr.paxos.messages.PrepareOK;
+import lsr.paxos.messages.Propose;
+import lsr.paxos.network.Network;
+import lsr.paxos.replica.ClientBatchManager;
+import lsr.paxos.replica.Replica.CrashModel;
+import lsr.paxos.statistics.ReplicaStats;
+import lsr.paxos.storage.ConsensusInstance;
+import lsr.paxos.storage.ConsensusInstance.LogEntryState;
+import lsr.paxos.storage.InMemoryStorage;
+import lsr.paxos.storage.Storage;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Tests the multi-leader mode of {@link ProposerImpl}, on 3 replicas.
+ */
+public class ProposerOwnershipTest {
+    private SingleThreadDispatcher dispatcher;
+    private Paxos paxos;
+    private Network network;
+    private Storage storage;
+    private ClientBatchManager batchManager;
+    private ProposerImpl proposer;
+
+    private void setUp(int localId, boolean leader) throws IOException {
+        Properties properties = new Properties();
+        for (int i = 0; i < 3; i++) {
+            properties.setProperty("process." + i, "localhost:" + (2000 + i) + ":" + (3000 + i));
+        }
+        properties.setProperty(ProcessDescriptor.MULTI_LEADER, "true");
+        File file = File.createTempFile("paxos", ".properties");
+        file.deleteOnExit();
+        FileOutputStream output = new FileOutputStream(file);
+        properties.store(output, null);
+        output.close();
+        ProcessDescriptor.initialize(new Configuration(file.getAbsolutePath()), localId);
+        ReplicaStats.initialize(3, localId);
+
+        dispatcher = new SingleThreadDispatcher("Protocol");
+        dispatcher.start();
+        paxos = mock(Paxos.class);
+        network = mock(Network.class);
+        storage = new InMemoryStorage();
+        when(paxos.getDispatcher()).thenReturn(dispatcher);
+        when(paxos.getNetwork()).thenReturn(network);
+        when(paxos.getStorage()).thenReturn(storage);
+        when(paxos.isLeader()).thenReturn(leader);
+        when(paxos.getLeaderId()).thenReturn(0);
+
+        batchManager = new ClientBatchManager(paxos, null);
+        proposer = new ProposerImpl(paxos, network, mock(FailureDetector.class), storage,
+                CrashModel.CrashStop);
+        proposer.setClientBatchManager(batchManager);
+    }
+
+    @After
+    public void tearDown() {
+        batchManager.cleanStop();
+        dispatcher.shutdownNow();
+    }
+
+    @Test
+    public void shouldProposeOnOwnedInstances() throws IOException {
+        setUp(1, false);
+        startOwnerProposals(0, new int[] {0, 1, 2});
+        assertEquals(ProposerState.PREPARED, proposer.getState());
+
+        run(new Runnable() {
+            public void run() {
+                proposer.propose(new ClientBatch[0], new byte[] {1});
+                proposer.propose(new ClientBatch[0], new byte[] {2});
+            }
+        });
+
+        assertEquals(list(1, 4), proposedInstances());
+        assertEquals(LogEntryState.KNOWN, storage.getLog().getInstance(4).getState());
+        assertArrayEquals(new byte[] {2}, storage.getLog().getInstance(4).getValue());
+    }
+
+    @Test
+    public void shouldNotProposeIfNotOwner() throws IOException {
+        setUp(1, false);
+        startOwnerProposals(0, new int[] {0, 2});
+
+        assertEquals(ProposerState.INACTIVE, proposer.getState());
+        assertNull(proposer.getOwnership());
+    }
+
+    @Test
+    public void shouldSkipOwnedInstancesBelowOtherProposal() throws IOException {
+        setUp(1, false);
+        startOwnerProposals(0, new int[] {0, 1, 2});
+
+        run(new Runnable() {
+            public void run() {
+                proposer.skipTo(5);
+            }
+        });
+        assertEquals(list(1, 4), proposedInstances());
+        assertTrue(isNoOp(storage.getLog().getInstance(1)));
+
+        // The next batch goes to the next instance owned
+        run(new Runnable() {
+            public void run() {
+                proposer.propose(new ClientBatch[0], new byte[] {1});
+            }
+        });
+        assertEquals(list(1, 4, 7), proposedInstances());
+    }
+
+    @Test
+    public void shouldNotSkipDecidedInstances() throws IOException {
+        setUp(1, false);
+        startOwnerProposals(0, new int[] {0, 1, 2});
+        storage.getLog().getInstance(1).updateStateFromDecision(0, new byte[] {1});
+        storage.getLog().getInstance(1).setDecided();
+
+        run(new Runnable() {
+            public void run() {
+                proposer.skipTo(5);
+            }
+        });
+        assertEquals(list(4), proposedInstances());
+    }
+
+    @Test
+    public void shouldSkipInstancesProposedBeforeStarting() throws IOException {
+        setUp(1, false);
+        // Another owner proposed on instance 6 before this replica started
+        storage.getLog().getInstance(6);
+        startOwnerProposals(0, new int[] {0, 1, 2});
+
+        assertEquals(list(1, 4), proposedInstances());
+    }
+
+    @Test
+    public void shouldLeaveExcludedReplicasOutOfOwnership() throws IOException {
+        setUp(0, true);
+        proposer.excludeOwner(2);
+        prepareNextView();
+
+        InstanceOwnership ownership = proposer.getOwnership();
+        assertArrayEquals(new int[] {0, 1}, ownership.getOwners());
+        assertEquals(1, ownership.ownerOf(ownership.getStart() + 1));
+    }
+
+    @Test
+    public void shouldClearExclusionsWhenLeadershipChanges() throws IOException {
+        setUp(0, true);
+        proposer.excludeOwner(2);
+        // Another replica was the leader of the last view
+        when(paxos.isLeader()).thenReturn(false);
+        run(new Runnable() {
+            public void run() {
+                proposer.prepareNextView();
+                when(paxos.isLeader()).thenReturn(true);
+                PrepareOK prepareOk = new PrepareOK(storage.getView(), new ConsensusInstance[0]);
+                proposer.onPrepareOK(prepareOk, 1);
+                proposer.onPrepareOK(prepareOk, 2);
+            }
+        });
+
+        assertArrayEquals(new int[] {0, 1, 2}, proposer.getOwnership().getOwners());
+    }
+
+    private void startOwnerProposals(final int start, final int[] owners) {
+        run(new Runnable() {
+            public void run() {
+                proposer.startOwnerProposals(start, owners);
+            }
+        });
+    }
+
+    private void prepareNextView() {
+        run(new Runnable() {
+            public void run() {
+                proposer.prepareNextView();
+                PrepareOK prepareOk = new PrepareOK(storage.getView(), new ConsensusInstance[0]);
+                proposer.onPrepareOK(prepareOk, 1);
+                proposer.onPrepareOK(prepareOk, 2);
+            }
+        });
+        assertEquals(ProposerState.PREPARED, proposer.getState());
+    }
+
+    private void run(Runnable task) {
+        dispatcher.executeAndWait(task);
+    }
+
+    /** The instances of the Propose messages sent, in order */
+    private List<Integer> proposedInstances() {
+        List<Integer> instances = new ArrayList<Integer>();
+        ArgumentCaptor<Message> messages = ArgumentCaptor.forClass(Message.class);
+        try {
+            verify(network, atLeastOnce()).sendMessage(messages.capture(), any(BitSet.class));
+        } catch (AssertionError e) {
+            return instances;
+        }
+        for (Message message : messages.getAllValues()) {
+            if (message instanceof Propose) {
+                instances.add(((Propose) message).getInstanceId());
+            }
+        }
+        return instances;
+    }
+
+    private static boolean isNoOp(ConsensusInstance instance) {
+        return instance.getState() == LogEntryState.KNOWN &&
+               Batcher.unpack(instance.getValue()).getFirst().isNop();
+    }
+
+    private static List<Integer> list(Integer... values) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (Integer value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
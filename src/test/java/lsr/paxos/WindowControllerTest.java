@@ -0,0 +1,73 @@
+package lsr.paxos;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class WindowControllerTest {
+    private int nextId = 0;
+
+    @Test
+    public void shouldGrowByOneAfterEachWindowOfGoodDecisions() {
+        WindowController controller = new WindowController(4, 10000);
+        assertEquals(1, controller.getWindow());
+
+        decide(controller, 1, 0);
+        assertEquals(2, controller.getWindow());
+        decide(controller, 1, 0);
+        assertEquals(2, controller.getWindow());
+        decide(controller, 1, 0);
+        assertEquals(3, controller.getWindow());
+
+        // Bounded by the maximum
+        decide(controller, 20, 0);
+        assertEquals(4, controller.getWindow());
+    }
+
+    @Test
+    public void shouldHalveOnRetransmissionOncePerWindow() {
+        WindowController controller = new WindowController(8, 10000);
+        decide(controller, 100, 0);
+        assertEquals(8, controller.getWindow());
+
+        // Both instances were in flight when the proposal was retransmitted
+        controller.onProposed(nextId++);
+        controller.onProposed(nextId++);
+        controller.onDecided(nextId - 2, nextId, 1);
+        assertEquals(4, controller.getWindow());
+        controller.onDecided(nextId - 1, nextId, 2);
+        assertEquals(4, controller.getWindow());
+
+        // Proposed after the decrease
+        decide(controller, 1, 3);
+        assertEquals(2, controller.getWindow());
+    }
+
+    @Test
+    public void shouldHalveWhenLatencyIsAboveTarget() throws InterruptedException {
+        WindowController controller = new WindowController(8, 1);
+        decide(controller, 100, 0);
+        assertEquals(8, controller.getWindow());
+
+        controller.onProposed(nextId++);
+        Thread.sleep(10);
+        controller.onDecided(nextId - 1, nextId, 0);
+        assertEquals(4, controller.getWindow());
+    }
+
+    @Test
+    public void shouldIgnoreInstancesNotProposed() {
+        WindowController controller = new WindowController(8, 10000);
+        controller.onDecided(5, 6, 1);
+        controller.onDecided(6, 7, 1);
+        assertEquals(1, controller.getWindow());
+    }
+
+    /** Proposes and decides instances one by one */
+    private void decide(WindowController controller, int count, long retransmissions) {
+        for (int i = 0; i < count; i++) {
+            controller.onProposed(nextId++);
+            controller.onDecided(nextId - 1, nextId, retransmissions);
+        }
+    }
+}
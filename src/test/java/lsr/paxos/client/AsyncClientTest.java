@@ -0,0 +1,240 @@
+package lsr.paxos.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import lsr.common.ClientReply;
+import lsr.common.ClientReply.Result;
+import lsr.common.ProcessDescriptor;
+import lsr.common.Reply;
+import lsr.common.RequestId;
+import lsr.paxos.ReplicationException;
+import lsr.paxos.client.FakeReplica.Received;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncClientTest {
+    private static final int TIMEOUT = 500;
+    private static final int PIPELINE_DEPTH = 2;
+    /** Bounds the waits for events expected to happen */
+    private static final int WAIT = 5000;
+
+    static {
+        System.setProperty("jpaxos.client.timeout", Integer.toString(TIMEOUT));
+    }
+
+    private FakeReplica[] replicas;
+    private AsyncClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        replicas = new FakeReplica[3];
+        for (int i = 0; i < replicas.length; i++) {
+            replicas[i] = new FakeReplica(i, 7);
+        }
+        client = new AsyncClient(FakeReplica.configuration(replicas, Collections.singletonMap(
+                ProcessDescriptor.CLIENT_PIPELINE_DEPTH, Integer.toString(PIPELINE_DEPTH))));
+        client.connect();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        for (FakeReplica replica : replicas) {
+            replica.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void shouldMatchRepliesOutOfOrder() throws Exception {
+        Future<byte[]> reply1 = client.execute(new byte[] {1});
+        Future<byte[]> reply2 = client.execute(new byte[] {2});
+        Received first = FakeReplica.nextCommand(replicas, WAIT);
+        Received second = replicas[first.getReplica()].nextCommand(WAIT);
+        assertEquals(first.getRequestId().getSeqNumber() + 1,
+                second.getRequestId().getSeqNumber());
+
+        second.connection.replyOk(second.getRequestId(), new byte[] {20});
+        assertArrayEquals(new byte[] {20}, reply2.get(WAIT, TimeUnit.MILLISECONDS));
+        assertFalse(reply1.isDone());
+        first.connection.replyOk(first.getRequestId(), new byte[] {10});
+        assertArrayEquals(new byte[] {10}, reply1.get(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 30000)
+    public void shouldLimitPipelineDepth() throws Exception {
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            client.execute(new byte[] {(byte) i});
+        }
+        Received first = FakeReplica.nextCommand(replicas, WAIT);
+        FakeReplica replica = replicas[first.getReplica()];
+        for (int i = 1; i < PIPELINE_DEPTH; i++) {
+            assertNotNull(replica.nextCommand(WAIT));
+        }
+
+        final CountDownLatch sent = new CountDownLatch(1);
+        Thread sender = new Thread() {
+            public void run() {
+                try {
+                    client.execute(new byte[] {9});
+                    sent.countDown();
+                } catch (InterruptedException e) {
+                    // Test ended
+                }
+            }
+        };
+        sender.setDaemon(true);
+        sender.start();
+        assertFalse(sent.await(TIMEOUT / 2, TimeUnit.MILLISECONDS));
+        assertNull(replica.nextCommand(0));
+
+        // A reply frees a slot in the pipeline
+        first.connection.replyOk(first.getRequestId(), new byte[] {1});
+        assertTrue(sent.await(WAIT, TimeUnit.MILLISECONDS));
+        Received next = replica.nextCommand(WAIT);
+        assertArrayEquals(new byte[] {9}, next.command.getRequest().getValue());
+    }
+
+    @Test(timeout = 30000)
+    public void shouldFailRequestOnNack() throws Exception {
+        Future<byte[]> reply1 = client.execute(new byte[] {1});
+        Future<byte[]> reply2 = client.execute(new byte[] {2});
+        Received first = FakeReplica.nextCommand(replicas, WAIT);
+        Received second = replicas[first.getReplica()].nextCommand(WAIT);
+
+        second.connection.reply(new ClientReply(Result.NACK, new Reply(second.getRequestId(),
+                "Refused".getBytes()).toByteArray()));
+        try {
+            reply2.get(WAIT, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ReplicationException);
+        }
+
+        // The other request is still waiting, and the slot is free
+        assertFalse(reply1.isDone());
+        Future<byte[]> reply3 = client.execute(new byte[] {3});
+        Received third = replicas[first.getReplica()].nextCommand(WAIT);
+        first.connection.replyOk(first.getRequestId(), new byte[] {10});
+        third.connection.replyOk(third.getRequestId(), new byte[] {30});
+        assertArrayEquals(new byte[] {10}, reply1.get(WAIT, TimeUnit.MILLISECONDS));
+        assertArrayEquals(new byte[] {30}, reply3.get(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 30000)
+    public void shouldResendPendingRequestsOnReconnect() throws Exception {
+        Future<byte[]> reply1 = client.execute(new byte[] {1});
+        Future<byte[]> reply2 = client.execute(new byte[] {2});
+        Received first = FakeReplica.nextCommand(replicas, WAIT);
+        Received second = replicas[first.getReplica()].nextCommand(WAIT);
+
+        // The replica fails
+        first.connection.close();
+        FakeReplica next = replicas[(first.getReplica() + 1) % 3];
+        FakeReplica.Connection connection = next.nextConnection(WAIT);
+        assertNotNull(connection);
+        assertFalse(connection.isNewClient());
+        assertEquals(7, connection.getClientId());
+
+        // Sent again in order, with the same ids
+        Received resent1 = next.nextCommand(WAIT);
+        Received resent2 = next.nextCommand(WAIT);
+        assertEquals(first.getRequestId(), resent1.getRequestId());
+        assertEquals(second.getRequestId(), resent2.getRequestId());
+
+        connection.replyOk(resent2.getRequestId(), new byte[] {20});
+        connection.replyOk(resent1.getRequestId(), new byte[] {10});
+        assertArrayEquals(new byte[] {10}, reply1.get(WAIT, TimeUnit.MILLISECONDS));
+        assertArrayEquals(new byte[] {20}, reply2.get(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 30000)
+    public void shouldFailOverToHintedLeaderOnTimeout() throws Exception {
+        Future<byte[]> reply = client.execute(new byte[] {1});
+        Received first = FakeReplica.nextCommand(replicas, WAIT);
+        int leader = (first.getReplica() + 2) % 3;
+        first.connection.replyOk(first.getRequestId(), new byte[] {2}, 5, leader);
+        assertArrayEquals(new byte[] {2}, reply.get(WAIT, TimeUnit.MILLISECONDS));
+
+        // Not answered
+        reply = client.execute(new byte[] {3});
+        Received second = replicas[first.getReplica()].nextCommand(WAIT);
+        assertNotNull(second);
+
+        FakeReplica.Connection connection = replicas[leader].nextConnection(WAIT);
+        assertNotNull(connection);
+        assertFalse(connection.isNewClient());
+        assertEquals(7, connection.getClientId());
+        assertTrue(first.connection.awaitClosed(WAIT));
+        Received third = replicas[leader].nextCommand(WAIT);
+        assertEquals(second.getRequestId(), third.getRequestId());
+
+        third.connection.replyOk(third.getRequestId(), new byte[] {4}, 5, leader);
+        assertArrayEquals(new byte[] {4}, reply.get(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void shouldReadReplyCutByTimeout() throws Exception {
+        byte[] bytes = new ClientReply(Result.OK, new Reply(new RequestId(7, 1),
+                new byte[] {2}).toByteArray()).toByteArray();
+        // Half of the reply, then a timeout, then the rest
+        final byte[][] chunks = {Arrays.copyOf(bytes, bytes.length / 2), null,
+                Arrays.copyOfRange(bytes, bytes.length / 2, bytes.length)};
+        InputStream socket = new InputStream() {
+            private int chunk = 0;
+            private int position = 0;
+
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (chunk == chunks.length) {
+                    return -1;
+                }
+                if (chunks[chunk] == null) {
+                    chunk++;
+                    throw new SocketTimeoutException();
+                }
+                int n = Math.min(len, chunks[chunk].length - position);
+                System.arraycopy(chunks[chunk], position, b, off, n);
+                position += n;
+                if (position == chunks[chunk].length) {
+                    chunk++;
+                    position = 0;
+                }
+                return n;
+            }
+        };
+        BufferedInputStream buffered = new BufferedInputStream(socket);
+        DataInputStream input = new DataInputStream(buffered);
+
+        assertNull(AsyncClient.readReply(buffered, input));
+        ClientReply reply = AsyncClient.readReply(buffered, input);
+        assertNotNull(reply);
+        assertEquals(Result.OK, reply.getResult());
+        Reply value = new Reply(reply.getValue());
+        assertEquals(new RequestId(7, 1), value.getRequestId());
+        assertArrayEquals(new byte[] {2}, value.getValue());
+    }
+}
@@ -0,0 +1,284 @@
+package lsr.paxos.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import lsr.common.ClientCommand.CommandType;
+import lsr.common.ClientReply;
+import lsr.common.ClientRequest;
+import lsr.common.Reply;
+import lsr.common.RequestId;
+import lsr.common.nio.SelectorThread;
+import lsr.paxos.ReplicationException;
+import lsr.paxos.client.FakeReplica.Received;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClientConnectionTest {
+    private static final int TIMEOUT = 500;
+    private static final int PIPELINE_DEPTH = 2;
+    /** Bounds the waits for events expected to happen */
+    private static final int WAIT = 5000;
+
+    static {
+        System.setProperty("jpaxos.client.timeout", Integer.toString(TIMEOUT));
+    }
+
+    private FakeReplica[] replicas;
+    private SelectorThread selectorThread;
+    private ClientConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        replicas = new FakeReplica[3];
+        for (int i = 0; i < replicas.length; i++) {
+            replicas[i] = new FakeReplica(i, 7);
+        }
+        selectorThread = new SelectorThread("ClientConnectionTest", 0);
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        connection = new ClientConnection(selectorThread, FakeReplica.configuration(replicas,
+                Collections.<String, String> emptyMap()).getProcesses(), 0);
+        selectorThread.beginInvokeAndWakeup(new Runnable() {
+            public void run() {
+                connection.start();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        selectorThread.interrupt();
+        for (FakeReplica replica : replicas) {
+            replica.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void shouldGrantClientIdsToSessions() throws Exception {
+        FakeReplica.Connection replica = replicas[0].nextConnection(WAIT);
+        assertTrue(replica.isNewClient());
+
+        ClientSession session1 = newSession();
+        ClientSession session2 = newSession();
+        assertEquals(-1, session1.getClientID());
+        session1.execute(new byte[] {1});
+        Received request1 = replicas[0].nextCommand(WAIT);
+        session2.execute(new byte[] {2});
+        Received request2 = replicas[0].nextCommand(WAIT);
+
+        // Numbered by the connection, with the id granted to it
+        assertEquals(request1.getRequestId().getSeqNumber() + 1,
+                request2.getRequestId().getSeqNumber());
+        grantClientId(request1, 100);
+        grantClientId(request2, 200);
+
+        Received sent1 = replicas[0].nextCommand(WAIT);
+        Received sent2 = replicas[0].nextCommand(WAIT);
+        Set<Long> clientIds = new HashSet<Long>();
+        clientIds.add(sent1.getRequestId().getClientId());
+        clientIds.add(sent2.getRequestId().getClientId());
+        assertEquals(new HashSet<Long>(Arrays.asList(100L, 200L)), clientIds);
+        assertEquals(100, session1.getClientID());
+        assertEquals(200, session2.getClientID());
+        assertEquals(CommandType.REQUEST, sent1.command.getCommandType());
+        assertEquals(1, sent1.getRequestId().getSeqNumber());
+    }
+
+    @Test(timeout = 30000)
+    public void shouldDispatchRepliesToSessions() throws Exception {
+        ClientSession session1 = newSession();
+        ClientSession session2 = newSession();
+        Future<byte[]> reply1 = session1.execute(new byte[] {1});
+        grantClientId(replicas[0].nextCommand(WAIT), 100);
+        Received request1 = replicas[0].nextCommand(WAIT);
+        Future<byte[]> reply2 = session2.execute(new byte[] {2});
+        grantClientId(replicas[0].nextCommand(WAIT), 200);
+        Received request2 = replicas[0].nextCommand(WAIT);
+
+        request2.connection.replyOk(request2.getRequestId(), new byte[] {20});
+        assertArrayEquals(new byte[] {20}, reply2.get(WAIT, TimeUnit.MILLISECONDS));
+        assertFalse(reply1.isDone());
+        request1.connection.replyOk(request1.getRequestId(), new byte[] {10});
+        assertArrayEquals(new byte[] {10}, reply1.get(WAIT, TimeUnit.MILLISECONDS));
+
+        // The replies to the requests of a session, in a single batch
+        Future<byte[]> reply3 = session1.execute(new byte[] {3});
+        Future<byte[]> reply4 = session1.execute(new byte[] {4});
+        List<RequestId> ids = new ArrayList<RequestId>();
+        while (ids.size() < 2) {
+            for (ClientRequest request : replicas[0].nextCommand(WAIT).command.getRequests()) {
+                assertEquals(100, request.getRequestId().getClientId());
+                ids.add(request.getRequestId());
+            }
+        }
+        request1.connection.reply(ClientReply.createBatch(new Reply[] {
+                new Reply(ids.get(0), new byte[] {30}), new Reply(ids.get(1), new byte[] {40})}));
+        assertArrayEquals(new byte[] {30}, reply3.get(WAIT, TimeUnit.MILLISECONDS));
+        assertArrayEquals(new byte[] {40}, reply4.get(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 30000)
+    public void shouldResendOutstandingRequestsOnFailover() throws Exception {
+        ClientSession session = newSession();
+        Future<byte[]> reply1 = session.execute(new byte[] {1});
+        grantClientId(replicas[0].nextCommand(WAIT), 100);
+        Received first = replicas[0].nextCommand(WAIT);
+        Future<byte[]> reply2 = session.execute(new byte[] {2});
+        Received second = replicas[0].nextCommand(WAIT);
+        // Waits for a free slot in the pipeline
+        Future<byte[]> reply3 = session.execute(new byte[] {3});
+
+        // The replica fails
+        first.connection.close();
+        FakeReplica.Connection reconnected = replicas[1].nextConnection(WAIT);
+        assertNotNull(reconnected);
+        assertFalse(reconnected.isNewClient());
+        assertEquals(7, reconnected.getClientId());
+
+        // Sent again with the same ids, the session keeps its client id
+        Received resent = replicas[1].nextCommand(WAIT);
+        ClientRequest[] requests = resent.command.getRequests();
+        assertEquals(2, requests.length);
+        assertEquals(first.getRequestId(), requests[0].getRequestId());
+        assertEquals(second.getRequestId(), requests[1].getRequestId());
+
+        reconnected.replyOk(second.getRequestId(), new byte[] {20});
+        assertArrayEquals(new byte[] {20}, reply2.get(WAIT, TimeUnit.MILLISECONDS));
+        Received third = replicas[1].nextCommand(WAIT);
+        assertEquals(100, third.getRequestId().getClientId());
+        reconnected.replyOk(first.getRequestId(), new byte[] {10});
+        reconnected.replyOk(third.getRequestId(), new byte[] {30});
+        assertArrayEquals(new byte[] {10}, reply1.get(WAIT, TimeUnit.MILLISECONDS));
+        assertArrayEquals(new byte[] {30}, reply3.get(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 30000)
+    public void shouldFailOverToHintedLeaderOnTimeout() throws Exception {
+        ClientSession session = newSession();
+        Future<byte[]> reply = session.execute(new byte[] {1});
+        grantClientId(replicas[0].nextCommand(WAIT), 100);
+        Received first = replicas[0].nextCommand(WAIT);
+        first.connection.replyOk(first.getRequestId(), new byte[] {2}, 5, 2);
+        assertArrayEquals(new byte[] {2}, reply.get(WAIT, TimeUnit.MILLISECONDS));
+
+        // Not answered
+        reply = session.execute(new byte[] {3});
+        Received second = replicas[0].nextCommand(WAIT);
+        assertNotNull(second);
+
+        FakeReplica.Connection reconnected = replicas[2].nextConnection(WAIT);
+        assertNotNull(reconnected);
+        assertFalse(reconnected.isNewClient());
+        assertEquals(7, reconnected.getClientId());
+        assertTrue(first.connection.awaitClosed(WAIT));
+        Received third = replicas[2].nextCommand(WAIT);
+        assertEquals(second.getRequestId(), third.getRequestId());
+
+        third.connection.replyOk(third.getRequestId(), new byte[] {4}, 5, 2);
+        assertArrayEquals(new byte[] {4}, reply.get(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 30000)
+    public void shouldFailRequestsOfClosedSession() throws Exception {
+        ClientSession session = newSession();
+        ClientSession other = newSession();
+        Future<byte[]> reply1 = session.execute(new byte[] {1});
+        grantClientId(replicas[0].nextCommand(WAIT), 100);
+        Received first = replicas[0].nextCommand(WAIT);
+        Future<byte[]> reply2 = session.execute(new byte[] {2});
+        assertNotNull(replicas[0].nextCommand(WAIT));
+        // Waits for a free slot in the pipeline
+        Future<byte[]> reply3 = session.execute(new byte[] {3});
+
+        session.close();
+        for (Future<byte[]> reply : Arrays.asList(reply1, reply2, reply3)) {
+            assertFailed(reply);
+        }
+        try {
+            session.execute(new byte[] {4});
+            fail();
+        } catch (IllegalStateException e) {
+            // Closed
+        }
+
+        // A late reply is ignored, the other sessions go on
+        first.connection.replyOk(first.getRequestId(), new byte[] {10});
+        Future<byte[]> reply = other.execute(new byte[] {5});
+        grantClientId(replicas[0].nextCommand(WAIT), 200);
+        Received request = replicas[0].nextCommand(WAIT);
+        request.connection.replyOk(request.getRequestId(), new byte[] {50});
+        assertArrayEquals(new byte[] {50}, reply.get(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 30000)
+    public void shouldFailRequestsOnStop() throws Exception {
+        ClientRuntime runtime = new ClientRuntime(FakeReplica.configuration(replicas,
+                Collections.<String, String> emptyMap()), 1, 1);
+        runtime.start();
+        ClientSession session = runtime.newSession();
+        Future<byte[]> reply1 = session.execute(new byte[] {1});
+        Received idRequest = FakeReplica.nextCommand(replicas, WAIT);
+        grantClientId(idRequest, 100);
+        Received first = idRequest.connection.getReplica().nextCommand(WAIT);
+        assertEquals(100, first.getRequestId().getClientId());
+        Future<byte[]> reply2 = session.execute(new byte[] {2});
+        Future<byte[]> reply3 = session.execute(new byte[] {3});
+
+        runtime.stop();
+        for (Future<byte[]> reply : Arrays.asList(reply1, reply2, reply3)) {
+            assertFailed(reply);
+        }
+        assertTrue(first.connection.awaitClosed(WAIT));
+        try {
+            runtime.newSession();
+            fail();
+        } catch (IllegalStateException e) {
+            // Stopped
+        }
+    }
+
+    private ClientSession newSession() {
+        final ClientSession session = new ClientSession(connection, PIPELINE_DEPTH);
+        selectorThread.beginInvokeAndWakeup(new Runnable() {
+            public void run() {
+                connection.addSession(session);
+            }
+        });
+        return session;
+    }
+
+    /** Answers the request of a session for a client id */
+    private void grantClientId(Received received, long clientId) throws Exception {
+        assertEquals(CommandType.NEW_CLIENT_ID, received.command.getCommandType());
+        assertEquals(7, received.getRequestId().getClientId());
+        received.connection.replyOk(received.getRequestId(),
+                ByteBuffer.allocate(8).putLong(clientId).array());
+    }
+
+    private static void assertFailed(Future<byte[]> reply) throws Exception {
+        try {
+            reply.get(WAIT, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ReplicationException);
+        }
+    }
+}
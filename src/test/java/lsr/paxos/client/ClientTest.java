@@ -0,0 +1,148 @@
+package lsr.paxos.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import lsr.common.ClientReply;
+import lsr.common.ClientReply.Result;
+import lsr.common.Reply;
+import lsr.paxos.client.FakeReplica.Received;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClientTest {
+    private static final int TIMEOUT = 500;
+    /** Bounds the waits for events expected to happen */
+    private static final int WAIT = 5000;
+
+    static {
+        System.setProperty("jpaxos.client.timeout", Integer.toString(TIMEOUT));
+    }
+
+    private FakeReplica[] replicas;
+    private Client client;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        replicas = new FakeReplica[3];
+        for (int i = 0; i < replicas.length; i++) {
+            replicas[i] = new FakeReplica(i, 7);
+        }
+        client = new Client(FakeReplica.configuration(replicas,
+                Collections.<String, String> emptyMap()));
+        client.connect();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        for (FakeReplica replica : replicas) {
+            replica.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void shouldConnectToAllReplicas() throws Exception {
+        assertEquals(7, client.getClientID());
+        int newClients = 0;
+        for (FakeReplica replica : replicas) {
+            FakeReplica.Connection connection = replica.nextConnection(WAIT);
+            assertNotNull(connection);
+            assertEquals(7, connection.getClientId());
+            if (connection.isNewClient()) {
+                newClients++;
+            }
+        }
+        assertEquals(1, newClients);
+    }
+
+    @Test(timeout = 30000)
+    public void shouldFailOverAndCloseConnectionOnTimeout() throws Exception {
+        Future<byte[]> reply = execute(new byte[] {1});
+        Received first = FakeReplica.nextCommand(replicas, WAIT);
+        assertNotNull(first);
+
+        // Half of a reply, cut by the timeout
+        byte[] bytes = new ClientReply(Result.OK, new Reply(first.getRequestId(),
+                new byte[] {2}).toByteArray()).toByteArray();
+        first.connection.write(Arrays.copyOf(bytes, bytes.length / 2));
+
+        // The connection cannot be read anymore
+        assertTrue(first.connection.awaitClosed(WAIT));
+        Received second = replicas[(first.getReplica() + 1) % 3].nextCommand(WAIT);
+        assertNotNull(second);
+        assertEquals(first.getRequestId(), second.getRequestId());
+
+        second.connection.replyOk(second.getRequestId(), new byte[] {3});
+        assertArrayEquals(new byte[] {3}, reply.get(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 30000)
+    public void shouldFailOverToHintedLeader() throws Exception {
+        Future<byte[]> reply = execute(new byte[] {1});
+        Received first = FakeReplica.nextCommand(replicas, WAIT);
+        int leader = (first.getReplica() + 2) % 3;
+        first.connection.replyOk(first.getRequestId(), new byte[] {2}, 5, leader);
+        assertArrayEquals(new byte[] {2}, reply.get(WAIT, TimeUnit.MILLISECONDS));
+
+        // Not answered, continued on the connection already open to the leader
+        FakeReplica.Connection warm = replicas[leader].nextConnection(WAIT);
+        assertNotNull(warm);
+        reply = execute(new byte[] {3});
+        Received second = replicas[first.getReplica()].nextCommand(WAIT);
+        assertNotNull(second);
+        Received third = replicas[leader].nextCommand(WAIT);
+        assertNotNull(third);
+        assertSame(warm, third.connection);
+        assertEquals(second.getRequestId(), third.getRequestId());
+
+        third.connection.replyOk(third.getRequestId(), new byte[] {4}, 5, leader);
+        assertArrayEquals(new byte[] {4}, reply.get(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 30000)
+    public void shouldSkipLateReplies() throws Exception {
+        Future<byte[]> reply = execute(new byte[] {1});
+        Received first = FakeReplica.nextCommand(replicas, WAIT);
+        int next = (first.getReplica() + 1) % 3;
+        Received second = replicas[next].nextCommand(WAIT);
+        assertNotNull(second);
+        second.connection.replyOk(second.getRequestId(), new byte[] {2});
+        assertArrayEquals(new byte[] {2}, reply.get(WAIT, TimeUnit.MILLISECONDS));
+
+        // Closed on the timeout
+        assertTrue(first.connection.awaitClosed(WAIT));
+
+        reply = execute(new byte[] {3});
+        Received third = replicas[next].nextCommand(WAIT);
+        // A reply to the previous request is left on the connection
+        third.connection.replyOk(second.getRequestId(), new byte[] {2});
+        third.connection.replyOk(third.getRequestId(), new byte[] {4});
+        assertArrayEquals(new byte[] {4}, reply.get(WAIT, TimeUnit.MILLISECONDS));
+        assertFalse(third.connection.isClosed());
+    }
+
+    private Future<byte[]> execute(final byte[] request) {
+        return executor.submit(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                return client.execute(request);
+            }
+        });
+    }
+}
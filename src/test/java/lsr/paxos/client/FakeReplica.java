@@ -0,0 +1,246 @@
+package lsr.paxos.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import lsr.common.ClientCommand;
+import lsr.common.ClientReply;
+import lsr.common.ClientReply.Result;
+import lsr.common.Configuration;
+import lsr.common.Reply;
+import lsr.common.RequestId;
+
+/**
+ * Accepts the connections of the clients on the client port of a replica. It
+ * answers the handshake, granting always the same client id, and queues the
+ * commands received. The tests answer them.
+ */
+class FakeReplica {
+    private final int id;
+    private final long grantedId;
+    private final ServerSocket server;
+    private final BlockingQueue<Connection> connections = new LinkedBlockingQueue<Connection>();
+    private final BlockingQueue<Received> received = new LinkedBlockingQueue<Received>();
+    private final List<Connection> accepted =
+            Collections.synchronizedList(new ArrayList<Connection>());
+
+    /**
+     * @param id - the id of the replica
+     * @param grantedId - the client id granted to new clients
+     */
+    FakeReplica(int id, long grantedId) throws IOException {
+        this.id = id;
+        this.grantedId = grantedId;
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress("localhost", 0));
+        Thread acceptor = new Thread("FakeReplica-" + id) {
+            public void run() {
+                try {
+                    while (true) {
+                        Connection connection = new Connection(server.accept());
+                        accepted.add(connection);
+                        connection.start();
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getId() {
+        return id;
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    /** Returns the next connection with a completed handshake, or null */
+    Connection nextConnection(long timeout) throws InterruptedException {
+        return connections.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /** Returns the next command received on any connection, or null */
+    Received nextCommand(long timeout) throws InterruptedException {
+        return received.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops accepting and closes all the connections */
+    void close() throws IOException {
+        server.close();
+        synchronized (accepted) {
+            for (Connection connection : accepted) {
+                connection.close();
+            }
+        }
+    }
+
+    /** Returns the next command received by any of the replicas, or null */
+    static Received nextCommand(FakeReplica[] replicas, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (System.currentTimeMillis() < deadline) {
+            for (FakeReplica replica : replicas) {
+                Received command = replica.nextCommand(10);
+                if (command != null) {
+                    return command;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes a configuration of the replicas, with their client ports, and the
+     * given properties.
+     */
+    static Configuration configuration(FakeReplica[] replicas, Map<String, String> extra)
+            throws IOException {
+        Properties properties = new Properties();
+        for (FakeReplica replica : replicas) {
+            // The replica port is not used
+            properties.setProperty("process." + replica.getId(),
+                    "localhost:" + replica.getPort() + ":" + replica.getPort());
+        }
+        properties.putAll(extra);
+        File file = File.createTempFile("paxos", ".properties");
+        file.deleteOnExit();
+        FileOutputStream output = new FileOutputStream(file);
+        properties.store(output, null);
+        output.close();
+        return new Configuration(file.getAbsolutePath());
+    }
+
+    /** A connection of a client, read by its own thread */
+    class Connection extends Thread {
+        private final Socket socket;
+        private final DataInputStream input;
+        private final DataOutputStream output;
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private volatile long clientId;
+        private volatile boolean newClient;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            input = new DataInputStream(socket.getInputStream());
+            output = new DataOutputStream(socket.getOutputStream());
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                if (input.read() == 'T') {
+                    newClient = true;
+                    clientId = grantedId;
+                    output.writeLong(clientId);
+                    output.flush();
+                } else {
+                    clientId = input.readLong();
+                }
+                connections.add(this);
+                while (true) {
+                    int type = input.readInt();
+                    int size = input.readInt();
+                    ByteBuffer bb = ByteBuffer.allocate(8 + size);
+                    bb.putInt(type);
+                    bb.putInt(size);
+                    input.readFully(bb.array(), 8, size);
+                    bb.rewind();
+                    received.add(new Received(this, new ClientCommand(bb)));
+                }
+            } catch (EOFException e) {
+                // Closed by the client
+            } catch (IOException e) {
+                // Closed by the client or by the test
+            } finally {
+                closed.countDown();
+            }
+        }
+
+        FakeReplica getReplica() {
+            return FakeReplica.this;
+        }
+
+        /** The client id granted or sent by the client */
+        long getClientId() {
+            return clientId;
+        }
+
+        /** True if the client asked for a new client id */
+        boolean isNewClient() {
+            return newClient;
+        }
+
+        synchronized void write(byte[] bytes) throws IOException {
+            output.write(bytes);
+            output.flush();
+        }
+
+        void reply(ClientReply reply) throws IOException {
+            write(reply.toByteArray());
+        }
+
+        void replyOk(RequestId requestId, byte[] value, int view, int leader)
+                throws IOException {
+            reply(new ClientReply(Result.OK, new Reply(requestId, value).toByteArray(), view,
+                    leader));
+        }
+
+        void replyOk(RequestId requestId, byte[] value) throws IOException {
+            replyOk(requestId, value, 0, 0);
+        }
+
+        /** Returns true if the client closed the connection in time */
+        boolean awaitClosed(long timeout) throws InterruptedException {
+            return closed.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        boolean isClosed() {
+            return closed.getCount() == 0;
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /** A command and the connection it was received on */
+    static final class Received {
+        final Connection connection;
+        final ClientCommand command;
+
+        Received(Connection connection, ClientCommand command) {
+            this.connection = connection;
+            this.command = command;
+        }
+
+        RequestId getRequestId() {
+            return command.getRequest().getRequestId();
+        }
+
+        int getReplica() {
+            return connection.getReplica().getId();
+        }
+    }
+}
@@ -4,22 +4,39 @@ import static org.junit.Assert.assertEquals;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Base test class for message tests.
  */
 public abstract class AbstractMessageTestCase<T extends Message> {
     @SuppressWarnings("unchecked")
-    protected void verifySerialization(T message) {
-        byte[] bytes = MessageFactory.serialize(message);
+    protected void verifySerialization(T message) throws IOException {
+        byte[] bytes = message.toByteArray();
         assertEquals(bytes.length, message.byteSize());
 
-        T deserialized = (T) MessageFactory.readByteArray(bytes);
-        compare(message, deserialized);
+        T deserialized;
+        try {
+            deserialized = (T) MessageFactory.readByteArray(bytes);
+            compare(message, deserialized);
+
+            DataInputStream stream = new DataInputStream(new ByteArrayInputStream(bytes));
+            deserialized = (T) MessageFactory.create(stream);
+            compare(message, deserialized);
+        } catch (ClassNotFoundException e) {
+            throw new AssertionError(e);
+        }
 
-        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(bytes));
-        deserialized = (T) MessageFactory.create(stream);
+        // Parsed in place from a direct buffer holding other data after the
+        // message, as done by the networks
+        ByteBuffer bb = ByteBuffer.allocateDirect(bytes.length + 4);
+        message.writeTo(bb);
+        bb.putInt(0xCAFE);
+        bb.flip();
+        deserialized = (T) MessageFactory.create(bb);
         compare(message, deserialized);
+        assertEquals(bytes.length, bb.position());
     }
 
     protected abstract void compare(T first, T second);
@@ -0,0 +1,63 @@
+package lsr.paxos.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import lsr.common.ClientRequest;
+import lsr.common.ProcessDescriptorHelper;
+import lsr.common.RequestId;
+import lsr.paxos.replica.ClientBatchID;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ForwardClientBatchTest extends AbstractMessageTestCase<ForwardClientBatch> {
+    private final ClientRequest[] requests = new ClientRequest[] {
+            new ClientRequest(new RequestId(5, 1), new byte[] {1, 2, 3}),
+            new ClientRequest(new RequestId(6, 2), new byte[0]),
+            new ClientRequest(new RequestId(7, 3), new byte[] {4})};
+    private final ForwardClientBatch batch = new ForwardClientBatch(new ClientBatchID(1, 10),
+            requests, new int[] {3, 4, 5});
+
+    @BeforeClass
+    public static void setUpClass() {
+        // Must be done before loading ForwardClientBatch
+        ProcessDescriptorHelper.initialize(3, 0);
+    }
+
+    @Test
+    public void shouldSerializeAndDeserialize() throws IOException {
+        verifySerialization(batch);
+    }
+
+    @Test
+    public void shouldWriteUndecodedRequests() {
+        ByteBuffer bb = ByteBuffer.wrap(batch.toByteArray());
+        ForwardClientBatch received = (ForwardClientBatch) MessageFactory.create(bb);
+
+        // Written back before and after decoding the requests
+        assertEquals(requests.length, received.getRequestCount());
+        assertArrayEquals(batch.toByteArray(), received.toByteArray());
+        received.getRequests();
+        assertArrayEquals(batch.toByteArray(), received.toByteArray());
+    }
+
+    protected void compare(ForwardClientBatch expected, ForwardClientBatch actual) {
+        assertEquals(expected.getView(), actual.getView());
+        assertEquals(expected.getSentTime(), actual.getSentTime());
+        assertEquals(expected.rid, actual.rid);
+        assertArrayEquals(expected.rcvdUB, actual.rcvdUB);
+        assertEquals(expected.byteSize(), actual.byteSize());
+
+        ClientRequest[] actualRequests = actual.getRequests();
+        assertEquals(expected.getRequests().length, actualRequests.length);
+        for (int i = 0; i < actualRequests.length; i++) {
+            assertEquals(expected.getRequests()[i].getRequestId(),
+                    actualRequests[i].getRequestId());
+            assertArrayEquals(expected.getRequests()[i].getValue(), actualRequests[i].getValue());
+        }
+    }
+}
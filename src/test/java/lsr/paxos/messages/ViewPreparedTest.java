@@ -0,0 +1,61 @@
+package lsr.paxos.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ViewPreparedTest extends AbstractMessageTestCase<ViewPrepared> {
+    private int view = 12;
+    private int start = 32;
+    private int[] owners = new int[] {0, 2, 3};
+    private ViewPrepared viewPrepared;
+
+    @Before
+    public void setUp() {
+        viewPrepared = new ViewPrepared(view, start, owners);
+    }
+
+    @Test
+    public void shouldInitializeFields() {
+        assertEquals(view, viewPrepared.getView());
+        assertEquals(start, viewPrepared.getStart());
+        assertArrayEquals(owners, viewPrepared.getOwners());
+    }
+
+    @Test
+    public void shouldSerializeAndDeserialize() throws IOException {
+        verifySerialization(viewPrepared);
+
+        byte[] bytes = viewPrepared.toByteArray();
+        assertEquals(bytes.length, viewPrepared.byteSize());
+
+        ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
+        DataInputStream dis = new DataInputStream(bis);
+
+        MessageType type = MessageType.values()[dis.readByte()];
+        ViewPrepared deserializedViewPrepared = new ViewPrepared(dis);
+
+        assertEquals(MessageType.ViewPrepared, type);
+        compare(viewPrepared, deserializedViewPrepared);
+        assertEquals(0, dis.available());
+    }
+
+    @Test
+    public void shouldReturnCorrectMessageType() {
+        assertEquals(MessageType.ViewPrepared, viewPrepared.getType());
+    }
+
+    protected void compare(ViewPrepared expected, ViewPrepared actual) {
+        assertEquals(expected.getView(), actual.getView());
+        assertEquals(expected.getSentTime(), actual.getSentTime());
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getStart(), actual.getStart());
+        assertArrayEquals(expected.getOwners(), actual.getOwners());
+    }
+}
@@ -0,0 +1,100 @@
+package lsr.paxos.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import lsr.common.BufferPool;
+import lsr.common.PooledBuffer;
+import lsr.paxos.messages.MessageType;
+import lsr.paxos.network.SendQueue.Lane;
+
+import org.junit.Test;
+
+public class SendQueueTest {
+    private final BufferPool pool = new BufferPool(4096, 64 * 1024);
+    private final SendQueue queue = new SendQueue(1000, 1000, 1000);
+
+    @Test
+    public void shouldTakeControlMessagesFirst() throws InterruptedException {
+        PooledBuffer bulk = pool.acquire(100);
+        PooledBuffer data = pool.acquire(100);
+        PooledBuffer control = pool.acquire(100);
+        queue.offer(bulk, Lane.BULK);
+        queue.offer(data, Lane.DATA);
+        queue.offer(control, Lane.CONTROL);
+
+        assertEquals(3, queue.size());
+        assertSame(control, queue.take());
+        assertSame(data, queue.take());
+        assertSame(bulk, queue.take());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void shouldPreserveOrderWithinLane() {
+        PooledBuffer first = pool.acquire(100);
+        PooledBuffer second = pool.acquire(100);
+        queue.offer(first, Lane.DATA);
+        queue.offer(second, Lane.DATA);
+
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+    }
+
+    @Test
+    public void shouldRejectMessageWhenLaneIsFull() {
+        assertTrue(queue.offer(pool.acquire(600), Lane.BULK));
+        assertFalse(queue.offer(pool.acquire(600), Lane.BULK));
+        assertEquals(600, queue.bytes(Lane.BULK));
+
+        // Other lanes are not affected
+        assertTrue(queue.offer(pool.acquire(600), Lane.CONTROL));
+    }
+
+    @Test
+    public void shouldNeverRejectDataMessages() {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(pool.acquire(600), Lane.DATA));
+        }
+        assertEquals(6000, queue.bytes(Lane.DATA));
+        assertEquals(10, queue.size());
+    }
+
+    @Test
+    public void shouldGiveBulkLaneItsShare() {
+        PooledBuffer bulk = pool.acquire(100);
+        queue.offer(bulk, Lane.BULK);
+        for (int i = 0; i < 2 * SendQueue.BULK_SHARE; i++) {
+            queue.offer(pool.acquire(10), i % 2 == 0 ? Lane.CONTROL : Lane.DATA);
+        }
+
+        for (int i = 0; i < SendQueue.BULK_SHARE; i++) {
+            assertFalse(queue.poll() == bulk);
+        }
+        assertSame(bulk, queue.poll());
+        assertEquals(SendQueue.BULK_SHARE, queue.size());
+    }
+
+    @Test
+    public void shouldAcceptLargeMessageInEmptyLane() {
+        assertTrue(queue.offer(pool.acquire(5000), Lane.BULK));
+        assertEquals(5000, queue.bytes(Lane.BULK));
+        queue.poll();
+        assertEquals(0, queue.bytes(Lane.BULK));
+    }
+
+    @Test
+    public void shouldMapMessageTypesToLanes() {
+        assertEquals(Lane.CONTROL, Lane.of(MessageType.Accept));
+        assertEquals(Lane.CONTROL, Lane.of(MessageType.Alive));
+        assertEquals(Lane.CONTROL, Lane.of(MessageType.Prepare));
+        assertEquals(Lane.DATA, Lane.of(MessageType.Propose));
+        assertEquals(Lane.DATA, Lane.of(MessageType.ForwardedClientRequest));
+        assertEquals(Lane.DATA, Lane.of(MessageType.AckForwardedRequest));
+        assertEquals(Lane.BULK, Lane.of(MessageType.CatchUpResponse));
+        assertEquals(Lane.BULK, Lane.of(MessageType.CatchUpSnapshot));
+    }
+}
@@ -5,6 +5,7 @@ import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
 
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -13,8 +14,10 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
 
+import lsr.common.BufferPool;
 import lsr.common.Configuration;
 import lsr.common.PID;
+import lsr.common.PooledBuffer;
 import lsr.common.ProcessDescriptor;
 
 import org.junit.Before;
@@ -78,7 +81,7 @@ public class TcpConnectionTest {
         assertEquals(1, inputStream.readInt());
 
         // send new message
-        connection.send(new byte[] {1, 2, 3, 4});
+        connection.send(buffer(1, 2, 3, 4), SendQueue.Lane.CONTROL);
         byte[] message = new byte[4];
         inputStream.readFully(message);
         assertArrayEquals(new byte[] {1, 2, 3, 4}, message);
@@ -103,7 +106,7 @@ public class TcpConnectionTest {
 
         Thread.sleep(100);
         for (int i = 0; i < 200; i++) {
-            connection.send(new byte[] {0, 1, 2, 3});
+            connection.send(buffer(0, 1, 2, 3), SendQueue.Lane.CONTROL);
         }
         Thread.sleep(100);
 
@@ -123,7 +126,7 @@ public class TcpConnectionTest {
 
         Thread.sleep(100);
         for (int i = 0; i < 200; i++) {
-            connection.send(new byte[] {0, 1, 2, 3});
+            connection.send(buffer(0, 1, 2, 3), SendQueue.Lane.CONTROL);
         }
         Thread.sleep(100);
 
@@ -136,7 +139,7 @@ public class TcpConnectionTest {
         boolean active = true;
         TcpConnection connection = new TcpConnection(network, pid2, active);
         connection.start();
-        connection.send(new byte[] {1, 2, 3, 4});
+        connection.send(buffer(1, 2, 3, 4), SendQueue.Lane.CONTROL);
 
         // handle connect
         ServerSocket server = new ServerSocket();
@@ -146,7 +149,7 @@ public class TcpConnectionTest {
         assertEquals(1, inputStream.readInt());
 
         // send new message
-        connection.send(new byte[] {5, 6, 7, 8});
+        connection.send(buffer(5, 6, 7, 8), SendQueue.Lane.CONTROL);
         byte[] message = new byte[4];
         inputStream.readFully(message);
         assertArrayEquals(new byte[] {5, 6, 7, 8}, message);
@@ -157,4 +160,45 @@ public class TcpConnectionTest {
 
         connection.stop();
     }
+
+    @Test(timeout = 5000)
+    public void shouldReconnectOnInvalidMessageSize() throws Exception {
+        TcpNetwork network = mock(TcpNetwork.class);
+        boolean active = true;
+        TcpConnection connection = new TcpConnection(network, pid2, active);
+        connection.start();
+
+        ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress((InetAddress) null, pid2.getReplicaPort()));
+        Socket socket = server.accept();
+        DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+        assertEquals(1, inputStream.readInt());
+
+        // A corrupt frame closes the connection instead of killing the receiver
+        new DataOutputStream(socket.getOutputStream()).writeInt(-5);
+        assertEquals(-1, inputStream.read());
+        socket.close();
+
+        socket = server.accept();
+        inputStream = new DataInputStream(socket.getInputStream());
+        assertEquals(1, inputStream.readInt());
+
+        inputStream.close();
+        socket.close();
+        server.close();
+
+        connection.stop();
+    }
+
+    private final BufferPool pool = new BufferPool(1024, 1024);
+
+    private PooledBuffer buffer(int... bytes) {
+        PooledBuffer buffer = pool.acquire(bytes.length);
+        for (int b : bytes) {
+            buffer.getBuffer().put((byte) b);
+        }
+        buffer.getBuffer().flip();
+        return buffer;
+    }
 }
@@ -0,0 +1,110 @@
+package lsr.paxos.replica;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import lsr.common.ClientRequest;
+import lsr.common.ProcessDescriptorHelper;
+import lsr.paxos.replica.ClientBatchStore.BatchState;
+import lsr.paxos.replica.ClientBatchStore.ClientBatchInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClientBatchStoreTest {
+    private ClientBatchStore store;
+
+    @Before
+    public void setUp() {
+        ProcessDescriptorHelper.initialize(3, 0);
+        store = new ClientBatchStore();
+    }
+
+    @Test
+    public void shouldCountAcksReceivedAfterBatch() {
+        ClientBatchInfo bInfo = add(1, 1);
+        assertFalse(bInfo.isStable());
+
+        store.markReceived(1, new ClientBatchID(1, 1));
+        assertEquals(1, bInfo.countAcks());
+        assertFalse(bInfo.isStable());
+
+        store.markReceived(0, new int[] {0, 1, 0});
+        assertTrue(bInfo.isStable());
+        assertFalse(bInfo.allAcked());
+
+        // Acknowledging again does not count twice
+        store.markReceived(0, new ClientBatchID(1, 1));
+        store.markReceived(2, new int[] {0, 1, 0});
+        assertTrue(bInfo.allAcked());
+    }
+
+    @Test
+    public void shouldCountAcksReceivedBeforeBatch() {
+        store.markReceived(0, new int[] {0, 2, 0});
+        store.markReceived(2, new int[] {0, 2, 0});
+
+        ClientBatchInfo first = add(1, 1);
+        ClientBatchInfo second = add(1, 2);
+        assertTrue(first.isStable());
+        assertTrue(second.isStable());
+        assertFalse(second.allAcked());
+    }
+
+    @Test
+    public void shouldKeepBatchesReceivedOutOfOrder() {
+        ClientBatchInfo third = add(2, 3);
+        assertNull(store.getRequestInfo(new ClientBatchID(2, 1)));
+        assertSame(third, store.getRequestInfo(new ClientBatchID(2, 3)));
+
+        ClientBatchInfo first = add(2, 1);
+        assertSame(first, store.getRequestInfo(new ClientBatchID(2, 1)));
+        assertEquals(2, store.requests[2].size());
+    }
+
+    @Test
+    public void shouldNotAcknowledgeBatchesAfterMissingOne() {
+        add(1, 2);
+        store.markReceived(0, new ClientBatchID(1, 2));
+        assertEquals(0, store.rcvdUB[0][1]);
+
+        add(1, 1);
+        store.markReceived(0, new ClientBatchID(1, 1));
+        assertEquals(2, store.rcvdUB[0][1]);
+    }
+
+    @Test
+    public void shouldPruneExecutedBatchesAckedByAll() {
+        int count = 2000;
+        for (int sn = 1; sn <= count; sn++) {
+            add(0, sn).state = BatchState.Executed;
+        }
+        store.markReceived(0, new int[] {count, 0, 0});
+        store.markReceived(1, new int[] {count, 0, 0});
+        store.markReceived(2, new int[] {count - 1, 0, 0});
+
+        store.pruneLogs();
+        assertEquals(count, store.getLowerBound(0));
+        assertEquals(1, store.requests[0].size());
+        assertNull(store.getRequestInfo(new ClientBatchID(0, 1)));
+
+        store.markReceived(2, new int[] {count, 0, 0});
+        store.pruneLogs();
+        assertEquals(count + 1, store.getLowerBound(0));
+        assertTrue(store.requests[0].isEmpty());
+
+        // The next batches are stored after the pruned ones
+        ClientBatchInfo next = add(0, count + 1);
+        assertSame(next, store.getRequestInfo(new ClientBatchID(0, count + 1)));
+    }
+
+    private ClientBatchInfo add(int replica, int sn) {
+        ClientBatchID bid = new ClientBatchID(replica, sn);
+        ClientBatchInfo bInfo = store.newRequestInfo(bid, new ClientRequest[0]);
+        store.setRequestInfo(bid, bInfo);
+        return bInfo;
+    }
+}
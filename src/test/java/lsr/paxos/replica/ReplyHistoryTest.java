@@ -0,0 +1,38 @@
+package lsr.paxos.replica;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import lsr.common.Reply;
+import lsr.common.RequestId;
+
+import org.junit.Test;
+
+public class ReplyHistoryTest {
+    private final ReplyHistory history = new ReplyHistory(4);
+
+    @Test
+    public void shouldKeepLastRepliesOfEachClient() {
+        Reply[] replies = new Reply[6];
+        for (int i = 1; i < replies.length; i++) {
+            replies[i] = new Reply(new RequestId(1, i), new byte[] {(byte) i});
+            history.add(replies[i]);
+        }
+        Reply other = new Reply(new RequestId(2, 1), new byte[0]);
+        history.add(other);
+
+        assertSame(replies[5], history.get(new RequestId(1, 5)));
+        assertSame(replies[2], history.get(new RequestId(1, 2)));
+        assertSame(other, history.get(new RequestId(2, 1)));
+        // Overwritten by request 5
+        assertNull(history.get(new RequestId(1, 1)));
+    }
+
+    @Test
+    public void shouldNotReturnRepliesNotExecuted() {
+        history.add(new Reply(new RequestId(1, 1), new byte[0]));
+        assertNull(history.get(new RequestId(1, 2)));
+        assertNull(history.get(new RequestId(1, 5)));
+        assertNull(history.get(new RequestId(3, 1)));
+    }
+}
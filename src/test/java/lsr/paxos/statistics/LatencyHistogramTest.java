@@ -0,0 +1,79 @@
+package lsr.paxos.statistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    private LatencyHistogram histogram;
+
+    @Before
+    public void setUp() {
+        histogram = new LatencyHistogram("test");
+    }
+
+    @Test
+    public void shouldBeEmpty() {
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(0.99));
+        assertEquals(0, snapshot.getMax());
+    }
+
+    @Test
+    public void shouldMapEveryValueToBucketContainingIt() {
+        for (long value = 0; value < LatencyHistogram.MAX_VALUE; value = value * 3 / 2 + 1) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(value <= LatencyHistogram.bucketUpperBound(index));
+            if (index > 0) {
+                assertTrue(value > LatencyHistogram.bucketUpperBound(index - 1));
+            }
+        }
+    }
+
+    @Test
+    public void shouldKeepRelativeError() {
+        long value = 123456789;
+        long bound = LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(value));
+        assertTrue(bound - value <= value / LatencyHistogram.SUB_BUCKETS);
+    }
+
+    @Test
+    public void shouldComputePercentiles() {
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500500.0, snapshot.getMean(), 0.1);
+        assertEquals(1000000, snapshot.getMax());
+        assertWithinPrecision(500000, snapshot.getPercentile(0.5));
+        assertWithinPrecision(990000, snapshot.getPercentile(0.99));
+        assertEquals(1000000, snapshot.getPercentile(1.0));
+    }
+
+    @Test
+    public void shouldClampLargeValues() {
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals(Long.MAX_VALUE / 2, histogram.snapshot().getMax());
+        assertEquals(1, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void shouldReset() {
+        histogram.record(10);
+        histogram.record(20);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getMax());
+    }
+
+    private void assertWithinPrecision(long expected, long actual) {
+        assertTrue("Expected " + expected + ", got " + actual,
+                actual >= expected && actual <= expected + expected / LatencyHistogram.SUB_BUCKETS);
+    }
+}
@@ -2,31 +2,48 @@ package lsr.paxos.storage;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 import lsr.common.DirectoryHelper;
+import lsr.common.ProcessDescriptorHelper;
 import lsr.common.Reply;
 import lsr.common.RequestId;
 import lsr.paxos.Snapshot;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
 public class FullSSDiscWriterTest {
     private String directoryPath = "bin/logs";
     private FullSSDiscWriter writer;
 
+    @BeforeClass
+    public static void setUpClass() {
+        ProcessDescriptorHelper.initialize(3, 0);
+    }
+
     @Before
     public void setUp() throws FileNotFoundException {
         DirectoryHelper.create(directoryPath);
@@ -48,7 +65,7 @@ public class FullSSDiscWriterTest {
         buffer.putInt(1); // id
         buffer.putInt(2); // view
 
-        assertArrayEquals(buffer.array(), readFile(directoryPath + "/sync.0.log"));
+        assertArrayEquals(frame(buffer.array()), readRecord(directoryPath + "/wal.0.seg", 9));
     }
 
     @Test
@@ -63,13 +80,13 @@ public class FullSSDiscWriterTest {
         buffer.putInt(2); // value size
         buffer.put(value); // value
 
-        String path = directoryPath + "/sync.0.log";
-        assertArrayEquals(readFile(path), buffer.array());
+        String path = directoryPath + "/wal.0.seg";
+        assertArrayEquals(frame(buffer.array()), readRecord(path, 15));
     }
 
     @Test
     public void shouldGetNextLogNumber() throws IOException {
-        String[] s = new String[] {"sync.0.log", "invalid", "sync.2.log", "sync.1.log"};
+        String[] s = new String[] {"sync.0.log", "invalid", "sync.2.view", "sync.1.log"};
 
         int lastLogNumber = writer.getLastLogNumber(s);
         assertEquals(lastLogNumber, 2);
@@ -120,9 +137,11 @@ public class FullSSDiscWriterTest {
         writer.changeInstanceView(1, 4);
         writer.close();
 
-        FileOutputStream stream = new FileOutputStream(directoryPath + "/sync.0.log", true);
-        stream.write(new byte[] {1, 2, 3});
-        stream.close();
+        // A record torn by a crash, after the last one
+        RandomAccessFile file = new RandomAccessFile(directoryPath + "/wal.0.seg", "rw");
+        file.seek(4 * LogSegment.HEADER_SIZE + 15 + 15 + 16 + 9);
+        file.write(new byte[] {0, 0, 0, 9, 1, 2, 3});
+        file.close();
 
         writer = new FullSSDiscWriter(directoryPath);
         ConsensusInstance[] instances = writer.load().toArray(new ConsensusInstance[0]);
@@ -206,12 +225,210 @@ public class FullSSDiscWriterTest {
         assertEquals(snapshot.getStartingRequestSeqNo(), actual.getStartingRequestSeqNo());
     }
 
-    private byte[] readFile(String path) throws IOException {
-        FileInputStream stream = new FileInputStream(path);
-        int length = stream.available(); // danger
-        byte[] value = new byte[length];
-        stream.read(value);
+    @Test
+    public void shouldRunTaskImmediatelyWithoutGroupCommit() {
+        final boolean[] executed = new boolean[1];
+        writer.changeInstanceValue(1, 2, new byte[] {1, 2});
+        writer.whenDurable(new Runnable() {
+            public void run() {
+                executed[0] = true;
+            }
+        }, null);
+        assertTrue(executed[0]);
+    }
+
+    @Test(timeout = 5000)
+    public void shouldRunTasksAfterGroupCommit() throws Exception {
+        writer.close();
+        writer = new FullSSDiscWriter(directoryPath, true);
+
+        final BlockingQueue<Runnable> executed = new LinkedBlockingQueue<Runnable>();
+        Executor executor = new Executor() {
+            public void execute(Runnable command) {
+                executed.add(command);
+            }
+        };
+        Runnable first = new Runnable() {
+            public void run() {
+            }
+        };
+        Runnable second = new Runnable() {
+            public void run() {
+            }
+        };
+
+        writer.changeInstanceValue(1, 2, new byte[] {1, 2});
+        writer.whenDurable(first, executor);
+        writer.changeInstanceView(1, 3);
+        writer.whenDurable(second, executor);
+
+        // Passed to the executor in order once synced
+        assertTrue(first == executed.poll(4, TimeUnit.SECONDS));
+        assertTrue(second == executed.poll(4, TimeUnit.SECONDS));
+
+        // Nothing written since, runs immediately
+        final boolean[] ran = new boolean[1];
+        writer.whenDurable(new Runnable() {
+            public void run() {
+                ran[0] = true;
+            }
+        }, executor);
+        assertTrue(ran[0]);
+        assertFalse(executed.contains(first));
+    }
+
+    @Test
+    public void shouldWriteAllRecordsBeforeClosingInGroupCommitMode() throws IOException {
+        writer.close();
+        writer = new FullSSDiscWriter(directoryPath, true);
+        byte[] value = new byte[] {1, 2};
+        writer.changeInstanceValue(1, 2, value);
+        writer.changeInstanceView(1, 4);
+        writer.decideInstance(1);
+        writer.close();
+
+        writer = new FullSSDiscWriter(directoryPath);
+        ConsensusInstance[] instances = writer.load().toArray(new ConsensusInstance[0]);
+
+        assertEquals(1, instances.length);
+        assertEquals(4, instances[0].getView());
+        assertArrayEquals(value, instances[0].getValue());
+        assertEquals(ConsensusInstance.LogEntryState.DECIDED, instances[0].getState());
+    }
+
+    @Test
+    public void shouldIgnoreRecordsAfterChecksumMismatch() throws IOException {
+        writer.changeInstanceValue(1, 2, new byte[] {1, 2});
+        writer.changeInstanceValue(2, 2, new byte[] {3, 4});
+        writer.close();
+
+        // Corrupt the value of the second record
+        RandomAccessFile file = new RandomAccessFile(directoryPath + "/wal.0.seg", "rw");
+        file.seek(2 * LogSegment.HEADER_SIZE + 15 + 13);
+        file.write(7);
+        file.close();
+
+        writer = new FullSSDiscWriter(directoryPath);
+        ConsensusInstance[] instances = writer.load().toArray(new ConsensusInstance[0]);
+
+        assertEquals(1, instances.length);
+        assertEquals(1, instances[0].getId());
+        assertArrayEquals(new byte[] {1, 2}, instances[0].getValue());
+    }
+
+    @Test
+    public void shouldLoadLegacyLog() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(15 + 5);
+        buffer.put((byte) 2); // type
+        buffer.putInt(1); // id
+        buffer.putInt(2); // view
+        buffer.putInt(2); // value size
+        buffer.put(new byte[] {1, 2}); // value
+        buffer.put((byte) 0x21); // decided
+        buffer.putInt(1);
+
+        FileOutputStream stream = new FileOutputStream(directoryPath + "/sync.0.log");
+        stream.write(buffer.array());
+        stream.close();
+
+        writer.close();
+        writer = new FullSSDiscWriter(directoryPath);
+        ConsensusInstance[] instances = writer.load().toArray(new ConsensusInstance[0]);
+
+        assertEquals(1, instances.length);
+        assertArrayEquals(new byte[] {1, 2}, instances[0].getValue());
+        assertEquals(ConsensusInstance.LogEntryState.DECIDED, instances[0].getState());
+    }
+
+    @Test
+    public void shouldStartNewSegmentWhenFull() throws IOException {
+        writer.close();
+        writer = new FullSSDiscWriter(directoryPath, false, 64);
+        for (int i = 0; i < 4; i++) {
+            writer.changeInstanceValue(i, 1, new byte[20]);
+        }
+        // Larger than a segment
+        writer.changeInstanceValue(4, 1, new byte[100]);
+        writer.close();
+
+        assertTrue(new File(directoryPath + "/wal.3.seg").exists());
+        assertTrue(new File(directoryPath + "/wal.4.seg").length() > 64);
+
+        writer = new FullSSDiscWriter(directoryPath);
+        ConsensusInstance[] instances = writer.load().toArray(new ConsensusInstance[0]);
+        assertEquals(5, instances.length);
+        assertEquals(100, instances[4].getValue().length);
+    }
+
+    @Test
+    public void shouldRemoveSegmentsBelowSnapshot() throws IOException {
+        writer.close();
+        writer = new FullSSDiscWriter(directoryPath, false, 64);
+        // One instance per segment
+        for (int i = 0; i < 4; i++) {
+            writer.changeInstanceValue(i, 1, new byte[20]);
+            writer.decideInstance(i);
+        }
+        Snapshot snapshot = new Snapshot();
+        snapshot.setNextInstanceId(3);
+        snapshot.setValue(new byte[] {1});
+        snapshot.setLastReplyForClient(new HashMap<Long, Reply>());
+        snapshot.setPartialResponseCache(new ArrayList<Reply>());
+        writer.newSnapshot(snapshot);
+        writer.truncateBelow(3);
+        writer.close();
+
+        assertFalse(new File(directoryPath + "/wal.0.seg").exists());
+        assertFalse(new File(directoryPath + "/wal.2.seg").exists());
+        assertTrue(new File(directoryPath + "/wal.3.seg").exists());
+
+        writer = new FullSSDiscWriter(directoryPath);
+        ConsensusInstance[] instances = writer.load().toArray(new ConsensusInstance[0]);
+        assertEquals(1, instances.length);
+        assertEquals(3, instances[0].getId());
+        assertEquals(3, writer.getSnapshot().getNextInstanceId());
+    }
+
+    @Test
+    public void shouldLoadOnlyInstancesFromSnapshot() throws IOException {
+        writer.close();
+        writer = new FullSSDiscWriter(directoryPath, false, 64);
+        for (int i = 0; i < 5; i++) {
+            writer.changeInstanceValue(i, 1, new byte[20]);
+            writer.decideInstance(i);
+        }
+        Snapshot snapshot = new Snapshot();
+        snapshot.setNextInstanceId(3);
+        snapshot.setValue(new byte[] {1});
+        snapshot.setLastReplyForClient(new HashMap<Long, Reply>());
+        snapshot.setPartialResponseCache(new ArrayList<Reply>());
+        writer.newSnapshot(snapshot);
+        writer.changeInstanceView(1, 2);
+        writer.close();
+
+        writer = new FullSSDiscWriter(directoryPath);
+        ConsensusInstance[] instances = writer.load().toArray(new ConsensusInstance[0]);
+        assertEquals(2, instances.length);
+        assertEquals(3, instances[0].getId());
+        assertEquals(4, instances[1].getId());
+    }
+
+    /** Precedes the record by its length and checksum */
+    private byte[] frame(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer buffer = ByteBuffer.allocate(LogSegment.HEADER_SIZE + record.length);
+        buffer.putInt(record.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(record);
+        return buffer.array();
+    }
+
+    private byte[] readRecord(String path, int length) throws IOException {
+        byte[] record = new byte[LogSegment.HEADER_SIZE + length];
+        DataInputStream stream = new DataInputStream(new FileInputStream(path));
+        stream.readFully(record);
         stream.close();
-        return value;
+        return record;
     }
 }
@@ -2,14 +2,20 @@ package lsr.paxos.storage;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.List;
+import java.util.Properties;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -191,4 +197,32 @@ public class InMemoryStorageTest {
         storage.setLastSnapshot(snapshot);
         assertEquals(snapshot, storage.getLastSnapshot());
     }
+
+    @Test
+    public void shouldCheckWindowOfLeader() {
+        int windowSize = ProcessDescriptor.getInstance().windowSize;
+        assertEquals(windowSize, storage.getUndecidedSpan());
+        assertTrue(storage.isInWindow(windowSize - 1));
+        assertFalse(storage.isInWindow(windowSize));
+    }
+
+    @Test
+    public void shouldCheckWindowsOfAllOwnersInMultiLeaderMode() throws IOException {
+        Properties properties = new Properties();
+        for (int i = 0; i < 3; i++) {
+            properties.setProperty("process." + i, "localhost:" + (2000 + i) + ":" + (3000 + i));
+        }
+        properties.setProperty(ProcessDescriptor.MULTI_LEADER, "true");
+        File file = File.createTempFile("paxos", ".properties");
+        file.deleteOnExit();
+        FileOutputStream output = new FileOutputStream(file);
+        properties.store(output, null);
+        output.close();
+        ProcessDescriptor.initialize(new Configuration(file.getAbsolutePath()), 0);
+
+        int windowSize = ProcessDescriptor.getInstance().windowSize;
+        assertEquals(3 * windowSize, storage.getUndecidedSpan());
+        assertTrue(storage.isInWindow(3 * windowSize - 1));
+        assertFalse(storage.isInWindow(3 * windowSize));
+    }
 }
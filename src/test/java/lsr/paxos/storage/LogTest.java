@@ -7,6 +7,11 @@ import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SortedMap;
+
 import lsr.common.ProcessDescriptorHelper;
 import lsr.paxos.storage.ConsensusInstance.LogEntryState;
 
@@ -160,6 +165,46 @@ public class LogTest {
         assertEquals(0, log.getNextId());
     }
 
+    @Test
+    public void shouldKeepInstancesWhenTruncatingWhileGrowing() {
+        // Truncates and grows several times, so the instances wrap around
+        for (int i = 0; i < 5000; i++) {
+            log.append(1, new byte[] {1});
+            if (i % 700 == 699) {
+                log.truncateBelow(i - 100);
+            }
+        }
+
+        assertEquals(5000, log.getNextId());
+        assertEquals(4799, log.getLowestAvailableId());
+        assertEquals(201, log.size());
+        assertNull(log.getInstance(4798));
+        for (int i = 4799; i < 5000; i++) {
+            assertEquals(i, log.getInstance(i).getId());
+        }
+    }
+
+    @Test
+    public void shouldViewInstancesAsSortedMap() {
+        for (int i = 0; i < 10; i++) {
+            log.append(5, new byte[] {1, 2, 3});
+        }
+        log.getInstance(5).setDecided();
+        log.clearUndecidedBelow(6);
+
+        SortedMap<Integer, ConsensusInstance> map = log.getInstanceMap();
+        assertEquals(5, map.size());
+        assertEquals(Integer.valueOf(5), map.firstKey());
+        assertEquals(Integer.valueOf(9), map.lastKey());
+        assertNull(map.get(4));
+        assertEquals(log.getInstance(7), map.get(7));
+
+        SortedMap<Integer, ConsensusInstance> tail = map.tailMap(7);
+        assertEquals(3, tail.size());
+        assertEquals(Arrays.asList(7, 8, 9), new ArrayList<Integer>(tail.keySet()));
+        assertEquals(Integer.valueOf(6), map.headMap(7).lastKey());
+    }
+
     @Test
     public void shouldCalculateSizeBetweenTwoInstances() {
         for (int i = 0; i < 10; i++) {
@@ -96,6 +96,18 @@ public class SynchronousConsensusInstanceTest {
         assertEquals(LogEntryState.UNKNOWN, instance.getState());
     }
 
+    @Test
+    public void shouldReplaceValueMovedOffHeap() {
+        instance.setValue(view, values);
+        instance.setDecided();
+        instance.moveValueTo(new ValueArena(100));
+
+        byte[] newValues = new byte[] {4, 5};
+        instance.setValue(view + 1, newValues);
+        assertArrayEquals(newValues, instance.getValue());
+        verify(writer).changeInstanceValue(2, view + 1, newValues);
+    }
+
     @Test(expected = RuntimeException.class)
     public void shouldThrowExceptionAfterSettingValueWithOldView() {
         instance.setValue(5, new byte[] {1, 2, 3});
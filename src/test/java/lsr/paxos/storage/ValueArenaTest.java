@@ -0,0 +1,82 @@
+package lsr.paxos.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import lsr.common.ProcessDescriptorHelper;
+import lsr.paxos.storage.ConsensusInstance.LogEntryState;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ValueArenaTest {
+    private ValueArena arena;
+
+    @Before
+    public void setUp() {
+        arena = new ValueArena(100);
+    }
+
+    @Test
+    public void shouldReadStoredValues() {
+        ValueArena.Ref first = arena.store(1, new byte[] {1, 2, 3});
+        ValueArena.Ref second = arena.store(2, new byte[60]);
+        // Does not fit in the first slab
+        ValueArena.Ref third = arena.store(3, new byte[] {4, 5});
+        // Larger than a slab
+        ValueArena.Ref large = arena.store(4, new byte[300]);
+
+        assertArrayEquals(new byte[] {1, 2, 3}, first.get());
+        assertEquals(60, second.get().length);
+        assertArrayEquals(new byte[] {4, 5}, third.get());
+        assertEquals(300, large.length());
+
+        ByteBuffer buffer = ByteBuffer.allocate(3);
+        first.writeTo(buffer);
+        assertArrayEquals(new byte[] {1, 2, 3}, buffer.array());
+    }
+
+    @Test
+    public void shouldReleaseSlabsBelowInstance() {
+        ValueArena.Ref first = arena.store(1, new byte[60]);
+        ValueArena.Ref second = arena.store(3, new byte[60]);
+        ValueArena.Ref third = arena.store(2, new byte[60]);
+
+        // The second slab holds instance 3
+        arena.releaseBelow(3);
+        assertEquals(60, second.get().length);
+        try {
+            first.get();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+
+        // The slab being filled is kept
+        arena.releaseBelow(10);
+        assertEquals(60, third.get().length);
+    }
+
+    @Test
+    public void shouldMoveDecidedValueOffHeap() {
+        ProcessDescriptorHelper.initialize(3, 0);
+        Log log = new Log();
+        log.setValueArena(arena);
+        ConsensusInstance instance = log.append(1, new byte[] {1, 2, 3});
+        ConsensusInstance undecided = log.append(1, new byte[] {4});
+        instance.setDecided();
+        log.storeDecidedValue(instance);
+        log.storeDecidedValue(undecided);
+
+        assertNull(instance.value);
+        assertArrayEquals(new byte[] {1, 2, 3}, instance.getValue());
+        assertEquals(new ConsensusInstance(0, LogEntryState.DECIDED, 1, new byte[] {1, 2, 3}),
+                instance);
+        assertArrayEquals(new ConsensusInstance(0, LogEntryState.DECIDED, 1,
+                new byte[] {1, 2, 3}).toByteArray(), instance.toByteArray());
+        assertArrayEquals(new byte[] {4}, undecided.value);
+    }
+}